@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.IOException;
+
+/**
+ * Implemented by the output streams of {@link JoinableFileManager}, so a writer whose source fails part way through
+ * (a broken download, for instance) can discard the write instead of closing it: cast the stream and call
+ * {@link #abort(Throwable)}.
+ */
+public interface Abortable
+{
+    /**
+     * Discard what has been written: readers joined to the write throw an {@link IOException} carrying the given cause
+     * from their next read (rather than reaching a clean end of a truncated file), the partial file is removed, and
+     * the locks on it are released. A resumable write keeps the content it flushed instead, still marked incomplete, so
+     * it can be resumed later. Does nothing if the stream is already closed.
+     */
+    void abort( Throwable cause )
+            throws IOException;
+}
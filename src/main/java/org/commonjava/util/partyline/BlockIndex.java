@@ -0,0 +1,349 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.OptionalInt;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar index of CRC-32 checksums for fixed-size blocks of a file, kept up to date by the file's writer as it
+ * flushes (see {@link JoinableFile#setBlockIndex(int)}). A file whose writer died part way through can be checked
+ * against it block by block, so only the blocks that don't match (and whatever follows them) have to be fetched again.
+ * <br/>
+ * Layout: a header (magic number, block size, and the number of bytes the index covers), then one checksum for each
+ * block, the last of which may be short. A block's checksum is written only once the block is on disk, and the
+ * covered length only after its checksums, so the index never vouches for content that wasn't written.
+ */
+final class BlockIndex
+        implements Closeable
+{
+    private static final int MAGIC = 0x504c4249; // "PLBI"
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int LENGTH_POSITION = 8;
+
+    private static final int ENTRY_SIZE = 4;
+
+    private final FileChannel channel;
+
+    private final int blockSize;
+
+    private final ByteBuffer entry = ByteBuffer.allocate( ENTRY_SIZE );
+
+    private final CRC32 crc = new CRC32();
+
+    private long covered;
+
+    private int fill;
+
+    private BlockIndex( FileChannel channel, int blockSize )
+    {
+        this.channel = channel;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Retrieve the path of the block index for the given file.
+     */
+    static Path getIndexPath( Path target )
+    {
+        return target.resolveSibling( target.getFileName() + JoinableFile.BLOCK_INDEX_SUFFIX );
+    }
+
+    /**
+     * Start a new, empty index for the given file, replacing any existing one.
+     */
+    static BlockIndex create( Path target, int blockSize )
+            throws IOException
+    {
+        FileChannel channel = FileChannel.open( getIndexPath( target ), StandardOpenOption.CREATE,
+                                                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DSYNC );
+        BlockIndex index = new BlockIndex( channel, blockSize );
+        index.writeHeader();
+        return index;
+    }
+
+    /**
+     * Open the index of a file that a write is about to resume, keeping the checksums of the blocks that still match
+     * the file. The content from the first block that doesn't match (or isn't covered by the index) on can't be
+     * trusted; {@link #getLength()} tells the writer where to resume. If the file has no usable index, its content is
+     * trusted as it is, and a new index is built from it.
+     *
+     * @param data A channel to the file
+     * @param length The length of the file
+     */
+    static BlockIndex resume( Path target, FileChannel data, int blockSize, long length )
+            throws IOException
+    {
+        long verified = -1;
+        Path indexPath = getIndexPath( target );
+        if ( Files.exists( indexPath ) && readBlockSize( indexPath ) == blockSize )
+        {
+            verified = Math.min( length, getVerifiedLength( indexPath, data, length ) );
+        }
+
+        FileChannel channel = FileChannel.open( indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE, StandardOpenOption.DSYNC );
+        BlockIndex index = new BlockIndex( channel, blockSize );
+        try
+        {
+            long keep = verified < 0 ? 0 : verified / blockSize;
+            channel.truncate( HEADER_SIZE + keep * ENTRY_SIZE );
+            index.covered = keep * blockSize;
+            index.writeHeader();
+
+            // checksum the rest of what we keep: a partial block, or everything if there was no index
+            long end = verified < 0 ? length : verified;
+            ByteBuffer buf = ByteBuffer.allocate( blockSize );
+            long position = index.covered;
+            while ( position < end )
+            {
+                buf.clear();
+                buf.limit( (int) Math.min( blockSize, end - position ) );
+                int count = data.read( buf, position );
+                if ( count < 0 )
+                {
+                    break;
+                }
+
+                buf.flip();
+                index.update( buf );
+                position += count;
+            }
+
+            return index;
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            index.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieve the number of bytes of the given file, from the start, whose blocks match its index. The blocks are
+     * checked in parallel.
+     *
+     * @return the verified length, or -1 if the file has no index
+     */
+    static long getVerifiedLength( Path target )
+            throws IOException
+    {
+        Path indexPath = getIndexPath( target );
+        try (FileChannel data = FileChannel.open( target, StandardOpenOption.READ ))
+        {
+            return getVerifiedLength( indexPath, data, data.size() );
+        }
+        catch ( NoSuchFileException e )
+        {
+            return -1;
+        }
+    }
+
+    private static long getVerifiedLength( Path indexPath, FileChannel data, long length )
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open( indexPath, StandardOpenOption.READ ))
+        {
+            ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            while ( header.hasRemaining() && channel.read( header ) > -1 )
+            {
+                // keep reading until we have the whole header, or the index turns out to be short
+            }
+
+            header.flip();
+            if ( header.remaining() < HEADER_SIZE || header.getInt() != MAGIC )
+            {
+                Logger logger = LoggerFactory.getLogger( BlockIndex.class );
+                logger.warn( "Ignoring invalid block index: {}", indexPath );
+                return -1;
+            }
+
+            int blockSize = header.getInt();
+            long covered = Math.min( header.getLong(), length );
+            int blocks = (int) Math.min( ( covered + blockSize - 1 ) / blockSize,
+                                         ( channel.size() - HEADER_SIZE ) / ENTRY_SIZE );
+
+            ByteBuffer entries = ByteBuffer.allocate( blocks * ENTRY_SIZE );
+            channel.read( entries, HEADER_SIZE );
+            entries.flip();
+
+            OptionalInt firstBad;
+            try
+            {
+                firstBad = IntStream.range( 0, blocks )
+                                    .parallel()
+                                    .filter( ( i ) -> !matches( data, i, blockSize, covered, entries.getInt(
+                                            i * ENTRY_SIZE ) ) )
+                                    .min();
+            }
+            catch ( UncheckedIOException e )
+            {
+                throw e.getCause();
+            }
+
+            long verified = Math.min( covered, (long) blocks * blockSize );
+            return firstBad.isPresent() ? (long) firstBad.getAsInt() * blockSize : verified;
+        }
+    }
+
+    private static boolean matches( FileChannel data, int block, int blockSize, long covered, int expected )
+    {
+        long position = (long) block * blockSize;
+        ByteBuffer buf = ByteBuffer.allocate( (int) Math.min( blockSize, covered - position ) );
+        try
+        {
+            while ( buf.hasRemaining() && data.read( buf, position + buf.position() ) > -1 )
+            {
+                // keep reading until the block is filled, or we reach the end of the file.
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+
+        if ( buf.hasRemaining() )
+        {
+            return false;
+        }
+
+        buf.flip();
+        CRC32 crc = new CRC32();
+        crc.update( buf );
+        return (int) crc.getValue() == expected;
+    }
+
+    private static int readBlockSize( Path indexPath )
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open( indexPath, StandardOpenOption.READ ))
+        {
+            ByteBuffer header = ByteBuffer.allocate( 8 );
+            channel.read( header, 0 );
+            header.flip();
+            return header.remaining() == 8 && header.getInt() == MAGIC ? header.getInt() : -1;
+        }
+    }
+
+    /**
+     * Retrieve the number of bytes fed to this index so far.
+     */
+    long getLength()
+    {
+        return covered + fill;
+    }
+
+    /**
+     * Checksum the given content, which the writer has just put on disk following what it wrote before, and record
+     * the checksum of each block it completes. The buffer's position is left as it was.
+     */
+    void update( ByteBuffer data )
+            throws IOException
+    {
+        ByteBuffer remaining = data.duplicate();
+        boolean completed = false;
+        while ( remaining.hasRemaining() )
+        {
+            int count = Math.min( remaining.remaining(), blockSize - fill );
+            ByteBuffer slice = remaining.duplicate();
+            slice.limit( slice.position() + count );
+            crc.update( slice );
+            remaining.position( remaining.position() + count );
+            fill += count;
+
+            if ( fill == blockSize )
+            {
+                writeEntry();
+                covered += blockSize;
+                fill = 0;
+                crc.reset();
+                completed = true;
+            }
+        }
+
+        if ( completed )
+        {
+            writeLength( covered );
+        }
+    }
+
+    /**
+     * Record the checksum of the last (short) block, and mark the whole content as covered, once the writer is done.
+     */
+    void finish()
+            throws IOException
+    {
+        if ( fill > 0 )
+        {
+            writeEntry();
+        }
+
+        writeLength( covered + fill );
+    }
+
+    private void writeEntry()
+            throws IOException
+    {
+        entry.clear();
+        entry.putInt( (int) crc.getValue() );
+        entry.flip();
+        channel.write( entry, HEADER_SIZE + covered / blockSize * ENTRY_SIZE );
+    }
+
+    private void writeHeader()
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( MAGIC ).putInt( blockSize ).putLong( covered );
+        header.flip();
+        channel.write( header, 0 );
+    }
+
+    private void writeLength( long length )
+            throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( 8 );
+        buf.putLong( length );
+        buf.flip();
+        channel.write( buf, LENGTH_POSITION );
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if ( channel.isOpen() )
+        {
+            channel.close();
+        }
+    }
+}
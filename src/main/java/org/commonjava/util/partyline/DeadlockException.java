@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown to a thread waiting for a file lock when its owner is part of a cycle of owners waiting on each other's locks
+ * (for example, two owners that each hold a read lock on one file and want a write lock on the other's). Rather than
+ * letting every participant wait out its timeout, the youngest waiter in the cycle fails with this exception, so the
+ * others can proceed once it releases its locks.
+ */
+public class DeadlockException
+        extends IllegalStateException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> cycle;
+
+    public DeadlockException( String message, List<String> cycle )
+    {
+        super( message );
+        this.cycle = Collections.unmodifiableList( cycle );
+    }
+
+    /**
+     * Retrieve a description of each wait in the cycle, in order, starting with the failed waiter.
+     */
+    public List<String> getCycle()
+    {
+        return cycle;
+    }
+}
@@ -15,21 +15,45 @@
  */
 package org.commonjava.util.partyline;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.callback.LockEvent;
+import org.commonjava.util.partyline.callback.LockListener;
 import org.commonjava.util.partyline.callback.StreamCallbacks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.commonjava.util.partyline.LockLevel.read;
@@ -47,11 +71,106 @@ final class FileTree
 
     private static final long WAIT_TIMEOUT = 100;
 
+    private static final int ASYNC_LOCK_THREADS = 4;
+
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final Map<String, FileEntry> entryMap = new ConcurrentHashMap<>();
+    private final Shard[] shards;
+
+    private final int partitionDepth;
+
+    private final Map<PathKey, Queue<PendingLock<?>>> pendingLocks = new ConcurrentHashMap<>();
+
+    private final WaitForGraph waitForGraph = new WaitForGraph();
+
+    private final LockWatchers lockWatchers = new LockWatchers();
+
+    private final LockEventDispatcher lockEvents = new LockEventDispatcher();
+
+    private ScheduledExecutorService asyncExecutor;
+
+    private ThreadPoolExecutor attemptExecutor;
+
+    private volatile LockCoordinator coordinator = LocalLockCoordinator.INSTANCE;
+
+    private volatile List<String> digestAlgorithms = Collections.emptyList();
+
+    private volatile boolean writeChecksumFiles;
+
+    private volatile int blockIndexSize;
+
+    /**
+     * Create an unsharded tree: all files share one lock monitor.
+     */
+    FileTree()
+    {
+        this( 1, 0 );
+    }
+
+    /**
+     * Create a tree whose state is split into independent shards, so lock operations on unrelated files don't contend
+     * for a single monitor. Files are assigned to shards by their ancestor directory at the given partition depth
+     * (for instance, the top-level repository directory under a storage root): a file and all of the directories
+     * between it and that partition directory always share a shard, so locking within a partition only needs that
+     * shard's monitor. Locking a directory above the partition depth must see descendants in every shard, so it
+     * takes all shard monitors, in order.
+     *
+     * @param shardCount The number of shards
+     * @param partitionDepth The number of path elements in the directories that partition files into shards
+     */
+    FileTree( int shardCount, int partitionDepth )
+    {
+        if ( shardCount < 1 )
+        {
+            throw new IllegalArgumentException( "Shard count must be at least 1. Was: " + shardCount );
+        }
+
+        this.shards = new Shard[shardCount];
+        for ( int i = 0; i < shardCount; i++ )
+        {
+            shards[i] = new Shard();
+        }
+
+        this.partitionDepth = partitionDepth;
+    }
+
+    int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Coordinate locks with holders outside this JVM through the given coordinator: a path's coordinated lock is taken
+     * when it is first locked in this tree, and released when its last local lock goes away.
+     */
+    void setLockCoordinator( LockCoordinator coordinator )
+    {
+        this.coordinator = coordinator == null ? LocalLockCoordinator.INSTANCE : coordinator;
+    }
+
+    LockCoordinator getLockCoordinator()
+    {
+        return coordinator;
+    }
+
+    /**
+     * Keep a block checksum index with the given block size (or none, if it is 0) for each file opened for writing
+     * from now on (see {@link JoinableFile#setBlockIndex(int)}).
+     */
+    void setWriteBlockIndex( int blockSize )
+    {
+        this.blockIndexSize = blockSize;
+    }
 
-    private final Map<String, FileOperationLock> operationLocks = new ConcurrentHashMap<>();
+    /**
+     * Compute digests with the given algorithms for each file opened for writing from now on, optionally writing them
+     * to checksum files (see {@link JoinableFile#setDigests(List, boolean)}).
+     */
+    void setWriteDigests( List<String> algorithms, boolean writeChecksumFiles )
+    {
+        this.writeChecksumFiles = writeChecksumFiles;
+        this.digestAlgorithms = algorithms;
+    }
 
     /**
      * Iterate all {@link FileEntry instances} to extract information about active locks.
@@ -71,7 +190,7 @@ final class FileTree
      */
     void forAll( Predicate<? super FileEntry> predicate, Consumer<FileEntry> fileConsumer )
     {
-        TreeMap<String, FileEntry> sorted = new TreeMap<>( entryMap );
+        TreeMap<PathKey, FileEntry> sorted = getSortedEntries();
         sorted.forEach( ( key, entry ) -> {
             if ( entry != null && predicate.test( entry ) )
             {
@@ -80,18 +199,29 @@ final class FileTree
         } );
     }
 
+    private TreeMap<PathKey, FileEntry> getSortedEntries()
+    {
+        TreeMap<PathKey, FileEntry> sorted = new TreeMap<>();
+        for ( Shard shard : shards )
+        {
+            sorted.putAll( shard.entryMap );
+        }
+
+        return sorted;
+    }
+
     /**
      * Render the active files as a tree structure, for output to a log file or other string-oriented output.
      */
     String renderTree()
     {
         StringBuilder sb = new StringBuilder();
-        TreeMap<String, FileEntry> sorted = new TreeMap<>( entryMap );
+        TreeMap<PathKey, FileEntry> sorted = getSortedEntries();
         sorted.forEach( ( key, entry ) -> {
             sb.append( "+- " );
-            Stream.of( key.split( "/" ) ).forEach( ( part ) -> sb.append( "  " ) );
+            Stream.of( key.getPath().split( "/" ) ).forEach( ( part ) -> sb.append( "  " ) );
 
-            sb.append( new File( key ).getName() );
+            sb.append( key.toFile().getName() );
             if ( entry.file != null )
             {
                 sb.append( " (F)" );
@@ -110,16 +240,17 @@ final class FileTree
      *
      * @see LockLevel
      */
-    LockLevel getLockLevel( File file )
+    LockLevel getLockLevel( PathKey key )
     {
-        FileEntry entry = getLockingEntry( file );
-        logger.trace( "Locking entry for file: {} is: {}", file, entry );
-        String path = file.getAbsolutePath();
+        FileEntry entry = getLockingEntry( key );
+        logger.trace( "Locking entry for file: {} is: {}", key, entry );
         if ( entry == null )
         {
-            return null;
+            IntentionLock intention = getIntention( key );
+            logger.trace( "Returning lock level for this directory based on descendant locks: {}", intention );
+            return intention == null ? null : intention.getEffectiveLockLevel();
         }
-        else if ( !entry.name.equals( path ) )
+        else if ( !entry.key.equals( key ) )
         {
             logger.trace( "Returning parent lock level lock due to parent lock (level: {})", entry.lock.getLockLevel() );
             return entry.lock.getLockLevel();
@@ -131,21 +262,107 @@ final class FileTree
         }
     }
 
-    int getContextLockCount( File file ){
-        FileEntry entry = getLockingEntry( file );
+    /**
+     * Subscribe the listener to {@link LockEvent}s for the given path and everything beneath it. Events are delivered
+     * asynchronously; see {@link LockEventDispatcher}.
+     */
+    void addLockListener( File prefix, LockListener listener )
+    {
+        lockEvents.addListener( prefix, listener );
+    }
+
+    boolean removeLockListener( File prefix, LockListener listener )
+    {
+        return lockEvents.removeListener( prefix, listener );
+    }
+
+    /**
+     * Wait until the {@link LockLevel} of every one of the given files (see {@link #getLockLevel(PathKey)}) satisfies the
+     * given condition, or the timeout expires. Rather than polling, the waiting thread is woken each time an operation
+     * releases or changes a lock on one of the files, or on one of their ancestors or descendants.
+     *
+     * @param files The files to wait for
+     * @param condition The condition each file's lock level must meet (the level is null for unlocked files)
+     * @param timeout The timeout period before giving up
+     * @param unit The time units for the timeout period
+     * @return true if all of the files met the condition at once; false if the timeout expired first
+     * @throws InterruptedException
+     */
+    boolean awaitLockLevels( Collection<File> files, Predicate<LockLevel> condition, long timeout, TimeUnit unit )
+            throws InterruptedException
+    {
+        long end = System.nanoTime() + unit.toNanos( timeout );
+
+        List<PathKey> keys = new ArrayList<>( files.size() );
+        files.forEach( ( f ) -> keys.add( PathKey.of( f ) ) );
+
+        LockWatchers.Watch watch = lockWatchers.register( keys );
+        try
+        {
+            while ( true )
+            {
+                // capture the version first, so a change during the check below isn't missed.
+                long seen = watch.getVersion();
+                if ( keys.stream().allMatch( ( key ) -> condition.test( getLockLevel( key ) ) ) )
+                {
+                    return true;
+                }
+
+                long remaining = end - System.nanoTime();
+                if ( remaining <= 0 )
+                {
+                    return false;
+                }
+
+                watch.await( seen, remaining, TimeUnit.NANOSECONDS );
+            }
+        }
+        finally
+        {
+            lockWatchers.unregister( watch );
+        }
+    }
+
+    int getContextLockCount( PathKey key ){
+        FileEntry entry = getLockingEntry( key );
         if ( entry == null )
         {
             return 0;
         }
-        else if ( !entry.name.equals( file.getAbsolutePath() ) )
+        else if ( !entry.key.equals( key ) )
         {
             //FIXME: Not sure if this is also 0
             return 0;
         }
         else
         {
-            return entry.lock.getContextLockCount();
+            // count descendant locks for this context too, since they hold this directory via intention locks.
+            IntentionLock intention = getIntention( entry.key );
+            int descendantCount = intention == null ? 0 : intention.getCount( getLockReservationName() );
+            return entry.lock.getContextLockCount() + descendantCount;
+        }
+    }
+
+    /**
+     * Retrieve the {@link IntentionLock.Mode} held on the given directory on behalf of locks on its descendants, or
+     * null if none of its descendants are locked. This is an O(1) check, so directory operations can use it instead
+     * of scanning for locked children.
+     */
+    IntentionLock.Mode getIntentionMode( File dir )
+    {
+        PathKey key = PathKey.of( dir );
+        IntentionLock intention = getIntention( key );
+        IntentionLock.Mode mode = intention == null ? null : intention.getMode();
+        if ( mode == IntentionLock.Mode.IX )
+        {
+            FileEntry entry = getEntry( key );
+            if ( entry != null && entry.lock.getLockLevel() == read )
+            {
+                return IntentionLock.Mode.SIX;
+            }
         }
+
+        return mode;
     }
 
     /**
@@ -155,27 +372,37 @@ final class FileTree
      * @return true if the file has no remaining locks after unlocking for this owner; false otherwise
      */
     boolean unlock( File f )
+    {
+        return unlock( f, getLockReservationName() );
+    }
+
+    /**
+     * (Manually) unlock a file on behalf of the given owner, regardless of which thread makes the call.
+     * @param f The file to unlock
+     * @param ownerName The lock owner that acquired the lock (see {@link LockOwner#getLockReservationName()})
+     * @return true if the file has no remaining locks after unlocking for this owner; false otherwise
+     */
+    boolean unlock( File f, String ownerName )
+    {
+        return unlock( PathKey.of( f ), ownerName );
+    }
+
+    boolean unlock( PathKey f, String ownerName )
     {
         try
         {
-            return withOpLock( f, ( opLock ) -> {
-                String ownerName = getLockReservationName();
-                FileEntry entry = entryMap.get( f.getAbsolutePath() );
+            return withOpLockAndSignal( f, ( opLock ) -> {
+                FileEntry entry = getEntry( f );
                 if ( entry != null )
                 {
                     logger.trace( "Unlocking {} (owner: {})", f, ownerName );
-                    if ( entry.lock.unlock() )
+                    if ( entry.lock.unlock( ownerName ) )
                     {
                         logger.trace( "Unlocked; clearing resources associated with lock" );
 
                         closeEntryFile( entry, ownerName );
 
-                        if ( !unlockAssociatedEntries( entry, opLock ) )
-                        {
-                            return false;
-                        }
-
-                        entryMap.remove( entry.name );
+                        removeEntry( entry.key );
 
                         opLock.signal();
                         logger.trace( "Unlock succeeded." );
@@ -210,36 +437,60 @@ final class FileTree
         return false;
     }
 
-    private boolean unlockAssociatedEntries( final FileEntry entry, final FileOperationLock opLock )
+    /**
+     * Forcibly release all holds the given owner has on a file, for example when the owner's lease has expired. If the
+     * owner is writing the file, its {@link JoinableFile} is closed (joined readers may finish reading what was
+     * written). If no locks remain afterward, the file is released as in {@link #unlock(File, String)}.
+     *
+     * @param f The file to release
+     * @param ownerName The lock owner whose holds should be released
+     * @return true if the owner held any locks on the file
+     */
+    boolean expireLocks( PathKey f, String ownerName )
     {
-        // the 'alsoLocked' entry field constitutes a linked list of locked entries.
-        // When we unlock the topmost one, we need to unlock the ones that are linked too.
-        FileEntry alsoLocked = entry.alsoLocked;
-        while ( alsoLocked != null )
+        try
         {
-            logger.trace( "ALSO Unlocking: {}", alsoLocked.name );
-            alsoLocked.lock.unlock();
-//
-//            {
-//                // FIXME: This is probably a little bit wrong, but in practice it should never fail.
-//                // I'm not sure how we should handle failure to decrement the lock count for this
-//                // ThreadContext. Should it cause the main unlock() method here to fail? Probably...
-//                logger.error( "FAILED to unlock associated entry for path: {}\n\nEntry: {}\n\n", alsoLocked, entry.name );
-//
-//                opLock.signal();
-//                logger.trace( "Unlock failed for: {}", entry.name );
-//                return false;
-//            }
+            return withOpLockAndSignal( f, ( opLock ) -> {
+                FileEntry entry = getEntry( f );
+                if ( entry == null || !entry.lock.isLockedBy( ownerName ) )
+                {
+                    logger.trace( "{} not locked by {}", f, ownerName );
+                    return false;
+                }
 
-            if ( !alsoLocked.lock.isLocked() )
-            {
-                entryMap.remove( alsoLocked.name );
-            }
+                logger.trace( "Expiring locks on {} (owner: {})", f, ownerName );
+                if ( entry.file != null && entry.file.isWriteLocked() && entry.lock.getLockLevel() != read )
+                {
+                    // only the writing owner can hold a write lock on an open file.
+                    closeEntryFile( entry, ownerName );
+                }
+
+                boolean released = false;
+                while ( !released && entry.lock.isLockedBy( ownerName ) )
+                {
+                    released = entry.lock.unlock( ownerName );
+                }
+
+                if ( released && getEntry( entry.key ) == entry )
+                {
+                    closeEntryFile( entry, ownerName );
+                    removeEntry( entry.key );
+                }
 
-            alsoLocked = alsoLocked.alsoLocked;
+                opLock.signal();
+                return true;
+            } ) == Boolean.TRUE;
+        }
+        catch ( IOException e )
+        {
+            logger.error( "SHOULD NEVER HAPPEN: IOException trying to expire locks on: " + f, e );
+        }
+        catch ( InterruptedException e )
+        {
+            logger.warn( "Interrupted while trying to expire locks on: " + f );
         }
 
-        return true;
+        return false;
     }
 
     /**
@@ -254,12 +505,12 @@ final class FileTree
      *
      * @param f The file whose locks should be cleared
      */
-    private void clearLocks( File f )
+    private void clearLocks( PathKey f )
     {
         try
         {
-            withOpLock( f, ( opLock ) -> {
-                FileEntry entry = entryMap.get( f.getAbsolutePath() );
+            withOpLockAndSignal( f, ( opLock ) -> {
+                FileEntry entry = getEntry( f );
                 if ( entry != null )
                 {
                     logger.trace( "Unlocking {}", f );
@@ -268,9 +519,7 @@ final class FileTree
 
                     closeEntryFile( entry, "" );
 
-                    unlockAssociatedEntries( entry, opLock );
-
-                    entryMap.remove( entry.name );
+                    removeEntry( entry.key );
 
                     opLock.signal();
                     logger.trace( "Unlock succeeded." );
@@ -321,10 +570,29 @@ final class FileTree
      */
     boolean tryLock( File file, String label, LockLevel lockLevel, long timeout, TimeUnit unit )
             throws InterruptedException
+    {
+        return tryLock( file, getLockReservationName(), label, lockLevel, timeout, unit );
+    }
+
+    /**
+     * Acquire the given {@link LockLevel} on the specified file on behalf of the given owner, within the given
+     * timeout.
+     *
+     * @see #tryLock(File, String, LockLevel, long, TimeUnit)
+     */
+    boolean tryLock( File file, String ownerName, String label, LockLevel lockLevel, long timeout, TimeUnit unit )
+            throws InterruptedException
+    {
+        return tryLock( PathKey.of( file ), ownerName, label, lockLevel, timeout, unit );
+    }
+
+    boolean tryLock( PathKey file, String ownerName, String label, LockLevel lockLevel, long timeout,
+                     TimeUnit unit )
+            throws InterruptedException
     {
         try
         {
-            return tryLock( file, label, lockLevel, timeout, unit, ( opLock ) -> true );
+            return tryLock( file, ownerName, label, lockLevel, timeout, unit, ( opLock ) -> true ) == Boolean.TRUE;
         }
         catch ( IOException e )
         {
@@ -335,156 +603,844 @@ final class FileTree
     }
 
     /**
-     * Acquire the given {@link LockLevel} on the specified file, under the provided ownership name and activity label,
-     * within the given timeout. If lock acquisition succeeds, execute the provided operation (normally a lambda).
-     * <br/>
-     * This method is used within FileTree to handle file lock acquisition before opening / deleting files, among other
-     * things.
-     * <br/>
-     * <b>NOTE:</b> Before attempting to acquire the file lock, this method will acquire the operation semaphore for
-     * the given file. This prevents other concurrent calls from overlapping when establishing the first lock on a file,
-     * or when releasing the last lock.
+     * Acquire the given {@link LockLevel} on every one of the specified files on behalf of the given owner, or none of
+     * them. Files are locked in canonical (absolute path) order, so concurrent batch locks over overlapping sets of
+     * files can't deadlock against each other, and the timeout applies to the whole batch rather than to each file.
+     * If any file can't be locked in the remaining time, the files already locked by this call are unlocked again in
+     * reverse order.
      *
-     * @param f The file to lock
+     * @param files The files to lock
+     * @param ownerName The owner on whose behalf the locks are acquired
      * @param label The activity label, to aid in debugging stuck locks
      * @param lockLevel The type of lock to acquire (read, write, delete)
-     * @param timeout The timeout period before giving up on the lock acquisition
+     * @param timeout The timeout period before giving up on the whole batch
      * @param unit The time units for the timeout period (milliseconds, etc)
-     * @param operation The operation to perform once the file lock is acquired
-     * @return the result of the provided operation, or else null
+     * @return true if all files were locked, otherwise false (and none of them remain locked by this call)
      * @throws InterruptedException
-     *
-     * @see LockLevel
      */
-    private <T> T tryLock( File f, String label, LockLevel lockLevel, long timeout, TimeUnit unit,
-                           LockedFileOperation<T> operation )
-            throws InterruptedException, IOException
+    boolean tryLockAll( Collection<PathKey> files, String ownerName, String label, LockLevel lockLevel, long timeout,
+                        TimeUnit unit )
+            throws InterruptedException
     {
-        return withOpLock( f, ( opLock ) -> {
-            long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
+        List<PathKey> ordered = canonicalOrder( files );
+        long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
 
-            logger.trace( "{}: Trying to lock until: {}", System.currentTimeMillis(), end );
+        List<PathKey> prefetched = prefetchCoordinatedLocks( ordered, lockLevel );
+        List<PathKey> locked = new ArrayList<>( ordered.size() );
+        boolean success = false;
+        try
+        {
+            for ( PathKey f : ordered )
+            {
+                long remaining = end < 1 ? -1 : end - System.currentTimeMillis();
+                if ( end > 0 && remaining < 1 )
+                {
+                    logger.trace( "Batch lock timed out before locking: {}", f );
+                    return false;
+                }
 
-            String name = f.getAbsolutePath();
-            FileEntry entry = null;
-            try
+                if ( !tryLock( f, ownerName, label, lockLevel, remaining, TimeUnit.MILLISECONDS ) )
+                {
+                    logger.trace( "Batch lock failed on: {}", f );
+                    return false;
+                }
+
+                locked.add( f );
+            }
+
+            success = true;
+            return true;
+        }
+        finally
+        {
+            if ( !success )
             {
-                while ( end < 1 || System.currentTimeMillis() < end )
+                logger.trace( "Rolling back {} locks from failed batch", locked.size() );
+                for ( int i = locked.size() - 1; i >= 0; i-- )
                 {
-                    entry = getLockingEntry( f );
+                    unlock( locked.get( i ), ownerName );
+                }
+            }
 
-                    /*
-                    There are three basic states we need to capture here:
+            releaseUnusedCoordinatedLocks( prefetched );
+        }
+    }
 
-                    1. The target file is already locked. Try to lock again, and retry / fail as appropriate.
+    /**
+     * Take the coordinated locks for the files in a batch that aren't locked in this JVM yet with a single
+     * {@link LockCoordinator#tryLockAll(List, LockLevel)} request, so locking them one by one afterward doesn't cost a
+     * round trip each. If the batch fails, the files are simply locked one by one.
+     *
+     * @return the files whose coordinated locks were taken
+     */
+    private List<PathKey> prefetchCoordinatedLocks( List<PathKey> ordered, LockLevel lockLevel )
+    {
+        if ( coordinator == LocalLockCoordinator.INSTANCE )
+        {
+            return Collections.emptyList();
+        }
 
-                    2. The target file's ancestor is locked. Try to lock again, and retry / fail as appropriate.
-                       When locked, set a flag to tell the system to lock the target file and proceed.
+        List<PathKey> unlocked = ordered.stream().filter( f -> getEntry( f ) == null ).collect( Collectors.toList() );
+        try
+        {
+            if ( unlocked.size() > 1 && coordinator.tryLockAll( unlocked, lockLevel ) )
+            {
+                return unlocked;
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Batch request to lock coordinator failed; locking files one at a time. Reason: {}",
+                         e.getMessage() );
+        }
 
-                    3. Neither the target file nor its ancestry is locked. Set a flag to tell the system to lock the
-                       target file and proceed.
-                     */
-                    boolean doFileLock = (entry == null);
+        return Collections.emptyList();
+    }
 
-                    if ( !doFileLock )
+    /**
+     * Release coordinated locks taken by {@link #prefetchCoordinatedLocks(List, LockLevel)} for files that didn't end
+     * up locked in this JVM.
+     */
+    private void releaseUnusedCoordinatedLocks( List<PathKey> prefetched )
+    {
+        // the locks have to be released even if the batch was interrupted; restore the interrupt afterward.
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            for ( PathKey f : prefetched )
+            {
+                while ( true )
+                {
+                    try
                     {
-                        if ( entry.name.equals( name ) )
-                        {
-                            if ( entry.lock.lock( label, lockLevel ) )
+                        withOpLock( f, ( opLock ) -> {
+                            if ( getEntry( f ) == null )
                             {
-                                logger.trace( "Added lock to existing entry: {}", entry.name );
-                                try
-                                {
-                                    return operation.execute( opLock );
-                                }
-                                catch ( IOException | RuntimeException e )
-                                {
-                                    // we just locked this, and the call failed...reverse the lock operation.
-                                    entry.lock.unlock();
-                                    throw e;
-                                }
+                                releaseCoordinatedLock( f );
                             }
-                            else
-                            {
-                                logger.trace( "Lock failed, but retry may allow another attempt..." );
-                            }
-                        }
-                        else if ( name.startsWith( entry.name ) )
-                        {
-                            entry.lock.lock( label, lockLevel );
 
-                            FileEntry alsoLocked = entry.alsoLocked;
-                            while ( alsoLocked != null )
-                            {
-                                alsoLocked.lock.lock( label, read );
-                                alsoLocked = alsoLocked.alsoLocked;
-                            }
-
-                            doFileLock = true;
-                        }
+                            return null;
+                        } );
+                        break;
                     }
-
-                    /*
-                    If we've been cleared to proceed above, create a new FileEntry instance, lock it, and proceed.
-                     */
-                    if ( doFileLock )
+                    catch ( InterruptedException e )
                     {
-                        if ( read == lockLevel && !f.exists() )
-                        {
-                            throw new IOException( f + " does not exist. Cannot read-lock missing file!" );
-                        }
-
-                        entry = new FileEntry( name, label, lockLevel, entry );
-                        logger.trace( "No lock; locking as: {} from: {}", lockLevel, label );
-                        entryMap.put( name, entry );
-                        try
-                        {
-                            return operation.execute( opLock );
-                        }
-                        catch ( IOException | RuntimeException e )
-                        {
-                            // we just locked this, and the call failed...reverse the lock operation.
-                            // NOTE: This will CLEAR all locks, which is what we want since there was no FileEntry before.
-                            clearLocks( f );
-                            throw e;
-                        }
+                        interrupted = true;
                     }
-                    /*
-                    If we haven't succeeded in locking the file (or its ancestry), wait.
-                     */
-                    else
+                    catch ( IOException e )
                     {
-                        logger.trace( "Waiting for lock to clear; locking as: {} from: {}", lockLevel, label );
-                        opLock.await( WAIT_TIMEOUT );
+                        logger.error( "Failed to release coordinated lock on: " + f, e );
+                        break;
                     }
                 }
             }
-            finally
+        }
+        finally
+        {
+            if ( interrupted )
             {
-                // no matter what else happens, do NOT allow a delete lock to remain
-                if ( entry != null && entry.lock.getLockLevel() == LockLevel.delete && entry.lock.isLocked() )
-                {
-                    logger.trace( "Clearing locks on delete-locked file entry: {}", f );
-                    clearLocks( f );
-                }
+                Thread.currentThread().interrupt();
             }
-
-            logger.trace( "{}: {}: Lock failed", System.currentTimeMillis(), name );
-            return null;
-        } );
+        }
     }
 
     /**
-     * Establish a Stream (input or output) associated with a given file. This method will acquire the appropriate lock
-     * for the file (using {@link #tryLock(File, String, LockLevel, long, TimeUnit, LockedFileOperation)}) and
-     * then retrieve the {@link JoinableFile} instance associated with the file (or create it if necessary). Finally,
-     * it passes the JoinableFile to the given {@link JoinFileOperation} to establish the appropriate stream into / out
-     * of that file.
+     * Release locks established via {@link #tryLockAll(Collection, String, String, LockLevel, long, TimeUnit)},
+     * in reverse canonical order.
      *
-     * @param realFile The file to open
-     * @param callbacks A set of callback operations that can respond to the file being closed or flushed, normally
-     *                  used for accounting.
-     * @param doOutput If true, the associated function should return an {@link java.io.OutputStream}; else {@link java.io.InputStream}
+     * @return true if all of the files are unlocked for this owner
+     */
+    boolean unlockAll( Collection<PathKey> files, String ownerName )
+    {
+        List<PathKey> ordered = canonicalOrder( files );
+        boolean result = true;
+        for ( int i = ordered.size() - 1; i >= 0; i-- )
+        {
+            result = unlock( ordered.get( i ), ownerName ) && result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Convert the given owner's read lock on the specified file into a write lock, without releasing it in between.
+     * If other owners also hold (read) locks, wait up to the timeout for them to finish; meanwhile, new readers are
+     * turned away so the upgrade can't be starved. Only one owner can wait to upgrade at a time, since two readers
+     * each waiting for the other to leave would deadlock; the second one fails immediately.
+     *
+     * @param f The file whose lock should be upgraded
+     * @param ownerName The owner holding the read lock
+     * @param timeout The timeout period before giving up on the upgrade (the read lock is retained in that case)
+     * @param unit The time units for the timeout period (milliseconds, etc)
+     * @return true if the owner now holds a write lock, otherwise false
+     * @throws IOException if the {@link LockCoordinator} fails (the read lock is retained)
+     * @throws InterruptedException
+     */
+    boolean tryUpgrade( PathKey f, String ownerName, long timeout, TimeUnit unit )
+            throws IOException, InterruptedException
+    {
+        return withOpLockAndSignal( f, ( opLock ) -> {
+            long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
+
+            FileEntry entry = getEntry( f );
+            if ( entry == null )
+            {
+                logger.trace( "{} is not locked. Cannot upgrade for: {}", f, ownerName );
+                return false;
+            }
+
+            try
+            {
+                while ( end < 1 || System.currentTimeMillis() < end )
+                {
+                    // the upgraded lock will need exclusive intention locks on this file's ancestors.
+                    boolean compatible;
+                    boolean ready;
+                    lockShards( entry.key );
+                    try
+                    {
+                        compatible = isCompatible( f, ownerName, LockLevel.write );
+                        ready = compatible && entry.lock.canUpgrade( ownerName );
+                    }
+                    finally
+                    {
+                        unlockShards( entry.key );
+                    }
+
+                    if ( compatible && !ready && !entry.lock.isUpgradePending( ownerName ) )
+                    {
+                        return false;
+                    }
+
+                    // only ask the coordinator once the local upgrade can go ahead, and not under the shard
+                    // monitor(s), since that may wait on the network.
+                    if ( ready && coordinator.tryLock( f, LockLevel.write ) )
+                    {
+                        boolean upgraded;
+                        lockShards( entry.key );
+                        try
+                        {
+                            upgraded = isCompatible( f, ownerName, LockLevel.write ) && entry.lock.upgrade(
+                                    ownerName );
+                        }
+                        finally
+                        {
+                            unlockShards( entry.key );
+                        }
+
+                        if ( upgraded )
+                        {
+                            return true;
+                        }
+
+                        downgradeCoordinatedLock( f );
+                    }
+
+                    logger.trace( "Waiting for other owners to release: {} before upgrading for: {}", f, ownerName );
+                    opLock.await( WAIT_TIMEOUT );
+                }
+            }
+            finally
+            {
+                entry.lock.cancelUpgrade( ownerName );
+            }
+
+            logger.trace( "{}: {}: Upgrade failed", System.currentTimeMillis(), f );
+            return false;
+        } );
+    }
+
+    /**
+     * Convert the given owner's write lock on the specified file into a read lock, without releasing it in between.
+     * Pending readers can then join. The {@link LockCoordinator} is told first, so if it fails, the owner still holds
+     * the write lock both here and with the coordinator.
+     *
+     * @return true if the owner now holds a read lock; false if it didn't hold a write lock on the file
+     * @throws IOException if the {@link LockCoordinator} fails (the write lock is retained)
+     */
+    boolean downgrade( PathKey f, String ownerName )
+            throws IOException
+    {
+        try
+        {
+            return withOpLockAndSignal( f, ( opLock ) -> {
+                FileEntry entry = getEntry( f );
+                if ( entry == null || entry.lock.getLockLevel( ownerName ) != LockLevel.write )
+                {
+                    logger.trace( "{} does not hold a write lock on: {}. Cannot downgrade.", ownerName, f );
+                    return false;
+                }
+
+                downgradeCoordinatedLock( f );
+                boolean result = entry.lock.downgrade( ownerName );
+
+                opLock.signal();
+                return result;
+            } );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while trying to downgrade lock: " + f );
+        }
+    }
+
+    /**
+     * Change this JVM's coordinated lock on the given file from write back to read.
+     */
+    private void downgradeCoordinatedLock( PathKey f )
+            throws IOException
+    {
+        if ( !coordinator.tryLock( f, read ) )
+        {
+            throw new IOException( "Lock coordinator refused to downgrade the lock on: " + f + " to read" );
+        }
+    }
+
+    /**
+     * Sort the given files by absolute path (which places directories ahead of their contents), dropping duplicates.
+     * This is the order in which batches of files are locked.
+     */
+    static List<PathKey> canonicalOrder( Collection<PathKey> files )
+    {
+        return new ArrayList<>( new TreeSet<>( files ) );
+    }
+
+    /**
+     * Acquire the given {@link LockLevel} on the specified file, under the provided ownership name and activity label,
+     * within the given timeout. If lock acquisition succeeds, execute the provided operation (normally a lambda).
+     * <br/>
+     * This method is used within FileTree to handle file lock acquisition before opening / deleting files, among other
+     * things.
+     * <br/>
+     * <b>NOTE:</b> Before attempting to acquire the file lock, this method will acquire the operation semaphore for
+     * the given file. This prevents other concurrent calls from overlapping when establishing the first lock on a file,
+     * or when releasing the last lock.
+     *
+     * @param f The file to lock
+     * @param ownerName The owner on whose behalf the lock is acquired
+     * @param label The activity label, to aid in debugging stuck locks
+     * @param lockLevel The type of lock to acquire (read, write, delete)
+     * @param timeout The timeout period before giving up on the lock acquisition
+     * @param unit The time units for the timeout period (milliseconds, etc)
+     * @param operation The operation to perform once the file lock is acquired
+     * @return the result of the provided operation, or else null
+     * @throws InterruptedException
+     * @throws DeadlockException if waiting for the lock would deadlock with other waiting owners, and this is the
+     * youngest of them
+     *
+     * @see LockLevel
+     */
+    private <T> T tryLock( PathKey f, String ownerName, String label, LockLevel lockLevel, long timeout,
+                           TimeUnit unit, LockedFileOperation<T> operation )
+            throws InterruptedException, IOException
+    {
+        return withOpLock( f, ( opLock ) -> {
+            long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
+
+            logger.trace( "{}: Trying to lock until: {}", System.currentTimeMillis(), end );
+
+            FileEntry entry = null;
+            WaitForGraph.Waiter waiter = null;
+            try
+            {
+                while ( end < 1 || System.currentTimeMillis() < end )
+                {
+                    entry = getEntry( f );
+
+                    FileEntry locked = lockEntry( f, entry, ownerName, label, lockLevel );
+                    if ( locked != null )
+                    {
+                        boolean existing = ( locked == entry );
+                        entry = locked;
+                        return executeLocked( f, entry, existing, ownerName, opLock, operation );
+                    }
+
+                    /*
+                    If we haven't succeeded in locking the file (or its ancestry), make sure we aren't waiting on an
+                    owner that is (transitively) waiting on us, then wait.
+                     */
+                    if ( waiter == null )
+                    {
+                        waiter = waitForGraph.add( ownerName, f, lockLevel );
+                    }
+
+                    waitForGraph.detect( waiter, this::getBlockingOwners );
+                    waiter.checkDeadlock();
+
+                    logger.trace( "Waiting for lock to clear; locking as: {} from: {}", lockLevel, label );
+                    opLock.await( WAIT_TIMEOUT );
+                }
+            }
+            finally
+            {
+                if ( waiter != null )
+                {
+                    waitForGraph.remove( waiter );
+                }
+
+                clearDeleteLock( f, entry );
+            }
+
+            logger.trace( "{}: {}: Lock failed", System.currentTimeMillis(), f );
+            return null;
+        } );
+    }
+
+    /**
+     * Make a single attempt to lock the given file, given its current {@link FileEntry} (if any). This never waits;
+     * callers are responsible for retrying, and must hold the file's operation lock (see
+     * {@link #withOpLock(PathKey, LockedFileOperation)}), so no other entry for the file can appear meanwhile.
+     * <br/>
+     * The attempt is checked against the locks held on the file itself, on each locked ancestor directory (which
+     * must allow the corresponding intention lock; see {@link LockOwner#allowsIntention(String, LockLevel)}), and
+     * on the file's descendants (via the {@link IntentionLock} for its path). This runs while holding the monitor(s)
+     * of the file's shard (see {@link #lockShards(PathKey)}), so the check and the resulting intention-lock updates on
+     * the ancestors happen atomically.
+     * <br/>
+     * When the file isn't locked in this JVM yet, its coordinated lock is taken before entering the shard monitor(s),
+     * since the {@link LockCoordinator} may have to wait on the network, and released again if the local check fails.
+     *
+     * @return the locked {@link FileEntry} for the file (which will be the given entry if it was already locked, or a
+     * new one otherwise), or null if the lock couldn't be acquired
+     */
+    private FileEntry lockEntry( PathKey f, FileEntry entry, String ownerName, String label, LockLevel lockLevel )
+            throws IOException
+    {
+        if ( entry != null )
+        {
+            lockShards( f );
+            try
+            {
+                if ( !isCompatible( f, ownerName, lockLevel ) )
+                {
+                    logger.trace(
+                            "Lock conflicts with ancestor or descendant locks; retry may allow another attempt..." );
+                    return null;
+                }
+
+                if ( entry.lock.lock( ownerName, label, lockLevel ) )
+                {
+                    logger.trace( "Added lock to existing entry: {}", entry.name );
+                    return entry;
+                }
+
+                logger.trace( "Lock failed, but retry may allow another attempt..." );
+                return null;
+            }
+            finally
+            {
+                unlockShards( f );
+            }
+        }
+
+        if ( read == lockLevel && !Files.exists( f.toPath() ) )
+        {
+            throw new IOException( f + " does not exist. Cannot read-lock missing file!" );
+        }
+
+        // don't bother the coordinator while the lock is bound to fail locally.
+        if ( !isCompatibleNow( f, ownerName, lockLevel ) )
+        {
+            logger.trace( "Lock conflicts with ancestor or descendant locks; retry may allow another attempt..." );
+            return null;
+        }
+
+        if ( !coordinator.tryLock( f, lockLevel ) )
+        {
+            logger.trace( "{} is locked outside this JVM; retry may allow another attempt...", f );
+            return null;
+        }
+
+        lockShards( f );
+        try
+        {
+            if ( isCompatible( f, ownerName, lockLevel ) )
+            {
+                FileEntry created = new FileEntry( f, ownerName, label, lockLevel, ( owner, level, delta ) -> {
+                    updateIntentions( f, owner, level, delta );
+                    lockEvents.publish( delta > 0 ? LockEvent.Type.LOCKED : LockEvent.Type.UNLOCKED, f, owner,
+                                        level );
+                } );
+                logger.trace( "No lock; locking as: {} from: {}", lockLevel, label );
+                getShard( f ).entryMap.put( f, created );
+                return created;
+            }
+        }
+        finally
+        {
+            unlockShards( f );
+        }
+
+        logger.trace( "Lock conflicts with ancestor or descendant locks; retry may allow another attempt..." );
+        releaseCoordinatedLock( f );
+        return null;
+    }
+
+    /**
+     * Variant of {@link #isCompatible(PathKey, String, LockLevel)} for callers that don't hold the file's shard
+     * monitor(s). The answer may be stale by the time it's used, so it has to be checked again under the monitor(s).
+     */
+    private boolean isCompatibleNow( PathKey f, String ownerName, LockLevel lockLevel )
+    {
+        lockShards( f );
+        try
+        {
+            return isCompatible( f, ownerName, lockLevel );
+        }
+        finally
+        {
+            unlockShards( f );
+        }
+    }
+
+    /**
+     * Check the given lock request against the locks on the file's ancestors and descendants (but not on the file
+     * itself). Callers must hold the file's shard monitor(s).
+     */
+    private boolean isCompatible( PathKey f, String ownerName, LockLevel lockLevel )
+    {
+        return getBlockingAncestor( f, ownerName, lockLevel ) == null && !hasConflictingDescendants( f, ownerName,
+                                                                                                       lockLevel );
+    }
+
+    private boolean hasConflictingDescendants( PathKey f, String ownerName, LockLevel lockLevel )
+    {
+        IntentionLock intention = getIntention( f );
+        return intention != null && intention.conflictsWith( ownerName, lockLevel );
+    }
+
+    private FileEntry getBlockingAncestor( PathKey f, String ownerName, LockLevel lockLevel )
+    {
+        PathKey parent = f.getParent();
+        while ( parent != null )
+        {
+            FileEntry ancestor = getEntry( parent );
+            if ( ancestor != null && !ancestor.lock.allowsIntention( ownerName, lockLevel ) )
+            {
+                return ancestor;
+            }
+
+            parent = parent.getParent();
+        }
+
+        return null;
+    }
+
+    /**
+     * Retrieve the owners whose locks currently keep the given waiter from locking its file: other owners of locked
+     * ancestors that don't allow the corresponding intention lock, of the file itself, and of conflicting descendants.
+     * These are the waiter's edges in the {@link WaitForGraph}.
+     */
+    private Set<String> getBlockingOwners( WaitForGraph.Waiter waiter )
+    {
+        Set<String> result = new HashSet<>();
+
+        PathKey name = waiter.file;
+        PathKey parent = name.getParent();
+        while ( parent != null )
+        {
+            FileEntry ancestor = getEntry( parent );
+            if ( ancestor != null )
+            {
+                result.addAll( ancestor.lock.getOwnersBlockingIntention( waiter.ownerName, waiter.lockLevel ) );
+            }
+
+            parent = parent.getParent();
+        }
+
+        FileEntry entry = getEntry( name );
+        if ( entry != null )
+        {
+            result.addAll( entry.lock.getBlockingOwners( waiter.ownerName, waiter.lockLevel ) );
+        }
+
+        IntentionLock intention = getIntention( name );
+        if ( intention != null )
+        {
+            result.addAll( intention.getConflictingOwners( waiter.ownerName, waiter.lockLevel ) );
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the {@link FileEntry} that prevents the given lock request: the nearest conflicting ancestor, or else the
+     * file's own entry. Returns null if the request is blocked only by descendant locks (or not blocked at all).
+     */
+    private FileEntry getBlockingEntry( PathKey f, String ownerName, LockLevel lockLevel )
+    {
+        FileEntry ancestor = getBlockingAncestor( f, ownerName, lockLevel );
+        return ancestor != null ? ancestor : getEntry( f );
+    }
+
+    private FileEntry getEntry( PathKey key )
+    {
+        return getShard( key ).entryMap.get( key );
+    }
+
+    private FileEntry removeEntry( PathKey key )
+    {
+        FileEntry entry = getShard( key ).entryMap.remove( key );
+        if ( entry != null )
+        {
+            releaseCoordinatedLock( key );
+        }
+
+        return entry;
+    }
+
+    private void releaseCoordinatedLock( PathKey key )
+    {
+        try
+        {
+            coordinator.unlock( key );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to release coordinated lock on: " + key, e );
+        }
+    }
+
+    /**
+     * Retrieve the shard holding the state for the given path. Paths above the partition depth belong to no
+     * particular shard, and are kept in the first one.
+     */
+    private Shard getShard( PathKey key )
+    {
+        int idx = getShardIndex( key );
+        return shards[idx < 0 ? 0 : idx];
+    }
+
+    int getShardIndex( String path )
+    {
+        return getShardIndex( PathKey.of( path ) );
+    }
+
+    /**
+     * Compute the shard index for the given path from the (precomputed) hash of its ancestor directory at the
+     * partition depth, or -1 if the path is shallower than that (and so could be the ancestor of files in any shard).
+     */
+    int getShardIndex( PathKey key )
+    {
+        if ( shards.length == 1 )
+        {
+            return 0;
+        }
+
+        PathKey partition = key.getAncestor( partitionDepth );
+        if ( partition == null || partitionDepth < 1 )
+        {
+            return -1;
+        }
+
+        return ( partition.hashCode() & Integer.MAX_VALUE ) % shards.length;
+    }
+
+    /**
+     * Count the elements of the given absolute path ("/" has none, "/a" has one). This is used to derive the partition
+     * depth from a storage root directory, and the depth of each {@link PathKey}.
+     */
+    static int getPathDepth( String path )
+    {
+        int depth = 0;
+        for ( int i = 1; i < path.length(); i++ )
+        {
+            if ( path.charAt( i ) == File.separatorChar )
+            {
+                depth++;
+            }
+        }
+
+        return path.length() > 1 ? depth + 1 : 0;
+    }
+
+    /**
+     * Acquire the monitor(s) guarding lock decisions for the given path: that of its shard, or of all shards (in
+     * index order) if the path lies above the partition depth.
+     */
+    private void lockShards( PathKey key )
+    {
+        int idx = getShardIndex( key );
+        if ( idx < 0 )
+        {
+            for ( Shard shard : shards )
+            {
+                shard.monitor.lock();
+            }
+        }
+        else
+        {
+            shards[idx].monitor.lock();
+        }
+    }
+
+    private void unlockShards( PathKey key )
+    {
+        int idx = getShardIndex( key );
+        if ( idx < 0 )
+        {
+            for ( int i = shards.length - 1; i >= 0; i-- )
+            {
+                shards[i].monitor.unlock();
+            }
+        }
+        else
+        {
+            shards[idx].monitor.unlock();
+        }
+    }
+
+    /**
+     * Apply a change in an owner's lock count on some file to the {@link IntentionLock}s of all of its ancestor
+     * directories. Called by the file's {@link LockOwner}.
+     * <br/>
+     * The intentions are kept in the file's own shard, so locks in different shards never touch the same map. Below
+     * the partition depth, a directory is in the same shard as its descendants anyway; above it, each shard counts its
+     * own descendants' intentions, and {@link #getIntention(PathKey)} adds them up.
+     */
+    private void updateIntentions( PathKey key, String ownerName, LockLevel level, int delta )
+    {
+        Map<PathKey, IntentionLock> intentions = getShard( key ).intentions;
+        for ( PathKey parent = key.getParent(); parent != null; parent = parent.getParent() )
+        {
+            intentions.compute( parent, ( k, intention ) -> {
+                if ( intention == null )
+                {
+                    if ( delta < 0 )
+                    {
+                        return null;
+                    }
+
+                    intention = new IntentionLock( k.getPath() );
+                }
+
+                intention.update( ownerName, level, delta );
+                return intention.isEmpty() ? null : intention;
+            } );
+        }
+    }
+
+    /**
+     * Retrieve the {@link IntentionLock} held on the given directory on behalf of its descendants, or null if none of
+     * them are locked. For directories above the partition depth, this combines the counts kept by each shard; callers
+     * that need the answer to stay valid must hold all of the shard monitors (see {@link #lockShards(PathKey)}).
+     */
+    private IntentionLock getIntention( PathKey dir )
+    {
+        int idx = getShardIndex( dir );
+        if ( idx >= 0 )
+        {
+            return shards[idx].intentions.get( dir );
+        }
+
+        IntentionLock combined = null;
+        for ( Shard shard : shards )
+        {
+            IntentionLock intention = shard.intentions.get( dir );
+            if ( intention != null )
+            {
+                if ( combined == null )
+                {
+                    combined = new IntentionLock( dir.getPath() );
+                }
+
+                combined.add( intention );
+            }
+        }
+
+        return combined;
+    }
+
+    /**
+     * Execute the given operation against a file that was just locked. If the operation fails, reverse the lock.
+     *
+     * @param existing If true, the lock was added to a pre-existing {@link FileEntry}; otherwise the entry was created
+     * for this lock.
+     */
+    private <T> T executeLocked( PathKey f, FileEntry entry, boolean existing, String ownerName,
+                                 FileOperationLock opLock, LockedFileOperation<T> operation )
+            throws IOException, InterruptedException
+    {
+        try
+        {
+            return operation.execute( opLock );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            // we just locked this, and the call failed...reverse the lock operation.
+            if ( existing )
+            {
+                entry.lock.unlock( ownerName );
+            }
+            else
+            {
+                // NOTE: This will CLEAR all locks, which is what we want since there was no FileEntry before.
+                clearLocks( f );
+            }
+
+            throw e;
+        }
+    }
+
+    private void clearDeleteLock( PathKey f, FileEntry entry )
+    {
+        // no matter what else happens, do NOT allow a delete lock to remain
+        if ( entry != null && entry.lock.getLockLevel() == LockLevel.delete && entry.lock.isLocked() )
+        {
+            logger.trace( "Clearing locks on delete-locked file entry: {}", f );
+            clearLocks( f );
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #tryLock(PathKey, String, String, LockLevel, long, TimeUnit)}. Instead of parking
+     * the calling thread, the lock attempt is registered as pending against whichever {@link FileEntry} blocks it, and
+     * retried on the async executor when operations on that entry complete.
+     *
+     * @return a future that completes with true when the lock is acquired, or false if the timeout expires first
+     */
+    CompletableFuture<Boolean> tryLockAsync( PathKey file, String ownerName, String label, LockLevel lockLevel,
+                                             long timeout, TimeUnit unit )
+    {
+        return tryLockAsync( file, ownerName, label, lockLevel, timeout, unit, ( opLock ) -> true, Boolean.FALSE,
+                             ( locked ) -> unlock( file, ownerName ) );
+    }
+
+    /**
+     * Asynchronous variant of {@link #tryLock(PathKey, String, String, LockLevel, long, TimeUnit, LockedFileOperation)}.
+     * The first attempt happens on the calling thread; after that, attempts run on the async executor whenever the
+     * blocking entry changes (or the periodic sweep notices a timeout).
+     *
+     * @param timeoutResult The result used to complete the returned future if the timeout expires
+     * @param abandon Called with the operation result if the lock was acquired after the returned future was already
+     *                completed (for instance, cancelled by the caller), so the result can be released.
+     * @return a future completing with the result of the operation, or timeoutResult if the timeout expired first
+     */
+    private <T> CompletableFuture<T> tryLockAsync( PathKey f, String ownerName, String label, LockLevel lockLevel,
+                                                   long timeout, TimeUnit unit, LockedFileOperation<T> operation,
+                                                   T timeoutResult, Consumer<T> abandon )
+    {
+        long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
+
+        PendingLock<T> pending =
+                new PendingLock<>( f, ownerName, label, lockLevel, end, operation, timeoutResult, abandon );
+        pending.attempt();
+
+        return pending.future;
+    }
+
+    /**
+     * Establish a Stream (input or output) associated with a given file. This method will acquire the appropriate lock
+     * for the file (using {@link #tryLock(PathKey, String, String, LockLevel, long, TimeUnit, LockedFileOperation)}) and
+     * then retrieve the {@link JoinableFile} instance associated with the file (or create it if necessary). Finally,
+     * it passes the JoinableFile to the given {@link JoinFileOperation} to establish the appropriate stream into / out
+     * of that file.
+     *
+     * @param realFile The file to open
+     * @param callbacks A set of callback operations that can respond to the file being closed or flushed, normally
+     *                  used for accounting.
+     * @param doOutput If true, the associated function should return an {@link java.io.OutputStream}; else {@link java.io.InputStream}
      * @param timeout The period to wait in attempting to acquire the appropriate file lock
      * @param unit The time unit for the timeout period
      * @param function The function that establishes the appropriate stream into the {@link JoinableFile}
@@ -493,76 +1449,202 @@ final class FileTree
      * @throws IOException
      * @throws InterruptedException
      *
-     * @see #tryLock(File, String, LockLevel, long, TimeUnit, LockedFileOperation)
+     * @see #tryLock(PathKey, String, String, LockLevel, long, TimeUnit, LockedFileOperation)
      */
     <T> T setOrJoinFile( File realFile, StreamCallbacks callbacks, boolean doOutput, long timeout,
                                 TimeUnit unit, JoinFileOperation<T> function )
             throws IOException, InterruptedException
+    {
+        return setOrJoinFile( PathKey.of( realFile ), getLockReservationName(), callbacks, doOutput, timeout, unit, function );
+    }
+
+    /**
+     * Establish a Stream (input or output) associated with a given file, on behalf of the given lock owner.
+     *
+     * @see #setOrJoinFile(File, StreamCallbacks, boolean, long, TimeUnit, JoinFileOperation)
+     */
+    <T> T setOrJoinFile( PathKey realFile, String ownerName, StreamCallbacks callbacks, boolean doOutput, long timeout,
+                         TimeUnit unit, JoinFileOperation<T> function )
+            throws IOException, InterruptedException
+    {
+        return setOrJoinFile( realFile, ownerName, callbacks, doOutput, false, timeout, unit, function );
+    }
+
+    /**
+     * Establish a Stream (input or output) associated with a given file, on behalf of the given lock owner. If resume
+     * is true, an output stream appends to the existing content of the file (see
+     * {@link JoinableFile#JoinableFile(java.nio.file.Path, LockOwner, StreamCallbacks, boolean, boolean, FileOperationLock, RemoteWrite)}).
+     *
+     * @see #setOrJoinFile(File, StreamCallbacks, boolean, long, TimeUnit, JoinFileOperation)
+     */
+    <T> T setOrJoinFile( PathKey realFile, String ownerName, StreamCallbacks callbacks, boolean doOutput,
+                         boolean resume, long timeout, TimeUnit unit, JoinFileOperation<T> function )
+            throws IOException, InterruptedException
     {
         long end = timeout < 1 ? -1 : System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert( timeout, unit );
 
         while ( end < 1 || System.currentTimeMillis() < end )
         {
-            T result = tryLock( realFile, "Open File for " + ( doOutput ? "output" : "input" ),
-                                           doOutput ? LockLevel.write : read, timeout, unit, ( opLock ) -> {
-                        FileEntry entry = entryMap.get( realFile.getAbsolutePath() );
-                        boolean proceed = false;
-                        if ( entry.file != null )
-                        {
-                            if ( doOutput )
-                            {
-                                throw new IOException( "File already opened for writing: " + realFile );
-                            }
-                            else if ( !entry.file.isJoinable() )
-                            {
-                                // If we're joining the file and the file is in the process of closing, we need to wait and
-                                // try again once the file has finished closing.
+            T result = tryLock( realFile, ownerName, "Open File for " + ( doOutput ? "output" : "input" ),
+                                doOutput ? LockLevel.write : read, timeout, unit,
+                                ( opLock ) -> joinOrOpenFile( realFile, ownerName, callbacks, doOutput, resume,
+                                                              function, opLock, true ) );
+
+            if ( result != null )
+            {
+                return result;
+            }
+        }
+
+        logger.trace( "Failed to lock file for {}", doOutput ? "writing" : "reading" );
+        return function.execute( null );
+    }
+
+    /**
+     * Asynchronous variant of {@link #setOrJoinFile(PathKey, String, StreamCallbacks, boolean, long, TimeUnit, JoinFileOperation)}.
+     * If the timeout expires before the file can be opened, the given function is called with null (just as in the
+     * synchronous variant) and any exception it throws completes the returned future.
+     *
+     * @param abandon Called with the stream if it was opened after the returned future was already completed.
+     */
+    <T> CompletableFuture<T> setOrJoinFileAsync( PathKey realFile, String ownerName, StreamCallbacks callbacks,
+                                                 boolean doOutput, long timeout, TimeUnit unit,
+                                                 JoinFileOperation<T> function, Consumer<T> abandon )
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        CompletableFuture<T> opened =
+                tryLockAsync( realFile, ownerName, "Open File for " + ( doOutput ? "output" : "input" ),
+                              doOutput ? LockLevel.write : read, timeout, unit,
+                              ( opLock ) -> joinOrOpenFile( realFile, ownerName, callbacks, doOutput, false, function,
+                                                            opLock, false ), null, abandon );
+
+        opened.whenComplete( ( stream, error ) -> {
+            if ( error != null )
+            {
+                result.completeExceptionally( error );
+            }
+            else if ( stream != null )
+            {
+                if ( !result.complete( stream ) )
+                {
+                    abandon.accept( stream );
+                }
+            }
+            else
+            {
+                logger.trace( "Failed to lock file for {}", doOutput ? "writing" : "reading" );
+                try
+                {
+                    result.complete( function.execute( null ) );
+                }
+                catch ( IOException | RuntimeException e )
+                {
+                    result.completeExceptionally( e );
+                }
+            }
+        } );
+
+        // if the caller gives up, stop trying to open the file.
+        result.whenComplete( ( stream, error ) -> {
+            if ( result.isCancelled() )
+            {
+                opened.cancel( false );
+            }
+        } );
 
-                                logger.trace( "File open but in process of closing; not joinable. Will wait..." );
+        return result;
+    }
+
+    /**
+     * Retrieve the {@link JoinableFile} for a freshly locked entry (or create it) and pass it to the given function.
+     * If the existing {@link JoinableFile} is in the process of closing, undo the lock and return null so the caller
+     * can retry.
+     *
+     * @param waitForClose If true, wait briefly for the closing file before returning null (synchronous callers)
+     */
+    private <T> T joinOrOpenFile( PathKey realFile, String ownerName, StreamCallbacks callbacks, boolean doOutput,
+                                  boolean resume, JoinFileOperation<T> function, FileOperationLock opLock,
+                                  boolean waitForClose )
+            throws IOException, InterruptedException
+    {
+        FileEntry entry = getEntry( realFile );
+        boolean proceed = false;
+        if ( entry.file != null )
+        {
+            if ( doOutput )
+            {
+                throw new IOException( "File already opened for writing: " + realFile );
+            }
+            else if ( !entry.file.isJoinable() )
+            {
+                // If we're joining the file and the file is in the process of closing, we need to wait and
+                // try again once the file has finished closing.
 
-                                // undo the lock we just placed on this entry, to allow it to clear...
-                                entry.lock.unlock();
+                logger.trace( "File open but in process of closing; not joinable. Will wait..." );
 
-                                opLock.signal();
+                // undo the lock we just placed on this entry, to allow it to clear...
+                entry.lock.unlock( ownerName );
 
-                                logger.trace( "Waiting for file to close at: {}", System.currentTimeMillis() );
-                                opLock.await( WAIT_TIMEOUT );
+                opLock.signal();
 
-                                logger.trace( "Proceeding with lock attempt at: {} under opLock: {}", System.currentTimeMillis(), opLock );
-                            }
-                            else
-                            {
-                                logger.trace( "Got joinable file" );
-                                proceed = true;
-                            }
-                        }
-                        else
-                        {
-                            logger.trace( "No pre-existing open file; opening new JoinableFile under opLock: {}", opLock );
-                            entry.file = new JoinableFile( realFile, entry.lock,
-                                                           new FileTreeCallbacks( callbacks, entry,
-                                                                                  realFile ),
-                                                           doOutput, opLock );
+                if ( waitForClose )
+                {
+                    logger.trace( "Waiting for file to close at: {}", System.currentTimeMillis() );
+                    opLock.await( WAIT_TIMEOUT );
 
-                            proceed = true;
-                        }
+                    logger.trace( "Proceeding with lock attempt at: {} under opLock: {}", System.currentTimeMillis(),
+                                  opLock );
+                }
+            }
+            else
+            {
+                logger.trace( "Got joinable file" );
+                proceed = true;
+            }
+        }
+        else
+        {
+            logger.trace( "No pre-existing open file; opening new JoinableFile under opLock: {}", opLock );
+            RemoteWrite remoteWrite = doOutput ? null : coordinator.findRemoteWrite( realFile );
 
-                        if ( proceed )
-                        {
-                            return function.execute( entry.file );
-                        }
+            entry.file = new JoinableFile( realFile.toPath(), entry.lock,
+                                           new FileTreeCallbacks( callbacks, entry, realFile, doOutput ), doOutput,
+                                           resume, opLock, remoteWrite );
 
-                        return null;
-                    } );
+            if ( doOutput && ( blockIndexSize > 0 || !digestAlgorithms.isEmpty() ) )
+            {
+                try
+                {
+                    // the index may drop unverified content that a resumed write starts from, so it goes first
+                    entry.file.setBlockIndex( blockIndexSize );
+                    entry.file.setDigests( digestAlgorithms, writeChecksumFiles );
+                }
+                catch ( IOException e )
+                {
+                    // only a resumable write reads the file here, and closing keeps the length it started from
+                    entry.file.close();
+                    throw e;
+                }
+            }
 
-            if ( result != null )
+            if ( doOutput )
             {
-                return result;
+                // let readers outside this JVM join this write (including any content it resumes from).
+                coordinator.publishProgress( realFile, entry.file.getFlushed() );
+
+                lockEvents.publish( LockEvent.Type.WRITER_OPENED, entry.key, ownerName, LockLevel.write );
             }
+
+            proceed = true;
         }
 
-        logger.trace( "Failed to lock file for {}", doOutput ? "writing" : "reading" );
-        return function.execute( null );
+        if ( proceed )
+        {
+            return function.execute( entry.file );
+        }
+
+        return null;
     }
 
     /**
@@ -576,49 +1658,96 @@ final class FileTree
      * @throws InterruptedException
      * @throws IOException
      *
-     * @see #tryLock(File, String, LockLevel, long, TimeUnit, LockedFileOperation)
+     * @see #tryLock(PathKey, String, String, LockLevel, long, TimeUnit, LockedFileOperation)
      */
-    boolean delete( File file, long timeout, TimeUnit unit )
+    boolean delete( PathKey file, long timeout, TimeUnit unit )
+            throws InterruptedException, IOException
+    {
+        try
+        {
+            return doDelete( file, timeout, unit );
+        }
+        finally
+        {
+            signalLockChange( file );
+        }
+    }
+
+    private boolean doDelete( PathKey file, long timeout, TimeUnit unit )
             throws InterruptedException, IOException
     {
-        return tryLock( file, "Delete File", LockLevel.delete, timeout, unit, ( opLock ) -> {
-            FileEntry entry = entryMap.remove( file.getAbsolutePath() );
+        return tryLock( file, getLockReservationName(), "Delete File", LockLevel.delete, timeout, unit, ( opLock ) -> {
+            FileEntry entry = removeEntry( file );
+            if ( entry != null )
+            {
+                // release the intention locks this entry holds on its ancestors.
+                entry.lock.clearLocks();
+            }
             //            synchronized ( this )
             //            {
             opLock.signal();
             //            }
 
-            if ( file.exists() )
+            Path path = file.toPath();
+            if ( Files.exists( path ) )
             {
-                FileUtils.forceDelete( file );
+                forceDelete( path );
             }
 
+            lockEvents.publish( LockEvent.Type.DELETED, file, getLockReservationName(), LockLevel.delete );
             return true;
         } ) == Boolean.TRUE;
     }
 
     /**
-     * When trying to lock a file, we first must ensure that no directory further up the hierarchy is already locked with
-     * a more restrictive lock. If we're trying to lock a directory, we also must ensure that no child directory/file
-     * is locked with a more restrictive lock. This method checks for those cases, and returns the {@link FileEntry}
-     * from the ancestry or descendent files/directories that is already locked.
-     *
-     * This should prevent us from deleting a directory when a child file within that directory structure is being read
-     * or written. Likewise, it should prevent us from reading or writing a file in a directory already locked for
-     * deletion.
+     * Delete the given file, or the given directory and everything beneath it, on whatever filesystem it lives.
+     */
+    private static void forceDelete( Path path )
+            throws IOException
+    {
+        Files.walkFileTree( path, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+                    throws IOException
+            {
+                Files.delete( file );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory( Path dir, IOException e )
+                    throws IOException
+            {
+                if ( e != null )
+                {
+                    throw e;
+                }
+
+                Files.delete( dir );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+
+    /**
+     * Find the nearest locked {@link FileEntry} for the given file: its own entry, or else that of its nearest locked
+     * ancestor directory. Locks on descendants are not entries here; they're tracked via {@link IntentionLock}s
+     * (see {@link #getIntentionMode(File)}), which prevent us from deleting a directory when a child file within that
+     * directory structure is being read or written.
      *
-     * @param file The file whose context directories / files should be checked for locks
-     * @return The nearest {@link FileEntry}, corresponding to a locked file. Parent directories returned before children.
+     * @param file The file whose context directories should be checked for locks
+     * @return The nearest {@link FileEntry}, corresponding to a locked file or directory, or null.
      */
-    private synchronized FileEntry getLockingEntry( File file )
+    private FileEntry getLockingEntry( PathKey file )
     {
         FileEntry entry;
 
         // search self and ancestors...
-        File f = file;
+        PathKey f = file;
         do
         {
-            entry = entryMap.get( f.getAbsolutePath() );
+            entry = getEntry( f );
             if ( entry != null )
             {
                 logger.trace( "Locked by: {}", entry.lock.getLockInfo() );
@@ -629,23 +1758,10 @@ final class FileTree
                 logger.trace( "No lock found for: {}", f );
             }
 
-            f = f.getParentFile();
+            f = f.getParent();
         }
         while ( f != null );
 
-        // search for children...
-        if ( file.isDirectory() )
-        {
-            String fp = file.getAbsolutePath();
-            Optional<String> result =
-                    entryMap.keySet().stream().filter( ( path ) -> path.startsWith( fp ) ).findFirst();
-            if ( result.isPresent() )
-            {
-                logger.trace( "Child: {} is locked; returning child as locking entry", result.get() );
-                return entryMap.get( result.get() );
-            }
-        }
-
         return null;
     }
 
@@ -653,8 +1769,8 @@ final class FileTree
      * Use a {@link java.util.concurrent.locks.ReentrantLock} keyed to the absolute path of the specified file to ensure
      * only one operation at a time manipulates the accounting information associated with the file ({@link FileEntry}).
      *
-     * This method synchronizes on the operationLocks map in order to retrieve / create the ReentrantLock lazily. Once
-     * created, this ReentrantLock also gets propagated into the {@link JoinableFile} instance created for the file.
+     * This method synchronizes on the operationLocks map of the file's shard in order to retrieve / create the
+     * ReentrantLock lazily. Once created, this ReentrantLock also gets propagated into the {@link JoinableFile} instance created for the file.
      *
      * Using ReentrantLock per path avoids the need to hold a lock on the whole tree every time we need to initialize
      * the {@link FileEntry} for a new file. Instead, we take a short lock on operationLocks to get the ReentrantLock,
@@ -668,14 +1784,14 @@ final class FileTree
      * @throws IOException
      * @throws InterruptedException
      */
-    private <T> T withOpLock( File f, LockedFileOperation<T> op )
+    private <T> T withOpLock( PathKey path, LockedFileOperation<T> op )
             throws IOException, InterruptedException
     {
-        String path = f.getAbsolutePath();
         FileOperationLock opLock = null;
 
         try
         {
+            Map<PathKey, FileOperationLock> operationLocks = getShard( path ).operationLocks;
             synchronized ( operationLocks )
             {
                 opLock = operationLocks.computeIfAbsent( path, k ->
@@ -717,10 +1833,188 @@ final class FileTree
         }
     }
 
-    public boolean isLockedByCurrentThread( final File file )
+    /**
+     * Execute the given operation via {@link #withOpLock(PathKey, LockedFileOperation)}, then notify any pending async
+     * lock attempts and lock-state watchers affected by the file. This is used for operations that release locks.
+     */
+    private <T> T withOpLockAndSignal( PathKey f, LockedFileOperation<T> op )
+            throws IOException, InterruptedException
+    {
+        try
+        {
+            return withOpLock( f, op );
+        }
+        finally
+        {
+            signalLockChange( f );
+        }
+    }
+
+    /**
+     * Notify everything waiting on a lock change to the given file: pending async lock attempts (see
+     * {@link #signalPendingLocks(PathKey)}) and threads in {@link #awaitLockLevels(Collection, Predicate, long, TimeUnit)}.
+     */
+    private void signalLockChange( PathKey f )
+    {
+        lockWatchers.publish( f );
+        signalPendingLocks( f );
+    }
+
+    /**
+     * Schedule a retry for pending async lock attempts blocked by the given file, or by any of its ancestor
+     * directories (which may have been waiting for this file to release its intention locks).
+     */
+    private void signalPendingLocks( PathKey f )
+    {
+        for ( PathKey current = f; current != null && !pendingLocks.isEmpty(); current = current.getParent() )
+        {
+            signalPendingLocksOn( current );
+        }
+    }
+
+    /**
+     * Schedule a retry for every pending async lock attempt that was blocked by the {@link FileEntry} for the given
+     * path. Attempts that are still blocked will register themselves again.
+     */
+    private void signalPendingLocksOn( PathKey path )
+    {
+        Queue<PendingLock<?>> waiters = pendingLocks.remove( path );
+        if ( waiters != null )
+        {
+            logger.trace( "Retrying {} pending lock attempts blocked by: {}", waiters.size(), path );
+            ExecutorService executor = getAttemptExecutor();
+            waiters.forEach( executor::execute );
+        }
+    }
+
+    /**
+     * Periodic fallback for pending async lock attempts: retry waiters whose blocking {@link FileEntry} has changed
+     * without a signal (for example, when a reader stream closes), and expire waiters whose timeout has passed.
+     */
+    private void sweepPendingLocks()
+    {
+        long now = System.currentTimeMillis();
+        pendingLocks.forEach( ( path, waiters ) -> {
+            FileEntry current = getEntry( path );
+            // waiters with no blocking entry are blocked by descendant locks, which aren't signalled; poll those.
+            if ( waiters.stream()
+                        .anyMatch( ( pending ) -> pending.blocker == null || pending.blocker != current
+                                || pending.isExpired( now ) ) )
+            {
+                signalPendingLocksOn( path );
+            }
+        } );
+    }
+
+    /**
+     * Retrieve the executor running the periodic sweep of pending async lock attempts (see
+     * {@link #sweepPendingLocks()}), starting it if necessary. The sweep only schedules retries; the attempts
+     * themselves, which may wait on the {@link LockCoordinator}, run on the attempt executor.
+     */
+    private ScheduledExecutorService getAsyncExecutor()
+    {
+        synchronized ( pendingLocks )
+        {
+            if ( asyncExecutor == null )
+            {
+                asyncExecutor = Executors.newSingleThreadScheduledExecutor( ( r ) -> {
+                    Thread t = new Thread( r, "partyline-async-locks" );
+                    t.setDaemon( true );
+                    return t;
+                } );
+
+                asyncExecutor.scheduleWithFixedDelay( this::sweepPendingLocks, WAIT_TIMEOUT, WAIT_TIMEOUT,
+                                                      TimeUnit.MILLISECONDS );
+            }
+
+            return asyncExecutor;
+        }
+    }
+
+    /**
+     * Retrieve the small pool on which pending async lock attempts are retried, so one attempt waiting on a slow
+     * {@link LockCoordinator} doesn't hold up the others. Idle threads exit.
+     */
+    private ExecutorService getAttemptExecutor()
+    {
+        synchronized ( pendingLocks )
+        {
+            if ( attemptExecutor == null )
+            {
+                AtomicInteger counter = new AtomicInteger();
+                attemptExecutor = new ThreadPoolExecutor( ASYNC_LOCK_THREADS, ASYNC_LOCK_THREADS, 60, TimeUnit.SECONDS,
+                                                          new LinkedBlockingQueue<>(), ( r ) -> {
+                    Thread t = new Thread( r, "partyline-async-lock-attempt-" + counter.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                } );
+                attemptExecutor.allowCoreThreadTimeOut( true );
+            }
+
+            return attemptExecutor;
+        }
+    }
+
+    /**
+     * Stop the threads used for async lock attempts. Attempts still pending fail with {@link IOException}. The threads
+     * are started again by the next async lock request.
+     */
+    void shutdownAsync()
+    {
+        ScheduledExecutorService sweeper;
+        ThreadPoolExecutor attempts;
+        synchronized ( pendingLocks )
+        {
+            sweeper = asyncExecutor;
+            attempts = attemptExecutor;
+            asyncExecutor = null;
+            attemptExecutor = null;
+        }
+
+        if ( sweeper != null )
+        {
+            sweeper.shutdownNow();
+        }
+
+        if ( attempts != null )
+        {
+            attempts.shutdownNow().forEach( ( r ) -> ( (PendingLock<?>) r ).fail() );
+        }
+
+        new ArrayList<>( pendingLocks.keySet() ).forEach( ( path ) -> {
+            Queue<PendingLock<?>> waiters = pendingLocks.remove( path );
+            if ( waiters != null )
+            {
+                waiters.forEach( PendingLock::fail );
+            }
+        } );
+    }
+
+    public boolean isLockedByCurrentThread( final PathKey file )
+    {
+        return isLockedBy( file, getLockReservationName() );
+    }
+
+    boolean isLockedBy( final PathKey file, final String ownerName )
+    {
+        FileEntry fileEntry = getEntry( file );
+        return fileEntry != null && fileEntry.lock.isLockedBy( ownerName );
+    }
+
+    /**
+     * One partition of the tree's state: the {@link FileEntry}s and {@link FileOperationLock}s for the files assigned
+     * to it, the {@link IntentionLock}s its locked files hold on their ancestors, plus the monitor guarding lock
+     * decisions for those files.
+     */
+    private static final class Shard
     {
-        FileEntry fileEntry = entryMap.get( file.getAbsolutePath() );
-        return fileEntry != null && fileEntry.lock.isLockedByCurrentThread();
+        private final Map<PathKey, FileEntry> entryMap = new ConcurrentHashMap<>();
+
+        private final Map<PathKey, IntentionLock> intentions = new ConcurrentHashMap<>();
+
+        private final Map<PathKey, FileOperationLock> operationLocks = new ConcurrentHashMap<>();
+
+        private final ReentrantLock monitor = new ReentrantLock();
     }
 
     /**
@@ -730,19 +2024,161 @@ final class FileTree
      */
     static final class FileEntry
     {
+        private final PathKey key;
+
         private final String name;
 
-        private FileEntry alsoLocked;
+        private final String ownerName;
 
         private final LockOwner lock;
 
         private JoinableFile file;
 
-        FileEntry( String name, String lockingLabel, LockLevel lockLevel, final FileEntry alsoLocked )
+        FileEntry( PathKey key, String ownerName, String lockingLabel, LockLevel lockLevel,
+                   LockOwner.LockCountListener intentionUpdater )
+        {
+            this.key = key;
+            this.name = key.getPath();
+            this.ownerName = ownerName;
+            this.lock = new LockOwner( name, ownerName, lockingLabel, lockLevel, intentionUpdater );
+        }
+    }
+
+    /**
+     * Lock attempt registered by {@link #tryLockAsync(PathKey, String, String, LockLevel, long, TimeUnit)} and its
+     * variants. Rather than parking a thread, a pending lock is filed under the path of the {@link FileEntry} that
+     * blocked it, and attempted again when that entry is unlocked (see {@link #signalPendingLocksOn(PathKey)}) or when the
+     * periodic sweep notices it has timed out.
+     */
+    private final class PendingLock<T>
+            implements Runnable
+    {
+        private final PathKey file;
+
+        private final String ownerName;
+
+        private final String label;
+
+        private final LockLevel lockLevel;
+
+        private final long end;
+
+        private final LockedFileOperation<T> operation;
+
+        private final T timeoutResult;
+
+        private final Consumer<T> abandon;
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private volatile FileEntry blocker;
+
+        PendingLock( PathKey file, String ownerName, String label, LockLevel lockLevel, long end,
+                     LockedFileOperation<T> operation, T timeoutResult, Consumer<T> abandon )
+        {
+            this.file = file;
+            this.ownerName = ownerName;
+            this.label = label;
+            this.lockLevel = lockLevel;
+            this.end = end;
+            this.operation = operation;
+            this.timeoutResult = timeoutResult;
+            this.abandon = abandon;
+        }
+
+        boolean isExpired( long now )
+        {
+            return end > 0 && now >= end;
+        }
+
+        @Override
+        public void run()
+        {
+            attempt();
+        }
+
+        void fail()
+        {
+            future.completeExceptionally(
+                    new IOException( "Async locking was shut down while waiting to lock: " + file ) );
+        }
+
+        synchronized void attempt()
+        {
+            if ( future.isDone() )
+            {
+                logger.trace( "Dropping pending lock of: {}; caller is no longer waiting.", file );
+                return;
+            }
+
+            try
+            {
+                T result = withOpLock( file, ( opLock ) -> {
+                    FileEntry entry = null;
+                    try
+                    {
+                        entry = getEntry( file );
+
+                        FileEntry locked = lockEntry( file, entry, ownerName, label, lockLevel );
+                        if ( locked == null )
+                        {
+                            blocker = getBlockingEntry( file, ownerName, lockLevel );
+                            return null;
+                        }
+
+                        boolean existing = ( locked == entry );
+                        entry = locked;
+                        blocker = entry;
+                        return executeLocked( file, entry, existing, ownerName, opLock, operation );
+                    }
+                    finally
+                    {
+                        clearDeleteLock( file, entry );
+                    }
+                } );
+
+                if ( result != null )
+                {
+                    logger.trace( "Async lock acquired for: {} as: {}", file, lockLevel );
+                    if ( !future.complete( result ) )
+                    {
+                        abandon.accept( result );
+                    }
+                }
+                else if ( isExpired( System.currentTimeMillis() ) )
+                {
+                    logger.trace( "{}: {}: Async lock failed", System.currentTimeMillis(), file );
+                    future.complete( timeoutResult );
+                }
+                else
+                {
+                    park();
+                }
+            }
+            catch ( IOException | InterruptedException | RuntimeException e )
+            {
+                future.completeExceptionally( e );
+            }
+        }
+
+        private void park()
         {
-            this.name = name;
-            this.alsoLocked = alsoLocked;
-            this.lock = new LockOwner( name, lockingLabel, lockLevel );
+            FileEntry entry = blocker;
+            PathKey key = entry == null ? file : entry.key;
+
+            logger.trace( "Waiting (async) for lock to clear on: {}; locking as: {} from: {}", key, lockLevel, label );
+            pendingLocks.compute( key, ( k, waiters ) -> {
+                Queue<PendingLock<?>> result = waiters == null ? new ConcurrentLinkedQueue<>() : waiters;
+                result.add( this );
+                return result;
+            } );
+
+            // make sure the sweep is running, then check whether we raced with the blocking entry's release.
+            getAsyncExecutor();
+            if ( getEntry( key ) != entry )
+            {
+                signalPendingLocksOn( key );
+            }
         }
     }
 
@@ -755,20 +2191,36 @@ final class FileTree
     {
         private StreamCallbacks callbacks;
 
-        private File file;
+        private PathKey file;
 
         private FileEntry entry;
 
-        public FileTreeCallbacks( StreamCallbacks callbacks, FileEntry entry, File file )
+        private boolean output;
+
+        public FileTreeCallbacks( StreamCallbacks callbacks, FileEntry entry, PathKey file, boolean output )
         {
             this.callbacks = callbacks;
             this.file = file;
             this.entry = entry;
+            this.output = output;
         }
 
         @Override
         public void flushed()
         {
+            JoinableFile jf = entry.file;
+            if ( output && jf != null )
+            {
+                try
+                {
+                    coordinator.publishProgress( file, jf.getFlushed() );
+                }
+                catch ( IOException e )
+                {
+                    logger.error( "Failed to publish write progress of: " + file, e );
+                }
+            }
+
             if ( callbacks != null )
             {
                 callbacks.flushed();
@@ -784,6 +2236,27 @@ final class FileTree
             }
         }
 
+        @Override
+        public void aborted( Throwable cause )
+        {
+            if ( output )
+            {
+                try
+                {
+                    coordinator.abortProgress( file );
+                }
+                catch ( IOException e )
+                {
+                    logger.error( "Failed to publish aborted write of: " + file, e );
+                }
+            }
+
+            if ( callbacks != null )
+            {
+                callbacks.aborted( cause );
+            }
+        }
+
         @Override
         public void closed()
         {
@@ -799,6 +2272,11 @@ final class FileTree
 
             // the whole JoinableFile is closing. Clear remaining locks.
             clearLocks( file );
+
+            if ( output )
+            {
+                lockEvents.publish( LockEvent.Type.WRITER_CLOSED, entry.key, null, null );
+            }
         }
     }
 
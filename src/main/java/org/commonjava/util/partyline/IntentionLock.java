@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Intention lock held on a directory on behalf of the locks on its descendants (multi-granularity locking). Rather
+ * than scanning for locked children, a directory operation can consult this one node to find out whether anything
+ * beneath the directory is in use, and in which mode:
+ *
+ * <ul>
+ *     <li>{@link Mode#IS} (intention-shared): some descendant is read-locked</li>
+ *     <li>{@link Mode#IX} (intention-exclusive): some descendant is write- or delete-locked</li>
+ *     <li>{@link Mode#SIX} (shared + intention-exclusive): the directory itself is read-locked, and the same owner
+ *     holds a write / delete lock on some descendant</li>
+ * </ul>
+ *
+ * Counts are kept per owner, so an owner's own descendant locks never conflict with the locks it requests on the
+ * directory itself.
+ */
+final class IntentionLock
+{
+    enum Mode
+    {
+        IS, IX, SIX
+    }
+
+    private static final int SHARED = 0;
+
+    private static final int EXCLUSIVE = 1;
+
+    private final String path;
+
+    private final Map<String, int[]> owners = new HashMap<>();
+
+    private int shared;
+
+    private int exclusive;
+
+    IntentionLock( String path )
+    {
+        this.path = path;
+    }
+
+    /**
+     * Adjust the number of descendant locks held by the given owner at the given level. Read locks count as shared
+     * intentions, write and delete locks as exclusive ones.
+     */
+    synchronized void update( String ownerName, LockLevel level, int delta )
+    {
+        int idx = level == LockLevel.read ? SHARED : EXCLUSIVE;
+        int[] counts = owners.computeIfAbsent( ownerName, o -> new int[2] );
+
+        counts[idx] += delta;
+        if ( idx == SHARED )
+        {
+            shared += delta;
+        }
+        else
+        {
+            exclusive += delta;
+        }
+
+        if ( counts[SHARED] < 1 && counts[EXCLUSIVE] < 1 )
+        {
+            owners.remove( ownerName );
+        }
+    }
+
+    /**
+     * Add the counts of another intention lock on the same directory to this one.
+     */
+    synchronized void add( IntentionLock other )
+    {
+        synchronized ( other )
+        {
+            other.owners.forEach( ( owner, counts ) -> {
+                int[] mine = owners.computeIfAbsent( owner, o -> new int[2] );
+                mine[SHARED] += counts[SHARED];
+                mine[EXCLUSIVE] += counts[EXCLUSIVE];
+            } );
+
+            shared += other.shared;
+            exclusive += other.exclusive;
+        }
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return owners.isEmpty();
+    }
+
+    /**
+     * Retrieve the number of descendant locks held by the given owner.
+     */
+    synchronized int getCount( String ownerName )
+    {
+        int[] counts = owners.get( ownerName );
+        return counts == null ? 0 : counts[SHARED] + counts[EXCLUSIVE];
+    }
+
+    /**
+     * Determine whether locking the directory itself at the given level would conflict with descendant locks held by
+     * owners other than the given one. A read lock conflicts only with exclusive intentions; write and delete locks
+     * conflict with any intention.
+     */
+    synchronized boolean conflictsWith( String ownerName, LockLevel level )
+    {
+        int[] mine = owners.get( ownerName );
+        int otherExclusive = exclusive - ( mine == null ? 0 : mine[EXCLUSIVE] );
+        if ( level == LockLevel.read )
+        {
+            return otherExclusive > 0;
+        }
+
+        int otherShared = shared - ( mine == null ? 0 : mine[SHARED] );
+        return otherExclusive + otherShared > 0;
+    }
+
+    /**
+     * Retrieve the owners other than the given one whose descendant locks conflict with locking the directory itself
+     * at the given level (see {@link #conflictsWith(String, LockLevel)}).
+     */
+    synchronized Set<String> getConflictingOwners( String ownerName, LockLevel level )
+    {
+        Set<String> result = new HashSet<>();
+        owners.forEach( ( owner, counts ) -> {
+            if ( !owner.equals( ownerName ) && ( counts[EXCLUSIVE] > 0 || ( level != LockLevel.read
+                    && counts[SHARED] > 0 ) ) )
+            {
+                result.add( owner );
+            }
+        } );
+
+        return result;
+    }
+
+    /**
+     * Retrieve the combined intention mode of all descendant locks, or null if there are none.
+     */
+    synchronized Mode getMode()
+    {
+        return exclusive > 0 ? Mode.IX : shared > 0 ? Mode.IS : null;
+    }
+
+    /**
+     * Retrieve the highest {@link LockLevel} held on any descendant, for reporting the directory's effective lock
+     * level: write if there are exclusive intentions, read if only shared ones.
+     */
+    synchronized LockLevel getEffectiveLockLevel()
+    {
+        return exclusive > 0 ? LockLevel.write : shared > 0 ? LockLevel.read : null;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "IntentionLock{" + "path='" + path + '\'' + ", shared=" + shared + ", exclusive=" + exclusive + '}';
+    }
+}
@@ -24,7 +24,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
@@ -32,15 +31,28 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 import static org.commonjava.util.partyline.FileTree.DEFAULT_LOCK_TIMEOUT;
 
 /**
- * Manages concurrent read/write access to a file, via {@link RandomAccessFile}, {@link FileChannel}, and careful
+ * Manages concurrent read/write access to a file, via a {@link FileChannel} and careful
  * management of the read and write locations. Writes go to an in-memory buffer (8kb as of this writing, see CHUNK_SIZE)
  * then get flushed to the channel. Reads will read from the channel until they get to the last flushed point of the
  * writer, then they read from the in-memory buffer. Finally, when readers have read all the way through the in-memory
@@ -58,14 +70,60 @@ import static org.commonjava.util.partyline.FileTree.DEFAULT_LOCK_TIMEOUT;
  * anything to read / write.
  * <br/>
  * <b>NOTE 3:</b> This implementation uses NIO {@link FileLock} to try to lock the underlying filesystem.
+ * <br/>
+ * <b>NOTE 4:</b> The channel is opened via {@link FileChannel#open(Path, java.nio.file.OpenOption...)}, so the file
+ * can live on any {@link java.nio.file.FileSystem} (an in-memory one, for instance). Filesystems whose channels can't
+ * be memory-mapped are read through ordinary channel reads instead.
+ * <br/>
+ * <b>NOTE 5:</b> If the file is being written outside this JVM (see {@link LockCoordinator}), a read-only instance
+ * follows that writer's progress record instead of the file length, so its readers join the remote write.
+ * <br/>
+ * <b>NOTE 6:</b> A writer can abort instead of closing (see {@link Abortable}). Joined readers then fail on their next
+ * read, and the partial file is removed, rather than the readers seeing a clean end of a truncated file.
+ * <br/>
+ * <b>NOTE 7:</b> A resumable writer appends to the existing content instead of replacing it, and readers can join
+ * that content right away. Until it closes, a sidecar file (see {@link #INCOMPLETE_SUFFIX}) marks the file as
+ * incomplete and records how much of it has been written; if it aborts, what was written is kept (along with the
+ * marker) so a later write can resume from there.
+ * <br/>
+ * <b>NOTE 8:</b> If the writer knows the length of the content in advance, the file is extended to that length up
+ * front, so it doesn't grow (and change its metadata) with every flush; readers can retrieve the length through
+ * {@link ReadProgress}. Such a file is marked incomplete until it closes too, and a resumable write starts from the
+ * recorded written length rather than the extended one.
+ * <br/>
+ * <b>NOTE 9:</b> The writer can compute digests of the content as it flushes (see {@link WriteDigests}), and write
+ * them to checksum files next to the file before its lock is released.
+ * <br/>
+ * <b>NOTE 10:</b> The writer can also keep an index of per-block checksums next to the file (see {@link BlockIndex}),
+ * updated as it flushes. A resumable write then picks up from the last block that still matches, instead of trusting
+ * whatever a crashed writer left.
+ * <br/>
+ * <b>NOTE 11:</b> In a segmented write (see {@link SegmentedWrite}), several streams fill disjoint ranges of the file
+ * at once. The flushed count is then the contiguous prefix they have filled, so readers (and digests, and the block
+ * index) still see the content in order.
  *
  * @author jdcasey
  */
 public final class JoinableFile
         implements AutoCloseable, Closeable
 {
+    /**
+     * Suffix of the sidecar file that marks a file as incomplete while a resumable or preallocated write to it is
+     * unfinished (see {@link JoinableFileManager#openResumableOutputStream(File, long)}). It holds the number of bytes
+     * written so far, as a decimal string.
+     */
+    public static final String INCOMPLETE_SUFFIX = ".incomplete";
+
+    /**
+     * Suffix of the sidecar file holding the per-block checksums of a file (see
+     * {@link JoinableFileManager#setWriteBlockIndex(int)}).
+     */
+    public static final String BLOCK_INDEX_SUFFIX = ".blocks";
+
     private static final int CHUNK_SIZE = 1024 * 1024; // 1mb
 
+    private static final long REMOTE_POLL_INTERVAL = 10;
+
     private final FileChannel channel;
 
 //    private final FileLock fileLock;
@@ -76,9 +134,9 @@ public final class JoinableFile
 
     private long flushed = 0;
 
-    private final String path;
+    private final Path target;
 
-    private final RandomAccessFile randomAccessFile;
+    private final String path;
 
     private final StreamCallbacks callbacks;
 
@@ -86,14 +144,43 @@ public final class JoinableFile
 
     private volatile boolean joinable = true;
 
+    private volatile Throwable failure;
+
+    private volatile long expectedLength = -1;
+
+    private List<MessageDigest> digests = Collections.emptyList();
+
+    private boolean writeChecksumFiles;
+
+    private volatile Map<String, String> digestResults = Collections.emptyMap();
+
+    private BlockIndex blockIndex;
+
+    private boolean segmented;
+
+    private final TreeMap<Long, Long> segmentRanges = new TreeMap<>();
+
+    private final TreeMap<Long, Long> completedRanges = new TreeMap<>();
+
+    private final List<SegmentOutputStream> openSegments = new ArrayList<>();
+
+    private final Object prefixLock = new Object();
+
+    private long prefixDigested;
+
     private final LockOwner owner;
 
     private final FileOperationLock opLock;
 
+    private final RemoteWrite remoteWrite;
+
+    private final boolean resumable;
+
+    private FileChannel incompleteMarker;
+
     /**
-     * Create any parent directories if necessary, then open the {@link RandomAccessFile} that will receive content on this stream. From that, init
-     * the {@link FileChannel} that will be used to write content and map sections of the written file for reading in associated {@link JoinInputStream}
-     * instances.
+     * Create any parent directories if necessary, then open the {@link FileChannel} that will be used to write content and map sections of the
+     * written file for reading in associated {@link JoinInputStream} instances.
      * <br/>
      *
      * Initialize the {@link JoinableOutputStream} and {@link ByteBuffer} that will buffer content before sending it on
@@ -102,13 +189,14 @@ public final class JoinableFile
     JoinableFile( final File target, final LockOwner owner, boolean doOutput )
             throws IOException
     {
-        this( target, owner, null, doOutput, new FileOperationLock() );
+        this( target.toPath(), owner, null, doOutput, new FileOperationLock() );
     }
 
     /**
-     * Create any parent directories if necessary, then open the {@link RandomAccessFile} that will receive content on this stream. From that, init
-     * the {@link FileChannel} that will be used to write content and map sections of the written file for reading in associated {@link JoinInputStream}
-     * instances.
+     * Create any parent directories if necessary, then open the {@link FileChannel} that will be used to write content and map sections of the
+     * written file for reading in associated {@link JoinInputStream} instances. Output channels are opened with
+     * {@link StandardOpenOption#SYNC}, so each flush reaches the storage device (as the "rws" mode of
+     * {@link java.io.RandomAccessFile} did).
      * <br/>
      * If writable, initialize the {@link JoinableOutputStream} and {@link ByteBuffer} that will buffer content before sending
      * it on to the channel (in the {@link JoinableOutputStream#flush()} method).
@@ -116,25 +204,57 @@ public final class JoinableFile
      * If callbacks are available, use these to signal to a manager instance when the stream is flushed and when
      * the last joined input stream (or this stream, if there are none) closes.
      */
-    JoinableFile( final File target, final LockOwner owner, final StreamCallbacks callbacks, boolean doOutput, FileOperationLock opLock )
+    JoinableFile( final Path target, final LockOwner owner, final StreamCallbacks callbacks, boolean doOutput, FileOperationLock opLock )
+            throws IOException
+    {
+        this( target, owner, callbacks, doOutput, opLock, null );
+    }
+
+    /**
+     * Create a read-only {@link JoinableFile} that joins a write in progress outside this JVM: instead of stopping at
+     * the current length of the file, readers follow the given record of the writer's progress, until it finishes.
+     *
+     * @see #JoinableFile(Path, LockOwner, StreamCallbacks, boolean, FileOperationLock)
+     */
+    JoinableFile( final Path target, final LockOwner owner, final StreamCallbacks callbacks, boolean doOutput,
+                  FileOperationLock opLock, RemoteWrite remoteWrite )
+            throws IOException
+    {
+        this( target, owner, callbacks, doOutput, false, opLock, remoteWrite );
+    }
+
+    /**
+     * Create a {@link JoinableFile}, which, if resumable, appends to any existing content of the file instead of
+     * overwriting it, and marks the file as incomplete until the output stream closes.
+     *
+     * @see #JoinableFile(Path, LockOwner, StreamCallbacks, boolean, FileOperationLock, RemoteWrite)
+     */
+    JoinableFile( final Path target, final LockOwner owner, final StreamCallbacks callbacks, boolean doOutput,
+                  boolean resumable, FileOperationLock opLock, RemoteWrite remoteWrite )
             throws IOException
     {
         this.owner = owner;
-        this.path = target.getPath();
+        this.remoteWrite = doOutput ? null : remoteWrite;
+        this.resumable = doOutput && resumable;
+        this.target = target;
+        this.path = target.toString();
         this.callbacks = callbacks;
         this.opLock = opLock;
 
-        target.getParentFile().mkdirs();
+        Path parent = target.toAbsolutePath().getParent();
+        if ( parent != null )
+        {
+            Files.createDirectories( parent );
+        }
 
         Logger logger = LoggerFactory.getLogger( getClass() );
         logger.trace( "Trying to initialize JoinableFile to: {} using operation lock:\n\n{}", target, opLock );
         try
         {
-            if ( target.isDirectory() )
+            if ( Files.isDirectory( target ) )
             {
                 logger.trace( "INIT: locking directory WITHOUT lock in underlying filesystem!" );
                 output = null;
-                randomAccessFile = null;
                 channel = null;
 //                fileLock = null;
                 joinable = false;
@@ -143,18 +263,42 @@ public final class JoinableFile
             {
                 logger.trace( "INIT: read-write JoinableFile: {}", target );
                 output = new JoinableOutputStream();
-                randomAccessFile = new RandomAccessFile( target, "rws" );
-                channel = randomAccessFile.getChannel();
+                if ( this.resumable || Files.exists( getIncompleteMarker( target ) ) )
+                {
+                    // mark the file before touching it, so a crash part way through never leaves it looking complete
+                    markIncomplete();
+                }
+
+                channel = FileChannel.open( target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE, StandardOpenOption.SYNC );
+
+                if ( this.resumable )
+                {
+                    // anything past the recorded length was preallocated or never reached the disk; an empty marker
+                    // was created before any content was written, so the content is all there is
+                    long size = channel.size();
+                    long written = readWrittenLength();
+                    flushed = written < 0 ? size : Math.min( written, size );
+                    if ( flushed < size )
+                    {
+                        logger.debug( "INIT: dropping: {} unwritten bytes from the end of: {}", size - flushed, path );
+                        channel.truncate( flushed );
+                    }
+
+                    channel.position( flushed );
+                    logger.trace( "INIT: resuming write at: {}", flushed );
+                }
+
+                recordWrittenLength();
 //                fileLock = channel.lock( 0L, Long.MAX_VALUE, false );
             }
             else
             {
                 logger.trace( "INIT: read-only JoinableFile: {}", target );
                 output = null;
-                logger.trace( "INIT: set flushed length to: {}", target.length() );
-                flushed = target.length();
-                randomAccessFile = new RandomAccessFile( target, "r" );
-                channel = randomAccessFile.getChannel();
+                channel = FileChannel.open( target, StandardOpenOption.READ );
+                flushed = remoteWrite == null ? channel.size() : remoteWrite.getFlushed();
+                logger.trace( "INIT: set flushed length to: {}", flushed );
 //                fileLock = channel.lock( 0L, Long.MAX_VALUE, true );
             }
         }
@@ -175,6 +319,333 @@ public final class JoinableFile
         return output;
     }
 
+    synchronized long getFlushed()
+    {
+        return flushed;
+    }
+
+    /**
+     * Set the length the writer expects the content to have, and extend the file to that length ahead of the writes,
+     * so each flush doesn't have to grow it. The file is cut back to what was actually written when it closes, and
+     * is marked incomplete until then, so a crash doesn't leave it looking complete.
+     */
+    void setExpectedLength( long length )
+            throws IOException
+    {
+        if ( output == null || length < 0 )
+        {
+            return;
+        }
+
+        markIncomplete();
+        recordWrittenLength();
+
+        expectedLength = length;
+        if ( length > channel.size() )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.trace( "Extending: {} to expected length: {}", path, length );
+            channel.write( ByteBuffer.allocate( 1 ), length - 1 );
+        }
+    }
+
+    /**
+     * Keep an index of the checksums of each block of the given size (see {@link BlockIndex}) as the content is
+     * flushed. A resumable write checks the content it starts from against the existing index first, and drops
+     * anything from the first block that doesn't match on, so it resumes from content known to be good.
+     */
+    void setBlockIndex( int blockSize )
+            throws IOException
+    {
+        if ( output == null || blockSize < 1 )
+        {
+            return;
+        }
+
+        if ( resumable )
+        {
+            blockIndex = BlockIndex.resume( target, channel, blockSize, flushed );
+            long verified = blockIndex.getLength();
+            if ( verified < flushed )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.info( "Resuming write to: {} from the last verified block, at: {} (dropped {} bytes)", path,
+                             verified, flushed - verified );
+
+                channel.truncate( verified );
+                channel.position( verified );
+                flushed = verified;
+            }
+        }
+        else
+        {
+            blockIndex = BlockIndex.create( target, blockSize );
+        }
+    }
+
+    /**
+     * Compute digests of the content with the given algorithms as it is flushed, including any content a resumable
+     * write starts from, and, if requested, write each one to a checksum file next to this one (for instance,
+     * {@code foo.jar.sha1}) when the output stream closes.
+     */
+    void setDigests( List<String> algorithms, boolean writeChecksumFiles )
+            throws IOException
+    {
+        if ( output == null || algorithms.isEmpty() )
+        {
+            return;
+        }
+
+        List<MessageDigest> mds = new ArrayList<>( algorithms.size() );
+        for ( String algorithm : algorithms )
+        {
+            try
+            {
+                mds.add( MessageDigest.getInstance( algorithm ) );
+            }
+            catch ( NoSuchAlgorithmException e )
+            {
+                throw new IOException( "Unsupported digest algorithm: " + algorithm, e );
+            }
+        }
+
+        if ( flushed > 0 )
+        {
+            // resuming; the digests have to cover what's already there
+            ByteBuffer chunk = ByteBuffer.allocate( (int) Math.min( CHUNK_SIZE, flushed ) );
+            long position = 0;
+            while ( position < flushed )
+            {
+                chunk.clear();
+                chunk.limit( (int) Math.min( chunk.capacity(), flushed - position ) );
+                int count = channel.read( chunk, position );
+                if ( count < 0 )
+                {
+                    break;
+                }
+
+                chunk.flip();
+                for ( MessageDigest md : mds )
+                {
+                    md.update( chunk.duplicate() );
+                }
+
+                position += count;
+            }
+        }
+
+        this.digests = mds;
+        this.writeChecksumFiles = writeChecksumFiles;
+    }
+
+    /**
+     * Complete the digests of the written content, write the checksum files if requested, and pass the digests to
+     * the callbacks. Failing to write a checksum file doesn't fail the write; it is logged.
+     */
+    private void finishDigests()
+    {
+        if ( digests.isEmpty() )
+        {
+            return;
+        }
+
+        Map<String, String> results = new LinkedHashMap<>();
+        for ( MessageDigest md : digests )
+        {
+            results.put( md.getAlgorithm(), toHex( md.digest() ) );
+        }
+
+        digestResults = Collections.unmodifiableMap( results );
+
+        if ( writeChecksumFiles )
+        {
+            results.forEach( this::writeChecksumFile );
+        }
+
+        if ( callbacks != null )
+        {
+            callbacks.digested( digestResults );
+        }
+    }
+
+    private void finishBlockIndex()
+    {
+        if ( blockIndex != null )
+        {
+            try
+            {
+                blockIndex.finish();
+            }
+            catch ( IOException e )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.warn( "Failed to complete block index of: " + path, e );
+            }
+        }
+    }
+
+    /**
+     * Write the checksum file for one digest. It is written to a temporary file first, then moved into place, so
+     * nobody reads a partial checksum.
+     */
+    private void writeChecksumFile( String algorithm, String digest )
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        Path checksumFile =
+                target.resolveSibling( target.getFileName() + "." + algorithm.toLowerCase().replace( "-", "" ) );
+        try
+        {
+            Path tmp = Files.createTempFile( checksumFile.getParent(), checksumFile.getFileName().toString(), ".tmp" );
+            try
+            {
+                Files.write( tmp, digest.getBytes( "UTF-8" ) );
+                try
+                {
+                    Files.move( tmp, checksumFile, StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING );
+                }
+                catch ( AtomicMoveNotSupportedException e )
+                {
+                    Files.move( tmp, checksumFile, StandardCopyOption.REPLACE_EXISTING );
+                }
+            }
+            finally
+            {
+                Files.deleteIfExists( tmp );
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to write checksum file: " + checksumFile, e );
+        }
+    }
+
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder sb = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Switch this file to a segmented write of the given length: instead of writing through the output stream, the
+     * caller opens streams for ranges of the file, which can be written concurrently. The file is extended to the
+     * full length up front.
+     */
+    SegmentedWrite segmented( long length )
+            throws IOException
+    {
+        if ( output == null || flushed > 0 )
+        {
+            throw new IOException( "Cannot start a segmented write to: " + path + " (read-only, or resuming)" );
+        }
+
+        setExpectedLength( length );
+        segmented = true;
+        return new Segments();
+    }
+
+    /**
+     * Record that a segment has put the given range on disk, and extend the contiguous prefix available to readers if
+     * the range joins it.
+     */
+    private void segmentFlushed( long start, long end )
+            throws IOException
+    {
+        synchronized ( this )
+        {
+            Map.Entry<Long, Long> previous = completedRanges.floorEntry( start );
+            if ( previous != null && previous.getValue() == start )
+            {
+                start = previous.getKey();
+            }
+
+            Long next = completedRanges.remove( end );
+            completedRanges.put( start, next == null ? end : next );
+
+            Map.Entry<Long, Long> first;
+            while ( ( first = completedRanges.firstEntry() ) != null && first.getKey() <= flushed )
+            {
+                flushed = Math.max( flushed, first.getValue() );
+                completedRanges.pollFirstEntry();
+                notifyAll();
+            }
+        }
+
+        recordWrittenLength();
+        digestPrefix();
+
+        if ( callbacks != null )
+        {
+            callbacks.flushed();
+        }
+    }
+
+    /**
+     * Feed the part of the contiguous prefix that hasn't been digested yet to the digests and the block index, which
+     * need the content in order. Whichever segment gets here first feeds everything up to the current prefix.
+     */
+    private void digestPrefix()
+            throws IOException
+    {
+        if ( digests.isEmpty() && blockIndex == null )
+        {
+            return;
+        }
+
+        synchronized ( prefixLock )
+        {
+            long end = getFlushed();
+            ByteBuffer chunk = null;
+            while ( prefixDigested < end )
+            {
+                if ( chunk == null )
+                {
+                    chunk = ByteBuffer.allocate( (int) Math.min( CHUNK_SIZE, end - prefixDigested ) );
+                }
+
+                chunk.clear();
+                chunk.limit( (int) Math.min( chunk.capacity(), end - prefixDigested ) );
+                int count = channel.read( chunk, prefixDigested );
+                if ( count < 0 )
+                {
+                    break;
+                }
+
+                chunk.flip();
+                for ( MessageDigest md : digests )
+                {
+                    md.update( chunk.duplicate() );
+                }
+
+                if ( blockIndex != null )
+                {
+                    blockIndex.update( chunk );
+                }
+
+                prefixDigested += count;
+            }
+        }
+    }
+
+    /**
+     * Retrieve the length the writer expects the content to have: the writer's hint (or -1 if it didn't give one), or
+     * the length of the file if nobody is writing it.
+     */
+    long getExpectedLength()
+    {
+        if ( output == null && remoteWrite == null )
+        {
+            return flushed;
+        }
+
+        return expectedLength;
+    }
+
     boolean isJoinable()
     {
         return joinable;
@@ -186,11 +657,23 @@ public final class JoinableFile
     }
 
     /**
-     * Return an {@link InputStream} instance that reads from the same {@link RandomAccessFile} that backs this output stream, and is tuned to listen
+     * Return an {@link InputStream} instance that reads from the same {@link FileChannel} that backs this output stream, and is tuned to listen
      * for notification that this stream is closed before signaling that it is out of content. The returned stream is of type {@link JoinInputStream}.
      */
     InputStream joinStream()
             throws IOException, InterruptedException
+    {
+        return joinStream( LockOwner.getLockReservationName() );
+    }
+
+    /**
+     * Return a {@link JoinInputStream} whose read lock belongs to the given owner. When the stream closes, that owner's
+     * lock is released, no matter which thread closes it.
+     *
+     * @see #joinStream()
+     */
+    InputStream joinStream( String ownerName )
+            throws IOException, InterruptedException
     {
         return lockAnd( (lock)->{
             if ( !joinable )
@@ -202,7 +685,7 @@ public final class JoinableFile
                                                        "It's in the process of closing." ) + ")" );
             }
 
-            JoinInputStream result = new JoinInputStream( inputs.size() );
+            JoinInputStream result = new JoinInputStream( inputs.size(), ownerName );
             inputs.put( result.hashCode(), result );
 
             Logger logger = LoggerFactory.getLogger( getClass() );
@@ -323,58 +806,239 @@ public final class JoinableFile
 
                 joinable = false;
 
-                if ( output != null )
+                if ( output != null && ( failure == null || resumable ) )
+                {
+                    logger.trace( "Setting length of: {} to written length: {}", path, flushed );
+                    channel.truncate( flushed );
+                    /* make sure the new length and any cached data reach the underlying device, even if the file
+                         does not reside on a local device (like NFS) */
+                    channel.force( true );
+                }
+
+                // if the channel is null, this is a directory lock.
+                if ( channel != null )
+                {
+                    logger.trace( "Closing underlying channel..." );
+                    try
+                    {
+                        if ( channel.isOpen() )
+                        {
+//                            fileLock.release();
+                            channel.close();
+                        }
+                        else
+                        {
+                            logger.trace( "Channel was not open..." );
+                        }
+                    }
+                    catch ( ClosedChannelException e )
+                    {
+                        logger.debug( "Lock release failed on closed channel.", e );
+                    }
+                }
+                else
+                {
+                    logger.trace( "Channel already closed..." );
+                }
+
+                if ( blockIndex != null )
+                {
+                    blockIndex.close();
+                }
+
+                if ( incompleteMarker != null )
+                {
+                    incompleteMarker.close();
+                }
+
+                if ( output != null && failure != null && !resumable )
+                {
+                    logger.trace( "Removing partial file of aborted write: {}", path );
+                    try
+                    {
+                        Files.deleteIfExists( target );
+                        Files.deleteIfExists( getIncompleteMarker( target ) );
+                        if ( blockIndex != null )
+                        {
+                            Files.deleteIfExists( BlockIndex.getIndexPath( target ) );
+                        }
+                    }
+                    catch ( IOException e )
+                    {
+                        logger.warn( "Failed to remove partial file of aborted write: " + path, e );
+                    }
+                }
+                else if ( output != null && failure == null )
+                {
+                    // the content is complete now, whether or not an earlier write left it marked otherwise
+                    Files.deleteIfExists( getIncompleteMarker( target ) );
+                }
+
+                logger.trace( "JoinableFile for: {} is really closed (by thread: {}).", path,
+                              Thread.currentThread().getName() );
+
+                if ( callbacks != null )
+                {
+                    logger.trace( "calling closed() on callbacks: {}", callbacks );
+                    callbacks.closed();
+                }
+
+                return null;
+            });
+        }
+        catch ( InterruptedException e )
+        {
+            logger.error( "Interrupted while closing: " + path, e );
+        }
+    }
+
+    /**
+     * Retrieve the path of the sidecar file that marks the given file as incomplete.
+     */
+    static Path getIncompleteMarker( Path target )
+    {
+        Path name = target.getFileName();
+        return target.resolveSibling( ( name == null ? "" : name.toString() ) + INCOMPLETE_SUFFIX );
+    }
+
+    /**
+     * Mark the file as incomplete, unless this write already has. The marker may be left from an earlier attempt;
+     * it is kept, along with the length it records, until this write records its own.
+     */
+    private void markIncomplete()
+            throws IOException
+    {
+        if ( incompleteMarker == null )
+        {
+            incompleteMarker = FileChannel.open( getIncompleteMarker( target ), StandardOpenOption.CREATE,
+                                                 StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.DSYNC );
+        }
+    }
+
+    /**
+     * Retrieve the written length recorded in the incomplete marker, or -1 if it doesn't record one.
+     */
+    private long readWrittenLength()
+            throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( 20 );
+        while ( buf.hasRemaining() && incompleteMarker.read( buf, buf.position() ) > 0 )
+        {
+            // read it all
+        }
+
+        String recorded = new String( buf.array(), 0, buf.position(), StandardCharsets.US_ASCII ).trim();
+        try
+        {
+            return recorded.isEmpty() ? -1 : Long.parseLong( recorded );
+        }
+        catch ( NumberFormatException e )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "Ignoring unreadable written length: '{}' in incomplete marker of: {}", recorded, path );
+            return -1;
+        }
+    }
+
+    /**
+     * Record the flushed count in the incomplete marker, if this write keeps one. Called once the content is on disk,
+     * so the marker never claims more than was written.
+     */
+    private void recordWrittenLength()
+            throws IOException
+    {
+        FileChannel marker = incompleteMarker;
+        if ( marker == null )
+        {
+            return;
+        }
+
+        synchronized ( marker )
+        {
+            byte[] recorded = Long.toString( getFlushed() ).getBytes( StandardCharsets.US_ASCII );
+            marker.write( ByteBuffer.wrap( recorded ), 0 );
+            marker.truncate( recorded.length );
+        }
+    }
+
+    /**
+     * Catch up with the progress of the writer in another process. Once it finishes, the final length is its last
+     * flushed count (or the file's length, if that count is no longer available). Callers must hold this instance's
+     * monitor.
+     */
+    private void refreshRemoteWrite()
+            throws IOException
+    {
+        remoteWrite.refresh();
+        long remote = remoteWrite.getFlushed();
+        if ( remote < 0 )
+        {
+            remote = channel.size();
+        }
+
+        flushed = Math.max( flushed, remote );
+    }
+
+    /**
+     * Discard the write in progress (see {@link Abortable#abort(Throwable)}): joined readers throw an
+     * {@link IOException} carrying the given cause from their next read, the buffered content is dropped, and the
+     * file is really closed right away, which removes it (or, for a resumable write, keeps what was flushed) and
+     * releases every lock on it. Readers aren't waited for; their streams are closed along with the file.
+     */
+    private void abort( Throwable cause )
+            throws IOException
+    {
+        try
+        {
+            lockAnd( (lock)->{
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                if ( output == null || output.isClosed() )
                 {
-                    logger.trace( "Setting length of: {} to written length: {}", path, flushed );
-                    randomAccessFile.setLength( flushed );
-                    /* channel.force() is not enough to force system cached data to be written to underlying
-                         device if the file does not reside on a local device (like NFS) */
-                    randomAccessFile.getFD().sync();
+                    logger.trace( "abort() called, but output is already closed." );
+                    return null;
                 }
 
-                // if the channel is null, this is a directory lock.
-                if ( channel != null )
-                {
-                    logger.trace( "Closing underlying channel / random-access file..." );
-                    try
-                    {
-                        if ( channel.isOpen() )
-                        {
-//                            fileLock.release();
-                            channel.close();
-                        }
-                        else
-                        {
-                            logger.trace( "Channel was not open..." );
-                        }
+                logger.debug( "Aborting write to: {} after {} bytes, failing {} joined readers", path, flushed,
+                              inputs.size() );
 
-                        randomAccessFile.close();
-                    }
-                    catch ( ClosedChannelException e )
-                    {
-                        logger.debug( "Lock release failed on closed channel.", e );
-                    }
-                }
-                else
+                synchronized ( this )
                 {
-                    logger.trace( "Channel already closed..." );
+                    failure = cause;
+                    notifyAll();
                 }
 
-                logger.trace( "JoinableFile for: {} is really closed (by thread: {}).", path,
-                              Thread.currentThread().getName() );
-
                 if ( callbacks != null )
                 {
-                    logger.trace( "calling closed() on callbacks: {}", callbacks );
-                    callbacks.closed();
+                    callbacks.aborted( cause );
                 }
 
+                output.closed = true;
+                closed = true;
+
+                inputs.values().forEach( ( input ) -> input.closed = true );
+                inputs.clear();
+
+                reallyClose();
+                owner.clearLocks();
+
                 return null;
-            });
+            } );
         }
         catch ( InterruptedException e )
         {
-            logger.error( "Interrupted while closing: " + path, e );
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "Interrupted while aborting: {}", getPath() );
+        }
+    }
+
+    private void checkFailure()
+            throws IOException
+    {
+        Throwable cause = failure;
+        if ( cause != null )
+        {
+            throw new IOException( "Writing to: " + path + " failed: " + cause.getMessage(), cause );
         }
     }
 
@@ -382,13 +1046,17 @@ public final class JoinableFile
      * Callback for use in {@link JoinInputStream} to notify this stream to decrement its count of associated input streams.
      * @throws IOException
      */
-    private void jointClosed( JoinInputStream input, String originalThreadName )
+    private void jointClosed( JoinInputStream input )
             throws IOException
     {
         try
         {
             lockAnd( (lock)->{
-                inputs.remove( input.hashCode() );
+                if ( inputs.remove( input.hashCode() ) == null )
+                {
+                    // already let go of by abort()
+                    return null;
+                }
 
                 Logger logger = LoggerFactory.getLogger( getClass() );
                 logger.trace( "jointClosed() called in: {}, current joint count: {}", this, inputs.size() );
@@ -402,8 +1070,7 @@ public final class JoinableFile
                 }
                 else
                 {
-                    owner.unlock();
-//                    owner.unlock( originalThreadName );
+                    owner.unlock( input.ownerName );
                 }
 
                 return null;
@@ -424,6 +1091,30 @@ public final class JoinableFile
         return path;
     }
 
+    /**
+     * Map a section of the file for reading. If the channel's filesystem doesn't support memory-mapping, read the
+     * section into a heap buffer instead.
+     */
+    private ByteBuffer mapRegion( long position, long size )
+            throws IOException
+    {
+        try
+        {
+            return channel.map( MapMode.READ_ONLY, position, size );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( (int) size );
+            while ( buffer.hasRemaining() && channel.read( buffer, position + buffer.position() ) > -1 )
+            {
+                // keep reading until the section is filled, or we reach the end of the file.
+            }
+
+            buffer.flip();
+            return buffer;
+        }
+    }
+
     boolean isOpen()
     {
         return !closed || !inputs.isEmpty();
@@ -431,6 +1122,7 @@ public final class JoinableFile
 
     private final class JoinableOutputStream
             extends OutputStream
+            implements Abortable, WriteDigests
     {
         private boolean closed;
 
@@ -471,6 +1163,15 @@ public final class JoinableFile
             }
 
             buf.flip();
+            if ( buf.hasRemaining() )
+            {
+                for ( MessageDigest md : digests )
+                {
+                    md.update( buf.duplicate() );
+                }
+            }
+
+            ByteBuffer written = buf.duplicate();
             int count;
             if ( channel != null )
             {
@@ -485,6 +1186,13 @@ public final class JoinableFile
 
             buf.clear();
 
+            if ( blockIndex != null && count > 0 )
+            {
+                // only once the content is on disk
+                written.limit( written.position() + count );
+                blockIndex.update( written );
+            }
+
             super.flush();
 
             synchronized ( JoinableFile.this )
@@ -493,6 +1201,8 @@ public final class JoinableFile
                 JoinableFile.this.notifyAll();
             }
 
+            recordWrittenLength();
+
             if ( callbacks != null )
             {
                 callbacks.flushed();
@@ -518,14 +1228,241 @@ public final class JoinableFile
             flush();
             super.close();
             closed = true;
+
+            if ( segmented )
+            {
+                digestPrefix();
+            }
+
+            // the file is still locked, so checksum files are in place before anyone else can lock it
+            finishDigests();
+            finishBlockIndex();
+
+            long expected = expectedLength;
+            if ( expected > -1 && expected != flushed )
+            {
+                logger.warn( "Wrote {} bytes to: {}, but {} were expected.", flushed, path, expected );
+            }
+
             JoinableFile.this.close();
         }
 
+        /**
+         * Drop anything in the current buffer and abort the write; see {@link JoinableFile#abort(Throwable)}.
+         */
+        @Override
+        public void abort( final Throwable cause )
+                throws IOException
+        {
+            JoinableFile.this.abort( cause );
+        }
+
+        @Override
+        public Map<String, String> getDigests()
+        {
+            return digestResults;
+        }
+
         boolean isClosed() {
             return closed;
         }
     }
 
+    /**
+     * Handle on a segmented write (see {@link #segmented(long)}), which opens the segment streams and finishes the
+     * write through the (otherwise unused) output stream.
+     */
+    private final class Segments
+            implements SegmentedWrite
+    {
+        @Override
+        public OutputStream openSegment( final long offset, final long length )
+                throws IOException
+        {
+            synchronized ( JoinableFile.this )
+            {
+                checkFailure();
+                if ( output.isClosed() )
+                {
+                    throw new IOException( "Segmented write to: " + path + " is closed." );
+                }
+
+                long end = offset + length;
+                if ( offset < 0 || length < 1 || end > expectedLength )
+                {
+                    throw new IllegalArgumentException(
+                            "Segment: " + offset + "-" + end + " is outside: " + path + " (length: " + expectedLength
+                                    + ")" );
+                }
+
+                Map.Entry<Long, Long> before = segmentRanges.floorEntry( offset );
+                Map.Entry<Long, Long> after = segmentRanges.ceilingEntry( offset );
+                if ( ( before != null && before.getValue() > offset ) || ( after != null && after.getKey() < end ) )
+                {
+                    throw new IllegalArgumentException(
+                            "Segment: " + offset + "-" + end + " of: " + path + " overlaps another segment." );
+                }
+
+                segmentRanges.put( offset, end );
+
+                SegmentOutputStream segment = new SegmentOutputStream( offset, end );
+                openSegments.add( segment );
+                return segment;
+            }
+        }
+
+        @Override
+        public long getLength()
+        {
+            return expectedLength;
+        }
+
+        @Override
+        public long getContiguousLength()
+        {
+            return getFlushed();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            List<SegmentOutputStream> remaining;
+            synchronized ( JoinableFile.this )
+            {
+                remaining = new ArrayList<>( openSegments );
+            }
+
+            for ( SegmentOutputStream segment : remaining )
+            {
+                segment.close();
+            }
+
+            output.close();
+        }
+
+        @Override
+        public void abort( final Throwable cause )
+                throws IOException
+        {
+            JoinableFile.this.abort( cause );
+        }
+
+        @Override
+        public Map<String, String> getDigests()
+        {
+            return digestResults;
+        }
+    }
+
+    /**
+     * {@link OutputStream} that writes one range of a segmented write, at its own position in the channel. Each flush
+     * puts the buffered content on disk, then reports the range so the contiguous prefix can grow.
+     */
+    private final class SegmentOutputStream
+            extends OutputStream
+    {
+        private final long end;
+
+        private long position;
+
+        private boolean closed;
+
+        private final ByteBuffer buf;
+
+        SegmentOutputStream( long start, long end )
+        {
+            this.position = start;
+            this.end = end;
+            this.buf = ByteBuffer.allocateDirect( (int) Math.min( CHUNK_SIZE, end - start ) );
+        }
+
+        @Override
+        public void write( final int b )
+                throws IOException
+        {
+            checkWritable();
+
+            if ( position + buf.position() >= end )
+            {
+                throw new IOException( "Cannot write past the end of segment: " + end + " of: " + path );
+            }
+
+            if ( !buf.hasRemaining() )
+            {
+                flush();
+            }
+
+            buf.put( (byte) ( b & 0xff ) );
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            checkWritable();
+
+            buf.flip();
+            long start = position;
+            try
+            {
+                while ( buf.hasRemaining() )
+                {
+                    position += channel.write( buf, position );
+                }
+
+                channel.force( false );
+            }
+            catch ( ClosedChannelException e )
+            {
+                // an abort can close the channel under us; report why
+                checkFailure();
+                throw e;
+            }
+
+            buf.clear();
+
+            if ( position > start )
+            {
+                segmentFlushed( start, position );
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            flush();
+            closed = true;
+
+            synchronized ( JoinableFile.this )
+            {
+                openSegments.remove( this );
+            }
+
+            if ( position < end )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.warn( "Segment of: {} closed at: {}, short of its end: {}", path, position, end );
+            }
+        }
+
+        private void checkWritable()
+                throws IOException
+        {
+            checkFailure();
+            if ( closed || output.isClosed() )
+            {
+                throw new IOException( "Cannot write to closed segment of: " + path );
+            }
+        }
+    }
+
     /**
      * {@link InputStream} associated with a particular {@link JoinableFile} instance. This stream reads content that the output stream has
      * already flushed to disk, and waits for new content to become available (or for the output stream to close). This allows multiple readers
@@ -533,6 +1470,7 @@ public final class JoinableFile
      */
     private final class JoinInputStream
             extends InputStream
+            implements ReadProgress
     {
         private static final long MAX_BUFFER_SIZE = 5 * 1024 * 1024; // 5Mb.
 
@@ -546,16 +1484,19 @@ public final class JoinableFile
 
         private final String originalThreadName;
 
+        private final String ownerName;
+
         private final long ctorTime;
 
         /**
          * Map the content already written to disk for reading. If the flushed count exceeds MAX_BUFFER_SIZE, use the max instead.
          */
-        JoinInputStream( int jointIdx )
+        JoinInputStream( int jointIdx, String ownerName )
                 throws IOException
         {
             this.jointIdx = jointIdx;
-            buf = channel.map( MapMode.READ_ONLY, 0, flushed > MAX_BUFFER_SIZE ? MAX_BUFFER_SIZE : flushed );
+            this.ownerName = ownerName;
+            buf = mapRegion( 0, flushed > MAX_BUFFER_SIZE ? MAX_BUFFER_SIZE : flushed );
             this.originalThreadName = Thread.currentThread().getName();
             this.ctorTime = System.nanoTime();
         }
@@ -594,6 +1535,37 @@ public final class JoinableFile
             return result;
         }
 
+        /**
+         * Return the number of bytes flushed by the writer that this stream hasn't read yet, which can be read without
+         * waiting.
+         */
+        @Override
+        public int available()
+                throws IOException
+        {
+            if ( closed )
+            {
+                throw new IOException( "Joint: " + jointIdx + ": Cannot read from closed stream!" );
+            }
+
+            synchronized ( JoinableFile.this )
+            {
+                return (int) Math.min( Integer.MAX_VALUE, flushed - read );
+            }
+        }
+
+        @Override
+        public long getExpectedLength()
+        {
+            return JoinableFile.this.getExpectedLength();
+        }
+
+        @Override
+        public long getPosition()
+        {
+            return read;
+        }
+
         /**
          * If this stream is in the process of closing, throw {@link IOException}. While the read-bytes count in this
          * stream equals the flushed-bytes count in the associated output stream, wait for new content. If the output stream closes while we're 
@@ -606,6 +1578,8 @@ public final class JoinableFile
         public int read()
                 throws IOException
         {
+            checkFailure();
+
             if ( closed )
             {
                 throw new IOException( "Joint: " + jointIdx + ": Cannot read from closed stream!" );
@@ -617,6 +1591,28 @@ public final class JoinableFile
                 //                logger.trace( "Joint: {} READ: read-bytes count: {}, flushed-bytes count: {}", jointIdx, read, flushed );
                 while ( read == flushed )
                 {
+                    checkFailure();
+
+                    if ( remoteWrite != null && remoteWrite.isAborted() )
+                    {
+                        throw new IOException(
+                                "Writer: " + remoteWrite.getWriter() + " went away before finishing: " + path );
+                    }
+                    else if ( remoteWrite != null && remoteWrite.isWriting() )
+                    {
+                        try
+                        {
+                            JoinableFile.this.wait( REMOTE_POLL_INTERVAL );
+                        }
+                        catch ( final InterruptedException e )
+                        {
+                            return -1;
+                        }
+
+                        refreshRemoteWrite();
+                        continue;
+                    }
+
                     if ( output == null || JoinableFile.this.closed )
                     {
                         // if the parent stream is closed, return EOF
@@ -650,8 +1646,16 @@ public final class JoinableFile
                 Logger logger = LoggerFactory.getLogger( getClass() );
                 logger.trace( "Buffering {} - {} (size is: {})\n", read, read+end, channel.size() );
 
-                buf = channel.map( MapMode.READ_ONLY, read,
-                                   end );
+                try
+                {
+                    buf = mapRegion( read, end );
+                }
+                catch ( ClosedChannelException e )
+                {
+                    // an abort can close the channel under us; report why
+                    checkFailure();
+                    throw e;
+                }
             }
 
             // be extra careful...if the new buffer is empty, return EOF.
@@ -670,7 +1674,7 @@ public final class JoinableFile
         }
 
         /**
-         * Mark this stream as closed to no further reads can proceed. Then, call {@link JoinableFile#jointClosed(JoinInputStream, String)} to notify the parent
+         * Mark this stream as closed to no further reads can proceed. Then, call {@link JoinableFile#jointClosed(JoinInputStream)} to notify the parent
          * output stream to decrement its open-reader count and notify anyone waiting in case a close is in progress.
          */
         @Override
@@ -686,7 +1690,7 @@ public final class JoinableFile
             }
             closed = true;
             super.close();
-            jointClosed( this, originalThreadName );
+            jointClosed( this );
         }
 
         int getJointIndex()
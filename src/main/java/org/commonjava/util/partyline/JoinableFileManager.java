@@ -15,17 +15,30 @@
  */
 package org.commonjava.util.partyline;
 
+import org.apache.commons.io.IOUtils;
 import org.commonjava.cdi.util.weft.ThreadContext;
+import org.commonjava.util.partyline.callback.LockListener;
+import org.commonjava.util.partyline.callback.StreamCallbacks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -33,7 +46,15 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -56,6 +77,11 @@ public class JoinableFileManager
 
     public static final long DEFAULT_TIMEOUT = 1000;
 
+    /**
+     * Default period (milliseconds) between checks for expired {@link LockLease}s.
+     */
+    public static final long DEFAULT_LEASE_REAP_PERIOD = 1000;
+
     private static final int MAX_CLEANUP_ITERATIONS = 3;
     private static final long CLEANUP_ITERATION_WAIT = 1000;
 
@@ -122,22 +148,133 @@ public class JoinableFileManager
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private final FileTree locks = new FileTree();
+    private final FileTree locks;
 
     private final Timer timer;
 
     private ReportingTask reporter;
 
+    private final Map<String, Map<String, LockLease>> leases = new ConcurrentHashMap<>();
+
+    private final AtomicLong reapedLeaseCount = new AtomicLong();
+
+    private LeaseReaperTask leaseReaper;
+
+    private final Map<PathKey, Fetch> fetches = new ConcurrentHashMap<>();
+
+    private ExecutorService fetchExecutor;
+
     public JoinableFileManager()
     {
+        this.locks = new FileTree();
         this.timer = new Timer( true );
     }
 
+    /**
+     * Create a manager whose lock state is split into the given number of independent shards, to reduce contention
+     * when many threads lock and open files at once. Files are assigned to shards by their top-level directory under
+     * the given storage root (for example, one directory per repository), so operations in different top-level
+     * directories don't contend with each other. Locking the storage root itself (or any directory above it) is still
+     * possible, but has to coordinate with every shard.
+     *
+     * @param shardCount The number of shards
+     * @param partitionRoot The storage root, whose child directories partition files into shards
+     */
+    public JoinableFileManager( int shardCount, File partitionRoot )
+    {
+        this.locks = new FileTree( shardCount, FileTree.getPathDepth( partitionRoot.getAbsolutePath() ) + 1 );
+        this.timer = new Timer( true );
+    }
+
+    /**
+     * Create a manager that also coordinates its locks with lock holders outside this JVM through the given
+     * {@link LockCoordinator}: other processes on this machine (a {@link SharedLockTable}), or other nodes sharing the
+     * same storage. A file locked elsewhere can't be written or deleted here, and vice versa, until the lock is
+     * released there. The caller remains responsible for closing the coordinator.
+     *
+     * @param coordinator The coordinator for locks held outside this JVM
+     */
+    public JoinableFileManager( LockCoordinator coordinator )
+    {
+        this();
+        locks.setLockCoordinator( coordinator );
+    }
+
+    /**
+     * Create a sharded manager (see {@link #JoinableFileManager(int, File)}) that also coordinates its locks with lock
+     * holders outside this JVM through the given {@link LockCoordinator}.
+     */
+    public JoinableFileManager( int shardCount, File partitionRoot, LockCoordinator coordinator )
+    {
+        this( shardCount, partitionRoot );
+        locks.setLockCoordinator( coordinator );
+    }
+
     FileTree getFileTree()
     {
         return locks;
     }
 
+    /**
+     * Keep an index of CRC-32 checksums of each block of the given size next to each file opened for writing from now
+     * on (for instance, {@code foo.jar.blocks}), updated as the content is flushed. If a writer dies part way
+     * through, the index tells which blocks of what it left are good: see {@link #getVerifiedLength(File)}, and
+     * {@link #openResumableOutputStream(File, long)}, which resumes from the last block that still matches. Call
+     * with 0 to stop keeping indexes.
+     *
+     * @param blockSize The size of each checksummed block, in bytes
+     */
+    public void setWriteBlockIndex( final int blockSize )
+    {
+        if ( blockSize < 0 )
+        {
+            throw new IllegalArgumentException( "Invalid block size: " + blockSize );
+        }
+
+        locks.setWriteBlockIndex( blockSize );
+    }
+
+    /**
+     * Check the given file against its block checksum index (see {@link #setWriteBlockIndex(int)}), verifying its
+     * blocks in parallel. This is meant for files nobody is writing, such as those left by a writer that died.
+     *
+     * @return the number of bytes from the start of the file that match the index, or -1 if the file or its index
+     *          doesn't exist
+     */
+    public long getVerifiedLength( final File file )
+            throws IOException
+    {
+        return BlockIndex.getVerifiedLength( file.toPath() );
+    }
+
+    /**
+     * Compute digests of the content of each file opened for writing from now on, with the given algorithms (for
+     * instance, {@code "SHA-1"} and {@code "MD5"}), as it is written. The digests are available from the output stream
+     * once it closes (see {@link WriteDigests}), so nobody has to read the file again to compute them. Call with no
+     * algorithms to stop computing digests.
+     *
+     * @param writeChecksumFiles If true, also write each digest to a checksum file next to the written file (for
+     *                           instance, {@code foo.jar.sha1}) before the file's lock is released
+     * @param algorithms The {@link MessageDigest} algorithms to compute
+     * @throws IllegalArgumentException if an algorithm isn't supported
+     */
+    public void setWriteDigests( final boolean writeChecksumFiles, final String... algorithms )
+    {
+        for ( String algorithm : algorithms )
+        {
+            try
+            {
+                MessageDigest.getInstance( algorithm );
+            }
+            catch ( NoSuchAlgorithmException e )
+            {
+                throw new IllegalArgumentException( "Unsupported digest algorithm: " + algorithm, e );
+            }
+        }
+
+        locks.setWriteDigests( Collections.unmodifiableList( Arrays.asList( algorithms.clone() ) ), writeChecksumFiles );
+    }
+
     /**
      * This method is used to cleanup after an operation, just to be double sure we don't complete a request and leave
      * file streams open. This file manager is designed to work in an environment where a stream may be handed off to
@@ -194,6 +331,99 @@ public class JoinableFileManager
         }
     }
 
+    /**
+     * Begin checking for expired {@link LockLease}s with the given period, instead of the
+     * {@link #DEFAULT_LEASE_REAP_PERIOD} used when the first lease is granted. The owner of an expired lease loses all
+     * of its locks on the leased file, and the streams it opened under the lease are closed.
+     *
+     * @param period in milliseconds, the delay between checks
+     */
+    public synchronized void startLeaseReaper( final long period )
+    {
+        if ( leaseReaper != null )
+        {
+            leaseReaper.cancel();
+        }
+
+        logger.info( "Starting lock-lease reaper with period: {}ms", period );
+        leaseReaper = new LeaseReaperTask();
+        timer.schedule( leaseReaper, period, period );
+    }
+
+    /**
+     * Stop checking for expired {@link LockLease}s. Leases will not be reaped until the reaper is restarted, either
+     * explicitly or by granting a new lease.
+     */
+    public synchronized void stopLeaseReaper()
+    {
+        if ( leaseReaper != null )
+        {
+            logger.info( "Stopping lock-lease reaper." );
+            leaseReaper.cancel();
+            leaseReaper = null;
+        }
+    }
+
+    /**
+     * Retrieve the number of leases that expired and had their locks released by the reaper.
+     */
+    public long getReapedLeaseCount()
+    {
+        return reapedLeaseCount.get();
+    }
+
+    /**
+     * Retrieve the number of leases currently being tracked (locks held under a lease).
+     */
+    public int getActiveLeaseCount()
+    {
+        return leases.values().stream().mapToInt( Map::size ).sum();
+    }
+
+    /**
+     * Retrieve the current thread context's lease on the specified file, or null if its locks aren't leased.
+     */
+    public LockLease getLease( final File file )
+    {
+        Map<String, LockLease> owners = leases.get( file.getAbsolutePath() );
+        return owners == null ? null : owners.get( getLockReservationName() );
+    }
+
+    /**
+     * Extend the current thread context's lease on the specified file by its original duration.
+     *
+     * @return false if the context has no lease on the file, or it has already been reaped
+     */
+    public boolean renewLease( final File file )
+    {
+        LockLease lease = getLease( file );
+        return lease != null && lease.renew();
+    }
+
+    /**
+     * Subscribe the listener to lock changes on the given path and everything beneath it: locks acquired and
+     * released, files opened and closed for writing, and deletions. This lets callers (for example, an index of cached
+     * files) react when writes finish, without polling {@link #getActiveLocks()}. Events are delivered in order on a
+     * separate dispatch thread, so listeners add no latency to lock operations.
+     *
+     * @param pathPrefix The file or directory to watch
+     * @param listener The listener to notify
+     */
+    public void addLockListener( final File pathPrefix, final LockListener listener )
+    {
+        locks.addLockListener( pathPrefix, listener );
+    }
+
+    /**
+     * Cancel a subscription made via {@link #addLockListener(File, LockListener)}.
+     *
+     * @return true if the listener was subscribed to the given path
+     */
+    public boolean removeLockListener( final File pathPrefix, final LockListener listener )
+    {
+        return locks.removeLockListener( pathPrefix, listener );
+    }
+
     /**
      * Retrieve information about the active file locks in the system.
      *
@@ -249,191 +479,1055 @@ public class JoinableFileManager
     public OutputStream openOutputStream( final File file, final long timeout )
             throws IOException, InterruptedException
     {
-        logger.trace( ">>>OPEN OUTPUT: {} with timeout: {}", file, timeout );
-
-        OutputStream stream = locks.setOrJoinFile( file, null, true, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
-            if ( result == null )
-            {
-                throw new IOException( "Could not open output stream to: " + file + " in " + timeout + "ms." );
-            }
-
-            return result.getOutputStream();
-        } );
-
-        addToContext( "OUTPUT@" + System.nanoTime() + ": " + file, stream );
-
-        return stream;
+        return openOutputStream( PathKey.of( file ), timeout );
     }
 
     /**
-     * Delete the given file, waiting until the file can be locked for deletion
+     * Variant of {@link #openOutputStream(File, long)} for a {@link Path}, which may be on any filesystem (for
+     * instance, an in-memory one).
      */
-    public boolean tryDelete( File file )
+    public OutputStream openOutputStream( final Path file, final long timeout )
             throws IOException, InterruptedException
     {
-        return tryDelete( file, -1 );
+        return openOutputStream( PathKey.of( file ), timeout );
     }
 
     /**
-     * Delete the given file, waiting until the file can be locked for deletion
-     *
-     * @param file The file to delete
-     * @param timeout Timeout (milliseconds) for attempt to lock file for deletion
+     * Variant of {@link #openOutputStream(File, long)} for a path key that the caller has already resolved (see
+     * {@link PathKey#of(Path)}), which avoids resolving the absolute path again.
      */
-    public boolean tryDelete( File file, long timeout )
+    public OutputStream openOutputStream( final PathKey file, final long timeout )
             throws IOException, InterruptedException
     {
-        logger.trace( ">>>DELETE: {}", file, timeout );
-        boolean result = locks.delete( file, timeout, TimeUnit.MILLISECONDS );
-        logger.trace( "<<<DELETE (Result: {}, file exists? {})", result, file.exists() );
-        return result;
+        logger.trace( ">>>OPEN OUTPUT: {} with timeout: {}", file, timeout );
+
+        OutputStream stream = doOpenOutputStream( file, timeout, getLockReservationName() );
+
+        addToContext( "OUTPUT@" + System.nanoTime() + ": " + file, stream );
+
+        return stream;
     }
 
     /**
-     * If there is an active {@link JoinableFile}, call {@link JoinableFile#joinStream()} and return it to the user.
-     * Otherwise, open a new {@link FileInputStream} to the specified file and pass the result back to the user.
+     * Open an output stream whose write lock belongs to the owner of the given {@link LockHandle} (or a new owner, if
+     * the handle is null) rather than the current thread's context. The stream can be handed to, and closed from, any
+     * thread. Since it isn't tied to a {@link ThreadContext}, it is not closed automatically when that context ends.
      */
-    public InputStream openInputStream( final File file )
+    public OutputStream openOutputStream( final File file, final long timeout, final LockHandle owner )
             throws IOException, InterruptedException
     {
-        return openInputStream( file, 0 );
+        logger.trace( ">>>OPEN OUTPUT: {} with timeout: {} for: {}", file, timeout, owner );
+
+        return doOpenOutputStream( PathKey.of( file ), timeout,
+                                   owner == null ? LockOwner.newOwnerToken() : owner.getOwnerName() );
     }
 
     /**
-     * If there is an active {@link JoinableFile}, call {@link JoinableFile#joinStream()} and return it to the user.
-     * Otherwise, open a new {@link FileInputStream} to the specified file and pass the result back to the user. If the
-     * file is locked for reads, wait for the specified milliseconds before giving up.
+     * Variant of {@link #openOutputStream(File, long)} for content whose length is known in advance (from a
+     * Content-Length header, for instance). The file is extended to that length up front, rather than growing with
+     * every flush, and readers joined to the write can retrieve the length (see {@link ReadProgress}). If the stream
+     * closes having written a different number of bytes, a warning is logged; the file keeps the length actually
+     * written. Until it closes, the file is marked incomplete (see {@link #isIncomplete(File)}), so a resumable write
+     * after a crash starts from what was written rather than from the extended length.
+     *
+     * @param expectedLength The number of bytes that will be written
      */
-    public InputStream openInputStream( final File file, final long timeout )
+    public OutputStream openSizedOutputStream( final File file, final long timeout, final long expectedLength )
             throws IOException, InterruptedException
     {
-        logger.trace( ">>>OPEN INPUT: {} with timeout: {}", file, timeout );
-        AtomicReference<InterruptedException> interrupt = new AtomicReference<>();
-        InputStream stream = locks.setOrJoinFile( file, null, false, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
-            if ( result == null )
-            {
-                throw new IOException( "Could not open input stream to: " + file + " in " + timeout + "ms." );
-            }
+        logger.trace( ">>>OPEN OUTPUT: {} with timeout: {} and expected length: {}", file, timeout, expectedLength );
 
-            try
-            {
-                return result.joinStream();
-            }
-            catch ( InterruptedException e )
-            {
-                interrupt.set( e );
-            }
+        PathKey key = PathKey.of( file );
+        OutputStream stream = locks.setOrJoinFile( key, getLockReservationName(), null, true, timeout,
+                                                   TimeUnit.MILLISECONDS, ( result ) -> {
+                    if ( result == null )
+                    {
+                        throw new IOException(
+                                "Could not open output stream to: " + key + " in " + timeout + "ms." );
+                    }
 
-            return null;
-        } );
+                    // still under the file's operation lock, so no reader can join before the length is set
+                    OutputStream out = result.getOutputStream();
+                    try
+                    {
+                        result.setExpectedLength( expectedLength );
+                    }
+                    catch ( IOException e )
+                    {
+                        ( (Abortable) out ).abort( e );
+                        throw e;
+                    }
 
-        InterruptedException ie = interrupt.get();
-        if ( ie != null )
-        {
-            throw ie;
-        }
+                    return out;
+                } );
 
-        addToContext( "INPUT@" + System.nanoTime() + ": " + file, stream );
+        addToContext( "OUTPUT@" + System.nanoTime() + ": " + file, stream );
 
         return stream;
     }
 
     /**
-     * Add the specified file path (and stream/closeable) to the map attached to the current {@link ThreadContext}
-     * instance. This will enable {@link #cleanupCurrentThread()} later.
+     * Start a write whose content is filled in by several streams at once, each writing a disjoint range of the file
+     * (see {@link SegmentedWrite#openSegment(long, long)}); for instance, one per HTTP range request of a parallel
+     * download. The file is extended to the given length up front, and marked incomplete until the write closes.
+     * Readers joined to the write stream the content from the start of the file as far as it is filled in without
+     * gaps. The write lock belongs to the calling thread's context, but the segment streams can be used from any
+     * thread.
      *
-     * @param name The file path / usage key to track
-     * @param closeable The stream / other closeable to track for cleanup
+     * @param length The length of the file
      */
-    private void addToContext( String name, Closeable closeable )
+    public SegmentedWrite openSegmentedWrite( final File file, final long timeout, final long length )
+            throws IOException, InterruptedException
     {
-        logger.debug( "Adding {} to closeable set in ThreadContext", name );
+        logger.trace( ">>>OPEN SEGMENTED OUTPUT: {} with timeout: {} and length: {}", file, timeout, length );
 
-        ThreadContext threadContext = ThreadContext.getContext( false );
-        if ( closeable != null && threadContext != null )
-        {
-            synchronized ( threadContext )
-            {
-                Map<String, WeakReference<Closeable>> open = (Map<String, WeakReference<Closeable>>) threadContext.get( PARTYLINE_OPEN_FILES );
-                if ( open == null )
-                {
-                    open = new WeakHashMap<>();
-                    threadContext.put( PARTYLINE_OPEN_FILES, open );
-                }
-                open.put( name, new WeakReference<>( closeable ) );
+        PathKey key = PathKey.of( file );
+        SegmentedWrite write = locks.setOrJoinFile( key, getLockReservationName(), null, true, timeout,
+                                                    TimeUnit.MILLISECONDS, ( result ) -> {
+                    if ( result == null )
+                    {
+                        throw new IOException(
+                                "Could not open segmented write to: " + key + " in " + timeout + "ms." );
+                    }
 
-                threadContext.registerFinalizer( FILE_CLEANUP );
-            }
-        }
+                    try
+                    {
+                        return result.segmented( length );
+                    }
+                    catch ( IOException e )
+                    {
+                        ( (Abortable) result.getOutputStream() ).abort( e );
+                        throw e;
+                    }
+                } );
+
+        addToContext( "OUTPUT@" + System.nanoTime() + ": " + file, write );
+
+        return write;
     }
 
     /**
-     * Manually lock the specified file to prevent opening any streams via this manager (until manually unlocked).
-     *
-     * @param file The file to lock
-     * @param timeout Timeout (milliseconds) to wait in acquiring the lock; fail if this expires without a lock
-     * @param lockLevel The type of lock to acquire (read, write, delete)
-     * @param operationName A label for the operation, to aid in debugging of stuck active locks.
+     * Variant of {@link #openOutputStream(File, long)} that appends to the existing content of the file instead of
+     * replacing it, so an interrupted download can resume where it stopped. Readers can join the write and read the
+     * existing content right away. Once the stream is open, the length of the file is the offset to resume from.
+     * <br/>
+     * Until the stream closes, the file is marked incomplete (see {@link #isIncomplete(File)}); if the write is
+     * aborted (see {@link Abortable}) or never finishes, the content written so far stays, still marked incomplete.
      */
-    @Deprecated
-    public boolean lock( final File file, long timeout, LockLevel lockLevel, String operationName )
-            throws InterruptedException
+    public OutputStream openResumableOutputStream( final File file, final long timeout )
+            throws IOException, InterruptedException
     {
-        return lock( file, timeout, lockLevel );
-    }
+        logger.trace( ">>>OPEN OUTPUT (resume): {} with timeout: {}", file, timeout );
 
-    public boolean lock( final File file, long timeout, LockLevel lockLevel )
-            throws InterruptedException
-    {
-        logger.trace( ">>>MANUAL LOCK: {}", file );
-        boolean result = locks.tryLock( file, "Manual lock", lockLevel, timeout, TimeUnit.MILLISECONDS );
-        logger.trace( "<<<MANUAL LOCK (result: {})", result );
+        PathKey key = PathKey.of( file );
+        OutputStream stream = locks.setOrJoinFile( key, getLockReservationName(), null, true, true, timeout,
+                                                   TimeUnit.MILLISECONDS, ( result ) -> {
+                    if ( result == null )
+                    {
+                        throw new IOException(
+                                "Could not open output stream to: " + key + " in " + timeout + "ms." );
+                    }
 
-        return result;
+                    return result.getOutputStream();
+                } );
+
+        addToContext( "OUTPUT@" + System.nanoTime() + ": " + file, stream );
+
+        return stream;
     }
 
     /**
-     * If the specified file was manually locked, unlock it and return the state of locks remaining on the file.
-     * Return true if the file is unlocked, false if locks remain.
-     *
-     * @see #lock(File, long, LockLevel, String)
-     * @see LockLevel
+     * Determine whether the given file is marked incomplete, because a resumable, sized or segmented write to it (see
+     * {@link #openResumableOutputStream(File, long)}) is in progress or didn't finish.
      */
-    @Deprecated
-    public boolean unlock( final File file, String operationName )
+    public boolean isIncomplete( final File file )
     {
-        return unlock( file );
+        return Files.exists( JoinableFile.getIncompleteMarker( file.toPath() ) );
     }
 
-    public boolean unlock( final File file )
+    /**
+     * Variant of {@link #openOutputStream(File, long)} that holds the write lock under a {@link LockLease}. If the
+     * lease expires, the stream is closed and the file unlocked, even if the caller never closes it. The lease is
+     * renewed each time the stream flushes; see {@link #getLease(File)} to renew it explicitly.
+     *
+     * @param leaseMillis The lease duration, in milliseconds
+     */
+    public OutputStream openOutputStream( final File file, final long timeout, final long leaseMillis )
+            throws IOException, InterruptedException
     {
-        logger.trace( ">>>MANUAL UNLOCK: {} by: {}", file, getLockReservationName() );
-        boolean result = locks.unlock( file );
+        logger.trace( ">>>OPEN OUTPUT: {} with timeout: {} and lease: {}", file, timeout, leaseMillis );
 
-        if ( result )
-        {
-            logger.trace( "<<<MANUAL UNLOCK (success)" );
-        }
-        else
-        {
-            logger.trace( "<<<MANUAL UNLOCK (failed)" );
-        }
+        String ownerName = getLockReservationName();
+        OutputStream stream = doOpenOutputStream( PathKey.of( file ), timeout, ownerName,
+                                                  new LeaseRenewalCallbacks( file, ownerName ) );
 
-        return result;
+        addToContext( "OUTPUT@" + System.nanoTime() + ": " + file, stream );
+        grantLease( file, ownerName, leaseMillis ).addStream( stream );
+
+        return stream;
     }
 
-    public boolean isLockedByCurrentThread( File file )
+    private OutputStream doOpenOutputStream( final PathKey file, final long timeout, final String ownerName )
+            throws IOException, InterruptedException
     {
-        return locks.isLockedByCurrentThread( file );
+        return doOpenOutputStream( file, timeout, ownerName, null );
     }
 
-    /**
+    private OutputStream doOpenOutputStream( final PathKey file, final long timeout, final String ownerName,
+                                             final StreamCallbacks callbacks )
+            throws IOException, InterruptedException
+    {
+        return locks.setOrJoinFile( file, ownerName, callbacks, true, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
+            if ( result == null )
+            {
+                throw new IOException( "Could not open output stream to: " + file + " in " + timeout + "ms." );
+            }
+
+            return result.getOutputStream();
+        } );
+    }
+
+    /**
+     * Asynchronous variant of {@link #openOutputStream(File, long)}. Rather than blocking the calling thread while the
+     * file is locked, the returned future completes once the output stream is opened, or exceptionally (with
+     * {@link IOException}) if the timeout expires first. The stream is locked on behalf of the calling thread's
+     * context, and registered for cleanup in that context.
+     */
+    public CompletableFuture<OutputStream> openOutputStreamAsync( final File file, final long timeout )
+    {
+        logger.trace( ">>>OPEN OUTPUT (async): {} with timeout: {}", file, timeout );
+
+        String ownerName = getLockReservationName();
+        ThreadContext threadContext = ThreadContext.getContext( false );
+
+        return locks.setOrJoinFileAsync( PathKey.of( file ), ownerName, null, true, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
+            if ( result == null )
+            {
+                throw new IOException( "Could not open output stream to: " + file + " in " + timeout + "ms." );
+            }
+
+            return result.getOutputStream();
+        }, IOUtils::closeQuietly ).thenApply( ( stream ) -> {
+            addToContext( threadContext, "OUTPUT@" + System.nanoTime() + ": " + file, stream );
+            return stream;
+        } );
+    }
+
+    /**
+     * Delete the given file, waiting until the file can be locked for deletion
+     */
+    public boolean tryDelete( File file )
+            throws IOException, InterruptedException
+    {
+        return tryDelete( file, -1 );
+    }
+
+    /**
+     * Delete the given file, waiting until the file can be locked for deletion
+     *
+     * @param file The file to delete
+     * @param timeout Timeout (milliseconds) for attempt to lock file for deletion
+     */
+    public boolean tryDelete( File file, long timeout )
+            throws IOException, InterruptedException
+    {
+        return tryDelete( PathKey.of( file ), timeout );
+    }
+
+    /**
+     * Variant of {@link #tryDelete(File, long)} for a {@link Path}, which may be on any filesystem.
+     */
+    public boolean tryDelete( Path file, long timeout )
+            throws IOException, InterruptedException
+    {
+        return tryDelete( PathKey.of( file ), timeout );
+    }
+
+    /**
+     * Variant of {@link #tryDelete(File, long)} for a path key that the caller has already resolved.
+     */
+    public boolean tryDelete( PathKey file, long timeout )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>DELETE: {}", file, timeout );
+        boolean result = locks.delete( file, timeout, TimeUnit.MILLISECONDS );
+        logger.trace( "<<<DELETE (Result: {}, file exists? {})", result, Files.exists( file.toPath() ) );
+        return result;
+    }
+
+    /**
+     * If there is an active {@link JoinableFile}, call {@link JoinableFile#joinStream()} and return it to the user.
+     * Otherwise, open a new {@link FileInputStream} to the specified file and pass the result back to the user.
+     */
+    public InputStream openInputStream( final File file )
+            throws IOException, InterruptedException
+    {
+        return openInputStream( file, 0 );
+    }
+
+    /**
+     * If there is an active {@link JoinableFile}, call {@link JoinableFile#joinStream()} and return it to the user.
+     * Otherwise, open a new {@link FileInputStream} to the specified file and pass the result back to the user. If the
+     * file is locked for reads, wait for the specified milliseconds before giving up.
+     */
+    public InputStream openInputStream( final File file, final long timeout )
+            throws IOException, InterruptedException
+    {
+        return openInputStream( PathKey.of( file ), timeout );
+    }
+
+    /**
+     * Variant of {@link #openInputStream(File, long)} for a {@link Path}, which may be on any filesystem (for
+     * instance, an in-memory one).
+     */
+    public InputStream openInputStream( final Path file, final long timeout )
+            throws IOException, InterruptedException
+    {
+        return openInputStream( PathKey.of( file ), timeout );
+    }
+
+    /**
+     * Variant of {@link #openInputStream(File, long)} for a path key that the caller has already resolved (see
+     * {@link PathKey#of(Path)}), which avoids resolving the absolute path again.
+     */
+    public InputStream openInputStream( final PathKey file, final long timeout )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>OPEN INPUT: {} with timeout: {}", file, timeout );
+
+        InputStream stream = doOpenInputStream( file, timeout, getLockReservationName() );
+
+        addToContext( "INPUT@" + System.nanoTime() + ": " + file, stream );
+
+        return stream;
+    }
+
+    /**
+     * Open an input stream whose read lock belongs to the owner of the given {@link LockHandle} (or a new owner, if
+     * the handle is null) rather than the current thread's context. The stream can be handed to, and closed from, any
+     * thread. Since it isn't tied to a {@link ThreadContext}, it is not closed automatically when that context ends.
+     */
+    public InputStream openInputStream( final File file, final long timeout, final LockHandle owner )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>OPEN INPUT: {} with timeout: {} for: {}", file, timeout, owner );
+
+        return doOpenInputStream( PathKey.of( file ), timeout,
+                                  owner == null ? LockOwner.newOwnerToken() : owner.getOwnerName() );
+    }
+
+    /**
+     * Variant of {@link #openInputStream(File, long)} that holds the read lock under a {@link LockLease}. If the
+     * lease expires, the stream is closed and the read lock released, even if the caller never closes it. The lease
+     * is renewed each time the stream is read; see {@link #getLease(File)} to renew it explicitly.
+     *
+     * @param leaseMillis The lease duration, in milliseconds
+     */
+    public InputStream openInputStream( final File file, final long timeout, final long leaseMillis )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>OPEN INPUT: {} with timeout: {} and lease: {}", file, timeout, leaseMillis );
+
+        String ownerName = getLockReservationName();
+        InputStream stream = doOpenInputStream( PathKey.of( file ), timeout, ownerName );
+
+        addToContext( "INPUT@" + System.nanoTime() + ": " + file, stream );
+
+        LockLease lease = grantLease( file, ownerName, leaseMillis );
+        lease.addStream( stream );
+
+        return new LeaseRenewingInputStream( stream, lease );
+    }
+
+    private InputStream doOpenInputStream( final PathKey file, final long timeout, final String ownerName )
+            throws IOException, InterruptedException
+    {
+        AtomicReference<InterruptedException> interrupt = new AtomicReference<>();
+        InputStream stream = locks.setOrJoinFile( file, ownerName, null, false, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
+            if ( result == null )
+            {
+                throw new IOException( "Could not open input stream to: " + file + " in " + timeout + "ms." );
+            }
+
+            try
+            {
+                return result.joinStream( ownerName );
+            }
+            catch ( InterruptedException e )
+            {
+                interrupt.set( e );
+            }
+
+            return null;
+        } );
+
+        InterruptedException ie = interrupt.get();
+        if ( ie != null )
+        {
+            throw ie;
+        }
+
+        return stream;
+    }
+
+    /**
+     * Asynchronous variant of {@link #openInputStream(File, long)}. Rather than blocking the calling thread while the
+     * file is locked against reads, the returned future completes once the input stream is opened (joining any
+     * in-progress writer), or exceptionally (with {@link IOException}) if the timeout expires first.
+     */
+    public CompletableFuture<InputStream> openInputStreamAsync( final File file, final long timeout )
+    {
+        logger.trace( ">>>OPEN INPUT (async): {} with timeout: {}", file, timeout );
+
+        String ownerName = getLockReservationName();
+        ThreadContext threadContext = ThreadContext.getContext( false );
+
+        return locks.setOrJoinFileAsync( PathKey.of( file ), ownerName, null, false, timeout, TimeUnit.MILLISECONDS, ( result ) -> {
+            if ( result == null )
+            {
+                throw new IOException( "Could not open input stream to: " + file + " in " + timeout + "ms." );
+            }
+
+            try
+            {
+                return result.joinStream( ownerName );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new InterruptedIOException( "Interrupted while joining: " + file );
+            }
+        }, IOUtils::closeQuietly ).thenApply( ( stream ) -> {
+            addToContext( threadContext, "INPUT@" + System.nanoTime() + ": " + file, stream );
+            return stream;
+        } );
+    }
+
+    /**
+     * Open an input stream to the given file, fetching its content first if it doesn't exist. Of all the callers that
+     * find the file missing at once, exactly one has its fetcher run (on a background thread), writing into a
+     * {@link JoinableFile}; every caller, including any that arrive while the fetch is running, gets a stream joined to
+     * that write, so the content is fetched once and read as it arrives. If the fetcher fails, the joined streams
+     * throw an {@link IOException} carrying the failure, and the partial file is removed; callers arriving after the
+     * failure start a new fetch.
+     * <br/>
+     * Like {@link #openInputStream(File, long, LockHandle)}, the stream isn't tied to the calling thread's context.
+     *
+     * @param file The file to read
+     * @param timeout Timeout (milliseconds) for each attempt to lock the file
+     * @param fetcher Produces the content of the file, if it has to be fetched
+     */
+    public InputStream openOrFetch( final File file, final long timeout, final StreamFetcher fetcher )
+            throws IOException, InterruptedException
+    {
+        PathKey key = PathKey.of( file );
+        while ( true )
+        {
+            Fetch running = fetches.get( key );
+            if ( running != null )
+            {
+                logger.trace( ">>>JOIN FETCH: {}", file );
+                InputStream in = running.join( timeout );
+                if ( in != null )
+                {
+                    return in;
+                }
+
+                continue;
+            }
+
+            if ( Files.exists( key.toPath() ) )
+            {
+                return openInputStream( file, timeout, (LockHandle) null );
+            }
+
+            Fetch fetch = new Fetch( key );
+            if ( fetches.putIfAbsent( key, fetch ) == null )
+            {
+                logger.trace( ">>>FETCH: {}", file );
+                return startFetch( fetch, timeout, fetcher );
+            }
+        }
+    }
+
+    private InputStream startFetch( final Fetch fetch, final long timeout, final StreamFetcher fetcher )
+            throws IOException, InterruptedException
+    {
+        PathKey key = fetch.key;
+        OutputStream out = null;
+        InputStream in;
+        try
+        {
+            if ( Files.exists( key.toPath() ) )
+            {
+                // fetched (and its flight landed) between our check and the election
+                fetch.started.complete( null );
+                fetch.land();
+                return openInputStream( key.toFile(), timeout, (LockHandle) null );
+            }
+
+            out = doOpenOutputStream( key, timeout, LockOwner.newOwnerToken() );
+            fetch.started.complete( null );
+            in = doOpenInputStream( key, timeout, LockOwner.newOwnerToken() );
+        }
+        catch ( IOException | InterruptedException | RuntimeException e )
+        {
+            if ( out != null )
+            {
+                ( (Abortable) out ).abort( e );
+            }
+
+            fetch.started.completeExceptionally( e );
+            fetch.land();
+            throw e;
+        }
+
+        final OutputStream fetchOut = out;
+        getFetchExecutor().execute( () -> {
+            try
+            {
+                fetcher.fetch( fetchOut );
+                fetchOut.close();
+            }
+            catch ( Throwable t )
+            {
+                logger.warn( "Fetch of: " + key + " failed", t );
+                fetch.failure = t;
+                try
+                {
+                    // the partial file is gone before we stop turning new callers away
+                    ( (Abortable) fetchOut ).abort( t );
+                }
+                catch ( IOException e )
+                {
+                    logger.warn( "Failed to abort write to: " + key, e );
+                }
+            }
+            finally
+            {
+                fetch.land();
+            }
+        } );
+
+        return in;
+    }
+
+    private synchronized ExecutorService getFetchExecutor()
+    {
+        if ( fetchExecutor == null )
+        {
+            fetchExecutor = Executors.newCachedThreadPool( ( r ) -> {
+                Thread t = new Thread( r, "partyline-fetch" );
+                t.setDaemon( true );
+                return t;
+            } );
+        }
+
+        return fetchExecutor;
+    }
+
+    /**
+     * Stop the background threads used by asynchronous lock requests (see {@link #lockAsync(File, long, LockLevel)})
+     * and by {@link #openOrFetch(File, long, StreamFetcher)}. Async lock requests still waiting fail, and fetches in
+     * progress are interrupted. The threads are started again on demand, if the manager is used afterward.
+     */
+    public void shutdown()
+    {
+        locks.shutdownAsync();
+
+        ExecutorService fetches;
+        synchronized ( this )
+        {
+            fetches = fetchExecutor;
+            fetchExecutor = null;
+        }
+
+        if ( fetches != null )
+        {
+            fetches.shutdownNow();
+        }
+    }
+
+    /**
+     * Add the specified file path (and stream/closeable) to the map attached to the current {@link ThreadContext}
+     * instance. This will enable {@link #cleanupCurrentThread()} later.
+     *
+     * @param name The file path / usage key to track
+     * @param closeable The stream / other closeable to track for cleanup
+     */
+    private void addToContext( String name, Closeable closeable )
+    {
+        addToContext( ThreadContext.getContext( false ), name, closeable );
+    }
+
+    /**
+     * Add the specified file path (and stream/closeable) to the map attached to the given {@link ThreadContext}
+     * instance, which may belong to a different thread (as with the async open methods).
+     */
+    private void addToContext( ThreadContext threadContext, String name, Closeable closeable )
+    {
+        logger.debug( "Adding {} to closeable set in ThreadContext", name );
+
+        if ( closeable != null && threadContext != null )
+        {
+            synchronized ( threadContext )
+            {
+                Map<String, WeakReference<Closeable>> open = (Map<String, WeakReference<Closeable>>) threadContext.get( PARTYLINE_OPEN_FILES );
+                if ( open == null )
+                {
+                    open = new WeakHashMap<>();
+                    threadContext.put( PARTYLINE_OPEN_FILES, open );
+                }
+                open.put( name, new WeakReference<>( closeable ) );
+
+                threadContext.registerFinalizer( FILE_CLEANUP );
+            }
+        }
+    }
+
+    /**
+     * Manually lock the specified file to prevent opening any streams via this manager (until manually unlocked).
+     *
+     * @param file The file to lock
+     * @param timeout Timeout (milliseconds) to wait in acquiring the lock; fail if this expires without a lock
+     * @param lockLevel The type of lock to acquire (read, write, delete)
+     * @param operationName A label for the operation, to aid in debugging of stuck active locks.
+     */
+    @Deprecated
+    public boolean lock( final File file, long timeout, LockLevel lockLevel, String operationName )
+            throws InterruptedException
+    {
+        return lock( file, timeout, lockLevel );
+    }
+
+    public boolean lock( final File file, long timeout, LockLevel lockLevel )
+            throws InterruptedException
+    {
+        return lock( PathKey.of( file ), timeout, lockLevel );
+    }
+
+    public boolean lock( final Path file, long timeout, LockLevel lockLevel )
+            throws InterruptedException
+    {
+        return lock( PathKey.of( file ), timeout, lockLevel );
+    }
+
+    public boolean lock( final PathKey file, long timeout, LockLevel lockLevel )
+            throws InterruptedException
+    {
+        logger.trace( ">>>MANUAL LOCK: {}", file );
+        boolean result = locks.tryLock( file, getLockReservationName(), "Manual lock", lockLevel, timeout,
+                                        TimeUnit.MILLISECONDS );
+        logger.trace( "<<<MANUAL LOCK (result: {})", result );
+
+        return result;
+    }
+
+    /**
+     * Variant of {@link #lock(File, long, LockLevel)} that holds the lock under a {@link LockLease}. If the lease
+     * isn't renewed (see {@link #renewLease(File)}) before it expires, the reaper releases all of the current
+     * context's locks on the file.
+     *
+     * @param leaseMillis The lease duration, in milliseconds
+     */
+    public boolean lock( final File file, long timeout, LockLevel lockLevel, long leaseMillis )
+            throws InterruptedException
+    {
+        boolean result = lock( file, timeout, lockLevel );
+        if ( result )
+        {
+            grantLease( file, getLockReservationName(), leaseMillis );
+        }
+
+        return result;
+    }
+
+    /**
+     * Lock the specified file on behalf of a new owner that is independent of the current thread's
+     * {@link ThreadContext}. The returned {@link LockHandle} carries that owner identity, so it can be passed along an
+     * async pipeline and closed from any thread. Use {@link #acquire(File, long, LockLevel, LockHandle)} to acquire
+     * further locks under the same owner.
+     *
+     * @param file The file to lock
+     * @param timeout Timeout (milliseconds) to wait in acquiring the lock; fail if this expires without a lock
+     * @param lockLevel The type of lock to acquire (read, write, delete)
+     * @return the lock handle, or null if the lock couldn't be acquired within the timeout
+     */
+    public LockHandle acquire( final File file, long timeout, LockLevel lockLevel )
+            throws InterruptedException
+    {
+        return acquire( file, timeout, lockLevel, null );
+    }
+
+    /**
+     * Lock the specified file on behalf of the owner of the given {@link LockHandle} (or a new owner, if the handle is
+     * null).
+     *
+     * @return a new lock handle for this lock (sharing the owner identity of the given handle), or null if the lock
+     * couldn't be acquired within the timeout
+     * @see #acquire(File, long, LockLevel)
+     */
+    public LockHandle acquire( final File file, long timeout, LockLevel lockLevel, LockHandle owner )
+            throws InterruptedException
+    {
+        return acquire( PathKey.of( file ), timeout, lockLevel, owner );
+    }
+
+    /**
+     * Variant of {@link #acquire(File, long, LockLevel, LockHandle)} for a {@link Path}, which may be on any
+     * filesystem.
+     */
+    public LockHandle acquire( final Path file, long timeout, LockLevel lockLevel, LockHandle owner )
+            throws InterruptedException
+    {
+        return acquire( PathKey.of( file ), timeout, lockLevel, owner );
+    }
+
+    /**
+     * Variant of {@link #acquire(File, long, LockLevel, LockHandle)} for a path key that the caller has already
+     * resolved.
+     */
+    public LockHandle acquire( final PathKey file, long timeout, LockLevel lockLevel, LockHandle owner )
+            throws InterruptedException
+    {
+        String ownerName = owner == null ? LockOwner.newOwnerToken() : owner.getOwnerName();
+
+        logger.trace( ">>>MANUAL LOCK: {} for: {}", file, ownerName );
+        boolean result = locks.tryLock( file, ownerName, "Manual lock", lockLevel, timeout, TimeUnit.MILLISECONDS );
+        logger.trace( "<<<MANUAL LOCK (result: {})", result );
+
+        return result ? new LockHandle( locks, file, lockLevel, ownerName ) : null;
+    }
+
+    /**
+     * Variant of {@link #acquire(File, long, LockLevel, LockHandle)} that holds the lock under a {@link LockLease},
+     * available from {@link LockHandle#getLease()}. If the lease isn't renewed before it expires, the reaper releases
+     * all of the owner's locks on the file.
+     *
+     * @param leaseMillis The lease duration, in milliseconds
+     */
+    public LockHandle acquire( final File file, long timeout, LockLevel lockLevel, LockHandle owner, long leaseMillis )
+            throws InterruptedException
+    {
+        LockHandle handle = acquire( file, timeout, lockLevel, owner );
+        if ( handle != null )
+        {
+            handle.setLease( grantLease( file, handle.getOwnerName(), leaseMillis ) );
+        }
+
+        return handle;
+    }
+
+    /**
+     * Lock all of the specified files (for example, an artifact and its checksum and metadata files) or none of them,
+     * on behalf of a new owner that is independent of the current thread's {@link ThreadContext}. Files are locked in
+     * canonical order, so batches over overlapping files can't deadlock each other, and the timeout covers the whole
+     * batch. Closing the returned handle releases all of the files together.
+     *
+     * @param files The files to lock
+     * @param timeout Timeout (milliseconds) to wait in acquiring all of the locks
+     * @param lockLevel The type of lock to acquire (read, write, delete)
+     * @return the lock handle, or null if any of the files couldn't be locked within the timeout (in which case none
+     * of them remain locked)
+     * @throws IllegalArgumentException if no files are given
+     */
+    public LockHandle acquireAll( final Collection<File> files, long timeout, LockLevel lockLevel )
+            throws InterruptedException
+    {
+        return acquireAll( files, timeout, lockLevel, null );
+    }
+
+    /**
+     * Lock all of the specified files or none of them, on behalf of the owner of the given {@link LockHandle} (or a
+     * new owner, if the handle is null).
+     *
+     * @see #acquireAll(Collection, long, LockLevel)
+     */
+    public LockHandle acquireAll( final Collection<File> files, long timeout, LockLevel lockLevel, LockHandle owner )
+            throws InterruptedException
+    {
+        List<PathKey> keys = toBatchKeys( files );
+        String ownerName = owner == null ? LockOwner.newOwnerToken() : owner.getOwnerName();
+
+        logger.trace( ">>>MANUAL BATCH LOCK: {} for: {}", files, ownerName );
+        boolean result = locks.tryLockAll( keys, ownerName, "Manual batch lock", lockLevel, timeout,
+                                           TimeUnit.MILLISECONDS );
+        logger.trace( "<<<MANUAL BATCH LOCK (result: {})", result );
+
+        return result ? new LockHandle( locks, FileTree.canonicalOrder( keys ), lockLevel, ownerName ) : null;
+    }
+
+    /**
+     * Lock all of the specified files or none of them, on behalf of the current thread's context. Release them with
+     * {@link #unlockAll(Collection)}.
+     *
+     * @return true if all of the files were locked; false if the timeout expired (none of the files remain locked)
+     * @throws IllegalArgumentException if no files are given
+     * @see #acquireAll(Collection, long, LockLevel)
+     */
+    public boolean lockAll( final Collection<File> files, long timeout, LockLevel lockLevel )
+            throws InterruptedException
+    {
+        List<PathKey> keys = toBatchKeys( files );
+
+        logger.trace( ">>>MANUAL BATCH LOCK: {}", files );
+        boolean result = locks.tryLockAll( keys, getLockReservationName(), "Manual batch lock", lockLevel,
+                                           timeout, TimeUnit.MILLISECONDS );
+        logger.trace( "<<<MANUAL BATCH LOCK (result: {})", result );
+
+        return result;
+    }
+
+    /**
+     * Release all of the specified files, locked via {@link #lockAll(Collection, long, LockLevel)}, in reverse
+     * canonical order.
+     *
+     * @return true if all of the files are unlocked for the current thread's context
+     */
+    public boolean unlockAll( final Collection<File> files )
+    {
+        logger.trace( ">>>MANUAL BATCH UNLOCK: {}", files );
+        return locks.unlockAll( toKeys( files ), getLockReservationName() );
+    }
+
+    /**
+     * Asynchronous variant of {@link #lock(File, long, LockLevel)}. Rather than parking the calling thread, the
+     * returned future completes with a {@link LockHandle} once the lock is acquired, or exceptionally with
+     * {@link TimeoutException} if the timeout expires first. The lock is owned by the calling thread's context, and
+     * the handle can release it from any thread.
+     *
+     * @param file The file to lock
+     * @param timeout Timeout (milliseconds) to wait in acquiring the lock; less than 1 waits indefinitely
+     * @param lockLevel The type of lock to acquire (read, write, delete)
+     */
+    public CompletableFuture<LockHandle> lockAsync( final File file, long timeout, LockLevel lockLevel )
+    {
+        logger.trace( ">>>MANUAL LOCK (async): {}", file );
+
+        PathKey key = PathKey.of( file );
+        String ownerName = getLockReservationName();
+        CompletableFuture<Boolean> locked =
+                locks.tryLockAsync( key, ownerName, "Manual lock", lockLevel, timeout, TimeUnit.MILLISECONDS );
+
+        CompletableFuture<LockHandle> result = new CompletableFuture<>();
+        locked.whenComplete( ( success, error ) -> {
+            logger.trace( "<<<MANUAL LOCK (async) (result: {}, error: {})", success, error );
+            if ( error != null )
+            {
+                result.completeExceptionally( error );
+            }
+            else if ( success )
+            {
+                LockHandle handle = new LockHandle( locks, key, lockLevel, ownerName );
+                if ( !result.complete( handle ) )
+                {
+                    handle.close();
+                }
+            }
+            else
+            {
+                result.completeExceptionally(
+                        new TimeoutException( "Could not lock: " + file + " in " + timeout + "ms." ) );
+            }
+        } );
+
+        // if the caller gives up, stop trying to lock the file.
+        result.whenComplete( ( handle, error ) -> {
+            if ( result.isCancelled() )
+            {
+                locked.cancel( false );
+            }
+        } );
+
+        return result;
+    }
+
+    /**
+     * If the specified file was manually locked, unlock it and return the state of locks remaining on the file.
+     * Return true if the file is unlocked, false if locks remain.
+     *
+     * @see #lock(File, long, LockLevel, String)
+     * @see LockLevel
+     */
+    @Deprecated
+    public boolean unlock( final File file, String operationName )
+    {
+        return unlock( file );
+    }
+
+    public boolean unlock( final File file )
+    {
+        return unlock( PathKey.of( file ) );
+    }
+
+    public boolean unlock( final Path file )
+    {
+        return unlock( PathKey.of( file ) );
+    }
+
+    public boolean unlock( final PathKey file )
+    {
+        String ownerName = getLockReservationName();
+        logger.trace( ">>>MANUAL UNLOCK: {} by: {}", file, ownerName );
+        boolean result = locks.unlock( file, ownerName );
+        if ( !locks.isLockedBy( file, ownerName ) )
+        {
+            removeLease( file.toFile(), ownerName );
+        }
+
+        if ( result )
+        {
+            logger.trace( "<<<MANUAL UNLOCK (success)" );
+        }
+        else
+        {
+            logger.trace( "<<<MANUAL UNLOCK (failed)" );
+        }
+
+        return result;
+    }
+
+    /**
+     * Convert the current thread context's read lock on the specified file into a write lock, without releasing it in
+     * between. This lets a caller that finds stale content while reading take over the refresh, instead of unlocking
+     * and then competing with other refreshers for the write lock. If other owners are still reading, wait (up to the
+     * timeout) for them to finish; new readers are held off in the meantime.
+     *
+     * @param file The file whose lock should be upgraded
+     * @param timeout Timeout (milliseconds) to wait for other readers to finish
+     * @return true if the lock is now a write lock; false if the timeout expired (the read lock is retained), this
+     * context doesn't hold a read lock, or another owner is already waiting to upgrade
+     * @throws IOException if the {@link LockCoordinator} fails (the read lock is retained)
+     */
+    public boolean upgrade( final File file, long timeout )
+            throws IOException, InterruptedException
+    {
+        logger.trace( ">>>MANUAL UPGRADE: {}", file );
+        boolean result = locks.tryUpgrade( PathKey.of( file ), getLockReservationName(), timeout,
+                                           TimeUnit.MILLISECONDS );
+        logger.trace( "<<<MANUAL UPGRADE (result: {})", result );
+
+        return result;
+    }
+
+    /**
+     * Convert the current thread context's write lock on the specified file into a read lock, without releasing it in
+     * between.
+     *
+     * @return true if the lock is now a read lock; false if this context didn't hold a write lock
+     * @throws IOException if the {@link LockCoordinator} fails (the write lock is retained)
+     */
+    public boolean downgrade( final File file )
+            throws IOException
+    {
+        logger.trace( ">>>MANUAL DOWNGRADE: {}", file );
+        boolean result = locks.downgrade( PathKey.of( file ), getLockReservationName() );
+        logger.trace( "<<<MANUAL DOWNGRADE (result: {})", result );
+
+        return result;
+    }
+
+    /**
+     * Convert the read lock held by the given single-file {@link LockHandle} into a write lock.
+     *
+     * @see #upgrade(File, long)
+     */
+    public boolean upgrade( final LockHandle handle, long timeout )
+            throws IOException, InterruptedException
+    {
+        PathKey file = getSingleKey( handle );
+
+        logger.trace( ">>>MANUAL UPGRADE: {} for: {}", file, handle.getOwnerName() );
+        boolean result = locks.tryUpgrade( file, handle.getOwnerName(), timeout, TimeUnit.MILLISECONDS );
+        logger.trace( "<<<MANUAL UPGRADE (result: {})", result );
+
+        if ( result )
+        {
+            handle.setLockLevel( LockLevel.write );
+        }
+
+        return result;
+    }
+
+    /**
+     * Convert the write lock held by the given single-file {@link LockHandle} into a read lock.
+     *
+     * @see #downgrade(File)
+     */
+    public boolean downgrade( final LockHandle handle )
+            throws IOException
+    {
+        PathKey file = getSingleKey( handle );
+
+        logger.trace( ">>>MANUAL DOWNGRADE: {} for: {}", file, handle.getOwnerName() );
+        boolean result = locks.downgrade( file, handle.getOwnerName() );
+        logger.trace( "<<<MANUAL DOWNGRADE (result: {})", result );
+
+        if ( result )
+        {
+            handle.setLockLevel( LockLevel.read );
+        }
+
+        return result;
+    }
+
+    private PathKey getSingleKey( final LockHandle handle )
+    {
+        List<PathKey> keys = handle.getKeys();
+        if ( keys.size() != 1 )
+        {
+            throw new IllegalArgumentException(
+                    "Lock level can only be changed for single-file lock handles. Handle covers: " + keys );
+        }
+
+        return keys.get( 0 );
+    }
+
+    private static List<PathKey> toKeys( final Collection<File> files )
+    {
+        List<PathKey> keys = new ArrayList<>( files.size() );
+        files.forEach( ( f ) -> keys.add( PathKey.of( f ) ) );
+        return keys;
+    }
+
+    private static List<PathKey> toBatchKeys( final Collection<File> files )
+    {
+        if ( files.isEmpty() )
+        {
+            throw new IllegalArgumentException( "Batch lock requires at least one file" );
+        }
+        return toKeys( files );
+    }
+
+    public boolean isLockedByCurrentThread( File file )
+    {
+        return locks.isLockedByCurrentThread( PathKey.of( file ) );
+    }
+
+    /**
+     * Check whether the owner of the given {@link LockHandle} holds a lock on the specified file.
+     */
+    public boolean isLockedBy( File file, LockHandle owner )
+    {
+        return locks.isLockedBy( PathKey.of( file ), owner.getOwnerName() );
+    }
+
+    /**
      * Check if the specified file is locked against write operations. Files are write-locked if any other file access
      * is active.
      *
      * @see LockLevel
      */
     public boolean isWriteLocked( final File file )
+    {
+        return isWriteLocked( PathKey.of( file ) );
+    }
+
+    public boolean isWriteLocked( final Path file )
+    {
+        return isWriteLocked( PathKey.of( file ) );
+    }
+
+    public boolean isWriteLocked( final PathKey file )
     {
         LockLevel lockLevel = locks.getLockLevel( file );
         return lockLevel != null && lockLevel.ordinal() >= read.ordinal();
@@ -445,6 +1539,16 @@ public class JoinableFileManager
      * @see LockLevel
      */
     public boolean isReadLocked( final File file )
+    {
+        return isReadLocked( PathKey.of( file ) );
+    }
+
+    public boolean isReadLocked( final Path file )
+    {
+        return isReadLocked( PathKey.of( file ) );
+    }
+
+    public boolean isReadLocked( final PathKey file )
     {
         return locks.getLockLevel( file ) == LockLevel.delete;
     }
@@ -455,6 +1559,11 @@ public class JoinableFileManager
      * @return the lock times of file for single thread context.
      */
     public int getContextLockCount( final File file )
+    {
+        return getContextLockCount( PathKey.of( file ) );
+    }
+
+    public int getContextLockCount( final PathKey file )
     {
         return locks.getContextLockCount( file );
     }
@@ -473,7 +1582,8 @@ public class JoinableFileManager
 
     /**
      * Wait the specified timeout milliseconds for write access on the specified file to become available. Return false
-     * if the timeout elapses without the file becoming available for writes.
+     * if the timeout elapses without the file becoming available for writes. The wait ends as soon as the last lock on
+     * the file is released.
      *
      * @see #isWriteLocked(File)
      */
@@ -481,33 +1591,24 @@ public class JoinableFileManager
     public boolean waitForWriteUnlock( final File file, long timeout )
             throws InterruptedException
     {
-        long to = timeout < 1 ? DEFAULT_TIMEOUT : timeout;
-
-        logger.trace( ">>>WAIT (write unlock): {} with timeout: {}", file, to );
+        return waitForWriteUnlock( Collections.singleton( file ), timeout );
+    }
 
-        long end = System.currentTimeMillis() + to;
-        boolean result = false;
-        while ( System.currentTimeMillis() < end )
-        {
-            LockLevel lockLevel = locks.getLockLevel( file );
-            if ( lockLevel == null )
-            {
-                result = true;
-                break;
-            }
+    /**
+     * Wait the specified timeout milliseconds for write access on all of the specified files to become available at
+     * once (for example, before rewriting an artifact along with its checksum and metadata files). Return false if the
+     * timeout elapses first.
+     *
+     * @see #waitForWriteUnlock(File, long)
+     */
+    public boolean waitForWriteUnlock( final Collection<File> files, long timeout )
+            throws InterruptedException
+    {
+        long to = timeout < 1 ? DEFAULT_TIMEOUT : timeout;
 
-            synchronized ( locks )
-            {
-                locks.wait( 100 );
-            }
+        logger.trace( ">>>WAIT (write unlock): {} with timeout: {}", files, to );
 
-            lockLevel = locks.getLockLevel( file );
-            if ( lockLevel == null )
-            {
-                result = true;
-                break;
-            }
-        }
+        boolean result = locks.awaitLockLevels( files, ( lockLevel ) -> lockLevel == null, to, TimeUnit.MILLISECONDS );
 
         logger.trace( "<<<WAIT (write unlock) result: {}", result );
         return result;
@@ -523,33 +1624,24 @@ public class JoinableFileManager
     public boolean waitForReadUnlock( final File file, final long timeout )
             throws InterruptedException
     {
-        long to = timeout < 1 ? DEFAULT_TIMEOUT : timeout;
-
-        logger.trace( ">>>WAIT (read unlock): {} with timeout: {}", file, to );
+        return waitForReadUnlock( Collections.singleton( file ), timeout );
+    }
 
-        long end = System.currentTimeMillis() + to;
-        boolean result = false;
-        while ( System.currentTimeMillis() < end )
-        {
-            LockLevel lockLevel = locks.getLockLevel( file );
-            if ( lockLevel != LockLevel.delete )
-            {
-                result = true;
-                break;
-            }
+    /**
+     * Wait the specified timeout milliseconds for read access on all of the specified files to become available at
+     * once. Return false if the timeout elapses first.
+     *
+     * @see #waitForReadUnlock(File, long)
+     */
+    public boolean waitForReadUnlock( final Collection<File> files, final long timeout )
+            throws InterruptedException
+    {
+        long to = timeout < 1 ? DEFAULT_TIMEOUT : timeout;
 
-            synchronized ( locks )
-            {
-                locks.wait( 100 );
-            }
+        logger.trace( ">>>WAIT (read unlock): {} with timeout: {}", files, to );
 
-            lockLevel = locks.getLockLevel( file );
-            if ( lockLevel != LockLevel.delete )
-            {
-                result = true;
-                break;
-            }
-        }
+        boolean result = locks.awaitLockLevels( files, ( lockLevel ) -> lockLevel != LockLevel.delete, to,
+                                                TimeUnit.MILLISECONDS );
 
         logger.trace( "<<<WAIT (read unlock) result: {}", result );
         return result;
@@ -568,6 +1660,251 @@ public class JoinableFileManager
         return waitForReadUnlock( file, -1 );
     }
 
+    /**
+     * Start tracking a lease for the given owner's locks on the file, or extend the owner's existing lease on it.
+     */
+    private LockLease grantLease( final File file, final String ownerName, final long leaseMillis )
+    {
+        LockLease lease = leases.computeIfAbsent( file.getAbsolutePath(), k -> new ConcurrentHashMap<>() )
+                                .compute( ownerName, ( k, existing ) -> existing != null && existing.renew( leaseMillis ) ?
+                                        existing :
+                                        new LockLease( file, ownerName, leaseMillis ) );
+
+        synchronized ( this )
+        {
+            if ( leaseReaper == null )
+            {
+                startLeaseReaper( DEFAULT_LEASE_REAP_PERIOD );
+            }
+        }
+
+        return lease;
+    }
+
+    private void removeLease( final File file, final String ownerName )
+    {
+        leases.computeIfPresent( file.getAbsolutePath(), ( k, owners ) -> {
+            owners.remove( ownerName );
+            return owners.isEmpty() ? null : owners;
+        } );
+    }
+
+    /**
+     * Release the locks held under an expired lease, closing any streams opened under it.
+     */
+    private void reap( final LockLease lease )
+    {
+        List<Closeable> streams = lease.reap();
+        if ( streams == null )
+        {
+            return;
+        }
+
+        // count the lease before releasing its locks, so the count is current for whoever acquires them next.
+        reapedLeaseCount.incrementAndGet();
+
+        logger.warn( "Lock lease expired; releasing locks on: {} held by: {}", lease.getFile(), lease.getOwnerName() );
+        streams.forEach( IOUtils::closeQuietly );
+        locks.expireLocks( PathKey.of( lease.getFile() ), lease.getOwnerName() );
+    }
+
+    /**
+     * {@link TimerTask} implementation that releases the locks held under expired {@link LockLease}s, and stops
+     * tracking leases whose locks have already been released.
+     */
+    private final class LeaseReaperTask
+            extends TimerTask
+    {
+        @Override
+        public void run()
+        {
+            for ( Map<String, LockLease> owners : leases.values() )
+            {
+                for ( LockLease lease : owners.values() )
+                {
+                    try
+                    {
+                        if ( !locks.isLockedBy( PathKey.of( lease.getFile() ), lease.getOwnerName() ) )
+                        {
+                            removeLease( lease.getFile(), lease.getOwnerName() );
+                        }
+                        else if ( lease.isExpired() )
+                        {
+                            removeLease( lease.getFile(), lease.getOwnerName() );
+                            reap( lease );
+                        }
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        // don't let one failure cancel the shared timer.
+                        logger.error( "Failed to reap lock lease: " + lease, e );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link StreamCallbacks} implementation that renews the writer's {@link LockLease} each time its output stream
+     * flushes.
+     */
+    private final class LeaseRenewalCallbacks
+            implements StreamCallbacks
+    {
+        private final File file;
+
+        private final String ownerName;
+
+        LeaseRenewalCallbacks( File file, String ownerName )
+        {
+            this.file = file;
+            this.ownerName = ownerName;
+        }
+
+        @Override
+        public void flushed()
+        {
+            Map<String, LockLease> owners = leases.get( file.getAbsolutePath() );
+            LockLease lease = owners == null ? null : owners.get( ownerName );
+            if ( lease != null )
+            {
+                lease.renew();
+            }
+        }
+
+        @Override
+        public void beforeClose()
+        {
+        }
+
+        @Override
+        public void closed()
+        {
+        }
+    }
+
+    /**
+     * {@link InputStream} wrapper that renews the reader's {@link LockLease} each time it is read, and passes
+     * {@link ReadProgress} through from the wrapped stream.
+     */
+    private static final class LeaseRenewingInputStream
+            extends FilterInputStream
+            implements ReadProgress
+    {
+        private final LockLease lease;
+
+        LeaseRenewingInputStream( InputStream in, LockLease lease )
+        {
+            super( in );
+            this.lease = lease;
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            lease.renew();
+            return super.read();
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len )
+                throws IOException
+        {
+            lease.renew();
+            return super.read( b, off, len );
+        }
+
+        @Override
+        public long skip( long n )
+                throws IOException
+        {
+            lease.renew();
+            return super.skip( n );
+        }
+
+        @Override
+        public long getExpectedLength()
+        {
+            return ( (ReadProgress) in ).getExpectedLength();
+        }
+
+        @Override
+        public long getPosition()
+        {
+            return ( (ReadProgress) in ).getPosition();
+        }
+    }
+
+    /**
+     * A fetch started by {@link #openOrFetch(File, long, StreamFetcher)}, which later callers for the same file join.
+     */
+    private final class Fetch
+    {
+        private final PathKey key;
+
+        private final CompletableFuture<Void> started = new CompletableFuture<>();
+
+        private final CountDownLatch landed = new CountDownLatch( 1 );
+
+        private volatile Throwable failure;
+
+        Fetch( PathKey key )
+        {
+            this.key = key;
+        }
+
+        /**
+         * Join the fetch, or return null if it failed before we could; in that case, wait for it to clear out so the
+         * caller can start over.
+         */
+        InputStream join( long timeout )
+                throws IOException, InterruptedException
+        {
+            try
+            {
+                started.get();
+            }
+            catch ( ExecutionException e )
+            {
+                throw new IOException( "Fetch of: " + key + " failed to start: " + e.getCause().getMessage(),
+                                       e.getCause() );
+            }
+
+            if ( failure == null )
+            {
+                try
+                {
+                    InputStream in = doOpenInputStream( key, timeout, LockOwner.newOwnerToken() );
+
+                    // the fetch may have failed while we were joining; if so, we may be reading what's left of it
+                    if ( failure == null )
+                    {
+                        return in;
+                    }
+
+                    IOUtils.closeQuietly( in );
+                }
+                catch ( IOException e )
+                {
+                    if ( failure == null )
+                    {
+                        throw e;
+                    }
+                }
+            }
+
+            landed.await();
+            return null;
+        }
+
+        void land()
+        {
+            fetches.remove( key, this );
+            landed.countDown();
+        }
+    }
+
     /**
      * {@link TimerTask} implementation that handles reporting active file locks to the logging output.
      */
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+/**
+ * Default {@link LockCoordinator}: locks are only coordinated within this JVM, by {@link FileTree}'s in-memory lock
+ * state, so every request is granted.
+ */
+public final class LocalLockCoordinator
+        implements LockCoordinator
+{
+    public static final LocalLockCoordinator INSTANCE = new LocalLockCoordinator();
+
+    private LocalLockCoordinator()
+    {
+    }
+
+    @Override
+    public boolean tryLock( PathKey key, LockLevel level )
+    {
+        return true;
+    }
+
+    @Override
+    public void unlock( PathKey key )
+    {
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extension point through which {@link FileTree} coordinates its locks with lock holders outside this JVM: other
+ * processes on the same machine ({@link SharedLockTable}), or other nodes sharing the same storage. {@link FileTree}
+ * itself keeps track of every lock held in this JVM, and asks the coordinator for one lock per path on behalf of the
+ * whole JVM: when the path is first locked here, when that lock is upgraded or downgraded, and (via
+ * {@link #unlock(PathKey)}) when the last local lock on it goes away.
+ * <br/>
+ * Coordinators never block: {@link #tryLock(PathKey, LockLevel)} reports a conflict right away, and {@link FileTree}
+ * retries until the caller's timeout expires. Repeating a request for a lock this JVM already holds at the same level
+ * must succeed.
+ * <br/>
+ * Coordinators that let readers join writes made elsewhere also carry the writers' progress: see
+ * {@link #publishProgress(PathKey, long)} and {@link #findRemoteWrite(PathKey)}.
+ *
+ * @see LocalLockCoordinator
+ */
+public interface LockCoordinator
+        extends Closeable
+{
+    /**
+     * Lock the given path for this JVM, or change the level of the lock it already holds.
+     *
+     * @return true if this JVM now holds the path at the given level; false if a conflicting lock is held elsewhere
+     */
+    boolean tryLock( PathKey key, LockLevel level )
+            throws IOException;
+
+    /**
+     * Lock all of the given paths at the given level, or none of them. Coordinators that talk to a remote service
+     * should send the whole batch at once. The default implementation locks the paths one at a time, and releases
+     * them again if one fails.
+     */
+    default boolean tryLockAll( List<PathKey> keys, LockLevel level )
+            throws IOException
+    {
+        List<PathKey> locked = new ArrayList<>( keys.size() );
+        boolean success = false;
+        try
+        {
+            for ( PathKey key : keys )
+            {
+                if ( !tryLock( key, level ) )
+                {
+                    return false;
+                }
+
+                locked.add( key );
+            }
+
+            success = true;
+            return true;
+        }
+        finally
+        {
+            if ( !success )
+            {
+                for ( PathKey key : locked )
+                {
+                    unlock( key );
+                }
+            }
+        }
+    }
+
+    /**
+     * Release this JVM's lock on the given path, if it holds one.
+     */
+    void unlock( PathKey key )
+            throws IOException;
+
+    /**
+     * Publish the flushed byte count of a file this JVM is writing (and holds the write lock on), so readers elsewhere
+     * can join the write. The default implementation doesn't share progress.
+     */
+    default void publishProgress( PathKey key, long flushed )
+            throws IOException
+    {
+    }
+
+    /**
+     * Mark the write this JVM is publishing progress for (see {@link #publishProgress(PathKey, long)}) as aborted, so
+     * readers elsewhere that joined it fail instead of treating what was written as the whole file. The default
+     * implementation doesn't share progress.
+     */
+    default void abortProgress( PathKey key )
+            throws IOException
+    {
+    }
+
+    /**
+     * Find a write to the given file that is in progress elsewhere and publishing its progress.
+     *
+     * @return the write's progress, or null if there is none (always, in the default implementation)
+     */
+    default RemoteWrite findRemoteWrite( PathKey key )
+            throws IOException
+    {
+        return null;
+    }
+
+    @Override
+    default void close()
+            throws IOException
+    {
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.commonjava.util.partyline.callback.LockEvent;
+import org.commonjava.util.partyline.callback.LockListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Registry of {@link LockListener}s subscribed to path prefixes, which delivers {@link LockEvent}s from a
+ * {@link FileTree}. Publishing an event only queues it (and only if anyone is subscribed); matching it against the
+ * subscriptions and calling the listeners happens on a single dispatch thread, so listeners add no latency to lock
+ * operations and see events in the order they were published.
+ */
+final class LockEventDispatcher
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Map<String, List<LockListener>> listeners = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    /**
+     * Subscribe the listener to events for the given path and everything beneath it.
+     */
+    void addListener( File prefix, LockListener listener )
+    {
+        listeners.computeIfAbsent( prefix.getAbsolutePath(), k -> new CopyOnWriteArrayList<>() ).add( listener );
+    }
+
+    /**
+     * Cancel the listener's subscription to the given path prefix.
+     *
+     * @return true if the listener was subscribed
+     */
+    boolean removeListener( File prefix, LockListener listener )
+    {
+        boolean[] removed = { false };
+        listeners.computeIfPresent( prefix.getAbsolutePath(), ( k, subscribed ) -> {
+            removed[0] = subscribed.remove( listener );
+            return subscribed.isEmpty() ? null : subscribed;
+        } );
+
+        return removed[0];
+    }
+
+    boolean hasListeners()
+    {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Queue an event for delivery to the listeners subscribed to the file's path or any of its ancestors.
+     */
+    void publish( LockEvent.Type type, PathKey key, String ownerName, LockLevel lockLevel )
+    {
+        if ( listeners.isEmpty() )
+        {
+            return;
+        }
+
+        LockEvent event = new LockEvent( type, key.toFile(), ownerName, lockLevel );
+        getExecutor().execute( () -> dispatch( key, event ) );
+    }
+
+    private void dispatch( PathKey key, LockEvent event )
+    {
+        for ( PathKey current = key; current != null; current = current.getParent() )
+        {
+            List<LockListener> subscribed = listeners.get( current.getPath() );
+            if ( subscribed != null )
+            {
+                for ( LockListener listener : subscribed )
+                {
+                    try
+                    {
+                        listener.onEvent( event );
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        logger.error( "Lock listener: " + listener + " failed to handle: " + event, e );
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized ExecutorService getExecutor()
+    {
+        if ( executor == null )
+        {
+            executor = Executors.newSingleThreadExecutor( ( r ) -> {
+                Thread t = new Thread( r, "partyline-lock-events" );
+                t.setDaemon( true );
+                return t;
+            } );
+        }
+
+        return executor;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Handle to a file lock acquired through {@link JoinableFileManager}. The handle remembers the owner on whose behalf
+ * the lock was acquired, so closing it releases the lock for that owner regardless of which thread calls
+ * {@link #close()}. Closing more than once has no further effect.
+ * <br/>
+ * Handles from {@link JoinableFileManager#acquire(File, long, LockLevel)} carry their own owner identity, independent of
+ * any ThreadContext. Pass the handle to the manager's other lock / open methods to act as the same owner.
+ * <br/>
+ * A handle from {@link JoinableFileManager#acquireAll(java.util.Collection, long, LockLevel)} covers several files,
+ * and releases all of them together.
+ * <br/>
+ * The lock level of a single-file handle can change via {@link JoinableFileManager#upgrade(LockHandle, long)} and
+ * {@link JoinableFileManager#downgrade(LockHandle)}.
+ * <br/>
+ * Handles acquired with a lease duration carry the {@link LockLease}, which must be renewed to keep the lock.
+ */
+public final class LockHandle
+        implements AutoCloseable
+{
+    private final FileTree tree;
+
+    private final List<PathKey> keys;
+
+    private volatile LockLevel lockLevel;
+
+    private final String ownerName;
+
+    private final AtomicBoolean released = new AtomicBoolean( false );
+
+    private volatile LockLease lease;
+
+    LockHandle( FileTree tree, PathKey key, LockLevel lockLevel, String ownerName )
+    {
+        this( tree, Collections.singletonList( key ), lockLevel, ownerName );
+    }
+
+    LockHandle( FileTree tree, List<PathKey> keys, LockLevel lockLevel, String ownerName )
+    {
+        this.tree = tree;
+        this.keys = Collections.unmodifiableList( keys );
+        this.lockLevel = lockLevel;
+        this.ownerName = ownerName;
+    }
+
+    /**
+     * Retrieve the locked file. For a handle covering several files, this is the first of them in canonical order.
+     */
+    public File getFile()
+    {
+        return keys.get( 0 ).toFile();
+    }
+
+    /**
+     * Retrieve the locked path. For a handle covering several files, this is the first of them in canonical order.
+     */
+    public Path getPath()
+    {
+        return keys.get( 0 ).toPath();
+    }
+
+    /**
+     * Retrieve all files covered by this handle, in the canonical order in which they were locked.
+     */
+    public List<File> getFiles()
+    {
+        return keys.stream().map( PathKey::toFile ).collect( Collectors.toList() );
+    }
+
+    /**
+     * Retrieve the keys of all paths covered by this handle, in the canonical order in which they were locked.
+     */
+    public List<PathKey> getKeys()
+    {
+        return keys;
+    }
+
+    public LockLevel getLockLevel()
+    {
+        return lockLevel;
+    }
+
+    void setLockLevel( LockLevel lockLevel )
+    {
+        this.lockLevel = lockLevel;
+    }
+
+    public String getOwnerName()
+    {
+        return ownerName;
+    }
+
+    /**
+     * Retrieve the lease on this handle's lock, or null if it was acquired without one.
+     */
+    public LockLease getLease()
+    {
+        return lease;
+    }
+
+    void setLease( LockLease lease )
+    {
+        this.lease = lease;
+    }
+
+    public boolean isReleased()
+    {
+        return released.get();
+    }
+
+    /**
+     * Release the lock(s) on behalf of the owner that acquired them.
+     */
+    @Override
+    public void close()
+    {
+        if ( released.compareAndSet( false, true ) )
+        {
+            if ( keys.size() == 1 )
+            {
+                tree.unlock( keys.get( 0 ), ownerName );
+            }
+            else
+            {
+                tree.unlockAll( keys, ownerName );
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LockHandle{" + "files=" + keys + ", lockLevel=" + lockLevel + ", owner='" + ownerName + '\''
+                + ", released=" + released + '}';
+    }
+}
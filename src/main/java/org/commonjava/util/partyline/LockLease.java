@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time limit on the locks an owner holds on a file, obtained by passing a lease duration to one of the
+ * {@link JoinableFileManager} lock / open methods. If the lease isn't renewed before it expires, the manager's reaper
+ * releases all of the owner's locks on the file and closes the streams opened under the lease. This keeps a worker that
+ * dies (or forgets to unlock) from locking the file forever.
+ * <br/>
+ * Long transfers should call {@link #renew()} periodically. Output streams opened with a lease renew it each time they
+ * flush, and input streams each time they read.
+ */
+public final class LockLease
+{
+    private final File file;
+
+    private final String ownerName;
+
+    private final long duration;
+
+    private long expiration;
+
+    private boolean reaped;
+
+    private final List<Closeable> streams = new ArrayList<>();
+
+    LockLease( File file, String ownerName, long duration )
+    {
+        this.file = file;
+        this.ownerName = ownerName;
+        this.duration = duration;
+        this.expiration = System.currentTimeMillis() + duration;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public String getOwnerName()
+    {
+        return ownerName;
+    }
+
+    /**
+     * Retrieve the lease duration (milliseconds) used by {@link #renew()}.
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Retrieve the time (milliseconds since the epoch) when this lease expires.
+     */
+    public synchronized long getExpiration()
+    {
+        return expiration;
+    }
+
+    /**
+     * Extend the lease by its original duration, starting now.
+     *
+     * @return false if the lease has already been reaped
+     */
+    public boolean renew()
+    {
+        return renew( duration );
+    }
+
+    /**
+     * Extend the lease by the given number of milliseconds, starting now. A renewal never shortens the lease.
+     *
+     * @return false if the lease has already been reaped
+     */
+    public synchronized boolean renew( long millis )
+    {
+        if ( reaped )
+        {
+            return false;
+        }
+
+        expiration = Math.max( expiration, System.currentTimeMillis() + millis );
+        return true;
+    }
+
+    public synchronized boolean isExpired()
+    {
+        return reaped || expiration <= System.currentTimeMillis();
+    }
+
+    /**
+     * Return true if the reaper released the owner's locks because this lease expired.
+     */
+    public synchronized boolean isReaped()
+    {
+        return reaped;
+    }
+
+    synchronized void addStream( Closeable stream )
+    {
+        streams.add( stream );
+    }
+
+    /**
+     * Mark this lease as reaped, if it is still expired (it may have been renewed since the reaper checked it).
+     *
+     * @return the streams opened under this lease, which should now be closed; or null if the lease isn't expired
+     */
+    synchronized List<Closeable> reap()
+    {
+        if ( reaped || expiration > System.currentTimeMillis() )
+        {
+            return null;
+        }
+
+        reaped = true;
+        List<Closeable> result = new ArrayList<>( streams );
+        streams.clear();
+        return result;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "LockLease{" + "file=" + file + ", owner='" + ownerName + '\'' + ", duration=" + duration
+                + ", expiration=" + expiration + ", reaped=" + reaped + '}';
+    }
+}
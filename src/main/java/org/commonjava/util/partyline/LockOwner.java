@@ -19,18 +19,26 @@ import org.commonjava.cdi.util.weft.ThreadContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import static org.apache.commons.lang.StringUtils.join;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Maintain information about threads with active locks on a file, along the current lock-level of the file (which
  * determines what additional operations can be added, once the initial operation is started). This class counts
  * referents that have locked a file, to determine when a file is completely unlocked (and could be re-locked for
  * operations that would have been forbidden previously, like deletion).
+ * <br/>
+ * The lock state is kept in a single atomic word (total hold count, dominant lock level, and whether an upgrade is
+ * pending), alongside a concurrent registry of per-owner counters. Locking and unlocking are a CAS on that word plus an
+ * atomic update of the owner's counter, so queries like {@link #isLocked()} and {@link #getLockLevel()} never block
+ * behind a monitor. Calls to {@link #lock(String, String, LockLevel)} and {@link #unlock(String)} must still be
+ * serialized per file by the caller ({@link FileTree} makes them under the file's operation lock): the unlock that
+ * retires an owner's exclusive lock demotes the level to read, which assumes no new hold arrives in between. The
+ * level changes (upgrade, downgrade) and clearing all locks are synchronized.
  *
  * @see LockLevel for more information about allowable operations for given lock levels
  */
@@ -39,76 +47,209 @@ final class LockOwner
 
     public static final String PARTYLINE_LOCK_OWNER = "partyline-lock-owner";
 
-    private final Logger logger = LoggerFactory.getLogger( getClass() );
+    private static final AtomicLong OWNER_TOKENS = new AtomicLong( 0 );
+
+    private static final Logger logger = LoggerFactory.getLogger( LockOwner.class );
+
+    private static final long HOLDS_MASK = 0xFFFFFFFFL;
+
+    private static final int LEVEL_SHIFT = 32;
+
+    private static final long LEVEL_MASK = 0x3L << LEVEL_SHIFT;
+
+    private static final long UPGRADE_PENDING = 1L << 34;
+
+    private static final LockLevel[] LEVELS = LockLevel.values();
 
-    private final Map<String, LockOwnerInfo> locks = new LinkedHashMap<>();
+    private final Map<String, LockOwnerInfo> locks = new ConcurrentHashMap<>();
 
-    private String path;
+    /**
+     * Packed lock state: the total hold count across all owners (low 32 bits), the dominant lock level (ordinal + 1 in
+     * the next two bits, or 0 when unlocked), and the {@link #UPGRADE_PENDING} flag. Lock operations update this before
+     * registering the hold with the owner's counter, and unlock operations afterward, so the hold count never
+     * understates the registry.
+     */
+    private final AtomicLong state = new AtomicLong( 0 );
 
-    private LockLevel dominantLockLevel;
+    private final String path;
 
-    private String dominantOwner;
+    private volatile String upgradingOwner;
+
+    private final LockCountListener listener;
 
     LockOwner( String path, String label, LockLevel lockLevel )
+    {
+        this( path, getLockReservationName(), label, lockLevel );
+    }
+
+    LockOwner( String path, String ownerName, String label, LockLevel lockLevel )
+    {
+        this( path, ownerName, label, lockLevel, null );
+    }
+
+    LockOwner( String path, String ownerName, String label, LockLevel lockLevel, LockCountListener listener )
     {
         this.path = path;
-        this.dominantLockLevel = lockLevel;
-        this.dominantOwner = getLockReservationName();
-        increment( label, lockLevel );
+        this.listener = listener;
+        state.set( pack( 1, lockLevel, 0 ) );
+        increment( ownerName, label, lockLevel );
     }
 
     boolean isLocked()
     {
-        return !locks.isEmpty();
+        return holdsOf( state.get() ) > 0;
     }
 
     boolean isLockedByCurrentThread()
     {
-        return !locks.isEmpty() && locks.containsKey( getLockReservationName() );
+        return isLockedBy( getLockReservationName() );
     }
 
-    synchronized boolean lock( String label, LockLevel lockLevel )
+    boolean isLockedBy( String ownerName )
     {
-        String lockOwner = getLockReservationName();
-        if ( locks.isEmpty() )
-        {
-            logger.trace( "Not locked; locking: {}", lockOwner );
-            this.dominantLockLevel = lockLevel;
-            this.dominantOwner = lockOwner;
-            increment( label, lockLevel );
-            return true;
-        }
+        LockOwnerInfo info = locks.get( ownerName );
+        return info != null && info.locks.get() > 0;
+    }
 
-        LockOwnerInfo ownerInfo = locks.get( lockOwner );
-        if ( ownerInfo != null && ownerInfo.level == lockLevel )
-        {
-            increment(label, lockLevel);
-            return true;
-        }
+    boolean lock( String label, LockLevel lockLevel )
+    {
+        return lock( getLockReservationName(), label, lockLevel );
+    }
 
-        switch ( lockLevel )
+    boolean lock( String lockOwner, String label, LockLevel lockLevel )
+    {
+        while ( true )
         {
-            case delete:
-            case write:
+            long s = state.get();
+            LockOwnerInfo ownerInfo = locks.get( lockOwner );
+            LockLevel current = levelOf( s );
+
+            LockLevel next;
+            if ( holdsOf( s ) == 0 )
             {
-                logger.trace( "[ABORT] Trying to lock at level: {} from owner: {}. Existing lock is: {}", lockLevel,
-                              lockOwner, this.dominantLockLevel );
-                return false;
+                logger.trace( "Not locked; locking: {}", lockOwner );
+                next = lockLevel;
+            }
+            else if ( ownerInfo != null && ownerInfo.level == lockLevel )
+            {
+                next = current;
             }
-            case read:
+            else if ( lockLevel == LockLevel.read )
             {
-                if ( this.dominantLockLevel == LockLevel.delete )
+                if ( current == LockLevel.delete )
                 {
                     logger.trace( "Already locked at delete level. Ignoring: {}", label );
                     return false;
                 }
 
-                increment( label, lockLevel );
+                if ( ( s & UPGRADE_PENDING ) != 0 && ownerInfo == null )
+                {
+                    logger.trace( "Waiting for {} to upgrade its lock. Ignoring: {}", upgradingOwner, label );
+                    return false;
+                }
+
+                next = current;
+            }
+            else
+            {
+                if ( logger.isTraceEnabled() )
+                {
+                    logger.trace( "[ABORT] Trying to lock at level: {} from owner: {}. Existing lock is: {}",
+                                  lockLevel, lockOwner, current );
+                }
+                return false;
+            }
+
+            if ( state.compareAndSet( s, pack( holdsOf( s ) + 1, next, s & UPGRADE_PENDING ) ) )
+            {
+                increment( lockOwner, label, lockLevel );
                 return true;
             }
-            default:
+        }
+    }
+
+    /**
+     * Determine whether the given owner may lock a descendant of this (directory) file at the given level, given the
+     * locks other owners hold here. Descendant reads are allowed unless another owner has locked the directory for
+     * deletion; descendant writes / deletes are only allowed if no other owner holds a lock on the directory. The
+     * owner's own locks never conflict.
+     */
+    boolean allowsIntention( String ownerName, LockLevel descendantLevel )
+    {
+        for ( LockOwnerInfo info : locks.values() )
+        {
+            if ( info.ownerName.equals( ownerName ) || info.locks.get() < 1 )
+            {
+                continue;
+            }
+
+            if ( descendantLevel != LockLevel.read || info.level == LockLevel.delete )
+            {
+                if ( logger.isTraceEnabled() )
+                {
+                    logger.trace( "{} holds {} lock on: {}. Descendant {} lock for: {} is not allowed.",
+                                  info.ownerName, info.level, path, descendantLevel, ownerName );
+                }
                 return false;
+            }
         }
+
+        return true;
+    }
+
+    /**
+     * Retrieve the other owners whose locks currently keep the given owner from locking this file at the given level
+     * (see {@link #lock(String, String, LockLevel)}). This is used to detect deadlocks among waiting owners.
+     */
+    Set<String> getBlockingOwners( String ownerName, LockLevel lockLevel )
+    {
+        Set<String> result = new HashSet<>();
+
+        long s = state.get();
+        LockOwnerInfo ownerInfo = locks.get( ownerName );
+        if ( holdsOf( s ) == 0 || ( ownerInfo != null && ownerInfo.level == lockLevel ) )
+        {
+            return result;
+        }
+
+        if ( lockLevel == LockLevel.read && levelOf( s ) != LockLevel.delete )
+        {
+            String upgrading = upgradingOwner;
+            if ( ( s & UPGRADE_PENDING ) != 0 && ownerInfo == null && upgrading != null )
+            {
+                result.add( upgrading );
+            }
+
+            return result;
+        }
+
+        locks.forEach( ( name, info ) -> {
+            if ( !name.equals( ownerName ) && info.locks.get() > 0 )
+            {
+                result.add( name );
+            }
+        } );
+
+        return result;
+    }
+
+    /**
+     * Retrieve the other owners whose locks on this (directory) file keep the given owner from locking a descendant
+     * at the given level (see {@link #allowsIntention(String, LockLevel)}).
+     */
+    Set<String> getOwnersBlockingIntention( String ownerName, LockLevel descendantLevel )
+    {
+        Set<String> result = new HashSet<>();
+        for ( LockOwnerInfo info : locks.values() )
+        {
+            if ( !info.ownerName.equals( ownerName ) && info.locks.get() > 0 && (
+                    descendantLevel != LockLevel.read || info.level == LockLevel.delete ) )
+            {
+                result.add( info.ownerName );
+            }
+        }
+
+        return result;
     }
 
     @Override
@@ -117,67 +258,100 @@ final class LockOwner
         return String.format( "LockOwner [%s] of: %s", super.hashCode(), path );
     }
 
-    synchronized CharSequence getLockInfo()
+    CharSequence getLockInfo()
     {
         return new StringBuilder().append( "Lock level: " )
-                                  .append( dominantLockLevel )
+                                  .append( getLockLevel() )
                                   .append( "\nOwner context is: " )
                                   .append( locks.entrySet() );
     }
 
-    private synchronized int increment( String label, LockLevel level )
+    /**
+     * Register a hold for the given owner, whose hold on the lock state has already been counted. The owner's existing
+     * counter is reused unless it has just been retired by its final unlock, in which case a new one is registered.
+     */
+    private int increment( String ownerName, String label, LockLevel level )
     {
-        String ownerName = getLockReservationName();
-        LockOwnerInfo lockOwnerInfo = locks.computeIfAbsent( ownerName, o->new LockOwnerInfo( level ) );
+        LockOwnerInfo lockOwnerInfo = locks.get( ownerName );
+        if ( lockOwnerInfo == null || !lockOwnerInfo.acquire( level ) )
+        {
+            lockOwnerInfo = locks.compute( ownerName, ( k, info ) -> info != null && info.acquire( level ) ?
+                    info :
+                    new LockOwnerInfo( ownerName, level, 1 ) );
+        }
 
-        int lockCount = lockOwnerInfo.locks.incrementAndGet();
+        int lockCount = lockOwnerInfo.locks.get();
+        notifyCountChanged( ownerName, lockOwnerInfo.level, 1 );
 
-        logger.trace( "\n\n\n{}\n  Incremented lock count.\n  New count is: {} \n  Owner: {}\n  Ref: {}\n\n\n", path, lockCount, ownerName, label );
+        if ( logger.isTraceEnabled() )
+        {
+            logger.trace( "\n\n\n{}\n  Incremented lock count.\n  New count is: {} \n  Owner: {}\n  Ref: {}\n\n\n", path,
+                          lockCount, ownerName, label );
+        }
         return lockCount;
     }
 
-    synchronized boolean unlock()
+    boolean unlock()
+    {
+        return unlock( getLockReservationName() );
+    }
+
+    /**
+     * Release one hold for the given owner. Callers must not lock or unlock the same file concurrently (see the class
+     * documentation).
+     *
+     * @return true if no owner holds a lock on the file after this call
+     */
+    boolean unlock( String ownerName )
     {
-        String ownerName = getLockReservationName();
         LockOwnerInfo lockOwnerInfo = locks.get( ownerName );
-        if ( lockOwnerInfo == null )
+        int count = lockOwnerInfo == null ? -1 : lockOwnerInfo.release();
+        if ( count < 0 )
         {
             logger.trace( "Not locked by: {}. Returning false.", ownerName );
             return false;
         }
 
-        int count = lockOwnerInfo.locks.decrementAndGet();
-        logger.trace( "Decremented lock count.\n  Path: {}\n  for owner: {}\n  New count is: {}\nLock Info:\n{}", this.path, ownerName, count, getLockInfo() );
+        notifyCountChanged( ownerName, lockOwnerInfo.level, -1 );
 
-        if ( count < 1 )
+        boolean removed = false;
+        if ( count == 0 && lockOwnerInfo.retire() )
         {
-            locks.remove( ownerName );
-            if ( dominantOwner.equals( ownerName ) )
-            {
-                logger.trace( "Unlocked owner is removed, but was dominant lock holder. Calculating new dominant lock holder." );
-
-                Optional<LockOwnerInfo> first = locks.values()
-                                                     .stream()
-                                                     .sorted( ( o1, o2 ) -> new Integer( o2.level.ordinal() ).compareTo(
-                                                             o1.level.ordinal() ) )
-                                                     .findFirst();
+            locks.remove( ownerName, lockOwnerInfo );
+            cancelUpgrade( ownerName );
+            removed = true;
+        }
 
-                if ( first.isPresent() )
-                {
-                    LockOwnerInfo newDom = first.get();
-                    this.dominantOwner = newDom.ownerName;
-                    this.dominantLockLevel = newDom.level;
-                    logger.trace( "New dominant holder is: {} with level: {}", this.dominantOwner,
-                                  this.dominantLockLevel );
-                }
-                else
-                {
-                    logger.trace( "Locks seems to be empty; Unlocking" );
-                    this.dominantOwner = null;
-                    this.dominantLockLevel = null;
-                }
+        long s, next;
+        do
+        {
+            s = state.get();
+            long holds = holdsOf( s ) - 1;
+            if ( holds < 1 )
+            {
+                next = 0;
             }
+            else if ( removed && lockOwnerInfo.level != LockLevel.read )
+            {
+                // write and delete locks are exclusive, so only readers can remain.
+                next = pack( holds, LockLevel.read, s & UPGRADE_PENDING );
+            }
+            else
+            {
+                next = pack( holds, levelOf( s ), s & UPGRADE_PENDING );
+            }
+        }
+        while ( !state.compareAndSet( s, next ) );
 
+        if ( logger.isTraceEnabled() )
+        {
+            logger.trace( "Decremented lock count.\n  Path: {}\n  for owner: {}\n  New count is: {}\nLock Info:\n{}",
+                          this.path, ownerName, count, getLockInfo() );
+        }
+
+        if ( next == 0 )
+        {
+            logger.trace( "Locks seems to be empty; Unlocking" );
             return true;
         }
 
@@ -185,26 +359,220 @@ final class LockOwner
         return false;
     }
 
-    LockLevel getLockLevel()
+    /**
+     * Try to convert the given owner's read lock to a write lock, without releasing it. This only succeeds when no
+     * other owner holds a lock on the file. Otherwise, the owner is registered as the pending upgrader: new readers are
+     * turned away until the upgrade succeeds or is abandoned via {@link #cancelUpgrade(String)}, so the remaining
+     * readers can drain.
+     *
+     * @return true if the owner now holds a write lock; false if other owners still hold locks, or if the upgrade is
+     * impossible (the owner doesn't hold a read lock, or another owner is already waiting to upgrade and waiting would
+     * deadlock)
+     */
+    synchronized boolean upgrade( String ownerName )
     {
-        return dominantLockLevel;
+        if ( !canUpgrade( ownerName ) )
+        {
+            return false;
+        }
+
+        LockOwnerInfo ownerInfo = locks.get( ownerName );
+        int count = ownerInfo.locks.get();
+        long s = state.get();
+        if ( holdsOf( s ) != count || !state.compareAndSet( s, pack( count, LockLevel.write, 0 ) ) )
+        {
+            logger.trace( "Other owners still hold locks on: {}. Waiting to upgrade for: {}", path, ownerName );
+            upgradingOwner = ownerName;
+            updateFlag( UPGRADE_PENDING, true );
+            return false;
+        }
+
+        ownerInfo.level = LockLevel.write;
+        notifyLevelChanged( ownerInfo, LockLevel.read );
+        this.upgradingOwner = null;
+
+        logger.trace( "Upgraded lock on: {} to write for: {}", path, ownerName );
+        return true;
     }
 
-    synchronized int getContextLockCount()
+    /**
+     * Check whether {@link #upgrade(String)} would succeed for the given owner right now, without upgrading. As with
+     * upgrade, if other owners still hold locks, the owner is registered as the pending upgrader (see
+     * {@link #isUpgradePending(String)}).
+     *
+     * @return true if the owner holds the only (read) lock on the file and nobody else is waiting to upgrade
+     */
+    synchronized boolean canUpgrade( String ownerName )
     {
-        String ownerName = getLockReservationName();
-        LockOwnerInfo lockOwnerInfo = locks.get( ownerName );
+        LockOwnerInfo ownerInfo = locks.get( ownerName );
+        int count = ownerInfo == null ? 0 : ownerInfo.locks.get();
+        if ( count < 1 || ownerInfo.level != LockLevel.read )
+        {
+            logger.trace( "{} does not hold a read lock on: {}. Cannot upgrade.", ownerName, path );
+            return false;
+        }
+
+        String upgrading = upgradingOwner;
+        if ( upgrading != null && !upgrading.equals( ownerName ) )
+        {
+            logger.trace( "{} is already waiting to upgrade its lock on: {}. Cannot upgrade for: {}", upgrading,
+                          path, ownerName );
+            return false;
+        }
 
-        return lockOwnerInfo == null ? 0 : lockOwnerInfo.locks.get();
+        if ( holdsOf( state.get() ) != count )
+        {
+            logger.trace( "Other owners still hold locks on: {}. Waiting to upgrade for: {}", path, ownerName );
+            upgradingOwner = ownerName;
+            updateFlag( UPGRADE_PENDING, true );
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Retrieve the level of the lock the given owner holds on the file, or null if it holds none.
+     */
+    LockLevel getLockLevel( String ownerName )
+    {
+        LockOwnerInfo ownerInfo = locks.get( ownerName );
+        return ownerInfo == null || ownerInfo.locks.get() < 1 ? null : ownerInfo.level;
+    }
+
+    /**
+     * Abandon a pending upgrade (see {@link #upgrade(String)}), allowing new readers to lock the file again.
+     */
+    synchronized void cancelUpgrade( String ownerName )
+    {
+        if ( ownerName.equals( upgradingOwner ) )
+        {
+            upgradingOwner = null;
+            updateFlag( UPGRADE_PENDING, false );
+        }
+    }
+
+    /**
+     * Check whether the given owner is waiting to upgrade its read lock (so new readers are being turned away).
+     */
+    boolean isUpgradePending( String ownerName )
+    {
+        return ownerName.equals( upgradingOwner );
+    }
+
+    /**
+     * Convert the given owner's write lock to a read lock, without releasing it. Other owners can then join as
+     * readers, but writers and deleters still have to wait until the file is completely unlocked.
+     *
+     * @return true if the owner now holds a read lock; false if it didn't hold a write lock
+     */
+    synchronized boolean downgrade( String ownerName )
+    {
+        LockOwnerInfo ownerInfo = locks.get( ownerName );
+        if ( ownerInfo == null || ownerInfo.locks.get() < 1 || ownerInfo.level != LockLevel.write )
+        {
+            logger.trace( "{} does not hold a write lock on: {}. Cannot downgrade.", ownerName, path );
+            return false;
+        }
+
+        ownerInfo.level = LockLevel.read;
+
+        // the write lock is exclusive, so the remaining holders are all readers now.
+        long s;
+        do
+        {
+            s = state.get();
+        }
+        while ( !state.compareAndSet( s, pack( holdsOf( s ), LockLevel.read, s & UPGRADE_PENDING ) ) );
+
+        notifyLevelChanged( ownerInfo, LockLevel.write );
+
+        logger.trace( "Downgraded lock on: {} to read for: {}", path, ownerName );
+        return true;
+    }
+
+    LockLevel getLockLevel()
+    {
+        return levelOf( state.get() );
+    }
+
+    int getContextLockCount()
+    {
+        LockOwnerInfo lockOwnerInfo = locks.get( getLockReservationName() );
+        return lockOwnerInfo == null ? 0 : Math.max( 0, lockOwnerInfo.locks.get() );
     }
 
     synchronized void clearLocks()
     {
-        locks.clear();
-        this.dominantLockLevel = null;
-        this.dominantOwner = null;
+        locks.forEach( ( ownerName, info ) -> {
+            int count = info.locks.getAndSet( -1 );
+            if ( count > 0 )
+            {
+                notifyCountChanged( ownerName, info.level, -count );
+            }
+
+            locks.remove( ownerName, info );
+        } );
+
+        this.upgradingOwner = null;
+        state.set( 0 );
+    }
+
+    private void updateFlag( long flag, boolean set )
+    {
+        long s;
+        do
+        {
+            s = state.get();
+        }
+        while ( !state.compareAndSet( s, set ? s | flag : s & ~flag ) );
+    }
+
+    private static long pack( long holds, LockLevel level, long flags )
+    {
+        return ( holds & HOLDS_MASK ) | ( level == null ? 0 : (long) ( level.ordinal() + 1 ) << LEVEL_SHIFT ) | flags;
     }
 
+    private static long holdsOf( long state )
+    {
+        return state & HOLDS_MASK;
+    }
+
+    private static LockLevel levelOf( long state )
+    {
+        int level = (int) ( ( state & LEVEL_MASK ) >>> LEVEL_SHIFT );
+        return level == 0 ? null : LEVELS[level - 1];
+    }
+
+    private void notifyCountChanged( String ownerName, LockLevel level, int delta )
+    {
+        if ( listener != null && delta != 0 )
+        {
+            listener.lockCountChanged( ownerName, level, delta );
+        }
+    }
+
+    private void notifyLevelChanged( LockOwnerInfo info, LockLevel oldLevel )
+    {
+        notifyCountChanged( info.ownerName, oldLevel, -info.locks.get() );
+        notifyCountChanged( info.ownerName, info.level, info.locks.get() );
+    }
+
+    /**
+     * Create a new owner identity that isn't tied to any {@link ThreadContext}. Locks held under this name can be
+     * released from any thread that has the name, which is how {@link LockHandle}s work.
+     */
+    static String newOwnerToken()
+    {
+        return "Lock handle #" + OWNER_TOKENS.incrementAndGet() + " (created by: " + Thread.currentThread().getName()
+                + ")";
+    }
+
+    /**
+     * Retrieve the ThreadContext-based owner identity for the current thread. This is the (compatibility) ownership
+     * model for lock / open calls that don't supply an explicit {@link LockHandle}: all threads sharing a
+     * {@link ThreadContext} share ownership of the locks they acquire.
+     */
     public static String getLockReservationName()
     {
         ThreadContext ctx = ThreadContext.getContext( true );
@@ -218,15 +586,78 @@ final class LockOwner
         return ownerName;
     }
 
+    /**
+     * Notified whenever an owner's lock count or level changes, so that {@link FileTree} can maintain the
+     * {@link IntentionLock}s on the file's ancestor directories.
+     */
+    @FunctionalInterface
+    interface LockCountListener
+    {
+        void lockCountChanged( String ownerName, LockLevel level, int delta );
+    }
+
+    /**
+     * Hold counter for a single owner. A counter that drops to zero is retired (set to -1) before it is removed from
+     * the registry, so a concurrent lock by the same owner either revives it first or registers a fresh counter.
+     */
     private static final class LockOwnerInfo
     {
-        private String ownerName = getLockReservationName();
-        private AtomicInteger locks = new AtomicInteger( 0 );
-        private LockLevel level;
+        private final String ownerName;
 
-        LockOwnerInfo( LockLevel level )
+        private final AtomicInteger locks;
+
+        private volatile LockLevel level;
+
+        LockOwnerInfo( String ownerName, LockLevel level, int count )
         {
+            this.ownerName = ownerName;
             this.level = level;
+            this.locks = new AtomicInteger( count );
+        }
+
+        /**
+         * Add a hold, unless this counter has been retired. A counter revived from zero takes on the new level.
+         */
+        boolean acquire( LockLevel newLevel )
+        {
+            int count;
+            do
+            {
+                count = locks.get();
+                if ( count < 0 )
+                {
+                    return false;
+                }
+            }
+            while ( !locks.compareAndSet( count, count + 1 ) );
+
+            if ( count == 0 )
+            {
+                level = newLevel;
+            }
+
+            return true;
+        }
+
+        int release()
+        {
+            int count;
+            do
+            {
+                count = locks.get();
+                if ( count < 1 )
+                {
+                    return -1;
+                }
+            }
+            while ( !locks.compareAndSet( count, count - 1 ) );
+
+            return count - 1;
+        }
+
+        boolean retire()
+        {
+            return locks.compareAndSet( 0, -1 );
         }
 
         @Override
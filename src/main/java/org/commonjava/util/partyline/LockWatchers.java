@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of threads waiting for the lock state of particular paths to change, so they can be woken as soon as a
+ * {@link FileTree} operation releases or changes a lock instead of polling. Since the effective lock level of a path
+ * depends on the locks held on its ancestors (which cover it) and its descendants (via {@link IntentionLock}s), a change
+ * on one path wakes the watches registered on that path, on its ancestors, and on its descendants.
+ */
+final class LockWatchers
+{
+    private final NavigableMap<String, Set<Watch>> watches = new ConcurrentSkipListMap<>();
+
+    /**
+     * Register a new {@link Watch} on the given files. The caller must {@link #unregister(Watch)} it when done.
+     */
+    Watch register( Collection<PathKey> files )
+    {
+        Watch watch = new Watch();
+        for ( PathKey f : files )
+        {
+            String path = f.getPath();
+            watch.paths.add( path );
+            watches.computeIfAbsent( path, k -> new CopyOnWriteArraySet<>() ).add( watch );
+        }
+
+        return watch;
+    }
+
+    void unregister( Watch watch )
+    {
+        for ( String path : watch.paths )
+        {
+            watches.computeIfPresent( path, ( k, registered ) -> {
+                registered.remove( watch );
+                return registered.isEmpty() ? null : registered;
+            } );
+        }
+    }
+
+    /**
+     * Wake the watches affected by a lock change on the given file: those on the file itself, its ancestors and its
+     * descendants.
+     */
+    void publish( PathKey f )
+    {
+        if ( watches.isEmpty() )
+        {
+            return;
+        }
+
+        String path = f.getPath();
+        String prefix = path.endsWith( File.separator ) ? path : path + File.separator;
+        for ( Map.Entry<String, Set<Watch>> e : watches.subMap( prefix, prefix + Character.MAX_VALUE ).entrySet() )
+        {
+            e.getValue().forEach( Watch::signal );
+        }
+
+        for ( PathKey current = f; current != null; current = current.getParent() )
+        {
+            Set<Watch> registered = watches.get( current.getPath() );
+            if ( registered != null )
+            {
+                registered.forEach( Watch::signal );
+            }
+        }
+    }
+
+    /**
+     * A waiting thread's registration on one or more paths. Each lock change on those paths bumps the watch's version,
+     * so the waiter can capture the version, check the lock state, and then wait for a newer version without missing
+     * a change that happens in between.
+     */
+    static final class Watch
+    {
+        private final Set<String> paths = new HashSet<>();
+
+        private long version;
+
+        synchronized long getVersion()
+        {
+            return version;
+        }
+
+        synchronized void signal()
+        {
+            version++;
+            notifyAll();
+        }
+
+        /**
+         * Wait until the version moves past the given one, or the timeout expires.
+         */
+        synchronized void await( long seen, long timeout, TimeUnit unit )
+                throws InterruptedException
+        {
+            long end = System.nanoTime() + unit.toNanos( timeout );
+            long remaining;
+            while ( version == seen && ( remaining = end - System.nanoTime() ) > 0 )
+            {
+                TimeUnit.NANOSECONDS.timedWait( this, remaining );
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical, interned key for an absolute file path, as used by {@link FileTree} to index its lock state. Each key
+ * carries its precomputed hash and depth, and a link to the key of its parent directory, so walking a path's ancestry
+ * (which every lock operation does) doesn't allocate a new {@link File} and path string for each level. Since keys are
+ * interned, the same path always yields the same instance while it is in use; keys that are no longer referenced are
+ * dropped from the intern table.
+ * <br/>
+ * Keys for paths on a {@link FileSystem} other than the default one (an in-memory filesystem, for instance) are
+ * interned separately, and never equal to a key for the same path string on the default filesystem.
+ */
+public final class PathKey
+        implements Comparable<PathKey>
+{
+    private static final ConcurrentHashMap<String, KeyReference> INTERNED = new ConcurrentHashMap<>();
+
+    private static final Map<FileSystem, Map<String, KeyReference>> INTERNED_BY_FILESYSTEM = new WeakHashMap<>();
+
+    private static final Map<FileSystem, Long> FILESYSTEM_ORDER = new WeakHashMap<>();
+
+    private static long nextFileSystemOrder = 1;
+
+    private static final ReferenceQueue<PathKey> CLEARED = new ReferenceQueue<>();
+
+    private final String path;
+
+    private final FileSystem fileSystem;
+
+    private final long fileSystemOrder;
+
+    private final int hash;
+
+    private final PathKey parent;
+
+    private final int depth;
+
+    private volatile File file;
+
+    private volatile Path nioPath;
+
+    private PathKey( String path, PathKey parent )
+    {
+        this.path = path;
+        this.fileSystem = null;
+        this.fileSystemOrder = 0;
+        this.hash = path.hashCode();
+        this.parent = parent;
+        this.depth = FileTree.getPathDepth( path );
+    }
+
+    private PathKey( Path nioPath, long fileSystemOrder, PathKey parent )
+    {
+        this.path = nioPath.toString();
+        this.fileSystem = nioPath.getFileSystem();
+        this.fileSystemOrder = fileSystemOrder;
+        this.nioPath = nioPath;
+        this.hash = path.hashCode();
+        this.parent = parent;
+        this.depth = nioPath.getNameCount();
+    }
+
+    public static PathKey of( File file )
+    {
+        return of( file.getAbsolutePath() );
+    }
+
+    public static PathKey of( Path path )
+    {
+        FileSystem fs = path.getFileSystem();
+        if ( fs == FileSystems.getDefault() )
+        {
+            return of( path.toAbsolutePath().toString() );
+        }
+
+        Path absolute = path.toAbsolutePath();
+        Map<String, KeyReference> interned;
+        long order;
+        synchronized ( INTERNED_BY_FILESYSTEM )
+        {
+            interned = INTERNED_BY_FILESYSTEM.computeIfAbsent( fs, k -> new ConcurrentHashMap<>() );
+            order = FILESYSTEM_ORDER.computeIfAbsent( fs, k -> nextFileSystemOrder++ );
+        }
+
+        String key = absolute.toString();
+        KeyReference ref = interned.get( key );
+        PathKey existing = ref == null ? null : ref.get();
+        if ( existing != null )
+        {
+            return existing;
+        }
+
+        Path parentPath = absolute.getParent();
+        return intern( interned, new PathKey( absolute, order, parentPath == null ? null : of( parentPath ) ) );
+    }
+
+    /**
+     * Retrieve the key for the given path, which is resolved to an absolute path (as {@link File#getAbsolutePath()}
+     * would) if necessary.
+     */
+    public static PathKey of( String path )
+    {
+        KeyReference ref = INTERNED.get( path );
+        PathKey key = ref == null ? null : ref.get();
+        if ( key != null )
+        {
+            return key;
+        }
+
+        File f = new File( path );
+        String absolute = f.getAbsolutePath();
+        if ( !absolute.equals( path ) )
+        {
+            return of( absolute );
+        }
+
+        String parentPath = f.getParent();
+        return intern( INTERNED, new PathKey( absolute, parentPath == null ? null : of( parentPath ) ) );
+    }
+
+    /**
+     * Add the given key to the intern table, unless another thread got there first; return the interned key.
+     */
+    private static PathKey intern( Map<String, KeyReference> interned, PathKey created )
+    {
+        expungeCleared();
+
+        PathKey[] result = new PathKey[1];
+        interned.compute( created.path, ( k, existing ) -> {
+            PathKey current = existing == null ? null : existing.get();
+            if ( current != null )
+            {
+                result[0] = current;
+                return existing;
+            }
+
+            result[0] = created;
+            return new KeyReference( created, interned );
+        } );
+
+        return result[0];
+    }
+
+    private static void expungeCleared()
+    {
+        KeyReference ref;
+        while ( ( ref = (KeyReference) CLEARED.poll() ) != null )
+        {
+            ref.interned.remove( ref.path, ref );
+        }
+    }
+
+    /**
+     * Retrieve the absolute path string.
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Retrieve the key of the parent directory, or null for a filesystem root.
+     */
+    public PathKey getParent()
+    {
+        return parent;
+    }
+
+    /**
+     * Retrieve the number of elements in the path (0 for a filesystem root).
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Retrieve the key of the ancestor (or self) with the given depth, or null if this path is shallower than that.
+     */
+    public PathKey getAncestor( int depth )
+    {
+        PathKey key = this;
+        while ( key != null && key.depth > depth )
+        {
+            key = key.parent;
+        }
+
+        return key != null && key.depth == depth ? key : null;
+    }
+
+    /**
+     * Retrieve the {@link FileSystem} of this path, or null for the default filesystem.
+     */
+    public FileSystem getFileSystem()
+    {
+        return fileSystem;
+    }
+
+    public Path toPath()
+    {
+        Path p = nioPath;
+        if ( p == null )
+        {
+            p = Paths.get( path );
+            nioPath = p;
+        }
+
+        return p;
+    }
+
+    /**
+     * Retrieve a {@link File} for this path. Keys on filesystems other than the default one have no real {@link File};
+     * the result only carries the path string, so use {@link #toPath()} to access the file.
+     */
+    public File toFile()
+    {
+        File f = file;
+        if ( f == null )
+        {
+            f = new File( path );
+            file = f;
+        }
+
+        return f;
+    }
+
+    /**
+     * Order keys by path string. Keys for the same path on different filesystems are ordered by filesystem (the
+     * default filesystem first, then the others in the order they were first seen), consistent with
+     * {@link #equals(Object)}.
+     */
+    @Override
+    public int compareTo( PathKey other )
+    {
+        int result = path.compareTo( other.path );
+        return result != 0 ? result : Long.compare( fileSystemOrder, other.fileSystemOrder );
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( this == o )
+        {
+            return true;
+        }
+        if ( !( o instanceof PathKey ) )
+        {
+            return false;
+        }
+
+        PathKey other = (PathKey) o;
+        return path.equals( other.path ) && fileSystem == other.fileSystem;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+
+    private static final class KeyReference
+            extends WeakReference<PathKey>
+    {
+        private final String path;
+
+        private final Map<String, KeyReference> interned;
+
+        KeyReference( PathKey key, Map<String, KeyReference> interned )
+        {
+            super( key, CLEARED );
+            this.path = key.path;
+            this.interned = interned;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+/**
+ * Implemented by all of the input streams returned by {@link JoinableFileManager} (including lease-holding streams)
+ * and by {@link org.commonjava.util.partyline.cluster.ClusterNode}, so a reader joined to a write in progress can
+ * tell how far along it is: cast the stream to check how much content is coming.
+ */
+public interface ReadProgress
+{
+    /**
+     * Retrieve the length the content is expected to have once the writer finishes: the length given by the writer
+     * (see {@link JoinableFileManager#openSizedOutputStream(java.io.File, long, long)}), or the length of the file if
+     * nobody is writing it.
+     *
+     * @return the expected length, or -1 if the writer didn't say
+     */
+    long getExpectedLength();
+
+    /**
+     * Retrieve the number of bytes this stream has read.
+     */
+    long getPosition();
+}
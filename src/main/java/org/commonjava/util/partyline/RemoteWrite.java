@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.IOException;
+
+/**
+ * Progress of a file being written outside this JVM, as found by {@link LockCoordinator#findRemoteWrite(PathKey)}.
+ * A read-only {@link JoinableFile} follows it to stream the file up to the point the writer has flushed.
+ */
+public interface RemoteWrite
+{
+    /**
+     * Update this record with the writer's latest progress.
+     */
+    void refresh()
+            throws IOException;
+
+    /**
+     * Retrieve the number of bytes the writer has flushed, or -1 if the final length is no longer known (in which case
+     * the file's length is final).
+     */
+    long getFlushed();
+
+    boolean isWriting();
+
+    /**
+     * Check whether the writer went away (its process died, for instance) before finishing the file.
+     */
+    boolean isAborted();
+
+    /**
+     * Describe the writer, for error messages.
+     */
+    String getWriter();
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A write whose content is filled in by several streams at once, each writing its own range of the file (from a
+ * separate HTTP range request, for instance). See
+ * {@link JoinableFileManager#openSegmentedWrite(java.io.File, long, long)}.
+ * <br/>
+ * Readers joined to the file read the contiguous content from the start of the file, as far as the segments have
+ * filled it in, and wait for more when they reach a gap.
+ */
+public interface SegmentedWrite
+        extends Abortable, WriteDigests, Closeable
+{
+    /**
+     * Open a stream that writes the given range of the file. It can be used from any thread, alongside the streams of
+     * other segments. Segments can't overlap, and must lie within the length of the file.
+     *
+     * @param offset Where in the file the segment starts
+     * @param length The number of bytes in the segment
+     * @throws IllegalArgumentException if the range is out of bounds, or overlaps another segment
+     */
+    OutputStream openSegment( long offset, long length )
+            throws IOException;
+
+    /**
+     * Retrieve the length of the file being written.
+     */
+    long getLength();
+
+    /**
+     * Retrieve the number of bytes from the start of the file that are written without gaps, which is what joined
+     * readers can read so far.
+     */
+    long getContiguousLength();
+
+    /**
+     * Finish the write, closing any segment stream that is still open. If the segments left gaps, the file keeps only
+     * the contiguous content from its start (and a warning is logged).
+     */
+    @Override
+    void close()
+            throws IOException;
+}
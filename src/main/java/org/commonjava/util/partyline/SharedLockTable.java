@@ -0,0 +1,899 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Lock table shared by every process that opens the same table file, so several JVMs working on the same storage
+ * directory can keep each other from writing or deleting a file that another one is using. The table is a
+ * memory-mapped file with a fixed number of slots; each slot records a locked path, its {@link LockLevel}, and the
+ * process (and PID) that holds it. Lock checks and updates are plain reads and writes on the mapped buffer, done while
+ * holding a short byte-range {@link FileLock} on the table file that serializes them across processes.
+ * <br/>
+ * Each process holds one slot per locked path, however many threads or owners share the lock inside that process;
+ * {@link FileTree} takes the slot when a path is first locked and releases it when the last local lock goes away.
+ * Across processes, read locks are shared and write or delete locks are exclusive, since a reader in another process
+ * can't join the writer's stream.
+ * <br/>
+ * Every process registered in the table also holds an exclusive lock on its own byte of the file for as long as the
+ * table is open. The operating system drops that lock when the process dies, so a process that finds a conflicting
+ * slot can tell whether its owner crashed, and reclaim the owner's slots if so.
+ * <br/>
+ * A slot also serves as the progress record of a file being written through a {@link JoinableFile}: the writer
+ * publishes its flushed byte count there after every flush, and readers in other processes may join the write (take a
+ * read lock alongside it) and poll that count, streaming the file up to the point the writer has flushed. When the
+ * writer releases its lock the record is marked complete, or aborted if the writer died instead. Freed slots are
+ * reused in rotation, so the final state of a record stays readable for a while after the writer is gone.
+ */
+public final class SharedLockTable
+        implements LockCoordinator
+{
+    public static final int DEFAULT_SLOT_COUNT = 1024;
+
+    public static final int MAX_PROCESSES = 64;
+
+    /**
+     * Maximum length, in UTF-8 bytes, of a path stored in the table.
+     */
+    public static final int MAX_PATH_LENGTH = 984;
+
+    private static final int MAGIC = 0x504c4c54;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int PROCESS_ENTRY_SIZE = 8;
+
+    private static final int SLOT_SIZE = 1024;
+
+    private static final int SLOT_LEVEL = 0;
+
+    private static final int SLOT_PROCESS = 4;
+
+    private static final int SLOT_HASH = 8;
+
+    private static final int SLOT_PATH_LENGTH = 12;
+
+    private static final int SLOT_PID = 16;
+
+    private static final int SLOT_PROGRESS = 24;
+
+    private static final int SLOT_STATE = 32;
+
+    private static final int SLOT_PATH = 40;
+
+    private static final int STREAMING = 1;
+
+    private static final int COMPLETE = 2;
+
+    private static final int ABORTED = 3;
+
+    /**
+     * Byte-range locks don't need to cover the mapped data; they are placed well past it, so growing the table never
+     * moves them.
+     */
+    private static final long MUTEX_POSITION = 1L << 40;
+
+    private static final long LIVENESS_POSITION = MUTEX_POSITION + 1;
+
+    private static final long MUTEX_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos( 50 );
+
+    /**
+     * {@link FileLock}s are held per JVM, so two tables on the same file in one JVM must not try to take the mutex at
+     * the same time; they synchronize on a shared monitor first.
+     */
+    private static final Map<String, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final File file;
+
+    private final Object monitor;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final int slotCount;
+
+    private final long pid;
+
+    private final int processIndex;
+
+    private final FileLock liveness;
+
+    private int nextSlot;
+
+    private boolean closed;
+
+    public SharedLockTable( File file )
+            throws IOException
+    {
+        this( file, DEFAULT_SLOT_COUNT );
+    }
+
+    /**
+     * Open the lock table in the given file, creating it with the given number of slots if it doesn't exist yet (an
+     * existing table keeps its own slot count), and register this process in it.
+     *
+     * @throws IOException if the table can't be opened, or already has {@link #MAX_PROCESSES} live processes
+     */
+    public SharedLockTable( File file, int slotCount )
+            throws IOException
+    {
+        if ( slotCount < 1 )
+        {
+            throw new IllegalArgumentException( "Slot count must be at least 1. Was: " + slotCount );
+        }
+
+        this.file = file.getAbsoluteFile();
+        this.monitor = MONITORS.computeIfAbsent( this.file.getCanonicalPath(), k -> new Object() );
+        this.channel = FileChannel.open( this.file.toPath(), CREATE, READ, WRITE );
+        this.pid = getCurrentPid();
+
+        boolean success = false;
+        try
+        {
+            synchronized ( monitor )
+            {
+                FileLock mutex = lockMutex();
+                try
+                {
+                    MappedByteBuffer header = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE );
+                    if ( header.getInt( 0 ) != MAGIC )
+                    {
+                        header.putInt( 4, VERSION );
+                        header.putInt( 8, slotCount );
+                        header.putInt( 0, MAGIC );
+                    }
+                    else if ( header.getInt( 4 ) != VERSION )
+                    {
+                        throw new IOException( "Unsupported lock table version: " + header.getInt( 4 ) + " in: "
+                                                       + this.file );
+                    }
+
+                    this.slotCount = header.getInt( 8 );
+                    this.buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0,
+                                               getSlotOffset( this.slotCount ) );
+
+                    this.processIndex = register();
+                    this.liveness = uninterruptibly(
+                            () -> channel.tryLock( LIVENESS_POSITION + processIndex, 1, false ) );
+                    if ( liveness == null )
+                    {
+                        throw new IOException( "Process entry: " + processIndex + " is still held in: " + this.file );
+                    }
+
+                    buffer.putLong( getProcessOffset( processIndex ), pid );
+                }
+                finally
+                {
+                    unlockMutex( mutex );
+                }
+            }
+
+            success = true;
+        }
+        finally
+        {
+            if ( !success )
+            {
+                channel.close();
+            }
+        }
+
+        logger.debug( "Registered as process: {} (PID: {}) in shared lock table: {}", processIndex, pid, this.file );
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public int getSlotCount()
+    {
+        return slotCount;
+    }
+
+    /**
+     * Lock the given path for this process, or change the level of the lock this process already holds on it. Paths
+     * on filesystems other than the default one aren't shared between processes, and are always allowed.
+     *
+     * @return true if this process now holds the path at the given level; false if a live process holds a
+     * conflicting lock on it
+     * @throws IOException if the table is closed or full, or the path is too long to store
+     */
+    @Override
+    public boolean tryLock( PathKey key, LockLevel level )
+            throws IOException
+    {
+        if ( key.getFileSystem() != null )
+        {
+            return true;
+        }
+
+        byte[] path = key.getPath().getBytes( UTF_8 );
+        if ( path.length > MAX_PATH_LENGTH )
+        {
+            throw new IOException( "Path is too long for the shared lock table: " + key );
+        }
+
+        synchronized ( monitor )
+        {
+            checkOpen();
+            FileLock mutex = lockMutex();
+            try
+            {
+                int own = -1;
+                int free = -1;
+                for ( int i = 0; i < slotCount; i++ )
+                {
+                    int slot = ( nextSlot + i ) % slotCount;
+                    int offset = getSlotOffset( slot );
+                    int held = buffer.getInt( offset + SLOT_LEVEL );
+                    if ( held == 0 )
+                    {
+                        free = free < 0 ? slot : free;
+                        continue;
+                    }
+
+                    if ( !matches( offset, key.hashCode(), path ) )
+                    {
+                        continue;
+                    }
+
+                    int process = buffer.getInt( offset + SLOT_PROCESS );
+                    if ( process == processIndex )
+                    {
+                        own = slot;
+                    }
+                    else if ( !isShareable( offset, held, level ) )
+                    {
+                        if ( isAlive( process ) )
+                        {
+                            logger.trace( "{} is locked by process: {} (PID: {})", key, process,
+                                          buffer.getLong( offset + SLOT_PID ) );
+                            return false;
+                        }
+
+                        logger.info( "Reclaiming shared locks of dead process: {} (PID: {}) in: {}", process,
+                                     buffer.getLong( offset + SLOT_PID ), file );
+                        reclaim( process );
+                        free = free < 0 ? slot : free;
+                    }
+                }
+
+                int slot = own < 0 ? free : own;
+                if ( slot < 0 )
+                {
+                    throw new IOException( "Shared lock table is full (" + slotCount + " slots): " + file );
+                }
+
+                int offset = getSlotOffset( slot );
+                if ( own < 0 )
+                {
+                    buffer.putInt( offset + SLOT_PROCESS, processIndex );
+                    buffer.putInt( offset + SLOT_HASH, key.hashCode() );
+                    buffer.putInt( offset + SLOT_PATH_LENGTH, path.length );
+                    buffer.putLong( offset + SLOT_PID, pid );
+                    buffer.putLong( offset + SLOT_PROGRESS, 0 );
+                    buffer.putInt( offset + SLOT_STATE, 0 );
+                    nextSlot = ( slot + 1 ) % slotCount;
+                    for ( int i = 0; i < path.length; i++ )
+                    {
+                        buffer.put( offset + SLOT_PATH + i, path[i] );
+                    }
+                }
+
+                buffer.putInt( offset + SLOT_LEVEL, encode( level ) );
+                return true;
+            }
+            finally
+            {
+                unlockMutex( mutex );
+            }
+        }
+    }
+
+    /**
+     * Release this process' lock on the given path, if it holds one.
+     */
+    @Override
+    public void unlock( PathKey key )
+            throws IOException
+    {
+        if ( key.getFileSystem() != null )
+        {
+            return;
+        }
+
+        byte[] path = key.getPath().getBytes( UTF_8 );
+        synchronized ( monitor )
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            FileLock mutex = lockMutex();
+            try
+            {
+                for ( int slot = 0; slot < slotCount; slot++ )
+                {
+                    int offset = getSlotOffset( slot );
+                    if ( buffer.getInt( offset + SLOT_LEVEL ) != 0
+                            && buffer.getInt( offset + SLOT_PROCESS ) == processIndex
+                            && matches( offset, key.hashCode(), path ) )
+                    {
+                        if ( buffer.getInt( offset + SLOT_STATE ) == STREAMING )
+                        {
+                            buffer.putInt( offset + SLOT_STATE, COMPLETE );
+                        }
+
+                        buffer.putInt( offset + SLOT_LEVEL, 0 );
+                        return;
+                    }
+                }
+            }
+            finally
+            {
+                unlockMutex( mutex );
+            }
+        }
+    }
+
+    /**
+     * Retrieve the PID of a live process (possibly this one) that holds a lock on the given path, or -1 if there is
+     * none.
+     */
+    public long getOwnerPid( PathKey key )
+            throws IOException
+    {
+        byte[] path = key.getPath().getBytes( UTF_8 );
+        synchronized ( monitor )
+        {
+            checkOpen();
+            FileLock mutex = lockMutex();
+            try
+            {
+                for ( int slot = 0; slot < slotCount; slot++ )
+                {
+                    int offset = getSlotOffset( slot );
+                    if ( buffer.getInt( offset + SLOT_LEVEL ) != 0 && matches( offset, key.hashCode(), path )
+                            && isAlive( buffer.getInt( offset + SLOT_PROCESS ) ) )
+                    {
+                        return buffer.getLong( offset + SLOT_PID );
+                    }
+                }
+
+                return -1;
+            }
+            finally
+            {
+                unlockMutex( mutex );
+            }
+        }
+    }
+
+    /**
+     * Publish the flushed byte count of a file this process is writing, and mark the file as joinable by readers in
+     * other processes. This process must hold the file's write lock.
+     */
+    @Override
+    public void publishProgress( PathKey key, long flushed )
+            throws IOException
+    {
+        if ( key.getFileSystem() != null )
+        {
+            return;
+        }
+
+        byte[] path = key.getPath().getBytes( UTF_8 );
+        synchronized ( monitor )
+        {
+            checkOpen();
+            FileLock mutex = lockMutex();
+            try
+            {
+                int slot = findSlot( key, path, processIndex, LockLevel.write );
+                if ( slot < 0 )
+                {
+                    throw new IOException( "Cannot publish progress; this process doesn't hold a write lock on: "
+                                                   + key );
+                }
+
+                int offset = getSlotOffset( slot );
+                buffer.putLong( offset + SLOT_PROGRESS, flushed );
+                buffer.putInt( offset + SLOT_STATE, STREAMING );
+            }
+            finally
+            {
+                unlockMutex( mutex );
+            }
+        }
+    }
+
+    /**
+     * Mark this process's write to the given file as aborted, if it is publishing progress, so readers in other
+     * processes fail instead of reading the partial file as if it were complete.
+     */
+    @Override
+    public void abortProgress( PathKey key )
+            throws IOException
+    {
+        if ( key.getFileSystem() != null )
+        {
+            return;
+        }
+
+        byte[] path = key.getPath().getBytes( UTF_8 );
+        synchronized ( monitor )
+        {
+            checkOpen();
+            FileLock mutex = lockMutex();
+            try
+            {
+                int slot = findSlot( key, path, processIndex, LockLevel.write );
+                if ( slot >= 0 && buffer.getInt( getSlotOffset( slot ) + SLOT_STATE ) == STREAMING )
+                {
+                    buffer.putInt( getSlotOffset( slot ) + SLOT_STATE, ABORTED );
+                }
+            }
+            finally
+            {
+                unlockMutex( mutex );
+            }
+        }
+    }
+
+    /**
+     * Find the progress record of a write to the given file that is in progress in another live process.
+     *
+     * @return the record, or null if no other process is writing the file
+     */
+    @Override
+    public RemoteWrite findRemoteWrite( PathKey key )
+            throws IOException
+    {
+        if ( key.getFileSystem() != null )
+        {
+            return null;
+        }
+
+        byte[] path = key.getPath().getBytes( UTF_8 );
+        synchronized ( monitor )
+        {
+            checkOpen();
+            FileLock mutex = lockMutex();
+            try
+            {
+                int slot = findSlot( key, path, -1, LockLevel.write );
+                if ( slot < 0 )
+                {
+                    return null;
+                }
+
+                int offset = getSlotOffset( slot );
+                if ( buffer.getInt( offset + SLOT_STATE ) != STREAMING || !isAlive(
+                        buffer.getInt( offset + SLOT_PROCESS ) ) )
+                {
+                    return null;
+                }
+
+                SlotProgress write = new SlotProgress( key, path, slot, buffer.getLong( offset + SLOT_PID ) );
+                write.flushed = buffer.getLong( offset + SLOT_PROGRESS );
+                return write;
+            }
+            finally
+            {
+                unlockMutex( mutex );
+            }
+        }
+    }
+
+    /**
+     * Update the given record with the writer's latest progress. If the writer's process has died, its locks are
+     * reclaimed and the record is marked aborted. If the slot was reused for another lock after the writer finished,
+     * the record is marked complete with an unknown ({@code -1}) length.
+     */
+    private void refresh( SlotProgress write )
+            throws IOException
+    {
+        synchronized ( monitor )
+        {
+            checkOpen();
+            FileLock mutex = lockMutex();
+            try
+            {
+                int offset = getSlotOffset( write.slot );
+                if ( !matches( offset, write.key.hashCode(), write.path ) || buffer.getLong( offset + SLOT_PID )
+                        != write.pid || buffer.getInt( offset + SLOT_STATE ) == 0 )
+                {
+                    write.state = COMPLETE;
+                    write.flushed = -1;
+                    return;
+                }
+
+                int process = buffer.getInt( offset + SLOT_PROCESS );
+                if ( buffer.getInt( offset + SLOT_LEVEL ) != 0 && !isAlive( process ) )
+                {
+                    logger.info( "Reclaiming shared locks of dead process: {} (PID: {}) in: {}", process, write.pid,
+                                 file );
+                    reclaim( process );
+                }
+
+                write.flushed = buffer.getLong( offset + SLOT_PROGRESS );
+                write.state = buffer.getInt( offset + SLOT_STATE );
+            }
+            finally
+            {
+                unlockMutex( mutex );
+            }
+        }
+    }
+
+    /**
+     * Release every lock this process holds in the table and unregister it.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        synchronized ( monitor )
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            closed = true;
+            try
+            {
+                FileLock mutex = lockMutex();
+                try
+                {
+                    reclaim( processIndex );
+                }
+                finally
+                {
+                    unlockMutex( mutex );
+                }
+
+                uninterruptibly( () -> {
+                    liveness.release();
+                    return null;
+                } );
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Find a free process entry, reclaiming the entries (and slots) of dead processes along the way.
+     */
+    private int register()
+            throws IOException
+    {
+        int free = -1;
+        for ( int process = 0; process < MAX_PROCESSES; process++ )
+        {
+            if ( buffer.getLong( getProcessOffset( process ) ) == 0 )
+            {
+                free = free < 0 ? process : free;
+            }
+            else if ( !probeLiveness( process ) )
+            {
+                logger.info( "Reclaiming shared locks of dead process: {} (PID: {}) in: {}", process,
+                             buffer.getLong( getProcessOffset( process ) ), file );
+                reclaim( process );
+                free = free < 0 ? process : free;
+            }
+        }
+
+        if ( free < 0 )
+        {
+            throw new IOException( "Too many processes (" + MAX_PROCESSES + ") are using shared lock table: " + file );
+        }
+
+        return free;
+    }
+
+    private boolean isAlive( int process )
+            throws IOException
+    {
+        return process == processIndex ? !closed : probeLiveness( process );
+    }
+
+    /**
+     * Check whether the given process still holds its liveness lock. A lock held by another table in this JVM shows
+     * up as an overlapping lock, and means that table is still open.
+     */
+    private boolean probeLiveness( int process )
+            throws IOException
+    {
+        try
+        {
+            FileLock probe = uninterruptibly( () -> channel.tryLock( LIVENESS_POSITION + process, 1, false ) );
+            if ( probe == null )
+            {
+                return true;
+            }
+
+            uninterruptibly( () -> {
+                probe.release();
+                return null;
+            } );
+            return false;
+        }
+        catch ( OverlappingFileLockException e )
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Clear all slots held by the given process, along with its process entry.
+     */
+    private void reclaim( int process )
+    {
+        for ( int slot = 0; slot < slotCount; slot++ )
+        {
+            int offset = getSlotOffset( slot );
+            if ( buffer.getInt( offset + SLOT_LEVEL ) != 0 && buffer.getInt( offset + SLOT_PROCESS ) == process )
+            {
+                if ( buffer.getInt( offset + SLOT_STATE ) == STREAMING )
+                {
+                    buffer.putInt( offset + SLOT_STATE, ABORTED );
+                }
+
+                buffer.putInt( offset + SLOT_LEVEL, 0 );
+            }
+        }
+
+        buffer.putLong( getProcessOffset( process ), 0 );
+    }
+
+    /**
+     * Find the used slot for the given path held at the given level, by the given process or (if it is negative) by
+     * any process other than this one.
+     */
+    private int findSlot( PathKey key, byte[] path, int process, LockLevel level )
+    {
+        for ( int slot = 0; slot < slotCount; slot++ )
+        {
+            int offset = getSlotOffset( slot );
+            int holder = buffer.getInt( offset + SLOT_PROCESS );
+            if ( buffer.getInt( offset + SLOT_LEVEL ) == encode( level ) && ( process < 0 ?
+                    holder != processIndex :
+                    holder == process ) && matches( offset, key.hashCode(), path ) )
+            {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Read locks are shared between processes, and a read lock can join a write that is publishing its progress.
+     * Anything else is exclusive.
+     */
+    private boolean isShareable( int offset, int held, LockLevel level )
+    {
+        return level == LockLevel.read && ( held == encode( LockLevel.read ) || held == encode( LockLevel.write )
+                && buffer.getInt( offset + SLOT_STATE ) == STREAMING );
+    }
+
+    private boolean matches( int offset, int hash, byte[] path )
+    {
+        if ( buffer.getInt( offset + SLOT_HASH ) != hash || buffer.getInt( offset + SLOT_PATH_LENGTH ) != path.length )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < path.length; i++ )
+        {
+            if ( buffer.get( offset + SLOT_PATH + i ) != path[i] )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Take the cross-process mutex. This polls with {@link FileChannel#tryLock(long, long, boolean)} rather than
+     * blocking in {@link FileChannel#lock(long, long, boolean)}: an interrupt during a channel operation closes the
+     * channel, which would release this process' liveness lock along with it.
+     */
+    private FileLock lockMutex()
+            throws IOException
+    {
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            FileLock lock;
+            while ( ( lock = channel.tryLock( MUTEX_POSITION, 1, false ) ) == null )
+            {
+                LockSupport.parkNanos( MUTEX_SPIN_NANOS );
+                interrupted |= Thread.interrupted();
+            }
+
+            return lock;
+        }
+        finally
+        {
+            if ( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void unlockMutex( FileLock mutex )
+            throws IOException
+    {
+        uninterruptibly( () -> {
+            mutex.release();
+            return null;
+        } );
+    }
+
+    private <T> T uninterruptibly( ChannelOperation<T> operation )
+            throws IOException
+    {
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            return operation.execute();
+        }
+        finally
+        {
+            if ( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkOpen()
+            throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "Shared lock table is closed: " + file );
+        }
+    }
+
+    private static int encode( LockLevel level )
+    {
+        return level.ordinal() + 1;
+    }
+
+    private static int getProcessOffset( int process )
+    {
+        return HEADER_SIZE + process * PROCESS_ENTRY_SIZE;
+    }
+
+    private static int getSlotOffset( int slot )
+    {
+        return HEADER_SIZE + MAX_PROCESSES * PROCESS_ENTRY_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long getCurrentPid()
+    {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int idx = name.indexOf( '@' );
+        try
+        {
+            return Long.parseLong( idx < 0 ? name : name.substring( 0, idx ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Snapshot of the progress record of a file being written by another process, updated by
+     * {@link #refresh(SlotProgress)}.
+     */
+    private final class SlotProgress
+            implements RemoteWrite
+    {
+        private final PathKey key;
+
+        private final byte[] path;
+
+        private final int slot;
+
+        private final long pid;
+
+        private volatile long flushed;
+
+        private volatile int state = STREAMING;
+
+        private SlotProgress( PathKey key, byte[] path, int slot, long pid )
+        {
+            this.key = key;
+            this.path = path;
+            this.slot = slot;
+            this.pid = pid;
+        }
+
+        @Override
+        public void refresh()
+                throws IOException
+        {
+            SharedLockTable.this.refresh( this );
+        }
+
+        @Override
+        public long getFlushed()
+        {
+            return flushed;
+        }
+
+        @Override
+        public boolean isWriting()
+        {
+            return state == STREAMING;
+        }
+
+        @Override
+        public boolean isAborted()
+        {
+            return state == ABORTED;
+        }
+
+        @Override
+        public String getWriter()
+        {
+            return "process " + pid;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ChannelOperation<T>
+    {
+        T execute()
+                throws IOException;
+    }
+}
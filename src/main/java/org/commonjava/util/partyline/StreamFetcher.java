@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the content of a file that isn't available locally yet (downloading it from a remote repository, for
+ * instance), for {@link JoinableFileManager#openOrFetch(File, long, StreamFetcher)}.
+ */
+@FunctionalInterface
+public interface StreamFetcher
+{
+    /**
+     * Write the content to the given stream. Don't close the stream; the manager closes it once this returns. Throwing
+     * fails the fetch: readers already joined to the content see an {@link IOException} instead of a truncated file.
+     */
+    void fetch( OutputStream out )
+            throws IOException;
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Wait-for graph over the owners that are waiting for file locks in a {@link FileTree}. Each {@link Waiter} records
+ * which owner is waiting for which lock; the edges (the owners currently holding locks that block a waiter) are
+ * looked up from the tree each time a cycle is checked, so they never go stale as locks come and go.
+ * <br/>
+ * When a waiter closes a cycle, the youngest waiter in the cycle (the one that started waiting last) is chosen as the
+ * victim and given a {@link DeadlockException}, which it throws instead of continuing to wait.
+ */
+final class WaitForGraph
+{
+    private final Map<String, List<Waiter>> waiters = new HashMap<>();
+
+    private long sequence;
+
+    /**
+     * Register the given owner as waiting for a lock on the file.
+     */
+    synchronized Waiter add( String ownerName, PathKey file, LockLevel lockLevel )
+    {
+        Waiter waiter = new Waiter( ownerName, file, lockLevel, ++sequence );
+        waiters.computeIfAbsent( ownerName, k -> new ArrayList<>() ).add( waiter );
+        return waiter;
+    }
+
+    synchronized void remove( Waiter waiter )
+    {
+        List<Waiter> owned = waiters.get( waiter.ownerName );
+        if ( owned != null && owned.remove( waiter ) && owned.isEmpty() )
+        {
+            waiters.remove( waiter.ownerName );
+        }
+    }
+
+    /**
+     * Look for a cycle of waiting owners that passes through the given waiter. If one is found, its youngest waiter
+     * is failed.
+     *
+     * @param waiter The waiter to check
+     * @param blockers Function retrieving the owners whose locks currently block a waiter
+     */
+    synchronized void detect( Waiter waiter, Function<Waiter, Set<String>> blockers )
+    {
+        if ( waiter.failure != null )
+        {
+            return;
+        }
+
+        List<Waiter> path = new ArrayList<>();
+        path.add( waiter );
+        if ( findCycle( waiter, path, new HashSet<>(), blockers ) )
+        {
+            Waiter victim = path.get( 0 );
+            for ( Waiter w : path )
+            {
+                if ( w.sequence > victim.sequence )
+                {
+                    victim = w;
+                }
+            }
+
+            int start = path.indexOf( victim );
+            List<String> cycle = new ArrayList<>( path.size() );
+            for ( int i = 0; i < path.size(); i++ )
+            {
+                Waiter w = path.get( ( start + i ) % path.size() );
+                Waiter next = path.get( ( start + i + 1 ) % path.size() );
+                cycle.add( w.ownerName + " waits for " + w.lockLevel + " lock on " + w.file + " (blocked by "
+                                   + next.ownerName + ")" );
+            }
+
+            victim.failure = new DeadlockException(
+                    "Deadlock detected while waiting for " + victim.lockLevel + " lock on: " + victim.file
+                            + ". Wait cycle:\n  " + String.join( "\n  ", cycle ), cycle );
+        }
+    }
+
+    private boolean findCycle( Waiter current, List<Waiter> path, Set<Waiter> visited,
+                               Function<Waiter, Set<String>> blockers )
+    {
+        String origin = path.get( 0 ).ownerName;
+        for ( String holder : blockers.apply( current ) )
+        {
+            if ( holder.equals( origin ) )
+            {
+                return true;
+            }
+
+            for ( Waiter next : waiters.getOrDefault( holder, new ArrayList<>() ) )
+            {
+                if ( next.failure == null && visited.add( next ) )
+                {
+                    path.add( next );
+                    if ( findCycle( next, path, visited, blockers ) )
+                    {
+                        return true;
+                    }
+                    path.remove( path.size() - 1 );
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * An owner waiting for a lock on a file.
+     */
+    static final class Waiter
+    {
+        final String ownerName;
+
+        final PathKey file;
+
+        final LockLevel lockLevel;
+
+        private final long sequence;
+
+        private volatile DeadlockException failure;
+
+        Waiter( String ownerName, PathKey file, LockLevel lockLevel, long sequence )
+        {
+            this.ownerName = ownerName;
+            this.file = file;
+            this.lockLevel = lockLevel;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Throw the {@link DeadlockException} if this waiter has been chosen as the victim of a deadlock.
+         */
+        void checkDeadlock()
+        {
+            DeadlockException e = failure;
+            if ( e != null )
+            {
+                throw e;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Waiter{" + "owner='" + ownerName + '\'' + ", file=" + file + ", lockLevel=" + lockLevel + '}';
+        }
+    }
+}
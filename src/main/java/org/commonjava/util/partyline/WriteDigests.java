@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import java.util.Map;
+
+/**
+ * Implemented by the output streams of {@link JoinableFileManager}, to retrieve the digests of the written content
+ * that were computed as it was written (see {@link JoinableFileManager#setWriteDigests(boolean, String...)}), instead
+ * of reading the file again to compute them.
+ */
+public interface WriteDigests
+{
+    /**
+     * Retrieve the digests of the content, as lower-case hex strings keyed by algorithm name (for example,
+     * {@code "SHA-1"}).
+     *
+     * @return the digests, or an empty map if the stream isn't closed yet, was aborted, or computed no digests
+     */
+    Map<String, String> getDigests();
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.callback;
+
+import org.commonjava.util.partyline.LockLevel;
+
+import java.io.File;
+
+/**
+ * Notification of a change in the lock state of a file, delivered to {@link LockListener}s.
+ */
+public final class LockEvent
+{
+    public enum Type
+    {
+        /** An owner acquired a lock on the file. */
+        LOCKED,
+        /** An owner released its lock(s) on the file. A change in lock level is reported as a release followed by a
+         * new lock at the new level. */
+        UNLOCKED,
+        /** The file was opened for writing. */
+        WRITER_OPENED,
+        /** The file that was opened for writing has been closed, along with all readers that joined it, and its
+         * content is complete. */
+        WRITER_CLOSED,
+        /** The file was deleted. */
+        DELETED
+    }
+
+    private final Type type;
+
+    private final File file;
+
+    private final String ownerName;
+
+    private final LockLevel lockLevel;
+
+    private final long timestamp;
+
+    public LockEvent( Type type, File file, String ownerName, LockLevel lockLevel )
+    {
+        this.type = type;
+        this.file = file;
+        this.ownerName = ownerName;
+        this.lockLevel = lockLevel;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Retrieve the lock owner that caused the event, or null if it isn't specific to one owner.
+     */
+    public String getOwnerName()
+    {
+        return ownerName;
+    }
+
+    /**
+     * Retrieve the lock level that was acquired or released, or null for events that don't concern a lock level.
+     */
+    public LockLevel getLockLevel()
+    {
+        return lockLevel;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LockEvent{" + "type=" + type + ", file=" + file + ", owner='" + ownerName + '\'' + ", lockLevel="
+                + lockLevel + ", timestamp=" + timestamp + '}';
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.callback;
+
+/**
+ * Receives {@link LockEvent}s for the files under a subscribed path prefix. Events are delivered in order on a
+ * dedicated dispatch thread, never on the thread that changed the lock, so listeners shouldn't block for long.
+ */
+@FunctionalInterface
+public interface LockListener
+{
+
+    void onEvent( LockEvent event );
+
+}
@@ -15,6 +15,8 @@
  */
 package org.commonjava.util.partyline.callback;
 
+import java.util.Map;
+
 
 public interface StreamCallbacks
 {
@@ -25,4 +27,19 @@ public interface StreamCallbacks
 
     void closed();
 
+    /**
+     * Called when the writer closes, with the digests of the content computed while it was written (lower-case hex
+     * strings, keyed by algorithm name). Only called if digests were requested.
+     */
+    default void digested( Map<String, String> digests )
+    {
+    }
+
+    /**
+     * Called when the writer aborts (see {@link org.commonjava.util.partyline.Abortable}), before the file is closed.
+     */
+    default void aborted( Throwable cause )
+    {
+    }
+
 }
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.cluster;
+
+import org.commonjava.util.partyline.JoinableFileManager;
+import org.commonjava.util.partyline.PathKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * One node of a cluster of {@link JoinableFileManager}s: a manager whose locks are coordinated through a
+ * {@link LockCoordinatorServer}, plus a {@link PeerStreamServer} that lets other nodes join the writes in progress on
+ * this node. {@link #openInputStream(File, long)} joins a write in progress on another node by streaming the content
+ * from that node, rather than starting the same download again; everything else goes through
+ * {@link #getFileManager()}.
+ */
+public final class ClusterNode
+        implements Closeable
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final NetworkLockCoordinator coordinator;
+
+    private final JoinableFileManager fileManager;
+
+    private final PeerStreamServer peerServer;
+
+    /**
+     * Join the cluster coordinated by the lock service at the given address.
+     *
+     * @param storageRoot The directory holding the files this node shares with its peers
+     * @param peerAddress The local address on which to accept connections from other nodes
+     */
+    public ClusterNode( String coordinatorHost, int coordinatorPort, File storageRoot, InetAddress peerAddress )
+            throws IOException
+    {
+        this.coordinator = new NetworkLockCoordinator( coordinatorHost, coordinatorPort );
+        this.fileManager = new JoinableFileManager( coordinator );
+
+        PeerStreamServer server = null;
+        try
+        {
+            server = new PeerStreamServer( fileManager, storageRoot, peerAddress,
+                                           JoinableFileManager.DEFAULT_TIMEOUT );
+        }
+        finally
+        {
+            if ( server == null )
+            {
+                coordinator.close();
+            }
+        }
+
+        this.peerServer = server;
+        coordinator.setPeerAddress( peerServer.getAddress() );
+    }
+
+    public JoinableFileManager getFileManager()
+    {
+        return fileManager;
+    }
+
+    public NetworkLockCoordinator getCoordinator()
+    {
+        return coordinator;
+    }
+
+    public PeerStreamServer getPeerServer()
+    {
+        return peerServer;
+    }
+
+    /**
+     * Open the given file for reading. If another node is writing it, join that write by streaming the content from
+     * the other node; otherwise, open it through this node's manager (which joins a write in progress on this node).
+     */
+    public InputStream openInputStream( File file, long timeout )
+            throws IOException, InterruptedException
+    {
+        InetSocketAddress writer = coordinator.locateWriter( PathKey.of( file ) );
+        if ( writer != null && !writer.equals( peerServer.getAddress() ) )
+        {
+            logger.debug( "Joining write of: {} on peer: {}", file, writer );
+            return new PeerInputStream( writer, file.getAbsolutePath() );
+        }
+
+        return fileManager.openInputStream( file, timeout );
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try
+        {
+            peerServer.close();
+        }
+        finally
+        {
+            coordinator.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.cluster;
+
+/**
+ * Wire format shared by {@link NetworkLockCoordinator} and {@link LockCoordinatorServer}. Clients send frames of
+ * requests, each frame answered by a frame holding one response per request, in order:
+ * <pre>
+ * request frame:  int count, then per request: byte op, op-specific fields
+ * response frame: int count, then per request: boolean result, op-specific fields (if the result is true)
+ * </pre>
+ * Operations:
+ * <ul>
+ *     <li>{@link #HELLO}: long lease (milliseconds). Opens the session; any frame received renews it.</li>
+ *     <li>{@link #RENEW}: no fields. Only renews the session.</li>
+ *     <li>{@link #LOCK}: UTF path, byte level (ordinal of {@link org.commonjava.util.partyline.LockLevel})</li>
+ *     <li>{@link #LOCK_ALL}: int count, that many UTF paths, byte level. All or nothing.</li>
+ *     <li>{@link #UNLOCK}: UTF path</li>
+ *     <li>{@link #ADVERTISE}: UTF path, UTF peer address (host:port). Advertises a write the session holds the write
+ *     lock for, until that lock is released.</li>
+ *     <li>{@link #LOCATE}: UTF path. Responds with the UTF peer address advertised for the path, if there is one.</li>
+ * </ul>
+ */
+final class CoordinatorProtocol
+{
+    static final byte HELLO = 1;
+
+    static final byte RENEW = 2;
+
+    static final byte LOCK = 3;
+
+    static final byte LOCK_ALL = 4;
+
+    static final byte UNLOCK = 5;
+
+    static final byte ADVERTISE = 6;
+
+    static final byte LOCATE = 7;
+
+    private CoordinatorProtocol()
+    {
+    }
+}
@@ -0,0 +1,497 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.cluster;
+
+import org.commonjava.util.partyline.LockLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.ADVERTISE;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.HELLO;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.LOCATE;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.LOCK;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.LOCK_ALL;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.RENEW;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.UNLOCK;
+
+/**
+ * Minimal lock service for {@link NetworkLockCoordinator}s, standing in for a real cluster coordination service (and
+ * used to test against on localhost). Each client connection is a session holding locks on path strings: read locks
+ * are shared, write and delete locks are exclusive. A session's locks are released when its connection closes, or
+ * when it sends nothing for longer than the lease it asked for, so a node that hangs or drops off the network doesn't
+ * keep its files locked.
+ * <br/>
+ * Sessions holding a write lock may also advertise where other nodes can stream the file being written from; the
+ * advertisement is dropped along with the lock.
+ */
+public final class LockCoordinatorServer
+        implements Closeable
+{
+    private static final long REAP_PERIOD = 50;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final ServerSocket serverSocket;
+
+    private final Map<String, Map<Session, LockLevel>> locks = new HashMap<>();
+
+    private final Set<Session> sessions = new HashSet<>();
+
+    private final Map<String, Advertisement> advertisements = new HashMap<>();
+
+    private final AtomicLong frameCount = new AtomicLong();
+
+    private final AtomicInteger sessionCounter = new AtomicInteger();
+
+    private final ExecutorService sessionExecutor = Executors.newCachedThreadPool( r -> {
+        Thread t = new Thread( r, "partyline-coordinator-session-" + sessionCounter.incrementAndGet() );
+        t.setDaemon( true );
+        return t;
+    } );
+
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor( r -> {
+        Thread t = new Thread( r, "partyline-coordinator-reaper" );
+        t.setDaemon( true );
+        return t;
+    } );
+
+    private volatile boolean closed;
+
+    private volatile long responseDelay;
+
+    /**
+     * Start a server listening on an ephemeral port of the loopback interface.
+     */
+    public LockCoordinatorServer()
+            throws IOException
+    {
+        this( new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() ) );
+    }
+
+    /**
+     * Start a server listening on the given port of all interfaces.
+     */
+    public LockCoordinatorServer( int port )
+            throws IOException
+    {
+        this( new ServerSocket( port ) );
+    }
+
+    private LockCoordinatorServer( ServerSocket serverSocket )
+    {
+        this.serverSocket = serverSocket;
+
+        Thread acceptor = new Thread( this::acceptLoop, "partyline-coordinator-acceptor" );
+        acceptor.setDaemon( true );
+        acceptor.start();
+
+        reaper.scheduleWithFixedDelay( this::reapExpiredSessions, REAP_PERIOD, REAP_PERIOD, TimeUnit.MILLISECONDS );
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Retrieve the number of request frames received so far, which is the number of round trips clients have made.
+     */
+    public long getFrameCount()
+    {
+        return frameCount.get();
+    }
+
+    /**
+     * Hold each response for the given time (milliseconds) after executing the requests. Used to simulate a slow lock
+     * service.
+     */
+    void setResponseDelay( long responseDelay )
+    {
+        this.responseDelay = responseDelay;
+    }
+
+    public synchronized int getSessionCount()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * Retrieve the number of sessions holding a lock on the given path.
+     */
+    public synchronized int getHolderCount( String path )
+    {
+        Map<Session, LockLevel> holders = locks.get( path );
+        return holders == null ? 0 : holders.size();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        closed = true;
+        reaper.shutdownNow();
+        serverSocket.close();
+
+        List<Session> open;
+        synchronized ( this )
+        {
+            open = new ArrayList<>( sessions );
+        }
+
+        open.forEach( Session::close );
+        sessionExecutor.shutdownNow();
+    }
+
+    private void acceptLoop()
+    {
+        while ( !closed )
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay( true );
+
+                Session session = new Session( socket );
+                synchronized ( this )
+                {
+                    sessions.add( session );
+                }
+
+                sessionExecutor.execute( session );
+            }
+            catch ( IOException e )
+            {
+                if ( !closed )
+                {
+                    logger.error( "Failed to accept lock coordinator connection", e );
+                }
+            }
+        }
+    }
+
+    private void reapExpiredSessions()
+    {
+        long now = System.currentTimeMillis();
+        List<Session> expired = new ArrayList<>();
+        synchronized ( this )
+        {
+            for ( Session session : sessions )
+            {
+                if ( session.lease > 0 && now - session.lastSeen > session.lease )
+                {
+                    expired.add( session );
+                }
+            }
+        }
+
+        for ( Session session : expired )
+        {
+            logger.warn( "Lease expired for lock coordinator session: {}; releasing {} locks", session,
+                         session.held.size() );
+            session.close();
+        }
+    }
+
+    private synchronized boolean lock( Session session, String path, LockLevel level )
+    {
+        Map<Session, LockLevel> holders = locks.get( path );
+        if ( holders != null )
+        {
+            for ( Map.Entry<Session, LockLevel> holder : holders.entrySet() )
+            {
+                if ( holder.getKey() != session && ( level != LockLevel.read
+                        || holder.getValue() != LockLevel.read ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        locks.computeIfAbsent( path, k -> new HashMap<>() ).put( session, level );
+        session.held.add( path );
+        return true;
+    }
+
+    private synchronized boolean lockAll( Session session, List<String> paths, LockLevel level )
+    {
+        Map<String, LockLevel> previous = new HashMap<>();
+        for ( String path : paths )
+        {
+            Map<Session, LockLevel> holders = locks.get( path );
+            LockLevel held = holders == null ? null : holders.get( session );
+            if ( !lock( session, path, level ) )
+            {
+                // roll back: restore the levels held before this batch.
+                previous.forEach( ( p, l ) -> {
+                    if ( l == null )
+                    {
+                        unlock( session, p );
+                    }
+                    else
+                    {
+                        locks.get( p ).put( session, l );
+                    }
+                } );
+                return false;
+            }
+
+            if ( !previous.containsKey( path ) )
+            {
+                previous.put( path, held );
+            }
+        }
+
+        return true;
+    }
+
+    private synchronized boolean unlock( Session session, String path )
+    {
+        Map<Session, LockLevel> holders = locks.get( path );
+        if ( holders == null || holders.remove( session ) == null )
+        {
+            return false;
+        }
+
+        if ( holders.isEmpty() )
+        {
+            locks.remove( path );
+        }
+
+        Advertisement advertisement = advertisements.get( path );
+        if ( advertisement != null && advertisement.session == session )
+        {
+            advertisements.remove( path );
+        }
+
+        session.held.remove( path );
+        return true;
+    }
+
+    private synchronized boolean advertise( Session session, String path, String address )
+    {
+        Map<Session, LockLevel> holders = locks.get( path );
+        if ( holders == null || holders.get( session ) != LockLevel.write )
+        {
+            return false;
+        }
+
+        advertisements.put( path, new Advertisement( session, address ) );
+        return true;
+    }
+
+    private synchronized String locate( String path )
+    {
+        Advertisement advertisement = advertisements.get( path );
+        return advertisement == null ? null : advertisement.address;
+    }
+
+    private synchronized void release( Session session )
+    {
+        new ArrayList<>( session.held ).forEach( path -> unlock( session, path ) );
+        sessions.remove( session );
+    }
+
+    private static final class Advertisement
+    {
+        private final Session session;
+
+        private final String address;
+
+        Advertisement( Session session, String address )
+        {
+            this.session = session;
+            this.address = address;
+        }
+    }
+
+    private final class Session
+            implements Runnable
+    {
+        private final Socket socket;
+
+        private final Set<String> held = new HashSet<>();
+
+        private volatile long lease;
+
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        Session( Socket socket )
+        {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run()
+        {
+            try (DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+                 DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) ))
+            {
+                while ( !closed )
+                {
+                    int count = in.readInt();
+                    lastSeen = System.currentTimeMillis();
+                    frameCount.incrementAndGet();
+
+                    Object[] results = new Object[count];
+                    for ( int i = 0; i < count; i++ )
+                    {
+                        results[i] = execute( in );
+                    }
+
+                    long delay = responseDelay;
+                    if ( delay > 0 )
+                    {
+                        Thread.sleep( delay );
+                    }
+
+                    out.writeInt( count );
+                    for ( Object result : results )
+                    {
+                        if ( result instanceof String )
+                        {
+                            out.writeBoolean( true );
+                            out.writeUTF( (String) result );
+                        }
+                        else
+                        {
+                            out.writeBoolean( (Boolean) result );
+                        }
+                    }
+                    out.flush();
+
+                    lastSeen = System.currentTimeMillis();
+                }
+            }
+            catch ( EOFException e )
+            {
+                logger.debug( "Lock coordinator session closed: {}", this );
+            }
+            catch ( InterruptedException e )
+            {
+                logger.debug( "Lock coordinator session interrupted: {}", this );
+            }
+            catch ( IOException e )
+            {
+                if ( !socket.isClosed() )
+                {
+                    logger.warn( "Lock coordinator session: {} failed: {}", this, e.getMessage() );
+                }
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+        /**
+         * Execute the next request in the frame, returning a Boolean result, or the String to send with a positive
+         * result.
+         */
+        private Object execute( DataInputStream in )
+                throws IOException
+        {
+            byte op = in.readByte();
+            switch ( op )
+            {
+                case HELLO:
+                {
+                    lease = in.readLong();
+                    return true;
+                }
+                case RENEW:
+                {
+                    return true;
+                }
+                case LOCK:
+                {
+                    String path = in.readUTF();
+                    return lock( this, path, LockLevel.values()[in.readByte()] );
+                }
+                case LOCK_ALL:
+                {
+                    int count = in.readInt();
+                    List<String> paths = new ArrayList<>( count );
+                    for ( int i = 0; i < count; i++ )
+                    {
+                        paths.add( in.readUTF() );
+                    }
+
+                    return lockAll( this, paths, LockLevel.values()[in.readByte()] );
+                }
+                case UNLOCK:
+                {
+                    return unlock( this, in.readUTF() );
+                }
+                case ADVERTISE:
+                {
+                    String path = in.readUTF();
+                    return advertise( this, path, in.readUTF() );
+                }
+                case LOCATE:
+                {
+                    String address = locate( in.readUTF() );
+                    return address == null ? (Object) false : address;
+                }
+                default:
+                {
+                    throw new IOException( "Unknown lock coordinator operation: " + op );
+                }
+            }
+        }
+
+        void close()
+        {
+            release( this );
+            try
+            {
+                socket.close();
+            }
+            catch ( IOException e )
+            {
+                logger.debug( "Failed to close lock coordinator session: " + this, e );
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.valueOf( socket.getRemoteSocketAddress() );
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.cluster;
+
+import org.commonjava.util.partyline.LockCoordinator;
+import org.commonjava.util.partyline.LockLevel;
+import org.commonjava.util.partyline.PathKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.ADVERTISE;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.HELLO;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.LOCATE;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.LOCK;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.LOCK_ALL;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.RENEW;
+import static org.commonjava.util.partyline.cluster.CoordinatorProtocol.UNLOCK;
+
+/**
+ * {@link LockCoordinator} that shares locks between nodes through a lock service reached over TCP (see
+ * {@link LockCoordinatorServer}), for nodes that share the same storage over a network filesystem.
+ * <br/>
+ * To keep round trips low, requests from all threads go through one connection and are batched: whatever requests
+ * queue up while a round trip is in flight are sent together in the next frame. Unlocks don't wait for their response
+ * at all, and requests for locks this node already holds at the same level are answered locally. Batch locks
+ * ({@link #tryLockAll(List, LockLevel)}) are a single request.
+ * <br/>
+ * The service only keeps a node's locks for as long as its lease: this coordinator renews it in the background, at a
+ * third of the lease period. If the connection drops (or the lease lapses anyway), the next request reconnects and
+ * tries to take back the locks this node still holds.
+ * <br/>
+ * If this node serves its in-progress writes to other nodes (see {@link PeerStreamServer} and
+ * {@link #setPeerAddress(InetSocketAddress)}), each write is advertised to the lock service when it starts publishing
+ * progress, and other nodes can find it with {@link #locateWriter(PathKey)}. The advertisement goes away with the
+ * write lock.
+ */
+public final class NetworkLockCoordinator
+        implements LockCoordinator
+{
+    public static final long DEFAULT_LEASE = 10000;
+
+    public static final long DEFAULT_REQUEST_TIMEOUT = 5000;
+
+    private static final int MAX_BATCH = 256;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final InetSocketAddress address;
+
+    private final long lease;
+
+    private final Map<PathKey, LockLevel> held = new ConcurrentHashMap<>();
+
+    private final Set<PathKey> advertised = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The number of lock requests for each path that are queued or in flight, and whose callers are still waiting.
+     */
+    private final Map<PathKey, Integer> requested = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    private final Thread sender;
+
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor( r -> {
+        Thread t = new Thread( r, "partyline-coordinator-renewer" );
+        t.setDaemon( true );
+        return t;
+    } );
+
+    private volatile boolean renewing = true;
+
+    private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+    private volatile InetSocketAddress peerAddress;
+
+    private volatile boolean closed;
+
+    private volatile Socket socket;
+
+    private DataInputStream in;
+
+    private DataOutputStream out;
+
+    public NetworkLockCoordinator( String host, int port )
+            throws IOException
+    {
+        this( host, port, DEFAULT_LEASE );
+    }
+
+    /**
+     * Connect to the lock service at the given address, asking it to hold this node's locks for the given lease period
+     * (milliseconds) between renewals.
+     */
+    public NetworkLockCoordinator( String host, int port, long lease )
+            throws IOException
+    {
+        this.address = new InetSocketAddress( host, port );
+        this.lease = lease;
+
+        // connect up front, so a bad address fails here rather than on the first lock.
+        connect();
+
+        sender = new Thread( this::sendLoop, "partyline-coordinator-sender" );
+        sender.setDaemon( true );
+        sender.start();
+
+        long renewPeriod = Math.max( 1, lease / 3 );
+        renewer.scheduleAtFixedRate( this::renew, renewPeriod, renewPeriod, TimeUnit.MILLISECONDS );
+    }
+
+    @Override
+    public boolean tryLock( PathKey key, LockLevel level )
+            throws IOException
+    {
+        if ( key.getFileSystem() != null || held.get( key ) == level )
+        {
+            return true;
+        }
+
+        return awaitLock( new Request( LOCK, Collections.singletonList( key ), level ) );
+    }
+
+    @Override
+    public boolean tryLockAll( List<PathKey> keys, LockLevel level )
+            throws IOException
+    {
+        List<PathKey> needed = keys.stream()
+                                   .filter( key -> key.getFileSystem() == null && held.get( key ) != level )
+                                   .collect( Collectors.toList() );
+        if ( needed.isEmpty() )
+        {
+            return true;
+        }
+
+        return awaitLock( new Request( LOCK_ALL, needed, level ) );
+    }
+
+    /**
+     * Release this node's lock on the given path. The request is queued, and goes out with the next batch; since
+     * requests are sent in order, a later lock request from this node can't overtake it.
+     */
+    @Override
+    public void unlock( PathKey key )
+            throws IOException
+    {
+        advertised.remove( key );
+        if ( held.remove( key ) != null )
+        {
+            submit( new Request( UNLOCK, Collections.singletonList( key ), null ) );
+        }
+    }
+
+    /**
+     * Advertise the write to other nodes the first time it publishes progress, if this node serves its writes to
+     * peers. The request is queued like an unlock; its progress isn't sent, since peers stream the content from this
+     * node.
+     */
+    @Override
+    public void publishProgress( PathKey key, long flushed )
+            throws IOException
+    {
+        InetSocketAddress peer = peerAddress;
+        if ( peer != null && held.get( key ) == LockLevel.write && advertised.add( key ) )
+        {
+            String host = peer.getAddress() == null ? peer.getHostString() : peer.getAddress().getHostAddress();
+            submit( new Request( ADVERTISE, Collections.singletonList( key ), null, host + ":" + peer.getPort() ) );
+        }
+    }
+
+    /**
+     * Find the node that is writing the given file, as advertised to the lock service.
+     *
+     * @return the address of the writing node's {@link PeerStreamServer}, or null if no node advertises a write to the
+     * file
+     */
+    public InetSocketAddress locateWriter( PathKey key )
+            throws IOException
+    {
+        Request request = new Request( LOCATE, Collections.singletonList( key ), null, null );
+        if ( !await( submit( request ) ) )
+        {
+            return null;
+        }
+
+        String address = request.address;
+        int idx = address.lastIndexOf( ':' );
+        return new InetSocketAddress( address.substring( 0, idx ), Integer.parseInt( address.substring( idx + 1 ) ) );
+    }
+
+    /**
+     * Set the address where this node's {@link PeerStreamServer} accepts connections from other nodes; writes that
+     * start after this are advertised.
+     */
+    public void setPeerAddress( InetSocketAddress peerAddress )
+    {
+        this.peerAddress = peerAddress;
+    }
+
+    public InetSocketAddress getPeerAddress()
+    {
+        return peerAddress;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        closed = true;
+        renewer.shutdownNow();
+        sender.interrupt();
+        disconnect();
+    }
+
+    /**
+     * Change how long (milliseconds) a request waits for the lock service to answer, instead of
+     * {@link #DEFAULT_REQUEST_TIMEOUT}. Used to simulate a slow lock service.
+     */
+    void setRequestTimeout( long requestTimeout )
+    {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Turn background lease renewal off or back on. Used to simulate a node that stops responding.
+     */
+    void setRenewing( boolean renewing )
+    {
+        this.renewing = renewing;
+    }
+
+    private void renew()
+    {
+        if ( renewing && queue.isEmpty() )
+        {
+            queue.offer( new Request( RENEW, Collections.emptyList(), null ) );
+        }
+    }
+
+    private CompletableFuture<Boolean> submit( Request request )
+            throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "Lock coordinator is closed: " + address );
+        }
+
+        queue.offer( request );
+        return request.result;
+    }
+
+    /**
+     * Send a lock request and wait for the answer, recording the granted locks as held. If the caller gives up first
+     * (timeout or interrupt), the request is still in flight, and the service may grant it later; in that case, the
+     * late grant is given back (see {@link #giveBack(Request)}), since nobody is going to use or release it.
+     */
+    private boolean awaitLock( Request request )
+            throws IOException
+    {
+        request.keys.forEach( key -> requested.merge( key, 1, Integer::sum ) );
+        boolean granted;
+        try
+        {
+            granted = await( submit( request ) );
+            if ( granted )
+            {
+                request.keys.forEach( key -> held.put( key, request.level ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            // stop counting as a waiting caller first, or a grant that already arrived won't be given back.
+            unrequest( request );
+            request.result.whenComplete( ( late, error ) -> {
+                if ( Boolean.TRUE.equals( late ) )
+                {
+                    giveBack( request );
+                }
+            } );
+
+            throw e;
+        }
+
+        unrequest( request );
+        return granted;
+    }
+
+    private void unrequest( Request request )
+    {
+        request.keys.forEach( key -> requested.computeIfPresent( key, ( k, n ) -> n > 1 ? n - 1 : null ) );
+    }
+
+    /**
+     * Undo a lock request that the service granted after its caller stopped waiting: put each path back the way this
+     * node holds it (releasing it, or changing the level back), unless another request for the path is pending (its
+     * caller will take over the lock), or the path is now held at the granted level anyway.
+     */
+    private void giveBack( Request request )
+    {
+        for ( PathKey key : request.keys )
+        {
+            if ( requested.containsKey( key ) )
+            {
+                continue;
+            }
+
+            LockLevel current = held.get( key );
+            if ( current == request.level )
+            {
+                continue;
+            }
+
+            logger.debug( "Giving back late grant of: {} lock on: {} from: {}", request.level, key, address );
+            try
+            {
+                submit( current == null ?
+                                new Request( UNLOCK, Collections.singletonList( key ), null ) :
+                                new Request( LOCK, Collections.singletonList( key ), current ) );
+            }
+            catch ( IOException e )
+            {
+                logger.debug( "Failed to give back late grant of: {}: {}", key, e.getMessage() );
+            }
+        }
+    }
+
+    private boolean await( CompletableFuture<Boolean> result )
+            throws IOException
+    {
+        try
+        {
+            return result.get( requestTimeout, TimeUnit.MILLISECONDS );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted waiting for lock coordinator: " + address );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new IOException( "Lock coordinator request failed: " + address, e.getCause() );
+        }
+        catch ( TimeoutException e )
+        {
+            throw new IOException( "Timed out waiting for lock coordinator: " + address );
+        }
+    }
+
+    private void sendLoop()
+    {
+        List<Request> batch = new ArrayList<>();
+        while ( !closed )
+        {
+            try
+            {
+                batch.add( queue.take() );
+            }
+            catch ( InterruptedException e )
+            {
+                break;
+            }
+
+            queue.drainTo( batch, MAX_BATCH - 1 );
+            try
+            {
+                boolean[] results = send( batch );
+                for ( int i = 0; i < results.length; i++ )
+                {
+                    batch.get( i ).result.complete( results[i] );
+                }
+            }
+            catch ( IOException e )
+            {
+                if ( !closed )
+                {
+                    logger.warn( "Lock coordinator request to: {} failed: {}", address, e.getMessage() );
+                }
+                disconnect();
+                batch.forEach( request -> request.result.completeExceptionally( e ) );
+            }
+
+            batch.clear();
+        }
+
+        IOException closedError = new IOException( "Lock coordinator is closed: " + address );
+        batch.forEach( request -> request.result.completeExceptionally( closedError ) );
+        queue.forEach( request -> request.result.completeExceptionally( closedError ) );
+    }
+
+    /**
+     * Send the batch, connecting first if necessary. If an existing connection turns out to be broken (the service
+     * may have dropped it when the lease lapsed), reconnect and send the batch again.
+     */
+    private boolean[] send( List<Request> batch )
+            throws IOException
+    {
+        if ( socket == null )
+        {
+            connect();
+            return exchange( batch );
+        }
+
+        try
+        {
+            return exchange( batch );
+        }
+        catch ( IOException e )
+        {
+            logger.debug( "Lock coordinator connection to: {} is broken ({}); reconnecting", address, e.getMessage() );
+            disconnect();
+            connect();
+            return exchange( batch );
+        }
+    }
+
+    /**
+     * Open a session with the lock service, and take back any locks this node still holds (from a session that was
+     * lost).
+     */
+    private void connect()
+            throws IOException
+    {
+        socket = new Socket();
+        socket.setTcpNoDelay( true );
+        socket.connect( address );
+        in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+
+        List<Request> hello = new ArrayList<>();
+        hello.add( new Request( HELLO, Collections.emptyList(), null ) );
+        Map<PathKey, LockLevel> reclaim = new HashMap<>( held );
+        reclaim.forEach( ( key, level ) -> hello.add(
+                new Request( LOCK, Collections.singletonList( key ), level ) ) );
+
+        boolean[] results = exchange( hello );
+        for ( int i = 1; i < results.length; i++ )
+        {
+            if ( !results[i] )
+            {
+                logger.error( "Lost lock on: {} while reconnecting to lock coordinator: {}",
+                              hello.get( i ).keys.get( 0 ), address );
+            }
+        }
+    }
+
+    private void disconnect()
+    {
+        if ( socket != null )
+        {
+            try
+            {
+                socket.close();
+            }
+            catch ( IOException e )
+            {
+                logger.debug( "Failed to close lock coordinator connection: " + address, e );
+            }
+
+            socket = null;
+        }
+    }
+
+    private boolean[] exchange( List<Request> batch )
+            throws IOException
+    {
+        out.writeInt( batch.size() );
+        for ( Request request : batch )
+        {
+            out.writeByte( request.op );
+            switch ( request.op )
+            {
+                case HELLO:
+                {
+                    out.writeLong( lease );
+                    break;
+                }
+                case LOCK:
+                case UNLOCK:
+                case LOCATE:
+                {
+                    out.writeUTF( request.keys.get( 0 ).getPath() );
+                    break;
+                }
+                case ADVERTISE:
+                {
+                    out.writeUTF( request.keys.get( 0 ).getPath() );
+                    out.writeUTF( request.address );
+                    break;
+                }
+                case LOCK_ALL:
+                {
+                    out.writeInt( request.keys.size() );
+                    for ( PathKey key : request.keys )
+                    {
+                        out.writeUTF( key.getPath() );
+                    }
+                    break;
+                }
+                default:
+                {
+                    // RENEW has no fields.
+                }
+            }
+
+            if ( request.level != null )
+            {
+                out.writeByte( request.level.ordinal() );
+            }
+        }
+        out.flush();
+
+        int count = in.readInt();
+        if ( count != batch.size() )
+        {
+            throw new IOException( "Expected " + batch.size() + " responses from lock coordinator, got: " + count );
+        }
+
+        boolean[] results = new boolean[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            results[i] = in.readBoolean();
+            if ( results[i] && batch.get( i ).op == LOCATE )
+            {
+                batch.get( i ).address = in.readUTF();
+            }
+        }
+
+        return results;
+    }
+
+    private static final class Request
+    {
+        private final byte op;
+
+        private final List<PathKey> keys;
+
+        private final LockLevel level;
+
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private String address;
+
+        Request( byte op, List<PathKey> keys, LockLevel level )
+        {
+            this( op, keys, level, null );
+        }
+
+        Request( byte op, List<PathKey> keys, LockLevel level, String address )
+        {
+            this.op = op;
+            this.keys = keys;
+            this.level = level;
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.cluster;
+
+import org.commonjava.util.partyline.ReadProgress;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Reads a file from another node's {@link PeerStreamServer}, joining the write in progress there: chunks arrive as
+ * the writer flushes them, and the stream ends when the writer closes the file.
+ */
+final class PeerInputStream
+        extends InputStream
+        implements ReadProgress
+{
+    private final Socket socket;
+
+    private final DataInputStream in;
+
+    private final String path;
+
+    private int remaining;
+
+    private long position;
+
+    private boolean finished;
+
+    private String error;
+
+    PeerInputStream( InetSocketAddress peer, String path )
+            throws IOException
+    {
+        this.path = path;
+        this.socket = new Socket();
+        try
+        {
+            socket.setTcpNoDelay( true );
+            socket.connect( peer );
+
+            DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+            out.writeUTF( path );
+            out.flush();
+
+            this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        }
+        catch ( IOException e )
+        {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        if ( !nextChunk() )
+        {
+            return -1;
+        }
+
+        int b = in.read();
+        if ( b < 0 )
+        {
+            throw new EOFException( "Peer closed the connection in the middle of a chunk of: " + path );
+        }
+
+        remaining--;
+        position++;
+        return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len )
+            throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+
+        if ( !nextChunk() )
+        {
+            return -1;
+        }
+
+        int read = in.read( b, off, Math.min( len, remaining ) );
+        if ( read < 0 )
+        {
+            throw new EOFException( "Peer closed the connection in the middle of a chunk of: " + path );
+        }
+
+        remaining -= read;
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available()
+            throws IOException
+    {
+        return finished ? 0 : Math.min( remaining, in.available() );
+    }
+
+    /**
+     * The peer doesn't send the length its writer expects, so this is always -1.
+     */
+    @Override
+    public long getExpectedLength()
+    {
+        return -1;
+    }
+
+    @Override
+    public long getPosition()
+    {
+        return position;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        socket.close();
+    }
+
+    /**
+     * Make sure there is content left in the current chunk, reading the next chunk header if necessary.
+     *
+     * @return false at the end of the file
+     * @throws IOException if the peer reports an error, or goes away before the end of the file
+     */
+    private boolean nextChunk()
+            throws IOException
+    {
+        if ( error != null )
+        {
+            throw new IOException( "Peer failed to stream: " + path + ": " + error );
+        }
+
+        while ( remaining == 0 && !finished )
+        {
+            int length;
+            try
+            {
+                length = in.readInt();
+            }
+            catch ( EOFException e )
+            {
+                throw new IOException( "Peer went away before the end of: " + path, e );
+            }
+
+            if ( length == PeerStreamServer.END )
+            {
+                finished = true;
+            }
+            else if ( length == PeerStreamServer.ERROR )
+            {
+                error = in.readUTF();
+                throw new IOException( "Peer failed to stream: " + path + ": " + error );
+            }
+            else
+            {
+                remaining = length;
+            }
+        }
+
+        return !finished;
+    }
+}
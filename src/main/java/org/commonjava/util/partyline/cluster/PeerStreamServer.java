@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.cluster;
+
+import org.commonjava.util.partyline.JoinableFileManager;
+import org.commonjava.util.partyline.LockHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves files from this node's {@link JoinableFileManager} to other nodes, so they can join a write in progress here
+ * instead of fetching the same content again. Each connection asks for one file under the storage root, which is
+ * streamed from the beginning; the file is opened through the manager, so while it is being written the connection
+ * joins the write and receives each chunk as it is flushed, until the writer closes the file.
+ * <br/>
+ * Wire format:
+ * <pre>
+ * request:  UTF path
+ * response: chunks of (int length, bytes), ended by a length of 0 at the end of the file, or by a length of -1 and a
+ *           UTF error message if the file can't be served
+ * </pre>
+ *
+ * @see PeerInputStream
+ */
+public final class PeerStreamServer
+        implements Closeable
+{
+    static final int END = 0;
+
+    static final int ERROR = -1;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final JoinableFileManager fileManager;
+
+    private final File storageRoot;
+
+    private final long timeout;
+
+    private final ServerSocket serverSocket;
+
+    private final AtomicLong servedBytes = new AtomicLong();
+
+    private final AtomicInteger connectionCounter = new AtomicInteger();
+
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool( r -> {
+        Thread t = new Thread( r, "partyline-peer-stream-" + connectionCounter.incrementAndGet() );
+        t.setDaemon( true );
+        return t;
+    } );
+
+    private volatile boolean closed;
+
+    /**
+     * Serve files under the given storage root, listening on an ephemeral port of the given address.
+     *
+     * @param timeout The timeout (milliseconds) for opening a requested file through the manager
+     */
+    public PeerStreamServer( JoinableFileManager fileManager, File storageRoot, InetAddress bindAddress, long timeout )
+            throws IOException
+    {
+        this.fileManager = fileManager;
+        this.storageRoot = storageRoot.getCanonicalFile();
+        this.timeout = timeout;
+        this.serverSocket = new ServerSocket( 0, 50, bindAddress );
+
+        Thread acceptor = new Thread( this::acceptLoop, "partyline-peer-stream-acceptor" );
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress()
+    {
+        return new InetSocketAddress( serverSocket.getInetAddress(), serverSocket.getLocalPort() );
+    }
+
+    /**
+     * Retrieve the number of content bytes sent to other nodes so far.
+     */
+    public long getServedBytes()
+    {
+        return servedBytes.get();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        closed = true;
+        serverSocket.close();
+        connectionExecutor.shutdownNow();
+    }
+
+    private void acceptLoop()
+    {
+        while ( !closed )
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay( true );
+                connectionExecutor.execute( () -> serve( socket ) );
+            }
+            catch ( IOException e )
+            {
+                if ( !closed )
+                {
+                    logger.error( "Failed to accept peer stream connection", e );
+                }
+            }
+        }
+    }
+
+    private void serve( Socket socket )
+    {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+             DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) ))
+        {
+            File file = new File( in.readUTF() );
+
+            if ( !isUnderStorageRoot( file ) )
+            {
+                out.writeInt( ERROR );
+                out.writeUTF( "Not under the storage root of this node: " + file );
+                out.flush();
+                return;
+            }
+
+            // not tied to this pooled thread's context; closed here when the transfer ends.
+            try (InputStream stream = fileManager.openInputStream( file, timeout, (LockHandle) null ))
+            {
+                // send whatever has been flushed so far (at least one byte, waiting for it if necessary).
+                byte[] buf = new byte[CHUNK_SIZE];
+                int read;
+                while ( ( read = stream.read( buf, 0, Math.max( 1, Math.min( buf.length, stream.available() ) ) ) )
+                        > -1 )
+                {
+                    out.writeInt( read );
+                    out.write( buf, 0, read );
+                    out.flush();
+                    servedBytes.addAndGet( read );
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to serve: {} to peer: {}: {}", file, s.getRemoteSocketAddress(), e.getMessage() );
+                out.writeInt( ERROR );
+                out.writeUTF( String.valueOf( e.getMessage() ) );
+                out.flush();
+                return;
+            }
+
+            out.writeInt( END );
+            out.flush();
+        }
+        catch ( IOException e )
+        {
+            logger.debug( "Peer stream connection failed", e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isUnderStorageRoot( File file )
+            throws IOException
+    {
+        File f = file.getCanonicalFile();
+        while ( f != null )
+        {
+            if ( f.equals( storageRoot ) )
+            {
+                return true;
+            }
+
+            f = f.getParentFile();
+        }
+
+        return false;
+    }
+}
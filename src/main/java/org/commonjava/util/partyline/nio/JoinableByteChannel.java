@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * {@link SeekableByteChannel} over a partyline input or output stream, as returned from
+ * {@link PartylineFileSystemProvider#newByteChannel(Path, java.util.Set, java.nio.file.attribute.FileAttribute[])}.
+ * Since the streams are sequential, the channel only moves forward: readers can skip ahead, but neither readers nor
+ * writers can seek backward or truncate.
+ */
+final class JoinableByteChannel
+        implements SeekableByteChannel
+{
+    private static final int TRANSFER_SIZE = 8192;
+
+    private final Path path;
+
+    private final InputStream input;
+
+    private final OutputStream output;
+
+    private long position;
+
+    private boolean open = true;
+
+    private JoinableByteChannel( Path path, InputStream input, OutputStream output )
+    {
+        this.path = path;
+        this.input = input;
+        this.output = output;
+    }
+
+    static JoinableByteChannel reading( Path path, InputStream input )
+    {
+        return new JoinableByteChannel( path, input, null );
+    }
+
+    static JoinableByteChannel writing( Path path, OutputStream output )
+    {
+        return new JoinableByteChannel( path, null, output );
+    }
+
+    @Override
+    public synchronized int read( ByteBuffer dst )
+            throws IOException
+    {
+        checkOpen();
+        if ( input == null )
+        {
+            throw new NonReadableChannelException();
+        }
+
+        byte[] buf = new byte[Math.min( dst.remaining(), TRANSFER_SIZE )];
+        int read = input.read( buf );
+        if ( read > 0 )
+        {
+            dst.put( buf, 0, read );
+            position += read;
+        }
+
+        return read;
+    }
+
+    @Override
+    public synchronized int write( ByteBuffer src )
+            throws IOException
+    {
+        checkOpen();
+        if ( output == null )
+        {
+            throw new NonWritableChannelException();
+        }
+
+        int written = src.remaining();
+        byte[] buf = new byte[Math.min( written, TRANSFER_SIZE )];
+        while ( src.hasRemaining() )
+        {
+            int len = Math.min( src.remaining(), buf.length );
+            src.get( buf, 0, len );
+            output.write( buf, 0, len );
+        }
+
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long position()
+            throws IOException
+    {
+        checkOpen();
+        return position;
+    }
+
+    /**
+     * Move a reading channel forward by skipping input. Any other change of position is unsupported.
+     */
+    @Override
+    public synchronized SeekableByteChannel position( long newPosition )
+            throws IOException
+    {
+        checkOpen();
+        if ( newPosition == position )
+        {
+            return this;
+        }
+
+        if ( input == null || newPosition < position )
+        {
+            throw new IOException( "Cannot seek from: " + position + " to: " + newPosition + " in: " + path
+                                           + "; partyline channels only move forward." );
+        }
+
+        while ( position < newPosition )
+        {
+            long skipped = input.skip( newPosition - position );
+            if ( skipped < 1 )
+            {
+                if ( input.read() < 0 )
+                {
+                    break;
+                }
+
+                skipped = 1;
+            }
+
+            position += skipped;
+        }
+
+        return this;
+    }
+
+    @Override
+    public synchronized long size()
+            throws IOException
+    {
+        checkOpen();
+        return output == null ? Files.size( path ) : position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel truncate( long size )
+            throws IOException
+    {
+        checkOpen();
+        if ( output == null )
+        {
+            throw new NonWritableChannelException();
+        }
+
+        if ( size < position )
+        {
+            throw new IOException( "Cannot truncate: " + path + " to: " + size + "; partyline channels only move forward." );
+        }
+
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        if ( open )
+        {
+            open = false;
+            if ( input != null )
+            {
+                input.close();
+            }
+            else
+            {
+                output.close();
+            }
+        }
+    }
+
+    private void checkOpen()
+            throws ClosedChannelException
+    {
+        if ( !open )
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
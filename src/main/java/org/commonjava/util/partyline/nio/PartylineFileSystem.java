@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.nio;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link FileSystem} view of an underlying filesystem (normally the default one) whose streams and channels are opened
+ * through a {@link org.commonjava.util.partyline.JoinableFileManager}. Paths from this filesystem can be handed to any
+ * code that uses {@link java.nio.file.Files}; see {@link PartylineFileSystemProvider}.
+ */
+public final class PartylineFileSystem
+        extends FileSystem
+{
+    private final PartylineFileSystemProvider provider;
+
+    private final FileSystem delegate;
+
+    PartylineFileSystem( PartylineFileSystemProvider provider, FileSystem delegate )
+    {
+        this.provider = provider;
+        this.delegate = delegate;
+    }
+
+    FileSystem getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Retrieve the partyline path corresponding to the given path on the underlying filesystem.
+     */
+    public Path wrap( Path path )
+    {
+        if ( path instanceof PartylinePath )
+        {
+            return path;
+        }
+
+        return new PartylinePath( this, path );
+    }
+
+    @Override
+    public PartylineFileSystemProvider provider()
+    {
+        return provider;
+    }
+
+    /**
+     * The underlying filesystem stays open, so this is unsupported (as it is for the default filesystem).
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        throw new UnsupportedOperationException( "The partyline filesystem cannot be closed." );
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return delegate.isReadOnly();
+    }
+
+    @Override
+    public String getSeparator()
+    {
+        return delegate.getSeparator();
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories()
+    {
+        List<Path> roots = new ArrayList<>();
+        delegate.getRootDirectories().forEach( ( root ) -> roots.add( wrap( root ) ) );
+        return roots;
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores()
+    {
+        return delegate.getFileStores();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews()
+    {
+        return delegate.supportedFileAttributeViews();
+    }
+
+    @Override
+    public Path getPath( String first, String... more )
+    {
+        return wrap( delegate.getPath( first, more ) );
+    }
+
+    @Override
+    public PathMatcher getPathMatcher( String syntaxAndPattern )
+    {
+        PathMatcher matcher = delegate.getPathMatcher( syntaxAndPattern );
+        return ( path ) -> matcher.matches( provider.unwrap( path ) );
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService()
+    {
+        return delegate.getUserPrincipalLookupService();
+    }
+
+    @Override
+    public WatchService newWatchService()
+            throws IOException
+    {
+        return delegate.newWatchService();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PartylineFileSystem{" + delegate + '}';
+    }
+}
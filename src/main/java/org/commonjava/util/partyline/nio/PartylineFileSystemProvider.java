@@ -0,0 +1,506 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.nio;
+
+import org.commonjava.util.partyline.DeadlockException;
+import org.commonjava.util.partyline.JoinableFileManager;
+import org.commonjava.util.partyline.LockHandle;
+import org.commonjava.util.partyline.LockLevel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link FileSystemProvider} that wraps an underlying filesystem (normally the default one) and routes stream and
+ * channel creation, deletion, copies and moves through a {@link JoinableFileManager}. Code that only knows about
+ * {@link Files} (including third-party libraries) can then join in-progress writes and respects partyline locks,
+ * given paths from {@link #getFileSystem()} or {@link #wrap(Path)}:
+ *
+ * <pre>
+ *     PartylineFileSystemProvider provider = new PartylineFileSystemProvider( manager );
+ *     Path path = provider.wrap( Paths.get( "/var/lib/storage/foo.pom" ) );
+ *     try ( InputStream in = Files.newInputStream( path ) ) { ... }
+ * </pre>
+ *
+ * Partyline streams are sequential, so:
+ * <ul>
+ *     <li>channels from {@link #newByteChannel(Path, Set, FileAttribute[])} are either read-only or write-only, and
+ *     only move forward</li>
+ *     <li>writes always replace the file's content ({@link StandardOpenOption#APPEND} is not supported)</li>
+ * </ul>
+ * Everything else (attributes, directories, access checks) is delegated to the underlying filesystem.
+ */
+public final class PartylineFileSystemProvider
+        extends FileSystemProvider
+{
+    public static final String SCHEME = "partyline";
+
+    private final JoinableFileManager manager;
+
+    private final FileSystemProvider delegate;
+
+    private final PartylineFileSystem fileSystem;
+
+    private final long timeout;
+
+    /**
+     * Wrap the default filesystem, waiting up to {@link JoinableFileManager#DEFAULT_TIMEOUT} for locks.
+     */
+    public PartylineFileSystemProvider( JoinableFileManager manager )
+    {
+        this( manager, FileSystems.getDefault(), JoinableFileManager.DEFAULT_TIMEOUT );
+    }
+
+    /**
+     * Wrap the given filesystem.
+     *
+     * @param manager The manager that opens streams and manages locks
+     * @param delegate The underlying filesystem
+     * @param timeout Timeout (milliseconds) to wait for the locks needed by each operation
+     */
+    public PartylineFileSystemProvider( JoinableFileManager manager, FileSystem delegate, long timeout )
+    {
+        this.manager = manager;
+        this.delegate = delegate.provider();
+        this.fileSystem = new PartylineFileSystem( this, delegate );
+        this.timeout = timeout;
+    }
+
+    public PartylineFileSystem getFileSystem()
+    {
+        return fileSystem;
+    }
+
+    /**
+     * Retrieve the partyline path corresponding to the given path on the underlying filesystem.
+     */
+    public Path wrap( Path path )
+    {
+        return fileSystem.wrap( path );
+    }
+
+    Path unwrap( Path path )
+    {
+        if ( !( path instanceof PartylinePath ) || path.getFileSystem() != fileSystem )
+        {
+            throw new ProviderMismatchException( "Not a partyline path: " + path );
+        }
+
+        return ( (PartylinePath) path ).getDelegate();
+    }
+
+    @Override
+    public String getScheme()
+    {
+        return SCHEME;
+    }
+
+    /**
+     * Each provider has exactly one filesystem; see {@link #getFileSystem()}.
+     */
+    @Override
+    public FileSystem newFileSystem( URI uri, Map<String, ?> env )
+            throws IOException
+    {
+        throw new FileSystemAlreadyExistsException( "Use getFileSystem() to access the partyline filesystem." );
+    }
+
+    @Override
+    public FileSystem getFileSystem( URI uri )
+    {
+        checkUri( uri );
+        return fileSystem;
+    }
+
+    @Override
+    public Path getPath( URI uri )
+    {
+        checkUri( uri );
+        return wrap( fileSystem.getDelegate().getPath( uri.getPath() ) );
+    }
+
+    private void checkUri( URI uri )
+    {
+        if ( !SCHEME.equalsIgnoreCase( uri.getScheme() ) )
+        {
+            throw new IllegalArgumentException( "URI scheme is not '" + SCHEME + "': " + uri );
+        }
+    }
+
+    @Override
+    public InputStream newInputStream( Path path, OpenOption... options )
+            throws IOException
+    {
+        for ( OpenOption option : options )
+        {
+            if ( option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND )
+            {
+                throw new UnsupportedOperationException( "'" + option + "' not allowed for input streams." );
+            }
+        }
+
+        return openInput( unwrap( path ) );
+    }
+
+    /**
+     * Open a partyline output stream, which replaces the file's content. {@link StandardOpenOption#APPEND} is not
+     * supported.
+     */
+    @Override
+    public OutputStream newOutputStream( Path path, OpenOption... options )
+            throws IOException
+    {
+        Set<OpenOption> opts = new HashSet<>( Arrays.asList( options ) );
+        if ( opts.isEmpty() )
+        {
+            opts.add( StandardOpenOption.CREATE );
+            opts.add( StandardOpenOption.TRUNCATE_EXISTING );
+        }
+
+        if ( opts.contains( StandardOpenOption.READ ) )
+        {
+            throw new IllegalArgumentException( "READ not allowed for output streams." );
+        }
+
+        return openOutput( unwrap( path ), opts );
+    }
+
+    /**
+     * Open a read-only or write-only channel over a partyline stream. Opening a file for both reading and writing is
+     * not supported.
+     */
+    @Override
+    public SeekableByteChannel newByteChannel( Path path, Set<? extends OpenOption> options,
+                                               FileAttribute<?>... attrs )
+            throws IOException
+    {
+        Path target = unwrap( path );
+        if ( options.contains( StandardOpenOption.WRITE ) || options.contains( StandardOpenOption.APPEND ) )
+        {
+            if ( options.contains( StandardOpenOption.READ ) )
+            {
+                throw new UnsupportedOperationException( "Partyline channels cannot be opened for READ and WRITE." );
+            }
+
+            return JoinableByteChannel.writing( target, openOutput( target, options ) );
+        }
+
+        return JoinableByteChannel.reading( target, openInput( target ) );
+    }
+
+    private InputStream openInput( Path target )
+            throws IOException
+    {
+        if ( !Files.exists( target ) )
+        {
+            throw new NoSuchFileException( target.toString() );
+        }
+
+        try
+        {
+            return manager.openInputStream( target, timeout );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while opening: " + target );
+        }
+    }
+
+    private OutputStream openOutput( Path target, Set<? extends OpenOption> options )
+            throws IOException
+    {
+        if ( options.contains( StandardOpenOption.APPEND ) )
+        {
+            throw new UnsupportedOperationException( "APPEND is not supported by partyline output streams." );
+        }
+
+        boolean exists = Files.exists( target );
+        if ( exists && options.contains( StandardOpenOption.CREATE_NEW ) )
+        {
+            throw new FileAlreadyExistsException( target.toString() );
+        }
+        else if ( !exists && !options.contains( StandardOpenOption.CREATE ) && !options.contains(
+                StandardOpenOption.CREATE_NEW ) )
+        {
+            throw new NoSuchFileException( target.toString() );
+        }
+
+        try
+        {
+            return manager.openOutputStream( target, timeout );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while opening: " + target );
+        }
+    }
+
+    /**
+     * Delete the file once it can be locked for deletion, so it never disappears from under an open stream. Unlike
+     * {@link JoinableFileManager#tryDelete(Path, long)}, non-empty directories are refused, as the {@link Files}
+     * contract requires.
+     */
+    @Override
+    public void delete( Path path )
+            throws IOException
+    {
+        Path target = unwrap( path );
+        if ( !Files.exists( target, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            throw new NoSuchFileException( target.toString() );
+        }
+
+        if ( Files.isDirectory( target, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream( target ))
+            {
+                if ( entries.iterator().hasNext() )
+                {
+                    throw new DirectoryNotEmptyException( target.toString() );
+                }
+            }
+        }
+
+        try
+        {
+            if ( !manager.tryDelete( target, timeout ) )
+            {
+                throw new IOException( "Could not lock: " + target + " for deletion in " + timeout + "ms." );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while deleting: " + target );
+        }
+    }
+
+    /**
+     * Copy a regular file by reading it through a partyline input stream and writing it through a partyline output
+     * stream. Other files (directories, for instance) are copied by the underlying provider.
+     */
+    @Override
+    public void copy( Path source, Path target, CopyOption... options )
+            throws IOException
+    {
+        Path from = unwrap( source );
+        Path to = unwrap( target );
+        if ( !Files.isRegularFile( from ) )
+        {
+            delegate.copy( from, to, options );
+            return;
+        }
+
+        Set<CopyOption> opts = new HashSet<>( Arrays.asList( options ) );
+        Set<OpenOption> openOptions = new HashSet<>();
+        openOptions.add( opts.contains( StandardCopyOption.REPLACE_EXISTING ) ?
+                                 StandardOpenOption.CREATE :
+                                 StandardOpenOption.CREATE_NEW );
+
+        try (InputStream in = openInput( from ); OutputStream out = openOutput( to, openOptions ))
+        {
+            byte[] buf = new byte[8192];
+            int read;
+            while ( ( read = in.read( buf ) ) > -1 )
+            {
+                out.write( buf, 0, read );
+            }
+        }
+
+        if ( opts.contains( StandardCopyOption.COPY_ATTRIBUTES ) )
+        {
+            Files.setLastModifiedTime( to, Files.getLastModifiedTime( from ) );
+        }
+    }
+
+    /**
+     * Move a file while holding write locks on both the source and the target, so no partyline stream is open on
+     * either of them. Both are locked as one batch, in canonical order, so opposing moves can't deadlock.
+     */
+    @Override
+    public void move( Path source, Path target, CopyOption... options )
+            throws IOException
+    {
+        Path from = unwrap( source );
+        Path to = unwrap( target );
+        LockHandle locks = lockForMove( from, to );
+        try
+        {
+            delegate.move( from, to, options );
+        }
+        finally
+        {
+            locks.close();
+        }
+    }
+
+    private LockHandle lockForMove( Path from, Path to )
+            throws IOException
+    {
+        try
+        {
+            LockHandle handle =
+                    manager.acquireAll( Arrays.asList( from.toFile(), to.toFile() ), timeout, LockLevel.write );
+            if ( handle == null )
+            {
+                throw new IOException( "Could not lock: " + from + " and: " + to + " for move in " + timeout + "ms." );
+            }
+
+            return handle;
+        }
+        catch ( DeadlockException e )
+        {
+            throw new IOException( "Could not lock: " + from + " and: " + to + " for move: " + e.getMessage(), e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while locking: " + from + " and: " + to );
+        }
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream( Path dir, DirectoryStream.Filter<? super Path> filter )
+            throws IOException
+    {
+        DirectoryStream<Path> entries =
+                delegate.newDirectoryStream( unwrap( dir ), ( entry ) -> filter.accept( wrap( entry ) ) );
+
+        return new DirectoryStream<Path>()
+        {
+            @Override
+            public Iterator<Path> iterator()
+            {
+                Iterator<Path> it = entries.iterator();
+                return new Iterator<Path>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Path next()
+                    {
+                        return wrap( it.next() );
+                    }
+                };
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                entries.close();
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory( Path dir, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        delegate.createDirectory( unwrap( dir ), attrs );
+    }
+
+    @Override
+    public boolean isSameFile( Path path, Path path2 )
+            throws IOException
+    {
+        return delegate.isSameFile( unwrap( path ), unwrap( path2 ) );
+    }
+
+    @Override
+    public boolean isHidden( Path path )
+            throws IOException
+    {
+        return delegate.isHidden( unwrap( path ) );
+    }
+
+    @Override
+    public FileStore getFileStore( Path path )
+            throws IOException
+    {
+        return delegate.getFileStore( unwrap( path ) );
+    }
+
+    @Override
+    public void checkAccess( Path path, AccessMode... modes )
+            throws IOException
+    {
+        delegate.checkAccess( unwrap( path ), modes );
+    }
+
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView( Path path, Class<V> type, LinkOption... options )
+    {
+        return delegate.getFileAttributeView( unwrap( path ), type, options );
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes( Path path, Class<A> type, LinkOption... options )
+            throws IOException
+    {
+        return delegate.readAttributes( unwrap( path ), type, options );
+    }
+
+    @Override
+    public Map<String, Object> readAttributes( Path path, String attributes, LinkOption... options )
+            throws IOException
+    {
+        return delegate.readAttributes( unwrap( path ), attributes, options );
+    }
+
+    @Override
+    public void setAttribute( Path path, String attribute, Object value, LinkOption... options )
+            throws IOException
+    {
+        delegate.setAttribute( unwrap( path ), attribute, value, options );
+    }
+}
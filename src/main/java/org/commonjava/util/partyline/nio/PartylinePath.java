@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+
+/**
+ * {@link Path} on a {@link PartylineFileSystem}. Each instance wraps the corresponding path on the underlying
+ * filesystem, and delegates everything except stream / channel creation (which its provider routes through
+ * {@link org.commonjava.util.partyline.JoinableFileManager}) to it.
+ */
+final class PartylinePath
+        implements Path
+{
+    private final PartylineFileSystem fileSystem;
+
+    private final Path delegate;
+
+    PartylinePath( PartylineFileSystem fileSystem, Path delegate )
+    {
+        this.fileSystem = fileSystem;
+        this.delegate = delegate;
+    }
+
+    Path getDelegate()
+    {
+        return delegate;
+    }
+
+    private Path wrap( Path path )
+    {
+        return path == null ? null : new PartylinePath( fileSystem, path );
+    }
+
+    private Path unwrap( Path path )
+    {
+        if ( !( path instanceof PartylinePath ) || ( (PartylinePath) path ).fileSystem != fileSystem )
+        {
+            throw new ProviderMismatchException( "Not a partyline path: " + path );
+        }
+
+        return ( (PartylinePath) path ).delegate;
+    }
+
+    @Override
+    public FileSystem getFileSystem()
+    {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute()
+    {
+        return delegate.isAbsolute();
+    }
+
+    @Override
+    public Path getRoot()
+    {
+        return wrap( delegate.getRoot() );
+    }
+
+    @Override
+    public Path getFileName()
+    {
+        return wrap( delegate.getFileName() );
+    }
+
+    @Override
+    public Path getParent()
+    {
+        return wrap( delegate.getParent() );
+    }
+
+    @Override
+    public int getNameCount()
+    {
+        return delegate.getNameCount();
+    }
+
+    @Override
+    public Path getName( int index )
+    {
+        return wrap( delegate.getName( index ) );
+    }
+
+    @Override
+    public Path subpath( int beginIndex, int endIndex )
+    {
+        return wrap( delegate.subpath( beginIndex, endIndex ) );
+    }
+
+    @Override
+    public boolean startsWith( Path other )
+    {
+        return other instanceof PartylinePath && delegate.startsWith( unwrap( other ) );
+    }
+
+    @Override
+    public boolean startsWith( String other )
+    {
+        return delegate.startsWith( other );
+    }
+
+    @Override
+    public boolean endsWith( Path other )
+    {
+        return other instanceof PartylinePath && delegate.endsWith( unwrap( other ) );
+    }
+
+    @Override
+    public boolean endsWith( String other )
+    {
+        return delegate.endsWith( other );
+    }
+
+    @Override
+    public Path normalize()
+    {
+        return wrap( delegate.normalize() );
+    }
+
+    @Override
+    public Path resolve( Path other )
+    {
+        return wrap( delegate.resolve( unwrap( other ) ) );
+    }
+
+    @Override
+    public Path resolve( String other )
+    {
+        return wrap( delegate.resolve( other ) );
+    }
+
+    @Override
+    public Path resolveSibling( Path other )
+    {
+        return wrap( delegate.resolveSibling( unwrap( other ) ) );
+    }
+
+    @Override
+    public Path resolveSibling( String other )
+    {
+        return wrap( delegate.resolveSibling( other ) );
+    }
+
+    @Override
+    public Path relativize( Path other )
+    {
+        return wrap( delegate.relativize( unwrap( other ) ) );
+    }
+
+    @Override
+    public URI toUri()
+    {
+        return URI.create( fileSystem.provider().getScheme() + ":" + delegate.toUri().getRawPath() );
+    }
+
+    @Override
+    public Path toAbsolutePath()
+    {
+        return wrap( delegate.toAbsolutePath() );
+    }
+
+    @Override
+    public Path toRealPath( LinkOption... options )
+            throws IOException
+    {
+        return wrap( delegate.toRealPath( options ) );
+    }
+
+    /**
+     * Retrieve the {@link File} for the underlying path, so code that converts paths to files keeps working. Streams
+     * opened on that file bypass partyline, of course.
+     */
+    @Override
+    public File toFile()
+    {
+        return delegate.toFile();
+    }
+
+    @Override
+    public WatchKey register( WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers )
+            throws IOException
+    {
+        return delegate.register( watcher, events, modifiers );
+    }
+
+    @Override
+    public WatchKey register( WatchService watcher, WatchEvent.Kind<?>... events )
+            throws IOException
+    {
+        return delegate.register( watcher, events );
+    }
+
+    @Override
+    public Iterator<Path> iterator()
+    {
+        Iterator<Path> names = delegate.iterator();
+        return new Iterator<Path>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return names.hasNext();
+            }
+
+            @Override
+            public Path next()
+            {
+                return wrap( names.next() );
+            }
+        };
+    }
+
+    @Override
+    public int compareTo( Path other )
+    {
+        return delegate.compareTo( unwrap( other ) );
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( this == o )
+        {
+            return true;
+        }
+        if ( !( o instanceof PartylinePath ) )
+        {
+            return false;
+        }
+
+        PartylinePath other = (PartylinePath) o;
+        return fileSystem == other.fileSystem && delegate.equals( other.delegate );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return delegate.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return delegate.toString();
+    }
+}
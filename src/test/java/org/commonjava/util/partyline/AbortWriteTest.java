@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Verify that aborting a write fails the joined readers right away, removes the partial file and releases its locks.
+ */
+public class AbortWriteTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Test
+    public void abortFailsJoinedReaders()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "aborted.jar" );
+
+        OutputStream out = mgr.openOutputStream( f, 1000, (LockHandle) null );
+        out.write( "partial".getBytes() );
+        out.flush();
+
+        InputStream in = mgr.openInputStream( f, 1000, (LockHandle) null );
+        byte[] buf = new byte[7];
+        assertThat( in.read( buf ), equalTo( 7 ) );
+        assertThat( new String( buf ), equalTo( "partial" ) );
+
+        // the reader is waiting for more content when the writer aborts
+        Thread reader = new Thread( () -> {
+            try
+            {
+                in.read();
+            }
+            catch ( IOException e )
+            {
+                // expected
+            }
+        } );
+        reader.start();
+        Thread.sleep( 100 );
+
+        IOException cause = new IOException( "Connection reset" );
+        ( (Abortable) out ).abort( cause );
+
+        reader.join( 1000 );
+        assertThat( reader.isAlive(), equalTo( false ) );
+
+        try
+        {
+            in.read();
+            fail( "Reader should see the aborted write" );
+        }
+        catch ( IOException e )
+        {
+            assertThat( e.getCause(), sameInstance( (Throwable) cause ) );
+        }
+
+        // released without waiting for the reader to close
+        assertThat( f.exists(), equalTo( false ) );
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+        assertThat( mgr.isReadLocked( f ), equalTo( false ) );
+
+        in.close();
+        out.close();
+
+        try (OutputStream retry = mgr.openOutputStream( f, 100, (LockHandle) null ))
+        {
+            retry.write( "complete".getBytes() );
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "complete" ) );
+    }
+
+    @Test
+    public void abortAfterCloseKeepsFile()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "complete.jar" );
+
+        OutputStream out = mgr.openOutputStream( f, 1000, (LockHandle) null );
+        out.write( "complete".getBytes() );
+        out.close();
+
+        ( (Abortable) out ).abort( new IOException( "Too late" ) );
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "complete" ) );
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Verify the CompletableFuture-based lock / open methods of {@link JoinableFileManager}.
+ */
+public class AsyncLockAcquisitionTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    private final ExecutorService otherOwner = Executors.newSingleThreadExecutor();
+
+    @Test
+    public void lockAsyncCompletesImmediatelyWhenUnlocked()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        CompletableFuture<LockHandle> future = mgr.lockAsync( f, 1000, LockLevel.write );
+        assertThat( future.isDone(), equalTo( true ) );
+
+        LockHandle handle = future.get();
+        assertThat( mgr.isWriteLocked( f ), equalTo( true ) );
+
+        handle.close();
+        assertThat( handle.isReleased(), equalTo( true ) );
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void lockAsyncCompletesWhenOtherOwnerUnlocks()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        assertThat( otherOwner.submit( () -> mgr.lock( f, 1000, LockLevel.write ) ).get(), equalTo( true ) );
+
+        CompletableFuture<LockHandle> future = mgr.lockAsync( f, -1, LockLevel.write );
+
+        Thread.sleep( 300 );
+        assertThat( future.isDone(), equalTo( false ) );
+
+        assertThat( otherOwner.submit( () -> mgr.unlock( f ) ).get(), equalTo( true ) );
+
+        try (LockHandle handle = future.get( 5, TimeUnit.SECONDS ))
+        {
+            assertThat( handle.getLockLevel(), equalTo( LockLevel.write ) );
+            assertThat( mgr.isLockedByCurrentThread( f ), equalTo( true ) );
+        }
+
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void lockAsyncTimesOut()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        assertThat( otherOwner.submit( () -> mgr.lock( f, 1000, LockLevel.write ) ).get(), equalTo( true ) );
+
+        CompletableFuture<LockHandle> future = mgr.lockAsync( f, 200, LockLevel.write );
+        try
+        {
+            future.get( 5, TimeUnit.SECONDS );
+            fail( "Lock should have timed out" );
+        }
+        catch ( ExecutionException e )
+        {
+            assertThat( e.getCause(), instanceOf( TimeoutException.class ) );
+        }
+
+        otherOwner.submit( () -> mgr.unlock( f ) ).get();
+    }
+
+    @Test
+    public void openInputStreamAsyncJoinsInProgressWrite()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        OutputStream out = otherOwner.submit( () -> mgr.openOutputStream( f ) ).get();
+        IOUtils.write( "first ", out );
+        out.flush();
+
+        InputStream in = mgr.openInputStreamAsync( f, 1000 ).get( 5, TimeUnit.SECONDS );
+
+        IOUtils.write( "second", out );
+        out.close();
+
+        assertThat( IOUtils.toString( in ), equalTo( "first second" ) );
+        in.close();
+
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void openOutputStreamAsyncWaitsForReaderToClose()
+            throws Exception
+    {
+        File f = temp.newFile();
+        FileUtils.write( f, "original" );
+
+        InputStream in = otherOwner.submit( () -> mgr.openInputStream( f ) ).get();
+
+        CompletableFuture<OutputStream> future = mgr.openOutputStreamAsync( f, -1 );
+
+        Thread.sleep( 300 );
+        assertThat( future.isDone(), equalTo( false ) );
+
+        assertThat( IOUtils.toString( in ), equalTo( "original" ) );
+        otherOwner.submit( () -> {
+            in.close();
+            return null;
+        } ).get();
+
+        try (OutputStream out = future.get( 5, TimeUnit.SECONDS ))
+        {
+            IOUtils.write( "replaced", out );
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "replaced" ) );
+    }
+
+    @Test
+    public void openInputStreamAsyncFailsForMissingFile()
+            throws Exception
+    {
+        File f = new File( temp.getRoot(), "missing.txt" );
+
+        try
+        {
+            mgr.openInputStreamAsync( f, 200 ).get( 5, TimeUnit.SECONDS );
+            fail( "Should not be able to read a missing file" );
+        }
+        catch ( ExecutionException e )
+        {
+            assertThat( e.getCause(), instanceOf( IOException.class ) );
+        }
+    }
+
+    @Test
+    public void shutdownFailsPendingLocks()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        assertThat( otherOwner.submit( () -> mgr.lock( f, 1000, LockLevel.write ) ).get(), equalTo( true ) );
+
+        CompletableFuture<LockHandle> future = mgr.lockAsync( f, -1, LockLevel.write );
+        assertThat( future.isDone(), equalTo( false ) );
+
+        mgr.shutdown();
+        try
+        {
+            future.get( 5, TimeUnit.SECONDS );
+            fail( "Pending lock should fail on shutdown" );
+        }
+        catch ( ExecutionException e )
+        {
+            assertThat( e.getCause(), instanceOf( IOException.class ) );
+        }
+
+        // async locking starts again on demand.
+        assertThat( otherOwner.submit( () -> mgr.unlock( f ) ).get(), equalTo( true ) );
+        try (LockHandle handle = mgr.lockAsync( f, 1000, LockLevel.write ).get( 5, TimeUnit.SECONDS ))
+        {
+            assertThat( mgr.isWriteLocked( f ), equalTo( true ) );
+        }
+    }
+}
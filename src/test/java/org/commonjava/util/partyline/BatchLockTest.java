@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that batches of files are locked all-or-nothing, and that overlapping batches requested in different orders
+ * don't deadlock.
+ */
+public class BatchLockTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Test
+    public void lockAndReleaseBatchTogether()
+            throws Exception
+    {
+        List<File> files = newFiles( 4 );
+
+        try (LockHandle handle = mgr.acquireAll( files, 1000, LockLevel.write ))
+        {
+            assertThat( handle, notNullValue() );
+            assertThat( handle.getFiles().size(), equalTo( 4 ) );
+            for ( File f : files )
+            {
+                assertThat( f + " should be write-locked", mgr.isWriteLocked( f ), equalTo( true ) );
+            }
+        }
+
+        for ( File f : files )
+        {
+            assertThat( f + " should be unlocked", mgr.isWriteLocked( f ), equalTo( false ) );
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectEmptyBatch()
+            throws Exception
+    {
+        mgr.acquireAll( Collections.<File>emptyList(), 1000, LockLevel.write );
+    }
+
+    @Test
+    public void rollBackWhenOneFileIsUnavailable()
+            throws Exception
+    {
+        List<File> files = newFiles( 4 );
+
+        try (LockHandle blocker = mgr.acquire( files.get( 2 ), 1000, LockLevel.write ))
+        {
+            assertThat( mgr.acquireAll( files, 300, LockLevel.write ), nullValue() );
+
+            for ( File f : files )
+            {
+                if ( !f.equals( files.get( 2 ) ) )
+                {
+                    assertThat( f + " should have been rolled back", mgr.isWriteLocked( f ), equalTo( false ) );
+                }
+            }
+        }
+
+        assertThat( mgr.lockAll( files, 1000, LockLevel.write ), equalTo( true ) );
+        assertThat( mgr.unlockAll( files ), equalTo( true ) );
+        assertThat( mgr.isWriteLocked( files.get( 2 ) ), equalTo( false ) );
+    }
+
+    @Test
+    public void opposingOrdersDoNotDeadlock()
+            throws Exception
+    {
+        List<File> forward = newFiles( 5 );
+        List<File> reverse = new ArrayList<>( forward );
+        Collections.reverse( reverse );
+
+        ExecutorService exec = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            List<Future<Integer>> results = exec.invokeAll( Arrays.asList( batchLoop( forward ), batchLoop( reverse ) ) );
+            for ( Future<Integer> result : results )
+            {
+                assertThat( result.get(), equalTo( 50 ) );
+            }
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+    }
+
+    private Callable<Integer> batchLoop( List<File> files )
+    {
+        return () -> {
+            int count = 0;
+            for ( int i = 0; i < 50; i++ )
+            {
+                try (LockHandle handle = mgr.acquireAll( files, 5000, LockLevel.write ))
+                {
+                    if ( handle != null )
+                    {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        };
+    }
+
+    private List<File> newFiles( int count )
+            throws Exception
+    {
+        List<File> files = new ArrayList<>();
+        for ( int i = 0; i < count; i++ )
+        {
+            files.add( temp.newFile() );
+        }
+        return files;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that the block checksum index tells which part of a file is good, and that a resumed write starts from the
+ * last block that still matches.
+ */
+public class BlockIndexTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Before
+    public void setBlockIndex()
+    {
+        mgr.setWriteBlockIndex( 4 );
+    }
+
+    @Test
+    public void corruptBlockLimitsVerifiedLength()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "indexed.jar" );
+
+        try (OutputStream out = mgr.openOutputStream( f, 1000 ))
+        {
+            out.write( "012345".getBytes() );
+            out.flush();
+            out.write( "6789".getBytes() );
+        }
+
+        assertThat( new File( f.getPath() + JoinableFile.BLOCK_INDEX_SUFFIX ).exists(), equalTo( true ) );
+        assertThat( mgr.getVerifiedLength( f ), equalTo( 10L ) );
+
+        corrupt( f, 5 );
+        assertThat( mgr.getVerifiedLength( f ), equalTo( 4L ) );
+    }
+
+    @Test
+    public void resumeFromLastVerifiedBlock()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "indexed.jar" );
+
+        OutputStream out = mgr.openResumableOutputStream( f, 1000 );
+        out.write( "0123456789".getBytes() );
+        out.flush();
+        ( (Abortable) out ).abort( new IOException( "Connection reset" ) );
+
+        // the last two bytes don't fill a block, so the index doesn't vouch for them yet
+        assertThat( mgr.getVerifiedLength( f ), equalTo( 8L ) );
+
+        corrupt( f, 6 );
+        assertThat( mgr.getVerifiedLength( f ), equalTo( 4L ) );
+
+        out = mgr.openResumableOutputStream( f, 1000 );
+        assertThat( f.length(), equalTo( 4L ) );
+        out.write( "456789".getBytes() );
+        out.close();
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "0123456789" ) );
+        assertThat( mgr.getVerifiedLength( f ), equalTo( 10L ) );
+    }
+
+    @Test
+    public void noIndex()
+            throws Exception
+    {
+        assertThat( mgr.getVerifiedLength( temp.newFile() ), equalTo( -1L ) );
+    }
+
+    private static void corrupt( File f, long position )
+            throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile( f, "rw" ))
+        {
+            raf.seek( position );
+            raf.write( 'X' );
+        }
+    }
+}
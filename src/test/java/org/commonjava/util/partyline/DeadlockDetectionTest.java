@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Verify that owners waiting on each other's locks are detected, and that the youngest waiter fails immediately.
+ */
+public class DeadlockDetectionTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    private final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+
+    @Test
+    public void youngestWaiterInCycleFails()
+            throws Exception
+    {
+        File first = temp.newFile();
+        File second = temp.newFile();
+
+        LockHandle firstOwner = mgr.acquire( first, 1000, LockLevel.read );
+        LockHandle secondOwner = mgr.acquire( second, 1000, LockLevel.read );
+
+        Future<LockHandle> older =
+                otherThread.submit( () -> mgr.acquire( second, 10000, LockLevel.write, firstOwner ) );
+        Thread.sleep( 200 );
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            mgr.acquire( first, 10000, LockLevel.write, secondOwner );
+            fail( "Should have detected the deadlock" );
+        }
+        catch ( DeadlockException e )
+        {
+            assertThat( e.getCycle().size(), equalTo( 2 ) );
+            assertThat( System.currentTimeMillis() - start < 1000, equalTo( true ) );
+        }
+
+        // once the victim gives up its locks, the older waiter proceeds.
+        secondOwner.close();
+
+        LockHandle upgraded = older.get();
+        assertThat( upgraded, notNullValue() );
+
+        upgraded.close();
+        firstOwner.close();
+        assertThat( mgr.isReadLocked( first ), equalTo( false ) );
+        assertThat( mgr.isWriteLocked( second ), equalTo( false ) );
+    }
+
+    @Test
+    public void waitWithoutCycleTimesOut()
+            throws Exception
+    {
+        File first = temp.newFile();
+        File second = temp.newFile();
+
+        LockHandle firstOwner = mgr.acquire( first, 1000, LockLevel.read );
+        LockHandle secondOwner = mgr.acquire( second, 1000, LockLevel.write );
+
+        // first owner waits on the second, but the second isn't waiting on anyone.
+        Future<LockHandle> waiting =
+                otherThread.submit( () -> mgr.acquire( second, 500, LockLevel.write, firstOwner ) );
+
+        LockHandle shared = mgr.acquire( first, 300, LockLevel.read, secondOwner );
+        assertThat( shared, notNullValue() );
+        assertThat( waiting.get(), nullValue() );
+
+        shared.close();
+        secondOwner.close();
+        firstOwner.close();
+    }
+}
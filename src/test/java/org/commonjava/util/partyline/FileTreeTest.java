@@ -31,6 +31,7 @@ import java.util.LinkedList;
 import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -94,6 +95,126 @@ public class FileTreeTest
         }
     }
 
+    @Test
+    public void childLocksSetIntentionModesOnAncestors()
+            throws IOException, InterruptedException
+    {
+        FileTree root = new FileTree();
+        File child = createStructure( Paths.get( "directory", "child.txt" ).toString(), true );
+        File dir = child.getParentFile();
+        File child2 = new File( dir, "child2.txt" );
+
+        assertThat( root.getIntentionMode( dir ), nullValue() );
+
+        assertThat( root.tryLock( child, "owner-1", "read child", LockLevel.read, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( root.getIntentionMode( dir ), equalTo( IntentionLock.Mode.IS ) );
+        assertThat( root.getIntentionMode( dir.getParentFile() ), equalTo( IntentionLock.Mode.IS ) );
+
+        assertThat( root.tryLock( dir, "owner-1", "read dir", LockLevel.read, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( root.tryLock( child2, "owner-1", "write child", LockLevel.write, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( root.getIntentionMode( dir ), equalTo( IntentionLock.Mode.SIX ) );
+
+        root.unlock( child2, "owner-1" );
+        root.unlock( dir, "owner-1" );
+        root.unlock( child, "owner-1" );
+
+        assertThat( root.getIntentionMode( dir ), nullValue() );
+        assertThat( root.getIntentionMode( dir.getParentFile() ), nullValue() );
+    }
+
+    @Test
+    public void dirDeleteWaitsForDescendantLocks()
+            throws IOException, InterruptedException
+    {
+        FileTree root = new FileTree();
+        File child = createStructure( Paths.get( "directory", "nested", "child.txt" ).toString(), true );
+        File dir = child.getParentFile().getParentFile();
+
+        assertThat( root.tryLock( child, "reader", "read child", LockLevel.read, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+
+        assertThat( root.tryLock( dir, "deleter", "delete dir", LockLevel.delete, 200, TimeUnit.MILLISECONDS ),
+                    equalTo( false ) );
+        assertThat( root.tryLock( dir, "other-reader", "read dir", LockLevel.read, 200, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        root.unlock( dir, "other-reader" );
+
+        root.unlock( child, "reader" );
+
+        assertThat( root.tryLock( dir, "deleter", "delete dir", LockLevel.delete, 200, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+    }
+
+    @Test
+    public void lockedDirBlocksChildWritesFromOtherOwners()
+            throws IOException, InterruptedException
+    {
+        FileTree root = new FileTree();
+        File child = createStructure( Paths.get( "directory", "child.txt" ).toString(), true );
+        File dir = child.getParentFile();
+
+        assertThat( root.tryLock( dir, "dir-reader", "read dir", LockLevel.read, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+
+        assertThat( root.tryLock( child, "writer", "write child", LockLevel.write, 200, TimeUnit.MILLISECONDS ),
+                    equalTo( false ) );
+        assertThat( root.tryLock( child, "reader", "read child", LockLevel.read, 200, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( root.tryLock( child, "dir-reader", "write own child", LockLevel.write, 200,
+                                  TimeUnit.MILLISECONDS ), equalTo( false ) );
+
+        root.unlock( child, "reader" );
+
+        assertThat( root.tryLock( child, "dir-reader", "write own child", LockLevel.write, 200,
+                                  TimeUnit.MILLISECONDS ), equalTo( true ) );
+    }
+
+    @Test
+    public void shardedTreeCoordinatesDirectoryLocksAcrossShards()
+            throws IOException, InterruptedException
+    {
+        File storage = temp.newFolder();
+        FileTree root = new FileTree( 8, FileTree.getPathDepth( storage.getAbsolutePath() ) + 1 );
+
+        File repo1 = new File( storage, "repo-1" );
+        File repo2 = new File( storage, "repo-2" );
+        File child1 = new File( repo1, "org/foo/foo.pom" );
+        File child2 = new File( repo2, "org/bar/bar.pom" );
+
+        assertThat( root.getShardIndex( child1.getAbsolutePath() ),
+                    equalTo( root.getShardIndex( repo1.getAbsolutePath() ) ) );
+        assertThat( root.getShardIndex( storage.getAbsolutePath() ), equalTo( -1 ) );
+
+        assertThat( root.tryLock( child1, "writer-1", "write", LockLevel.write, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( root.tryLock( child2, "writer-2", "write", LockLevel.write, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( root.getIntentionMode( storage ), equalTo( IntentionLock.Mode.IX ) );
+
+        assertThat( root.tryLock( repo1, "deleter", "delete", LockLevel.delete, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( false ) );
+        assertThat( root.tryLock( storage, "deleter", "delete", LockLevel.delete, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( false ) );
+
+        root.unlock( child1, "writer-1" );
+        assertThat( root.tryLock( repo1, "deleter", "delete", LockLevel.delete, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( root.tryLock( storage, "deleter", "delete", LockLevel.delete, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( false ) );
+
+        root.unlock( child2, "writer-2" );
+        root.unlock( repo1, "deleter" );
+        assertThat( root.getIntentionMode( storage ), nullValue() );
+
+        assertThat( root.tryLock( storage, "reader", "read", LockLevel.read, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( root.tryLock( child2, "writer-2", "write", LockLevel.write, 100, TimeUnit.MILLISECONDS ),
+                    equalTo( false ) );
+    }
+
     @Test
     public void addChildAndRenderTree()
             throws IOException, InterruptedException
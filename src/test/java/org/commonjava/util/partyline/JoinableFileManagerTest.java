@@ -455,6 +455,54 @@ public class JoinableFileManagerTest
         assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
     }
 
+    @Test
+    public void waitForWriteUnlockReturnsWhenLockReleased()
+            throws Exception
+    {
+        final File f = temp.newFile();
+        LockHandle handle = mgr.acquire( f, 1000, LockLevel.read );
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit( () -> {
+            Thread.sleep( 200 );
+            handle.close();
+            return null;
+        } );
+
+        assertThat( mgr.waitForWriteUnlock( f, 5000 ), equalTo( true ) );
+        assertThat( handle.isReleased(), equalTo( true ) );
+        executor.shutdown();
+    }
+
+    @Test
+    public void waitForWriteUnlockOfManyFilesWaitsForAll()
+            throws Exception
+    {
+        final File dir = temp.newFolder();
+        final File first = new File( dir, "first.txt" );
+        final File second = new File( dir, "second.txt" );
+        List<File> files = new ArrayList<>();
+        files.add( first );
+        files.add( second );
+
+        LockHandle firstHandle = mgr.acquire( first, 1000, LockLevel.write );
+        LockHandle secondHandle = mgr.acquire( second, 1000, LockLevel.write );
+
+        firstHandle.close();
+        assertThat( mgr.waitForWriteUnlock( files, 200 ), equalTo( false ) );
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit( () -> {
+            Thread.sleep( 200 );
+            secondHandle.close();
+            return null;
+        } );
+
+        assertThat( mgr.waitForWriteUnlock( files, 5000 ), equalTo( true ) );
+        assertThat( mgr.waitForReadUnlock( files, 100 ), equalTo( true ) );
+        executor.shutdown();
+    }
+
     @Test
     public void openOutputStream_VerifyWriteLocked_NotReadLocked()
         throws Exception
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that locks acquired via {@link LockHandle}s belong to the handle's owner rather than the ThreadContext of
+ * the thread that acquired them.
+ */
+public class LockHandleOwnershipTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    private final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+
+    @Test
+    public void releaseHandleFromAnotherThread()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        LockHandle handle = mgr.acquire( f, 1000, LockLevel.write );
+        assertThat( handle, notNullValue() );
+        assertThat( mgr.isWriteLocked( f ), equalTo( true ) );
+        assertThat( mgr.isLockedBy( f, handle ), equalTo( true ) );
+        assertThat( mgr.isLockedByCurrentThread( f ), equalTo( false ) );
+
+        otherThread.submit( handle::close ).get();
+
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void separateHandlesAreSeparateOwners()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        try (LockHandle first = mgr.acquire( f, 1000, LockLevel.write ))
+        {
+            assertThat( mgr.acquire( f, 200, LockLevel.write ), nullValue() );
+
+            try (LockHandle again = mgr.acquire( f, 200, LockLevel.write, first ))
+            {
+                assertThat( again, notNullValue() );
+                assertThat( again.getOwnerName(), equalTo( first.getOwnerName() ) );
+            }
+
+            assertThat( mgr.isWriteLocked( f ), equalTo( true ) );
+        }
+
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void handleOwnedReadersClosedFromAnotherThread()
+            throws Exception
+    {
+        File f = temp.newFile();
+        FileUtils.write( f, "This is a test" );
+
+        try (LockHandle owner = mgr.acquire( f, 1000, LockLevel.read ))
+        {
+            InputStream in1 = mgr.openInputStream( f, 1000, owner );
+            InputStream in2 = mgr.openInputStream( f, 1000, owner );
+
+            assertThat( IOUtils.toString( in1 ), equalTo( "This is a test" ) );
+
+            otherThread.submit( () -> {
+                in1.close();
+                return null;
+            } ).get();
+
+            assertThat( mgr.isLockedBy( f, owner ), equalTo( true ) );
+
+            otherThread.submit( () -> {
+                in2.close();
+                return null;
+            } ).get();
+        }
+
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+        assertThat( mgr.acquire( f, 200, LockLevel.delete ), notNullValue() );
+    }
+}
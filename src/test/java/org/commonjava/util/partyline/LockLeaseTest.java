@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that locks held under an expired lease are released by the reaper, and that renewed leases are kept.
+ */
+public class LockLeaseTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    private final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void startReaper()
+    {
+        mgr.startLeaseReaper( 50 );
+    }
+
+    @Test
+    public void abandonedLockIsReaped()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        // a worker locks the file and never unlocks it.
+        assertThat( otherThread.submit( () -> mgr.lock( f, 1000, LockLevel.write, 500 ) ).get(), equalTo( true ) );
+        assertThat( mgr.acquire( f, 50, LockLevel.write ), nullValue() );
+
+        LockHandle handle = mgr.acquire( f, 2000, LockLevel.write );
+        assertThat( handle, notNullValue() );
+        assertThat( mgr.getReapedLeaseCount(), equalTo( 1L ) );
+        assertThat( mgr.getActiveLeaseCount(), equalTo( 0 ) );
+
+        handle.close();
+    }
+
+    @Test
+    public void renewedLeaseIsKept()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        try (LockHandle handle = mgr.acquire( f, 1000, LockLevel.write, null, 200 ))
+        {
+            LockLease lease = handle.getLease();
+            assertThat( lease, notNullValue() );
+
+            for ( int i = 0; i < 5; i++ )
+            {
+                Thread.sleep( 100 );
+                assertThat( lease.renew(), equalTo( true ) );
+            }
+
+            assertThat( mgr.isLockedBy( f, handle ), equalTo( true ) );
+            assertThat( lease.isReaped(), equalTo( false ) );
+        }
+
+        assertThat( mgr.getReapedLeaseCount(), equalTo( 0L ) );
+    }
+
+    @Test
+    public void abandonedOutputStreamIsClosed()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        OutputStream out = otherThread.submit( () -> {
+            OutputStream stream = mgr.openOutputStream( f, 1000, 200 );
+            stream.write( "partial".getBytes() );
+            stream.flush();
+            return stream;
+        } ).get();
+
+        LockLease lease = otherThread.submit( () -> mgr.getLease( f ) ).get();
+        assertThat( lease, notNullValue() );
+
+        LockHandle handle = mgr.acquire( f, 2000, LockLevel.write );
+        assertThat( handle, notNullValue() );
+        assertThat( lease.isReaped(), equalTo( true ) );
+        assertThat( FileUtils.readFileToString( f ), equalTo( "partial" ) );
+
+        handle.close();
+        out.close();
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void releasedLockIsNotReaped()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        assertThat( mgr.lock( f, 1000, LockLevel.read, 100 ), equalTo( true ) );
+        assertThat( mgr.getActiveLeaseCount(), equalTo( 1 ) );
+
+        mgr.unlock( f );
+        assertThat( mgr.getLease( f ), nullValue() );
+
+        Thread.sleep( 300 );
+        assertThat( mgr.getReapedLeaseCount(), equalTo( 0L ) );
+    }
+}
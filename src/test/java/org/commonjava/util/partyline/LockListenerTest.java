@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.commonjava.util.partyline.callback.LockEvent;
+import org.commonjava.util.partyline.callback.LockListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that lock listeners receive the events for files under their subscribed path prefix.
+ */
+public class LockListenerTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Test
+    public void writeEventsDeliveredForSubscribedPrefix()
+            throws Exception
+    {
+        File dir = temp.newFolder();
+        File f = new File( dir, "sub/artifact.jar" );
+
+        BlockingQueue<LockEvent> events = new LinkedBlockingQueue<>();
+        mgr.addLockListener( dir, events::add );
+
+        try (OutputStream out = mgr.openOutputStream( f ))
+        {
+            out.write( "content".getBytes() );
+        }
+
+        List<LockEvent.Type> types = new ArrayList<>();
+        LockEvent event;
+        while ( ( event = events.poll( 2, TimeUnit.SECONDS ) ) != null )
+        {
+            assertThat( event.getFile(), equalTo( f.getAbsoluteFile() ) );
+            types.add( event.getType() );
+            if ( event.getType() == LockEvent.Type.WRITER_CLOSED )
+            {
+                break;
+            }
+        }
+
+        assertThat( types.get( 0 ), equalTo( LockEvent.Type.LOCKED ) );
+        assertThat( types, hasItems( LockEvent.Type.WRITER_OPENED, LockEvent.Type.UNLOCKED,
+                                     LockEvent.Type.WRITER_CLOSED ) );
+    }
+
+    @Test
+    public void otherPathsAndRemovedListenersNotNotified()
+            throws Exception
+    {
+        File watched = temp.newFolder();
+        File other = temp.newFile();
+
+        BlockingQueue<LockEvent> events = new LinkedBlockingQueue<>();
+        LockListener listener = events::add;
+        mgr.addLockListener( watched, listener );
+
+        mgr.acquire( other, 1000, LockLevel.write ).close();
+        assertThat( events.poll( 200, TimeUnit.MILLISECONDS ), nullValue() );
+
+        assertThat( mgr.removeLockListener( watched, listener ), equalTo( true ) );
+        mgr.acquire( new File( watched, "file.txt" ), 1000, LockLevel.write ).close();
+        assertThat( events.poll( 200, TimeUnit.MILLISECONDS ), nullValue() );
+    }
+
+    @Test
+    public void deleteEventDeliveredAfterFailingListener()
+            throws Exception
+    {
+        File dir = temp.newFolder();
+        File f = new File( dir, "file.txt" );
+        f.createNewFile();
+
+        BlockingQueue<LockEvent> events = new LinkedBlockingQueue<>();
+        mgr.addLockListener( f, ( event ) -> {
+            throw new IllegalStateException( "Listener failure" );
+        } );
+        mgr.addLockListener( f, ( event ) -> {
+            if ( event.getType() == LockEvent.Type.DELETED )
+            {
+                events.add( event );
+            }
+        } );
+
+        assertThat( mgr.tryDelete( f ), equalTo( true ) );
+
+        LockEvent event = events.poll( 2, TimeUnit.SECONDS );
+        assertThat( event.getFile(), equalTo( f.getAbsoluteFile() ) );
+        assertThat( event.getLockLevel(), equalTo( LockLevel.delete ) );
+    }
+}
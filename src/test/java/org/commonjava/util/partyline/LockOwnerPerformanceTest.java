@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Measure read-lock churn on a single hot file: many owners repeatedly adding and releasing read locks while the file
+ * stays locked by one long-running reader.
+ */
+public class LockOwnerPerformanceTest
+{
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    public void readLockChurnWithDistinctOwners()
+            throws Exception
+    {
+        churn( false );
+    }
+
+    @Test
+    public void readLockChurnWithSharedOwner()
+            throws Exception
+    {
+        churn( true );
+    }
+
+    private void churn( boolean sharedOwner )
+            throws Exception
+    {
+        int threads = Math.max( 8, Runtime.getRuntime().availableProcessors() );
+        LockOwner owner = new LockOwner( "/path/to/hot/file", "long-running reader", "read", LockLevel.read );
+
+        // warm up, then measure.
+        run( owner, threads, sharedOwner );
+        long elapsed = run( owner, threads, sharedOwner );
+
+        long ops = (long) threads * ITERATIONS;
+        System.out.printf( "Read-lock churn (%s owners, %d threads): %d lock/unlock pairs in %dms (%d pairs/s)\n",
+                           sharedOwner ? "shared" : "distinct", threads, ops, elapsed,
+                           ops * 1000 / Math.max( 1, elapsed ) );
+
+        assertThat( owner.isLocked(), equalTo( true ) );
+        assertThat( owner.getLockLevel(), equalTo( LockLevel.read ) );
+        assertThat( owner.isLockedBy( "long-running reader" ), equalTo( true ) );
+        assertThat( owner.unlock( "long-running reader" ), equalTo( true ) );
+    }
+
+    private long run( LockOwner owner, int threads, boolean sharedOwner )
+            throws Exception
+    {
+        ExecutorService exec = Executors.newFixedThreadPool( threads );
+        try
+        {
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for ( int t = 0; t < threads; t++ )
+            {
+                String ownerName = sharedOwner ? "shared reader" : "reader-" + t;
+                tasks.add( () -> {
+                    int count = 0;
+                    for ( int i = 0; i < ITERATIONS; i++ )
+                    {
+                        if ( owner.lock( ownerName, "churn", LockLevel.read ) )
+                        {
+                            owner.unlock( ownerName );
+                            count++;
+                        }
+                    }
+                    return count;
+                } );
+            }
+
+            long start = System.currentTimeMillis();
+            List<Future<Integer>> results = exec.invokeAll( tasks );
+            long elapsed = System.currentTimeMillis() - start;
+
+            for ( Future<Integer> result : results )
+            {
+                assertThat( result.get(), equalTo( ITERATIONS ) );
+            }
+
+            return elapsed;
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+    }
+}
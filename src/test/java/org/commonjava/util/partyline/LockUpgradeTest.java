@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Verify that read locks can be upgraded to write locks (and back) without being released in between.
+ */
+public class LockUpgradeTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    private final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+
+    @Test
+    public void soleReaderUpgradesImmediately()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        try (LockHandle handle = mgr.acquire( f, 1000, LockLevel.read ))
+        {
+            assertThat( mgr.upgrade( handle, 100 ), equalTo( true ) );
+            assertThat( handle.getLockLevel(), equalTo( LockLevel.write ) );
+            assertThat( mgr.acquire( f, 100, LockLevel.write ), nullValue() );
+        }
+
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void upgradeWaitsForOtherReadersAndHoldsOffNewOnes()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        LockHandle refresher = mgr.acquire( f, 1000, LockLevel.read );
+        LockHandle reader = mgr.acquire( f, 1000, LockLevel.read );
+
+        Future<Boolean> upgraded = otherThread.submit( () -> mgr.upgrade( refresher, 5000 ) );
+
+        Thread.sleep( 200 );
+        assertThat( upgraded.isDone(), equalTo( false ) );
+        assertThat( mgr.acquire( f, 100, LockLevel.read ), nullValue() );
+
+        reader.close();
+
+        assertThat( upgraded.get(), equalTo( true ) );
+        assertThat( refresher.getLockLevel(), equalTo( LockLevel.write ) );
+
+        refresher.close();
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void competingUpgradeFailsWithoutDeadlock()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        LockHandle first = mgr.acquire( f, 1000, LockLevel.read );
+        LockHandle second = mgr.acquire( f, 1000, LockLevel.read );
+
+        Future<Boolean> firstUpgraded = otherThread.submit( () -> mgr.upgrade( first, 5000 ) );
+        Thread.sleep( 200 );
+
+        assertThat( mgr.upgrade( second, 1000 ), equalTo( false ) );
+        assertThat( second.getLockLevel(), equalTo( LockLevel.read ) );
+
+        second.close();
+        assertThat( firstUpgraded.get(), equalTo( true ) );
+
+        first.close();
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void refresherUpgradesThenReadersJoinItsOutput()
+            throws Exception
+    {
+        File f = temp.newFile();
+        FileUtils.write( f, "stale" );
+
+        LockHandle refresher = mgr.acquire( f, 1000, LockLevel.read );
+        assertThat( mgr.upgrade( refresher, 1000 ), equalTo( true ) );
+
+        OutputStream out = mgr.openOutputStream( f, 1000, refresher );
+        out.write( "fresh".getBytes() );
+        out.flush();
+
+        Future<String> read = otherThread.submit( () -> {
+            try (InputStream in = mgr.openInputStream( f, 1000 ))
+            {
+                return IOUtils.toString( in );
+            }
+        } );
+
+        Thread.sleep( 200 );
+        out.close();
+
+        assertThat( read.get(), equalTo( "fresh" ) );
+        refresher.close();
+    }
+
+    @Test
+    public void downgradeLetsReadersIn()
+            throws Exception
+    {
+        File f = temp.newFile();
+
+        try (LockHandle writer = mgr.acquire( f, 1000, LockLevel.write ))
+        {
+            assertThat( mgr.downgrade( writer ), equalTo( true ) );
+            assertThat( writer.getLockLevel(), equalTo( LockLevel.read ) );
+
+            try (LockHandle reader = mgr.acquire( f, 1000, LockLevel.read ))
+            {
+                assertThat( reader, notNullValue() );
+                assertThat( mgr.acquire( f, 100, LockLevel.write ), nullValue() );
+            }
+
+            assertThat( mgr.downgrade( writer ), equalTo( false ) );
+        }
+
+        assertThat( mgr.isWriteLocked( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void coordinatorFailureKeepsLockLevel()
+            throws Exception
+    {
+        File f = temp.newFile();
+        FailingCoordinator coordinator = new FailingCoordinator();
+        JoinableFileManager coordinated = new JoinableFileManager( coordinator );
+
+        try (LockHandle handle = coordinated.acquire( f, 1000, LockLevel.write ))
+        {
+            coordinator.failing = true;
+            try
+            {
+                coordinated.downgrade( handle );
+                fail( "Downgrade should report the coordinator failure" );
+            }
+            catch ( IOException e )
+            {
+                assertThat( handle.getLockLevel(), equalTo( LockLevel.write ) );
+            }
+
+            // the write lock was kept.
+            coordinator.failing = false;
+            assertThat( coordinated.downgrade( handle ), equalTo( true ) );
+
+            coordinator.failing = true;
+            try
+            {
+                coordinated.upgrade( handle, 100 );
+                fail( "Upgrade should report the coordinator failure" );
+            }
+            catch ( IOException e )
+            {
+                assertThat( handle.getLockLevel(), equalTo( LockLevel.read ) );
+            }
+
+            // the read lock was kept, and no upgrade is left pending.
+            coordinator.failing = false;
+            assertThat( coordinated.upgrade( handle, 100 ), equalTo( true ) );
+        }
+    }
+
+    /**
+     * Coordinator that can be made to fail every lock request, like a lock service that has gone away.
+     */
+    private static final class FailingCoordinator
+            implements LockCoordinator
+    {
+        private volatile boolean failing;
+
+        @Override
+        public boolean tryLock( PathKey key, LockLevel level )
+                throws IOException
+        {
+            if ( failing )
+            {
+                throw new IOException( "Lock coordinator is unavailable" );
+            }
+
+            return true;
+        }
+
+        @Override
+        public void unlock( PathKey key )
+        {
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that files on a {@link FileSystem} other than the default one can be written, joined, locked and deleted via
+ * the {@link Path} overloads of {@link JoinableFileManager}. This uses the JDK's zip filesystem, whose channels can't
+ * be memory-mapped.
+ */
+public class NioPathTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    private FileSystem fs;
+
+    @Before
+    public void openFileSystem()
+            throws Exception
+    {
+        File zip = new File( temp.newFolder(), "store.zip" );
+        fs = FileSystems.newFileSystem( URI.create( "jar:" + zip.toURI() ),
+                                        Collections.singletonMap( "create", "true" ) );
+    }
+
+    @After
+    public void closeFileSystem()
+            throws Exception
+    {
+        fs.close();
+    }
+
+    @Test
+    public void writeAndJoinOnOtherFileSystem()
+            throws Exception
+    {
+        Path path = fs.getPath( "/org/foo/foo.pom" );
+
+        InputStream in;
+        try (OutputStream out = mgr.openOutputStream( path, 1000 ))
+        {
+            out.write( "first ".getBytes() );
+            out.flush();
+
+            in = mgr.openInputStream( path, 1000 );
+            assertThat( mgr.isWriteLocked( path ), equalTo( true ) );
+
+            out.write( "second".getBytes() );
+        }
+
+        assertThat( new String( IOUtils.toByteArray( in ) ), equalTo( "first second" ) );
+        in.close();
+
+        assertThat( mgr.isWriteLocked( path ), equalTo( false ) );
+        assertThat( new String( Files.readAllBytes( path ) ), equalTo( "first second" ) );
+    }
+
+    @Test
+    public void lockAndDeleteOnOtherFileSystem()
+            throws Exception
+    {
+        Path path = fs.getPath( "/org/foo/foo.jar" );
+        Files.createDirectories( path.getParent() );
+        Files.write( path, "jar".getBytes() );
+
+        assertThat( mgr.lock( path, 1000, LockLevel.write ), equalTo( true ) );
+        assertThat( PathKey.of( path ), not( equalTo( PathKey.of( new File( path.toString() ) ) ) ) );
+        assertThat( mgr.isWriteLocked( new File( path.toString() ) ), equalTo( false ) );
+
+        assertThat( mgr.unlock( path ), equalTo( true ) );
+        assertThat( mgr.tryDelete( path, 1000 ), equalTo( true ) );
+        assertThat( Files.exists( path ), equalTo( false ) );
+    }
+
+    @Test
+    public void batchKeepsSamePathOnBothFileSystems()
+            throws Exception
+    {
+        File file = new File( temp.newFolder(), "shared.pom" );
+        PathKey defaultKey = PathKey.of( file );
+        PathKey otherKey = PathKey.of( fs.getPath( file.getAbsolutePath() ) );
+
+        assertThat( defaultKey.toString(), equalTo( otherKey.toString() ) );
+        assertThat( Integer.signum( defaultKey.compareTo( otherKey ) ),
+                    equalTo( -Integer.signum( otherKey.compareTo( defaultKey ) ) ) );
+        assertThat( defaultKey.compareTo( otherKey ), not( equalTo( 0 ) ) );
+
+        List<PathKey> keys = Arrays.asList( defaultKey, otherKey );
+        assertThat( FileTree.canonicalOrder( keys ).size(), equalTo( 2 ) );
+
+        FileTree tree = new FileTree();
+        assertThat( tree.tryLockAll( keys, "owner", "batch", LockLevel.write, 1000, TimeUnit.MILLISECONDS ),
+                    equalTo( true ) );
+        assertThat( tree.isLockedBy( defaultKey, "owner" ), equalTo( true ) );
+        assertThat( tree.isLockedBy( otherKey, "owner" ), equalTo( true ) );
+
+        assertThat( tree.unlockAll( keys, "owner" ), equalTo( true ) );
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Verify that concurrent callers of {@link JoinableFileManager#openOrFetch(File, long, StreamFetcher)} run the fetcher
+ * once and all read its content, and that a failed fetch reaches the joined readers.
+ */
+public class OpenOrFetchTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Test
+    public void concurrentCallersShareOneFetch()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "fetched.txt" );
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        StreamFetcher fetcher = ( out ) -> {
+            fetches.incrementAndGet();
+            out.write( "first part, ".getBytes() );
+            out.flush();
+            try
+            {
+                release.await();
+            }
+            catch ( InterruptedException e )
+            {
+                throw new IOException( e );
+            }
+            out.write( "second part".getBytes() );
+        };
+
+        int callers = 5;
+        ExecutorService executor = Executors.newFixedThreadPool( callers );
+        List<Future<String>> results = new ArrayList<>();
+        CountDownLatch opened = new CountDownLatch( callers );
+        for ( int i = 0; i < callers; i++ )
+        {
+            results.add( executor.submit( () -> {
+                try (InputStream in = mgr.openOrFetch( f, 2000, fetcher ))
+                {
+                    opened.countDown();
+                    return IOUtils.toString( in );
+                }
+            } ) );
+        }
+
+        opened.await();
+        release.countDown();
+
+        for ( Future<String> result : results )
+        {
+            assertThat( result.get(), equalTo( "first part, second part" ) );
+        }
+
+        assertThat( fetches.get(), equalTo( 1 ) );
+
+        // once fetched, the file is just read
+        try (InputStream in = mgr.openOrFetch( f, 2000, ( out ) -> fetches.incrementAndGet() ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "first part, second part" ) );
+        }
+
+        assertThat( fetches.get(), equalTo( 1 ) );
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void failedFetchReachesJoinedReaders()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "failed.txt" );
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        StreamFetcher fetcher = ( out ) -> {
+            out.write( "partial".getBytes() );
+            out.flush();
+            try
+            {
+                release.await();
+            }
+            catch ( InterruptedException e )
+            {
+                throw new IOException( e );
+            }
+            throw new IOException( "Connection reset" );
+        };
+
+        InputStream first = mgr.openOrFetch( f, 2000, fetcher );
+        InputStream second = mgr.openOrFetch( f, 2000, ( out ) -> fail( "Fetcher should not run twice" ) );
+
+        release.countDown();
+
+        for ( InputStream in : new InputStream[] { first, second } )
+        {
+            try
+            {
+                IOUtils.toString( in );
+                fail( "Reader should see the failed fetch" );
+            }
+            catch ( IOException e )
+            {
+                assertThat( e.getCause().getMessage(), equalTo( "Connection reset" ) );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        // the partial file is gone, so the next call fetches again
+        try (InputStream in = mgr.openOrFetch( f, 2000, ( out ) -> out.write( "retried".getBytes() ) ))
+        {
+            assertThat( IOUtils.toString( in ), equalTo( "retried" ) );
+        }
+    }
+}
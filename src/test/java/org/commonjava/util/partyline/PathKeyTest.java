@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that {@link PathKey}s are interned and linked to their parents, and that the manager accepts them in place of
+ * {@link File}s.
+ */
+public class PathKeyTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    @Test
+    public void sameKeyForFilePathAndString()
+            throws Exception
+    {
+        File dir = temp.newFolder();
+        File f = new File( dir, "org/foo/foo.pom" );
+
+        PathKey key = PathKey.of( f );
+        assertThat( PathKey.of( f.toPath() ), sameInstance( key ) );
+        assertThat( PathKey.of( f.getAbsolutePath() ), sameInstance( key ) );
+        assertThat( key.getParent(), sameInstance( PathKey.of( f.getParentFile() ) ) );
+        assertThat( key.toFile(), equalTo( f.getAbsoluteFile() ) );
+    }
+
+    @Test
+    public void ancestorsFollowParentLinks()
+            throws Exception
+    {
+        PathKey key = PathKey.of( "/a/b/c" );
+
+        assertThat( key.getDepth(), equalTo( 3 ) );
+        assertThat( key.getAncestor( 1 ), sameInstance( PathKey.of( "/a" ) ) );
+        assertThat( key.getAncestor( 3 ), sameInstance( key ) );
+        assertThat( key.getAncestor( 4 ), nullValue() );
+        assertThat( PathKey.of( "/" ).getParent(), nullValue() );
+    }
+
+    @Test
+    public void lockAndOpenByKey()
+            throws Exception
+    {
+        JoinableFileManager mgr = new JoinableFileManager();
+        File f = temp.newFile();
+        PathKey key = PathKey.of( f );
+
+        try (OutputStream out = mgr.openOutputStream( key, 1000 ))
+        {
+            out.write( "key".getBytes() );
+            assertThat( mgr.isWriteLocked( f ), equalTo( true ) );
+        }
+
+        assertThat( mgr.lock( key, 1000, LockLevel.read ), equalTo( true ) );
+        assertThat( mgr.isReadLocked( key ), equalTo( false ) );
+        assertThat( mgr.unlock( f ), equalTo( true ) );
+        assertThat( mgr.isWriteLocked( key ), equalTo( false ) );
+    }
+}
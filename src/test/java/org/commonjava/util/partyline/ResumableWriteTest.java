@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that a resumable write appends to what an interrupted write left, that readers can read that content while
+ * the write resumes, and that the file is marked incomplete until a write finishes.
+ */
+public class ResumableWriteTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Test
+    public void resumeAfterAbortedWrite()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "download.jar" );
+
+        OutputStream out = mgr.openResumableOutputStream( f, 1000 );
+        assertThat( mgr.isIncomplete( f ), equalTo( true ) );
+        out.write( "hello ".getBytes() );
+        out.flush();
+        out.write( "never flushed".getBytes() );
+        ( (Abortable) out ).abort( new IOException( "Connection reset" ) );
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "hello " ) );
+        assertThat( mgr.isIncomplete( f ), equalTo( true ) );
+
+        out = mgr.openResumableOutputStream( f, 1000 );
+        assertThat( f.length(), equalTo( 6L ) );
+
+        InputStream in = mgr.openInputStream( f, 1000, (LockHandle) null );
+        byte[] prefix = new byte[6];
+        assertThat( IOUtils.read( in, prefix ), equalTo( 6 ) );
+        assertThat( new String( prefix ), equalTo( "hello " ) );
+
+        out.write( "world".getBytes() );
+        out.close();
+
+        assertThat( IOUtils.toString( in ), equalTo( "world" ) );
+        in.close();
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "hello world" ) );
+        assertThat( mgr.isIncomplete( f ), equalTo( false ) );
+    }
+
+    @Test
+    public void completedWriteClearsStaleMarker()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "download.jar" );
+
+        OutputStream out = mgr.openResumableOutputStream( f, 1000 );
+        out.write( "partial".getBytes() );
+        out.flush();
+        ( (Abortable) out ).abort( new IOException( "Connection reset" ) );
+        assertThat( mgr.isIncomplete( f ), equalTo( true ) );
+
+        try (OutputStream replace = mgr.openOutputStream( f, 1000 ))
+        {
+            replace.write( "all".getBytes() );
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "all" ) );
+        assertThat( mgr.isIncomplete( f ), equalTo( false ) );
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that segments written concurrently and out of order fill the file, that joined readers only see the
+ * contiguous prefix, and that digests and the block index follow the content in order.
+ */
+public class SegmentedWriteTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Test
+    public void readersStreamContiguousPrefix()
+            throws Exception
+    {
+        mgr.setWriteDigests( false, "SHA-1" );
+        mgr.setWriteBlockIndex( 4 );
+
+        File f = new File( temp.newFolder(), "segmented.jar" );
+        String content = "aaaaaaaaaabbbbbbbbbbcccccccccc";
+
+        SegmentedWrite write = mgr.openSegmentedWrite( f, 1000, 30 );
+        assertThat( f.length(), equalTo( 30L ) );
+        assertThat( mgr.isIncomplete( f ), equalTo( true ) );
+
+        InputStream in = mgr.openInputStream( f, 1000, (LockHandle) null );
+        ExecutorService executor = Executors.newFixedThreadPool( 3 );
+        Future<String> read = executor.submit( () -> IOUtils.toString( in ) );
+
+        // the last segments land first; readers can't see them until the first one does
+        writeSegment( executor, write, 20, "cccccccccc" );
+        writeSegment( executor, write, 10, "bbbbbbbbbb" );
+        assertThat( write.getContiguousLength(), equalTo( 0L ) );
+        assertThat( in.available(), equalTo( 0 ) );
+
+        writeSegment( executor, write, 0, "aaaaaaaaaa" );
+        assertThat( write.getContiguousLength(), equalTo( 30L ) );
+
+        write.close();
+
+        assertThat( read.get(), equalTo( content ) );
+        in.close();
+        executor.shutdownNow();
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( content ) );
+        assertThat( mgr.isIncomplete( f ), equalTo( false ) );
+        assertThat( write.getDigests().get( "SHA-1" ), equalTo( sha1( content ) ) );
+        assertThat( mgr.getVerifiedLength( f ), equalTo( 30L ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void overlappingSegmentsRejected()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "segmented.jar" );
+
+        try (SegmentedWrite write = mgr.openSegmentedWrite( f, 1000, 30 ))
+        {
+            write.openSegment( 0, 15 );
+            write.openSegment( 10, 10 );
+        }
+    }
+
+    @Test
+    public void gapKeepsContiguousPrefix()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "segmented.jar" );
+
+        SegmentedWrite write = mgr.openSegmentedWrite( f, 1000, 30 );
+        OutputStream first = write.openSegment( 0, 10 );
+        first.write( "aaaaaaaaaa".getBytes() );
+        OutputStream last = write.openSegment( 20, 10 );
+        last.write( "cccccccccc".getBytes() );
+
+        // closing the write closes (and flushes) both segments
+        write.close();
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "aaaaaaaaaa" ) );
+    }
+
+    private static void writeSegment( ExecutorService executor, SegmentedWrite write, long offset, String content )
+            throws Exception
+    {
+        executor.submit( () -> {
+            try (OutputStream out = write.openSegment( offset, content.length() ))
+            {
+                out.write( content.getBytes() );
+            }
+
+            return null;
+        } ).get();
+    }
+
+    private static String sha1( String content )
+            throws Exception
+    {
+        byte[] bytes = MessageDigest.getInstance( "SHA-1" ).digest( content.getBytes() );
+        return String.format( "%040x", new BigInteger( 1, bytes ) );
+    }
+}
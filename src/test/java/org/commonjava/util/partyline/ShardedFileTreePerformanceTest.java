@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compare lock / open throughput of a {@link JoinableFileManager} with 1, 8 and 64 shards, with many threads each
+ * working in their own top-level (repository) directory.
+ */
+public class ShardedFileTreePerformanceTest
+        extends AbstractJointedIOTest
+{
+    private static final int REPOS = 64;
+
+    private static final int ITERATIONS = 2000;
+
+    @Test
+    public void lockAndOpenThroughputByShardCount()
+            throws Exception
+    {
+        File storage = temp.newFolder( "storage" );
+        List<File> files = new ArrayList<>();
+        for ( int i = 0; i < REPOS; i++ )
+        {
+            File f = new File( storage, "repo-" + i + "/org/foo/foo-1.pom" );
+            FileUtils.write( f, "This is a test" );
+            files.add( f );
+        }
+
+        int threads = Math.max( 8, Runtime.getRuntime().availableProcessors() );
+
+        // warm up, then measure.
+        run( new JoinableFileManager( 1, storage ), files, threads );
+
+        StringBuilder report = new StringBuilder();
+        for ( int shards : new int[] { 1, 8, 64 } )
+        {
+            long elapsed = run( new JoinableFileManager( shards, storage ), files, threads );
+            long ops = (long) threads * ITERATIONS * 2;
+            report.append( String.format( "\n  %2d shards: %dms (%d ops/s)", shards, elapsed,
+                                          ops * 1000 / Math.max( 1, elapsed ) ) );
+        }
+
+        System.out.printf( "Lock / open throughput with %d threads over %d repositories:%s\n", threads, REPOS, report );
+    }
+
+    private long run( JoinableFileManager mgr, List<File> files, int threads )
+            throws Exception
+    {
+        ExecutorService exec = Executors.newFixedThreadPool( threads );
+        try
+        {
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for ( int t = 0; t < threads; t++ )
+            {
+                File f = files.get( t % files.size() );
+                tasks.add( () -> {
+                    int count = 0;
+                    for ( int i = 0; i < ITERATIONS; i++ )
+                    {
+                        try (LockHandle handle = mgr.acquire( f, 1000, LockLevel.read ))
+                        {
+                            if ( handle != null )
+                            {
+                                count++;
+                            }
+                        }
+
+                        try (InputStream in = mgr.openInputStream( f, 1000, null ))
+                        {
+                            in.read();
+                            count++;
+                        }
+                    }
+                    return count;
+                } );
+            }
+
+            long start = System.currentTimeMillis();
+            List<Future<Integer>> results = exec.invokeAll( tasks );
+            long elapsed = System.currentTimeMillis() - start;
+
+            for ( Future<Integer> result : results )
+            {
+                assertThat( result.get(), equalTo( ITERATIONS * 2 ) );
+            }
+
+            return elapsed;
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+    }
+}
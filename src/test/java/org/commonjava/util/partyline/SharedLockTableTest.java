@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that locks are coordinated between processes through a {@link SharedLockTable}, using forked JVMs as the
+ * other processes, and that the locks of a process that dies are reclaimed.
+ */
+public class SharedLockTableTest
+        extends AbstractJointedIOTest
+{
+
+    private static final String LOCKED = "LOCKED";
+
+    private static final String STREAM = "stream";
+
+    private static final String FIRST_PART = "written before the reader joined; ";
+
+    private static final String SECOND_PART = "written after.";
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    @Test
+    public void writeLockInOtherProcessIsReclaimedWhenItDies()
+            throws Exception
+    {
+        File tableFile = new File( temp.getRoot(), "locks.table" );
+        File f = temp.newFile();
+
+        try (SharedLockTable table = new SharedLockTable( tableFile ))
+        {
+            JoinableFileManager mgr = new JoinableFileManager( table );
+
+            Process holder = startHolder( tableFile, f, LockLevel.write );
+            try
+            {
+                assertThat( mgr.lock( f, 200, LockLevel.read ), equalTo( false ) );
+                assertThat( mgr.lock( f, 200, LockLevel.write ), equalTo( false ) );
+            }
+            finally
+            {
+                holder.destroyForcibly().waitFor();
+            }
+
+            assertThat( mgr.lock( f, 2000, LockLevel.write ), equalTo( true ) );
+            mgr.unlock( f );
+        }
+    }
+
+    @Test
+    public void readLocksAreSharedBetweenProcesses()
+            throws Exception
+    {
+        File tableFile = new File( temp.getRoot(), "locks.table" );
+        File f = temp.newFile();
+
+        try (SharedLockTable table = new SharedLockTable( tableFile ))
+        {
+            JoinableFileManager mgr = new JoinableFileManager( table );
+
+            Process holder = startHolder( tableFile, f, LockLevel.read );
+            try
+            {
+                assertThat( mgr.lock( f, 200, LockLevel.read ), equalTo( true ) );
+                mgr.unlock( f );
+
+                assertThat( mgr.lock( f, 200, LockLevel.write ), equalTo( false ) );
+
+                // tell the holder to unlock and exit.
+                OutputStream stdin = holder.getOutputStream();
+                stdin.write( '\n' );
+                stdin.flush();
+                assertThat( holder.waitFor(), equalTo( 0 ) );
+            }
+            finally
+            {
+                holder.destroyForcibly();
+            }
+
+            assertThat( mgr.lock( f, 2000, LockLevel.write ), equalTo( true ) );
+            assertThat( table.getOwnerPid( PathKey.of( f ) ) > 0, equalTo( true ) );
+            mgr.unlock( f );
+            assertThat( table.getOwnerPid( PathKey.of( f ) ), equalTo( -1L ) );
+        }
+    }
+
+    @Test
+    public void closingTableReleasesItsLocks()
+            throws Exception
+    {
+        File tableFile = new File( temp.getRoot(), "locks.table" );
+        File f = temp.newFile();
+
+        try (SharedLockTable first = new SharedLockTable( tableFile );
+             SharedLockTable second = new SharedLockTable( tableFile ))
+        {
+            JoinableFileManager firstMgr = new JoinableFileManager( first );
+            JoinableFileManager secondMgr = new JoinableFileManager( second );
+
+            assertThat( firstMgr.lock( f, 200, LockLevel.write ), equalTo( true ) );
+            assertThat( secondMgr.lock( f, 200, LockLevel.write ), equalTo( false ) );
+
+            first.close();
+            assertThat( secondMgr.lock( f, 200, LockLevel.write ), equalTo( true ) );
+            secondMgr.unlock( f );
+        }
+    }
+
+    @Test
+    public void readerJoinsWriteInOtherProcess()
+            throws Exception
+    {
+        File tableFile = new File( temp.getRoot(), "locks.table" );
+        File f = new File( temp.getRoot(), "streamed.txt" );
+
+        try (SharedLockTable table = new SharedLockTable( tableFile ))
+        {
+            JoinableFileManager mgr = new JoinableFileManager( table );
+
+            Process writer = startHolder( tableFile, f, STREAM );
+            try (InputStream in = mgr.openInputStream( f, 2000 ))
+            {
+                byte[] first = new byte[FIRST_PART.length()];
+                for ( int i = 0; i < first.length; i++ )
+                {
+                    first[i] = (byte) in.read();
+                }
+                assertThat( new String( first ), equalTo( FIRST_PART ) );
+
+                // tell the writer to finish.
+                OutputStream stdin = writer.getOutputStream();
+                stdin.write( '\n' );
+                stdin.flush();
+
+                assertThat( IOUtils.toString( in ), equalTo( SECOND_PART ) );
+                assertThat( writer.waitFor(), equalTo( 0 ) );
+            }
+            finally
+            {
+                writer.destroyForcibly();
+            }
+        }
+    }
+
+    @Test( expected = IOException.class )
+    public void readerFailsWhenWriterInOtherProcessDies()
+            throws Exception
+    {
+        File tableFile = new File( temp.getRoot(), "locks.table" );
+        File f = new File( temp.getRoot(), "streamed.txt" );
+
+        try (SharedLockTable table = new SharedLockTable( tableFile ))
+        {
+            JoinableFileManager mgr = new JoinableFileManager( table );
+
+            Process writer = startHolder( tableFile, f, STREAM );
+            try (InputStream in = mgr.openInputStream( f, 2000 ))
+            {
+                writer.destroyForcibly().waitFor();
+                IOUtils.toString( in );
+            }
+        }
+    }
+
+    private Process startHolder( File tableFile, File f, LockLevel level )
+            throws IOException
+    {
+        return startHolder( tableFile, f, level.name() );
+    }
+
+    private Process startHolder( File tableFile, File f, String mode )
+            throws IOException
+    {
+        String java = new File( System.getProperty( "java.home" ), "bin/java" ).getPath();
+        String classpath = System.getProperty( "surefire.test.class.path", System.getProperty( "java.class.path" ) );
+
+        Process process = new ProcessBuilder( java, "-cp", classpath, Holder.class.getName(), tableFile.getPath(),
+                                              f.getPath(), mode ).redirectErrorStream( true ).start();
+
+        BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
+        String line;
+        while ( ( line = reader.readLine() ) != null )
+        {
+            if ( LOCKED.equals( line ) )
+            {
+                return process;
+            }
+        }
+
+        throw new IOException( "Lock holder process exited without locking: " + f );
+    }
+
+    /**
+     * Run in a forked JVM: lock the file given on the command line through the shared table (or start writing it, in
+     * {@link #STREAM} mode), report it on stdout, and hold the lock (or finish writing) when a line is read from
+     * stdin.
+     */
+    public static final class Holder
+    {
+        public static void main( String[] args )
+                throws Exception
+        {
+            try (SharedLockTable table = new SharedLockTable( new File( args[0] ) ))
+            {
+                JoinableFileManager mgr = new JoinableFileManager( table );
+                File f = new File( args[1] );
+                BufferedReader stdin = new BufferedReader( new InputStreamReader( System.in ) );
+                if ( STREAM.equals( args[2] ) )
+                {
+                    try (OutputStream out = mgr.openOutputStream( f, 5000 ))
+                    {
+                        out.write( FIRST_PART.getBytes() );
+                        out.flush();
+
+                        System.out.println( LOCKED );
+                        System.out.flush();
+
+                        stdin.readLine();
+                        out.write( SECOND_PART.getBytes() );
+                    }
+
+                    return;
+                }
+
+                if ( !mgr.lock( f, 5000, LockLevel.valueOf( args[2] ) ) )
+                {
+                    System.exit( 1 );
+                }
+
+                System.out.println( LOCKED );
+                System.out.flush();
+
+                stdin.readLine();
+                mgr.unlock( f );
+            }
+        }
+    }
+}
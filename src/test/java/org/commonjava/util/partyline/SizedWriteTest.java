@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that a write with an expected length extends the file up front, that joined readers can see the length, that
+ * the file ends up with the length actually written, and that a resumed write never starts from the extended length.
+ */
+public class SizedWriteTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Test
+    public void readerSeesExpectedLength()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "sized.jar" );
+
+        OutputStream out = mgr.openSizedOutputStream( f, 1000, 10 );
+        assertThat( f.length(), equalTo( 10L ) );
+
+        InputStream in = mgr.openInputStream( f, 1000, (LockHandle) null );
+        ReadProgress progress = (ReadProgress) in;
+        assertThat( progress.getExpectedLength(), equalTo( 10L ) );
+
+        out.write( "0123".getBytes() );
+        out.flush();
+
+        assertThat( in.available(), equalTo( 4 ) );
+        assertThat( IOUtils.read( in, new byte[4] ), equalTo( 4 ) );
+        assertThat( progress.getPosition(), equalTo( 4L ) );
+
+        out.write( "456789".getBytes() );
+        out.close();
+
+        assertThat( IOUtils.toString( in ), equalTo( "456789" ) );
+        assertThat( progress.getPosition(), equalTo( 10L ) );
+        in.close();
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "0123456789" ) );
+    }
+
+    @Test
+    public void shortWriteKeepsWrittenLength()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "short.jar" );
+
+        try (OutputStream out = mgr.openSizedOutputStream( f, 1000, 100 ))
+        {
+            out.write( "short".getBytes() );
+        }
+
+        assertThat( FileUtils.readFileToString( f ), equalTo( "short" ) );
+
+        try (InputStream in = mgr.openInputStream( f, 1000, (LockHandle) null ))
+        {
+            assertThat( ( (ReadProgress) in ).getExpectedLength(), equalTo( 5L ) );
+        }
+    }
+
+    @Test
+    public void resumeAfterCrashSkipsPreallocatedLength()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "sized.jar" );
+        File crashed = new File( temp.newFolder(), "sized.jar" );
+
+        OutputStream out = mgr.openSizedOutputStream( f, 1000, 10 );
+        assertThat( mgr.isIncomplete( f ), equalTo( true ) );
+
+        out.write( "0123".getBytes() );
+        out.flush();
+
+        // what a crash at this point leaves on disk: the preallocated file, still marked incomplete
+        FileUtils.copyFile( f, crashed );
+        FileUtils.copyFile( JoinableFile.getIncompleteMarker( f.toPath() ).toFile(),
+                            JoinableFile.getIncompleteMarker( crashed.toPath() ).toFile() );
+        assertThat( crashed.length(), equalTo( 10L ) );
+
+        out.write( "456789".getBytes() );
+        out.close();
+        assertThat( mgr.isIncomplete( f ), equalTo( false ) );
+
+        assertThat( mgr.isIncomplete( crashed ), equalTo( true ) );
+        try (OutputStream resumed = mgr.openResumableOutputStream( crashed, 1000 ))
+        {
+            assertThat( crashed.length(), equalTo( 4L ) );
+            resumed.write( "456789".getBytes() );
+        }
+
+        assertThat( FileUtils.readFileToString( crashed ), equalTo( "0123456789" ) );
+        assertThat( mgr.isIncomplete( crashed ), equalTo( false ) );
+    }
+
+    @Test
+    public void leasedStreamReportsProgress()
+            throws Exception
+    {
+        File f = new File( temp.newFolder(), "leased.jar" );
+        FileUtils.writeStringToFile( f, "0123456789" );
+
+        try (InputStream in = mgr.openInputStream( f, 1000, 60000L ))
+        {
+            ReadProgress progress = (ReadProgress) in;
+            assertThat( progress.getExpectedLength(), equalTo( 10L ) );
+
+            assertThat( IOUtils.read( in, new byte[4] ), equalTo( 4 ) );
+            assertThat( progress.getPosition(), equalTo( 4L ) );
+        }
+    }
+}
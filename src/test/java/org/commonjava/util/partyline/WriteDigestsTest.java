@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that digests computed while writing match the content, including content a resumable write starts from, and
+ * that checksum files are written next to the file.
+ */
+public class WriteDigestsTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    @Test
+    public void digestsAndChecksumFiles()
+            throws Exception
+    {
+        mgr.setWriteDigests( true, "SHA-1", "MD5" );
+
+        File dir = temp.newFolder();
+        File f = new File( dir, "artifact.jar" );
+
+        OutputStream out = mgr.openOutputStream( f, 1000 );
+        out.write( "first chunk, ".getBytes() );
+        out.flush();
+        out.write( "second chunk".getBytes() );
+        out.close();
+
+        String content = "first chunk, second chunk";
+        Map<String, String> digests = ( (WriteDigests) out ).getDigests();
+        assertThat( digests.get( "SHA-1" ), equalTo( digest( "SHA-1", content ) ) );
+        assertThat( digests.get( "MD5" ), equalTo( digest( "MD5", content ) ) );
+
+        assertThat( FileUtils.readFileToString( new File( dir, "artifact.jar.sha1" ) ),
+                    equalTo( digest( "SHA-1", content ) ) );
+        assertThat( FileUtils.readFileToString( new File( dir, "artifact.jar.md5" ) ),
+                    equalTo( digest( "MD5", content ) ) );
+        assertThat( dir.list().length, equalTo( 3 ) );
+    }
+
+    @Test
+    public void resumedWriteDigestsWholeContent()
+            throws Exception
+    {
+        mgr.setWriteDigests( false, "SHA-256" );
+
+        File f = new File( temp.newFolder(), "artifact.jar" );
+
+        OutputStream out = mgr.openResumableOutputStream( f, 1000 );
+        out.write( "hello ".getBytes() );
+        out.flush();
+        ( (Abortable) out ).abort( new IOException( "Connection reset" ) );
+        assertThat( ( (WriteDigests) out ).getDigests().isEmpty(), equalTo( true ) );
+
+        out = mgr.openResumableOutputStream( f, 1000 );
+        out.write( "world".getBytes() );
+        out.close();
+
+        assertThat( ( (WriteDigests) out ).getDigests().get( "SHA-256" ),
+                    equalTo( digest( "SHA-256", "hello world" ) ) );
+        assertThat( new File( f.getPath() + ".sha256" ).exists(), equalTo( false ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void unsupportedAlgorithm()
+    {
+        mgr.setWriteDigests( false, "NOT-A-DIGEST" );
+    }
+
+    private static String digest( String algorithm, String content )
+            throws Exception
+    {
+        byte[] bytes = MessageDigest.getInstance( algorithm ).digest( content.getBytes() );
+        return String.format( "%0" + ( bytes.length * 2 ) + "x", new BigInteger( 1, bytes ) );
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.cluster;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.AbstractJointedIOTest;
+import org.commonjava.util.partyline.PathKey;
+import org.commonjava.util.partyline.ReadProgress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verify that a {@link ClusterNode} joins a write in progress on another node (another manager on localhost) by
+ * streaming the content from that node as it is flushed.
+ */
+public class ClusterStreamJoinTest
+        extends AbstractJointedIOTest
+{
+    private static final String FIRST_PART = "flushed before the other node joined; ";
+
+    private static final String SECOND_PART = "flushed after.";
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private LockCoordinatorServer server;
+
+    private ClusterNode writerNode;
+
+    private ClusterNode readerNode;
+
+    @Before
+    public void startCluster()
+            throws Exception
+    {
+        server = new LockCoordinatorServer();
+
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        writerNode = new ClusterNode( host, server.getPort(), temp.getRoot(), InetAddress.getLoopbackAddress() );
+        readerNode = new ClusterNode( host, server.getPort(), temp.getRoot(), InetAddress.getLoopbackAddress() );
+    }
+
+    @After
+    public void stopCluster()
+            throws Exception
+    {
+        readerNode.close();
+        writerNode.close();
+        server.close();
+    }
+
+    @Test
+    public void readerJoinsWriteOnOtherNode()
+            throws Exception
+    {
+        File f = new File( temp.getRoot(), "artifact.jar" );
+
+        OutputStream out = writerNode.getFileManager().openOutputStream( f, 1000 );
+        out.write( FIRST_PART.getBytes() );
+        out.flush();
+
+        // the advertisement is sent asynchronously.
+        while ( readerNode.getCoordinator().locateWriter( PathKey.of( f ) ) == null )
+        {
+            Thread.sleep( 10 );
+        }
+
+        try (InputStream in = readerNode.openInputStream( f, 1000 ))
+        {
+            assertThat( in, notNullValue() );
+
+            byte[] first = new byte[FIRST_PART.length()];
+            for ( int i = 0; i < first.length; i++ )
+            {
+                first[i] = (byte) in.read();
+            }
+            assertThat( new String( first ), equalTo( FIRST_PART ) );
+            assertThat( ( (ReadProgress) in ).getPosition(), equalTo( (long) FIRST_PART.length() ) );
+
+            out.write( SECOND_PART.getBytes() );
+            out.close();
+
+            assertThat( IOUtils.toString( in ), equalTo( SECOND_PART ) );
+        }
+
+        assertThat( writerNode.getPeerServer().getServedBytes(),
+                    equalTo( (long) ( FIRST_PART.length() + SECOND_PART.length() ) ) );
+    }
+
+    @Test( expected = IOException.class )
+    public void peerRefusesFilesOutsideStorageRoot()
+            throws Exception
+    {
+        File outside = File.createTempFile( "outside", ".txt" );
+        outside.deleteOnExit();
+
+        try (InputStream in = new PeerInputStream( writerNode.getPeerServer().getAddress(), outside.getPath() ))
+        {
+            in.read();
+        }
+    }
+}
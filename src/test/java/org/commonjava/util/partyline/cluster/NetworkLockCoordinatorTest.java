@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.cluster;
+
+import org.commonjava.util.partyline.AbstractJointedIOTest;
+import org.commonjava.util.partyline.JoinableFileManager;
+import org.commonjava.util.partyline.LockLevel;
+import org.commonjava.util.partyline.PathKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Verify that managers on different "nodes" coordinate their locks through a {@link LockCoordinatorServer} on
+ * localhost, that batch locks take a single round trip, and that a node whose lease lapses loses its locks.
+ */
+public class NetworkLockCoordinatorTest
+        extends AbstractJointedIOTest
+{
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private LockCoordinatorServer server;
+
+    private final List<NetworkLockCoordinator> coordinators = new ArrayList<>();
+
+    @Before
+    public void startServer()
+            throws Exception
+    {
+        server = new LockCoordinatorServer();
+    }
+
+    @After
+    public void stopServer()
+            throws Exception
+    {
+        for ( NetworkLockCoordinator coordinator : coordinators )
+        {
+            coordinator.close();
+        }
+
+        server.close();
+    }
+
+    @Test
+    public void writeLockExcludesOtherNode()
+            throws Exception
+    {
+        File f = temp.newFile();
+        JoinableFileManager first = new JoinableFileManager( connect( NetworkLockCoordinator.DEFAULT_LEASE ) );
+        JoinableFileManager second = new JoinableFileManager( connect( NetworkLockCoordinator.DEFAULT_LEASE ) );
+
+        assertThat( first.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+        assertThat( second.lock( f, 200, LockLevel.read ), equalTo( false ) );
+        assertThat( second.lock( f, 200, LockLevel.write ), equalTo( false ) );
+
+        first.unlock( f );
+        assertThat( second.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+        second.unlock( f );
+    }
+
+    @Test
+    public void readLocksAreSharedBetweenNodes()
+            throws Exception
+    {
+        File f = temp.newFile();
+        JoinableFileManager first = new JoinableFileManager( connect( NetworkLockCoordinator.DEFAULT_LEASE ) );
+        JoinableFileManager second = new JoinableFileManager( connect( NetworkLockCoordinator.DEFAULT_LEASE ) );
+
+        assertThat( first.lock( f, 1000, LockLevel.read ), equalTo( true ) );
+        assertThat( second.lock( f, 1000, LockLevel.read ), equalTo( true ) );
+        assertThat( server.getHolderCount( f.getAbsolutePath() ), equalTo( 2 ) );
+
+        first.unlock( f );
+        second.unlock( f );
+    }
+
+    @Test
+    public void batchLockTakesOneRoundTrip()
+            throws Exception
+    {
+        List<File> files = new ArrayList<>();
+        for ( int i = 0; i < 5; i++ )
+        {
+            files.add( temp.newFile() );
+        }
+
+        JoinableFileManager first = new JoinableFileManager( connect( NetworkLockCoordinator.DEFAULT_LEASE ) );
+        JoinableFileManager second = new JoinableFileManager( connect( NetworkLockCoordinator.DEFAULT_LEASE ) );
+
+        long frames = server.getFrameCount();
+        assertThat( first.lockAll( files, 1000, LockLevel.write ), equalTo( true ) );
+        assertThat( server.getFrameCount() - frames, equalTo( 1L ) );
+
+        assertThat( second.lockAll( files, 200, LockLevel.write ), equalTo( false ) );
+        for ( File f : files )
+        {
+            assertThat( server.getHolderCount( f.getAbsolutePath() ), equalTo( 1 ) );
+        }
+
+        first.unlockAll( files );
+        assertThat( second.lockAll( files, 1000, LockLevel.write ), equalTo( true ) );
+        second.unlockAll( files );
+    }
+
+    @Test
+    public void lapsedLeaseReleasesLocks()
+            throws Exception
+    {
+        File f = temp.newFile();
+        NetworkLockCoordinator stalled = connect( 300 );
+        JoinableFileManager first = new JoinableFileManager( stalled );
+        JoinableFileManager second = new JoinableFileManager( connect( NetworkLockCoordinator.DEFAULT_LEASE ) );
+
+        assertThat( first.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+
+        Thread.sleep( 500 );
+        assertThat( server.getHolderCount( f.getAbsolutePath() ), equalTo( 1 ) );
+
+        stalled.setRenewing( false );
+        assertThat( second.lock( f, 5000, LockLevel.write ), equalTo( true ) );
+        second.unlock( f );
+    }
+
+    @Test
+    public void lateGrantIsGivenBack()
+            throws Exception
+    {
+        File f = temp.newFile();
+        NetworkLockCoordinator slow = connect( NetworkLockCoordinator.DEFAULT_LEASE );
+        slow.setRequestTimeout( 100 );
+
+        server.setResponseDelay( 300 );
+        try
+        {
+            slow.tryLock( PathKey.of( f ), LockLevel.write );
+            fail( "Lock request should have timed out" );
+        }
+        catch ( IOException e )
+        {
+            // the service granted the lock, but the answer came too late.
+        }
+
+        assertThat( server.getHolderCount( f.getAbsolutePath() ), equalTo( 1 ) );
+
+        // the late answer triggers the release, which takes another (slow) round trip.
+        server.setResponseDelay( 0 );
+        long end = System.currentTimeMillis() + 5000;
+        while ( server.getHolderCount( f.getAbsolutePath() ) > 0 && System.currentTimeMillis() < end )
+        {
+            Thread.sleep( 20 );
+        }
+
+        assertThat( server.getHolderCount( f.getAbsolutePath() ), equalTo( 0 ) );
+
+        JoinableFileManager other = new JoinableFileManager( connect( NetworkLockCoordinator.DEFAULT_LEASE ) );
+        assertThat( other.lock( f, 1000, LockLevel.write ), equalTo( true ) );
+        other.unlock( f );
+    }
+
+    private NetworkLockCoordinator connect( long lease )
+            throws Exception
+    {
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        NetworkLockCoordinator coordinator = new NetworkLockCoordinator( host, server.getPort(), lease );
+        coordinators.add( coordinator );
+        return coordinator;
+    }
+}
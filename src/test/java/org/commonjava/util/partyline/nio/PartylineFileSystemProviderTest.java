@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2015 Red Hat, Inc. (jdcasey@commonjava.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.util.partyline.nio;
+
+import org.apache.commons.io.IOUtils;
+import org.commonjava.util.partyline.AbstractJointedIOTest;
+import org.commonjava.util.partyline.JoinableFileManager;
+import org.commonjava.util.partyline.LockHandle;
+import org.commonjava.util.partyline.LockLevel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.util.partyline.fixture.ThreadDumper.timeoutRule;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Verify that code using {@link Files} on paths from a {@link PartylineFileSystemProvider} joins in-progress writes and
+ * respects partyline locks.
+ */
+public class PartylineFileSystemProviderTest
+        extends AbstractJointedIOTest
+{
+
+    @Rule
+    public TestRule timeout = timeoutRule( 30, TimeUnit.SECONDS );
+
+    private final JoinableFileManager mgr = new JoinableFileManager();
+
+    private final PartylineFileSystemProvider provider = new PartylineFileSystemProvider( mgr );
+
+    @Test
+    public void readerJoinsInProgressWrite()
+            throws Exception
+    {
+        Path path = provider.wrap( temp.newFolder().toPath().resolve( "org/foo/foo.pom" ) );
+
+        InputStream in;
+        try (OutputStream out = Files.newOutputStream( path ))
+        {
+            out.write( "first ".getBytes() );
+            out.flush();
+
+            in = Files.newInputStream( path );
+            assertThat( mgr.isWriteLocked( path.toFile() ), equalTo( true ) );
+
+            out.write( "second".getBytes() );
+        }
+
+        assertThat( new String( IOUtils.toByteArray( in ) ), equalTo( "first second" ) );
+        in.close();
+
+        assertThat( new String( Files.readAllBytes( path ) ), equalTo( "first second" ) );
+        assertThat( mgr.isWriteLocked( path.toFile() ), equalTo( false ) );
+    }
+
+    @Test
+    public void deleteWaitsForLock()
+            throws Exception
+    {
+        PartylineFileSystemProvider shortWait =
+                new PartylineFileSystemProvider( mgr, provider.getFileSystem().getDelegate(), 100 );
+
+        Path path = shortWait.wrap( temp.newFile().toPath() );
+        Files.write( path, "content".getBytes() );
+
+        try (LockHandle handle = mgr.acquire( path.toFile(), 1000, LockLevel.read ))
+        {
+            Files.delete( path );
+            fail( "Deleted a read-locked file" );
+        }
+        catch ( IOException e )
+        {
+            assertThat( Files.exists( path ), equalTo( true ) );
+        }
+
+        Files.delete( path );
+        assertThat( Files.exists( path ), equalTo( false ) );
+    }
+
+    @Test
+    public void moveLocksSourceAndTarget()
+            throws Exception
+    {
+        PartylineFileSystemProvider shortWait =
+                new PartylineFileSystemProvider( mgr, provider.getFileSystem().getDelegate(), 100 );
+
+        Path dir = shortWait.wrap( temp.newFolder().toPath() );
+        Path source = dir.resolve( "a.txt" );
+        Path target = dir.resolve( "b.txt" );
+        Files.write( source, "a".getBytes() );
+
+        try (LockHandle handle = mgr.acquire( target.toFile(), 1000, LockLevel.write ))
+        {
+            Files.move( source, target );
+            fail( "Moved onto a write-locked file" );
+        }
+        catch ( IOException e )
+        {
+            assertThat( Files.exists( source ), equalTo( true ) );
+            assertThat( mgr.isWriteLocked( source.toFile() ), equalTo( false ) );
+        }
+
+        Files.move( source, target );
+        assertThat( new String( Files.readAllBytes( target ) ), equalTo( "a" ) );
+        assertThat( mgr.isWriteLocked( target.toFile() ), equalTo( false ) );
+    }
+
+    @Test( expected = DirectoryNotEmptyException.class )
+    public void deleteRefusesNonEmptyDirectory()
+            throws Exception
+    {
+        Path dir = provider.wrap( temp.newFolder().toPath() );
+        Files.write( dir.resolve( "child.txt" ), "child".getBytes() );
+
+        Files.delete( dir );
+    }
+
+    @Test
+    public void pathsStayOnPartylineFileSystem()
+            throws Exception
+    {
+        Path dir = provider.wrap( temp.newFolder().toPath() );
+        Path child = dir.resolve( "a.txt" );
+        Files.write( child, "a".getBytes() );
+
+        assertThat( child.getFileSystem(), sameInstance( provider.getFileSystem() ) );
+        assertThat( provider.getPath( child.toUri() ), equalTo( child ) );
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream( dir ))
+        {
+            for ( Path entry : entries )
+            {
+                assertThat( entry.getFileSystem(), sameInstance( provider.getFileSystem() ) );
+            }
+        }
+
+        Path copy = dir.resolve( "b.txt" );
+        Files.copy( child, copy );
+        assertThat( new String( Files.readAllBytes( copy ) ), equalTo( "a" ) );
+    }
+}